@@ -31,6 +31,37 @@ public final class Aggregators {
     MIN     /* Returns the <type>.MinValue when a data point is missing */
   }
   
+  /**
+   * An aggregator that can also aggregate values already gathered in a
+   * primitive array, in a tight loop rather than through one call per value.
+   * All the aggregators of this class implement it.  For other aggregators
+   * the values are aggregated through {@link Aggregator#runLong} and
+   * {@link Aggregator#runDouble}.
+   * <p>
+   * Both methods must return the same result as their {@link Aggregator}
+   * counterpart given the same values in the same order.
+   * @since 2.1
+   */
+  interface Batch {
+
+    /**
+     * Aggregates the first {@code count} values of an array.
+     * @param values The values to aggregate.
+     * @param count The number of values to aggregate, at least 1.
+     * @return The aggregated value.
+     */
+    long runLongs(long[] values, int count);
+
+    /**
+     * Aggregates the first {@code count} values of an array.
+     * @param values The values to aggregate.
+     * @param count The number of values to aggregate, at least 1.
+     * @return The aggregated value.
+     */
+    double runDoubles(double[] values, int count);
+
+  }
+
   /** Aggregator that sums up all the data points. */
   public static final Aggregator SUM = new Sum(
       Interpolation.LERP, "sum");
@@ -106,7 +137,7 @@ public final class Aggregators {
     throw new NoSuchElementException("No such aggregator: " + name);
   }
 
-  private static final class Sum implements Aggregator {
+  private static final class Sum implements Aggregator, Batch {
     private final Interpolation method;
     private final String name;
     
@@ -131,6 +162,22 @@ public final class Aggregators {
       return result;
     }
 
+    public long runLongs(final long[] values, final int count) {
+      long result = values[0];
+      for (int i = 1; i < count; i++) {
+        result += values[i];
+      }
+      return result;
+    }
+
+    public double runDoubles(final double[] values, final int count) {
+      double result = values[0];
+      for (int i = 1; i < count; i++) {
+        result += values[i];
+      }
+      return result;
+    }
+
     public String toString() {
       return name;
     }
@@ -141,7 +188,7 @@ public final class Aggregators {
     
   }
 
-  private static final class Min implements Aggregator {
+  private static final class Min implements Aggregator, Batch {
     private final Interpolation method;
     private final String name;
     
@@ -172,6 +219,26 @@ public final class Aggregators {
       return min;
     }
 
+    public long runLongs(final long[] values, final int count) {
+      long min = values[0];
+      for (int i = 1; i < count; i++) {
+        if (values[i] < min) {
+          min = values[i];
+        }
+      }
+      return min;
+    }
+
+    public double runDoubles(final double[] values, final int count) {
+      double min = values[0];
+      for (int i = 1; i < count; i++) {
+        if (values[i] < min) {
+          min = values[i];
+        }
+      }
+      return min;
+    }
+
     public String toString() {
       return name;
     }
@@ -182,7 +249,7 @@ public final class Aggregators {
     
   }
 
-  private static final class Max implements Aggregator {
+  private static final class Max implements Aggregator, Batch {
     private final Interpolation method;
     private final String name;
     
@@ -213,6 +280,26 @@ public final class Aggregators {
       return max;
     }
 
+    public long runLongs(final long[] values, final int count) {
+      long max = values[0];
+      for (int i = 1; i < count; i++) {
+        if (values[i] > max) {
+          max = values[i];
+        }
+      }
+      return max;
+    }
+
+    public double runDoubles(final double[] values, final int count) {
+      double max = values[0];
+      for (int i = 1; i < count; i++) {
+        if (values[i] > max) {
+          max = values[i];
+        }
+      }
+      return max;
+    }
+
     public String toString() {
       return name;
     }
@@ -223,7 +310,7 @@ public final class Aggregators {
     
   }
 
-  private static final class Avg implements Aggregator {
+  private static final class Avg implements Aggregator, Batch {
     private final Interpolation method;
     private final String name;
     
@@ -252,6 +339,22 @@ public final class Aggregators {
       return result / n;
     }
 
+    public long runLongs(final long[] values, final int count) {
+      long result = values[0];
+      for (int i = 1; i < count; i++) {
+        result += values[i];
+      }
+      return result / count;
+    }
+
+    public double runDoubles(final double[] values, final int count) {
+      double result = values[0];
+      for (int i = 1; i < count; i++) {
+        result += values[i];
+      }
+      return result / count;
+    }
+
     public String toString() {
       return name;
     }
@@ -271,7 +374,7 @@ public final class Aggregators {
    * paper by B.  P. Welford and is presented in Donald Knuth's Art of
    * Computer Programming, Vol 2, page 232, 3rd edition
    */
-  private static final class StdDev implements Aggregator {
+  private static final class StdDev implements Aggregator, Batch {
     private final Interpolation method;
     private final String name;
     
@@ -322,6 +425,36 @@ public final class Aggregators {
       return Math.sqrt(variance / (n - 1));
     }
 
+    public long runLongs(final long[] values, final int count) {
+      if (count == 1) {
+        return 0;
+      }
+      double old_mean = values[0];
+      double variance = 0;
+      for (int i = 1; i < count; i++) {
+        final double x = values[i];
+        final double new_mean = old_mean + (x - old_mean) / (i + 1);
+        variance += (x - old_mean) * (x - new_mean);
+        old_mean = new_mean;
+      }
+      return (long) Math.sqrt(variance / count);
+    }
+
+    public double runDoubles(final double[] values, final int count) {
+      if (count == 1) {
+        return 0;
+      }
+      double old_mean = values[0];
+      double variance = 0;
+      for (int i = 1; i < count; i++) {
+        final double x = values[i];
+        final double new_mean = old_mean + (x - old_mean) / (i + 1);
+        variance += (x - old_mean) * (x - new_mean);
+        old_mean = new_mean;
+      }
+      return Math.sqrt(variance / count);
+    }
+
     public String toString() {
       return name;
     }
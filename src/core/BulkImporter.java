@@ -0,0 +1,337 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PleaseThrottleException;
+
+import net.opentsdb.core.RowBuffer.BufferedRow;
+import net.opentsdb.core.RowBuffer.RowWrite;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Writes historical data points in bulk, one compacted cell per row.
+ * <p>
+ * The regular write path stores every data point in its own cell, and the
+ * {@link CompactionQueue} later reads each row back to merge its cells.  When
+ * backfilling months of data, that's three HBase operations per row on top
+ * of one put per data point.  Instead, this class groups the data points by
+ * row in memory and writes each row out once, already compacted, without
+ * going through the compaction queue.  Data points can be added in any order
+ * and from several threads at once.
+ * <p>
+ * To bound the memory used, callers are expected to call {@link #flushOldest}
+ * regularly: once more than {@code max_points} data points are buffered, it
+ * writes out the rows with the oldest base times.  If such a row receives more
+ * data points afterwards, it gets written a second time and is scheduled for
+ * compaction.  Call {@link #flush} once all the data points have been added.
+ * <p>
+ * Like the text importer always did, this bypasses the meta data tracking and
+ * the real time publisher.  Rows written in one go are sent to the rollup
+ * tiers, if any, otherwise the compaction writes the rollups.
+ * @since 2.1
+ */
+public final class BulkImporter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BulkImporter.class);
+
+  /** How many times we'll try to write a row before giving up.  */
+  private static final int MAX_WRITE_ATTEMPTS = 3;
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** Offset of the base time in row keys, after the salt and metric ID.  */
+  private final short timestamp_offset;
+
+  /** Maximum number of data points to buffer before writing rows early.  */
+  private final long max_points;
+
+  /** The rows being buffered, sorted by base time first.  */
+  private final ConcurrentSkipListMap<byte[], BufferedRow> rows;
+
+  /** Rows that were already written once and would need compaction.  */
+  private final ConcurrentSkipListSet<byte[]> written_keys =
+    new ConcurrentSkipListSet<byte[]>(Bytes.MEMCMP);
+
+  /** Number of data points currently buffered.  */
+  private final AtomicLong buffered_points = new AtomicLong();
+
+  private final AtomicLong added_points = new AtomicLong();
+  private final AtomicLong written_rows = new AtomicLong();
+  private final AtomicLong rewritten_rows = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+  private final AtomicLong dropped_rows = new AtomicLong();
+
+  /** Makes sure only one thread at a time writes out the oldest rows.  */
+  private final Object flush_lock = new Object();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to write to.
+   * @param max_points Maximum number of data points to buffer.
+   * @see TSDB#newBulkImporter
+   */
+  BulkImporter(final TSDB tsdb, final long max_points) {
+    if (max_points <= 0) {
+      throw new IllegalArgumentException("max_points must be positive: "
+                                         + max_points);
+    }
+    this.tsdb = tsdb;
+    this.max_points = max_points;
+    timestamp_offset = (short) (Const.salt_width() + tsdb.metrics.width());
+    rows = new ConcurrentSkipListMap<byte[], BufferedRow>(
+        new RowBuffer.Cmp(timestamp_offset));
+  }
+
+  /**
+   * Buffers a single integer value data point.
+   * @param row_template The row key template of the series, as returned by
+   * {@link TSDB#resolveSeriesAsync}.  It isn't modified.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @throws IllegalArgumentException if the timestamp is invalid.
+   */
+  public void addPoint(final byte[] row_template, final long timestamp,
+                       final long value) {
+    final byte[] v = TSDB.encodeLong(value);
+    addPoint(row_template, timestamp, v, (short) (v.length - 1));
+  }
+
+  /**
+   * Buffers a single floating-point value data point.
+   * @param row_template The row key template of the series, as returned by
+   * {@link TSDB#resolveSeriesAsync}.  It isn't modified.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @throws IllegalArgumentException if the timestamp is invalid, or if the
+   * value is NaN or infinite.
+   */
+  public void addPoint(final byte[] row_template, final long timestamp,
+                       final float value) {
+    if (Float.isNaN(value) || Float.isInfinite(value)) {
+      throw new IllegalArgumentException("value is NaN or Infinite: " + value
+                                         + " timestamp=" + timestamp);
+    }
+    addPoint(row_template, timestamp,
+             Bytes.fromInt(Float.floatToRawIntBits(value)),
+             (short) (Const.FLAG_FLOAT | 0x3));
+  }
+
+  private void addPoint(final byte[] row_template, final long timestamp,
+                        final byte[] value, final short flags) {
+    if (timestamp < 0 || ((timestamp & Const.SECOND_MASK) != 0 &&
+        timestamp > 9999999999999L)) {
+      throw new IllegalArgumentException((timestamp < 0 ? "negative " : "bad")
+          + " timestamp=" + timestamp);
+    }
+    final long seconds = (timestamp & Const.SECOND_MASK) != 0
+      ? timestamp / 1000 : timestamp;
+    final long base_time = seconds - (seconds % Const.MAX_TIMESPAN);
+    final byte[] row = Arrays.copyOf(row_template, row_template.length);
+    Bytes.setInt(row, (int) base_time, timestamp_offset);
+    final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
+    while (true) {
+      BufferedRow buf = rows.get(row);
+      if (buf == null) {
+        buf = new BufferedRow(row);
+        final BufferedRow existing = rows.putIfAbsent(row, buf);
+        if (existing != null) {
+          buf = existing;
+        }
+      }
+      if (buf.add(qualifier, value)) {
+        break;
+      }
+      // Else this row was written out while we were trying to add to it,
+      // start buffering it again.
+    }
+    added_points.incrementAndGet();
+    buffered_points.incrementAndGet();
+  }
+
+  /** @return the number of data points currently buffered.  */
+  public long bufferedPoints() {
+    return buffered_points.get();
+  }
+
+  /**
+   * Writes out the rows with the oldest base times if more than
+   * {@code max_points} data points are buffered, until half of that remains.
+   * Callers should wait on the deferred returned before adding more data
+   * points, to avoid getting too far ahead of HBase.
+   * @return A deferred that will be called back once the rows have been
+   * written.  In case of success, the kind of object returned is unspecified.
+   */
+  public Deferred<ArrayList<Object>> flushOldest() {
+    if (buffered_points.get() <= max_points) {
+      return Deferred.group(new ArrayList<Deferred<Object>>(0));
+    }
+    synchronized (flush_lock) {
+      return flush(max_points / 2);
+    }
+  }
+
+  /**
+   * Writes out all the buffered rows.
+   * @return A deferred that will be called back once everything has been
+   * written (or something failed, in which case the deferred will carry the
+   * exception).  In case of success, the kind of object returned is
+   * unspecified.
+   */
+  public Deferred<ArrayList<Object>> flush() {
+    if (!rows.isEmpty()) {
+      LOG.info("Flushing " + rows.size() + " imported rows");
+    }
+    synchronized (flush_lock) {
+      return flush(0);
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("importer.rows", rows.size());
+    collector.record("importer.points", buffered_points);
+    collector.record("importer.added", added_points);
+    collector.record("importer.writes", written_rows, "type=first");
+    collector.record("importer.writes", rewritten_rows, "type=again");
+    collector.record("importer.errors", write_errors);
+    collector.record("importer.dropped", dropped_rows);
+  }
+
+  /**
+   * Writes out the oldest rows as long as there are more than
+   * {@code low_watermark} buffered data points.
+   * @param low_watermark Number of data points we want to keep at most.
+   */
+  private Deferred<ArrayList<Object>> flush(final long low_watermark) {
+    final ArrayList<Deferred<Object>> ds = new ArrayList<Deferred<Object>>();
+    final Iterator<Map.Entry<byte[], BufferedRow>> it =
+      rows.entrySet().iterator();
+    while (it.hasNext() && buffered_points.get() > low_watermark) {
+      final Map.Entry<byte[], BufferedRow> entry = it.next();
+      final BufferedRow buf = entry.getValue();
+      rows.remove(entry.getKey(), buf);
+      final RowWrite write = buf.close();
+      buffered_points.addAndGet(-buf.points());
+      if (write == null) {
+        continue;
+      }
+      if (written_keys.add(write.key)) {
+        written_rows.incrementAndGet();
+        ds.add(write(write, true));
+      } else {
+        // The row now has more than one cell, merge them.
+        rewritten_rows.incrementAndGet();
+        tsdb.scheduleForCompaction(write.key,
+            (int) Bytes.getUnsignedInt(write.key, timestamp_offset));
+        ds.add(write(write, false));
+      }
+    }
+    return Deferred.group(ds);
+  }
+
+  /**
+   * Sends a compacted row to HBase.
+   * @param rollup Whether or not to also send the row to the rollup tiers
+   * once it's been written.
+   */
+  private Deferred<Object> write(final RowWrite write, final boolean rollup) {
+    final Deferred<Object> d = tsdb.put(write.key, write.qualifier, write.value)
+      .addErrback(new WriteErrback(write));
+    if (!rollup || tsdb.rollups == null) {
+      return d;
+    }
+
+    /** Writes the rollups of the row once the row itself was written. */
+    final class RollupCB implements Callback<Deferred<Object>, Object> {
+      public Deferred<Object> call(final Object arg) {
+        return tsdb.rollups.write(new KeyValue(write.key, TSDB.FAMILY,
+                                               write.qualifier, write.value));
+      }
+      public String toString() {
+        return "write rollups of imported row";
+      }
+    }
+    return d.addCallbackDeferring(new RollupCB());
+  }
+
+  /**
+   * Callback to handle a failed write: we retry right away when HBase asks
+   * us to throttle, and a few times for other errors before giving up.
+   */
+  private final class WriteErrback implements Callback<Object, Exception> {
+    private final RowWrite write;
+
+    public WriteErrback(final RowWrite write) {
+      this.write = write;
+    }
+
+    public Object call(final Exception e) {
+      if (e instanceof PleaseThrottleException) {
+        // The client's buffer is full, this resolves when the RPC it
+        // carries completes, so wait on it before retrying.
+        final Deferred<Object> rpc =
+          ((PleaseThrottleException) e).getDeferred();
+        if (rpc == null) {
+          return tsdb.put(write.key, write.qualifier, write.value)
+            .addErrback(this);
+        }
+        final class RetryCB implements Callback<Deferred<Object>, Object> {
+          public Deferred<Object> call(final Object ignored) {
+            return tsdb.put(write.key, write.qualifier, write.value)
+              .addErrback(WriteErrback.this);
+          }
+          public String toString() {
+            return "retry imported row write after throttling";
+          }
+        }
+        return rpc.addBothDeferring(new RetryCB());
+      }
+      write_errors.incrementAndGet();
+      if (++write.attempts < MAX_WRITE_ATTEMPTS) {
+        LOG.warn("Failed to write imported row " + Arrays.toString(write.key)
+                 + ", retrying", e);
+        return tsdb.put(write.key, write.qualifier, write.value)
+          .addErrback(this);
+      }
+      dropped_rows.incrementAndGet();
+      LOG.error("Giving up on imported row " + Arrays.toString(write.key)
+                + " after " + write.attempts + " attempts", e);
+      return e;
+    }
+
+    public String toString() {
+      return "handle imported row write error";
+    }
+  }
+
+}
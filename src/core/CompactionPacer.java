@@ -0,0 +1,190 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Decides how many rows the {@link CompactionQueue} compacts per cycle,
+ * based on how fast HBase is responding.
+ * <p>
+ * We keep a moving average of the latency of the RPCs sent to compact rows
+ * (get, put and delete) as well as of the regular data point puts.  As long
+ * as they're all under their target, the number of rows compacted per cycle
+ * is allowed to double every cycle, up to the backlog of rows to compact.
+ * As soon as one of them goes over its target, or HBase asks us to throttle,
+ * the rate is halved.  This way compactions go as fast as HBase can absorb
+ * them without ramping up suddenly, e.g. after a region server restart.
+ * <p>
+ * The rate never goes below the minimum flush threshold, nor below the rate
+ * needed to compact the whole queue in {@code MAX_TIMESPAN / flush_speed},
+ * otherwise we'd just fall behind forever.
+ * @since 2.1
+ */
+final class CompactionPacer {
+
+  /** Weight of a new sample in the moving averages.  */
+  private static final double ALPHA = 0.1;
+
+  /** Target latency of the compaction RPCs, in milliseconds.  */
+  private final int target_latency;
+
+  /** Target latency of the data point puts, in milliseconds.  */
+  private final int target_put_latency;
+
+  /** Minimum number of rows we'll attempt to compact per cycle.  */
+  private final int min_flushes;
+
+  /** How frequently, in seconds, a compaction cycle runs.  */
+  private final int flush_interval;
+
+  /** If this is X then we'll flush X times faster than we really need.  */
+  private final int flush_speed;
+
+  private final MovingAverage read_latency = new MovingAverage();
+  private final MovingAverage write_latency = new MovingAverage();
+  private final MovingAverage delete_latency = new MovingAverage();
+  private final MovingAverage put_latency = new MovingAverage();
+
+  /** Set when HBase asked us to back off since the last cycle.  */
+  private volatile boolean throttled;
+
+  /** Number of rows to compact per cycle.  */
+  private volatile int rate;
+
+  /** Number of rows that were old enough to be compacted last cycle.  */
+  private volatile int backlog;
+
+  /**
+   * Constructor.
+   * @param config The configuration to read the targets from.
+   */
+  CompactionPacer(final Config config) {
+    target_latency = config.getInt("tsd.storage.compaction.target_latency");
+    target_put_latency =
+      config.getInt("tsd.storage.compaction.target_put_latency");
+    min_flushes = Math.max(1,
+        config.getInt("tsd.storage.compaction.min_flush_threshold"));
+    flush_interval = Math.max(1,
+        config.getInt("tsd.storage.compaction.flush_interval"));
+    flush_speed = Math.max(1,
+        config.getInt("tsd.storage.compaction.flush_speed"));
+    rate = min_flushes;
+  }
+
+  /** @return the minimum number of rows to compact per cycle.  */
+  int minFlushes() {
+    return min_flushes;
+  }
+
+  /** @return how frequently, in seconds, a compaction cycle runs.  */
+  int flushInterval() {
+    return flush_interval;
+  }
+
+  /** @return the current number of rows to compact per cycle.  */
+  int rate() {
+    return rate;
+  }
+
+  /**
+   * Computes the number of rows to compact during the next cycle.
+   * @param size The number of rows in the compaction queue.
+   * @param backlog The number of rows that are old enough to be compacted.
+   * @return The new rate, in rows per cycle.
+   */
+  int nextCycle(final int size, final int backlog) {
+    this.backlog = backlog;
+    // How much we need to flush to keep up with the queue.  This is the rate
+    // proportional to the size of the queue that was always used.
+    final int required = Math.max(min_flushes,
+      (int) ((long) size * flush_interval * flush_speed / Const.MAX_TIMESPAN));
+    int next;
+    if (isOverloaded()) {
+      next = rate / 2;
+    } else {
+      next = Math.min((int) Math.min(Integer.MAX_VALUE, 2L * rate),
+                      Math.max(backlog, min_flushes));
+    }
+    throttled = false;
+    next = Math.max(next, required);
+    rate = next;
+    return next;
+  }
+
+  /** @return true if HBase seems to be struggling.  */
+  private boolean isOverloaded() {
+    return throttled
+      || read_latency.get() > target_latency
+      || write_latency.get() > target_latency
+      || delete_latency.get() > target_latency
+      || put_latency.get() > target_put_latency;
+  }
+
+  /** Records the latency of a get sent to read a row to compact.  */
+  void readLatency(final long latency_ms) {
+    read_latency.add(latency_ms);
+  }
+
+  /** Records the latency of a put sent to write a compacted row.  */
+  void writeLatency(final long latency_ms) {
+    write_latency.add(latency_ms);
+  }
+
+  /** Records the latency of a delete sent to remove compacted cells.  */
+  void deleteLatency(final long latency_ms) {
+    delete_latency.add(latency_ms);
+  }
+
+  /** Records the latency of a data point put.  */
+  void putLatency(final long latency_ms) {
+    put_latency.add(latency_ms);
+  }
+
+  /** Signals that HBase asked us to throttle a compaction RPC.  */
+  void throttle() {
+    throttled = true;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("compaction.pacer.rate", rate);
+    collector.record("compaction.pacer.backlog", backlog);
+    collector.record("compaction.pacer.latency", (long) read_latency.get(),
+                     "rpc=read");
+    collector.record("compaction.pacer.latency", (long) write_latency.get(),
+                     "rpc=put");
+    collector.record("compaction.pacer.latency", (long) delete_latency.get(),
+                     "rpc=delete");
+    collector.record("compaction.pacer.latency", (long) put_latency.get(),
+                     "rpc=datapoint");
+  }
+
+  /** Exponentially weighted moving average of a latency.  */
+  private static final class MovingAverage {
+    private double value;
+
+    synchronized void add(final long sample) {
+      value += ALPHA * (sample - value);
+    }
+
+    synchronized double get() {
+      return value;
+    }
+  }
+
+}
@@ -13,12 +13,15 @@
 package net.opentsdb.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
@@ -40,10 +43,12 @@ import net.opentsdb.utils.JSON;
  * "Queue" of rows to compact.
  * <p>
  * Whenever we write a data point to HBase, the row key we write to is added
- * to this queue, which is effectively a sorted set.  There is a separate
- * thread that periodically goes through the queue and look for "old rows" to
- * compact.  A row is considered "old" if the timestamp in the row key is
- * older than a certain threshold.
+ * to this queue.  Rows are grouped in buckets, one per base time, so finding
+ * the rows that are old enough doesn't require comparing row keys with one
+ * another, and within a bucket rows are kept in a hash set.  There are
+ * separate worker threads that periodically go through the buckets that are
+ * "old" and compact their rows.  A row is considered "old" if the timestamp
+ * in the row key is older than a certain threshold.
  * <p>
  * The compaction process consists in reading all the cells within a given row
  * and writing them back out as a single big cell.  Once that writes succeeds,
@@ -53,7 +58,7 @@ import net.opentsdb.utils.JSON;
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
@@ -62,46 +67,105 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     new Internal.KeyValueComparator();
   
   /**
-   * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
+   * The rows to compact, bucketed by base time.  There are only a handful
+   * of buckets at any given time, so this map is cheap to walk in order.
    */
+  private final ConcurrentSkipListMap<Long, Bucket> buckets =
+    new ConcurrentSkipListMap<Long, Bucket>();
+
+  /** How many items are currently in the queue.  */
   private final AtomicInteger size = new AtomicInteger();
 
   private final AtomicLong trivial_compactions = new AtomicLong();
   private final AtomicLong complex_compactions = new AtomicLong();
   private final AtomicLong written_cells = new AtomicLong();
+  private final AtomicLong compressed_cells = new AtomicLong();
   private final AtomicLong deleted_cells = new AtomicLong();
 
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
 
-  /** On how many bytes do we encode metrics IDs.  */
-  private final short metric_width;
+  /** Offset of the base time in row keys, after the salt and metric ID.  */
+  private final short timestamp_offset;
+
+  /** Number of rows each worker thread started to compact.  */
+  private final AtomicLongArray worker_flushes;
+
+  /** Decides how many rows to compact per cycle.  */
+  private final CompactionPacer pacer;
+
+  /** Maximum number of rows we'll compact concurrently.  */
+  private final int max_concurrent_flushes;
+
+  /** Whether to write compacted cells in the compressed format.  */
+  private final boolean compress_cells;
 
   /**
    * Constructor.
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
     this.tsdb = tsdb;
-    metric_width = tsdb.metrics.width();
+    timestamp_offset = (short) (Const.salt_width() + tsdb.metrics.width());
+    worker_flushes = new AtomicLongArray(
+        Math.max(1, tsdb.config.getInt("tsd.storage.compaction.workers")));
+    pacer = new CompactionPacer(tsdb.config);
+    max_concurrent_flushes = Math.max(1, 
+        tsdb.config.getInt("tsd.storage.compaction.max_concurrent_flushes"));
+    compress_cells = tsdb.config.getBoolean("tsd.storage.compaction.compress");
     if (tsdb.config.enable_compactions()) {
-      startCompactionThread();
+      for (int i = 0; i < worker_flushes.length(); i++) {
+        startCompactionThread(i);
+      }
     }
   }
 
-  @Override
+  /** @return the number of rows waiting to be compacted.  */
   public int size() {
     return size.get();
   }
 
+  /**
+   * Schedules a row for compaction.
+   * @param row The row key.  Will not be modified.
+   */
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
+    final Long base_time = Bytes.getUnsignedInt(row, timestamp_offset);
+    final Row entry = new Row(row);
+    while (true) {
+      Bucket bucket = buckets.get(base_time);
+      if (bucket == null) {
+        bucket = new Bucket();
+        final Bucket existing = buckets.putIfAbsent(base_time, bucket);
+        if (existing != null) {
+          bucket = existing;
+        }
+      }
+      if (bucket.rows.putIfAbsent(entry, Boolean.TRUE) != null) {
+        return;  // Already scheduled.
+      }
       size.incrementAndGet();  // We added a new entry, count it.
+      if (!bucket.retired) {
+        return;
+      }
+      // The bucket was retired while we were adding to it.  If we can take
+      // our row back, no worker saw it, so try again in a new bucket.
+      if (bucket.rows.remove(entry) == null) {
+        return;  // A worker already picked it up.
+      }
+      size.decrementAndGet();
     }
   }
 
+  /**
+   * Records the latency of a data point written to HBase, so compactions
+   * can slow down when puts are getting slow.
+   * @param latency_ms The latency, in milliseconds.
+   */
+  void recordPutLatency(final long latency_ms) {
+    pacer.putLatency(latency_ms);
+  }
+
   /**
    * Forces a flush of the all old entries in the compaction queue.
    * @return A deferred that will be called back once everything has been
@@ -115,7 +179,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       LOG.info("Flushing all old outstanding rows out of " + size + " rows");
     }
     final long now = System.currentTimeMillis();
-    return flush(now / 1000 - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE);
+    return flush(now / 1000 - Const.MAX_TIMESPAN - 1, Integer.MAX_VALUE, -1);
   }
 
   /**
@@ -130,12 +194,34 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
     // The remaining stats only make sense with compactions enabled.
     collector.record("compaction.queue.size", size);
+    collector.record("compaction.queue.buckets", buckets.size());
+    final Map.Entry<Long, Bucket> oldest = buckets.firstEntry();
+    collector.record("compaction.queue.oldest-age", oldest == null ? 0
+        : System.currentTimeMillis() / 1000 - oldest.getKey());
     collector.record("compaction.errors", handle_read_error.errors, "rpc=read");
     collector.record("compaction.errors", handle_write_error.errors, "rpc=put");
     collector.record("compaction.errors", handle_delete_error.errors,
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
+    collector.record("compaction.compressed", compressed_cells);
     collector.record("compaction.deletes", deleted_cells);
+    for (int i = 0; i < worker_flushes.length(); i++) {
+      collector.record("compaction.worker.flushes", worker_flushes.get(i),
+                       "worker=" + i);
+    }
+    pacer.collectStats(collector);
+  }
+
+  /**
+   * Counts the rows that are old enough to be compacted.
+   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+   */
+  private int backlog(final long cut_off) {
+    int backlog = 0;
+    for (final Bucket bucket : buckets.headMap(cut_off, true).values()) {
+      backlog += bucket.rows.size();
+    }
+    return backlog;
   }
 
   /**
@@ -143,10 +229,12 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
    * @param maxflushes How many rows to flush off the queue at once.
    * This integer is expected to be strictly positive.
+   * @param worker The index of the worker thread doing the flush, or -1.
    * @return A deferred that will be called back once everything has been
    * flushed.
    */
-  private Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes) {
+  private Deferred<ArrayList<Object>> flush(final long cut_off, int maxflushes,
+                                            final int worker) {
     assert maxflushes > 0: "maxflushes must be > 0, but I got " + maxflushes;
     // We can't possibly flush more entries than size().
     maxflushes = Math.min(maxflushes, size());
@@ -155,38 +243,55 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
     final ArrayList<Deferred<Object>> ds =
       new ArrayList<Deferred<Object>>(Math.min(maxflushes,
-                                               MAX_CONCURRENT_FLUSHES));
+                                               max_concurrent_flushes));
     int nflushes = 0;
     int seed = (int) (System.nanoTime() % 3);
-    for (final byte[] row : this.keySet()) {
-      if (maxflushes == 0) {
-        break;
-      }
-      if (seed == row.hashCode() % 3) {
-        continue;
-      }
-      final long base_time = Bytes.getUnsignedInt(row, metric_width);
-      if (base_time > cut_off) {
-        break;
-      } else if (nflushes == MAX_CONCURRENT_FLUSHES) {
+    for (final Map.Entry<Long, Bucket> entry
+         : buckets.headMap(cut_off, true).entrySet()) {
+      if (maxflushes == 0 || nflushes >= max_concurrent_flushes) {
         // We kicked off the compaction of too many rows already, let's wait
         // until they're done before kicking off more.
         break;
       }
-      // You'd think that it would be faster to grab an iterator on the map
-      // and then call remove() on the iterator to "unlink" the element
-      // directly from where the iterator is at, but no, the JDK implements
-      // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
-        continue;  // So someone else already took care of this entry.
+      final Bucket bucket = entry.getValue();
+      for (final Row row : bucket.rows.keySet()) {
+        if (maxflushes == 0 || nflushes >= max_concurrent_flushes) {
+          break;
+        }
+        // Skip a random subset of rows, so that several TSDs don't all try
+        // to compact the same rows in the same order.
+        if (maxflushes != Integer.MAX_VALUE
+            && seed == System.identityHashCode(row) % 3) {
+          continue;
+        }
+        if (bucket.rows.remove(row) == null) {  // We didn't remove anything.
+          continue;  // So someone else already took care of this entry.
+        }
+        nflushes++;
+        maxflushes--;
+        size.decrementAndGet();
+        ds.add(read(row.key));
+      }
+      if (bucket.rows.isEmpty() && !bucket.retired) {
+        // Nothing should be written to such an old bucket anymore, so retire
+        // it.  Rows that were added while we were doing so get compacted
+        // right away.
+        bucket.retired = true;
+        buckets.remove(entry.getKey(), bucket);
+        for (final Row row : bucket.rows.keySet()) {
+          if (bucket.rows.remove(row) != null) {
+            nflushes++;
+            size.decrementAndGet();
+            ds.add(read(row.key));
+          }
+        }
       }
-      nflushes++;
-      maxflushes--;
-      size.decrementAndGet();
-      ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
+    }
+    if (worker >= 0) {
+      worker_flushes.addAndGet(worker, nflushes);
     }
     final Deferred<ArrayList<Object>> group = Deferred.group(ds);
-    if (nflushes == MAX_CONCURRENT_FLUSHES && maxflushes > 0) {
+    if (nflushes >= max_concurrent_flushes && maxflushes > 0) {
       // We're not done yet.  Once this group of flushes completes, we need
       // to kick off more.
       tsdb.flush();  // Speed up this batch by telling the client to flush.
@@ -194,7 +299,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       final class FlushMoreCB implements Callback<Deferred<ArrayList<Object>>,
                                                   ArrayList<Object>> {
         public Deferred<ArrayList<Object>> call(final ArrayList<Object> arg) {
-          return flush(cut_off, maxflushez);
+          return flush(cut_off, maxflushez, worker);
         }
         public String toString() {
           return "Continue flushing with cut_off=" + cut_off
@@ -206,6 +311,45 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     return group;
   }
 
+  /** Reads a row to compact it.  */
+  private Deferred<Object> read(final byte[] key) {
+    return tsdb.get(key)
+      .addBoth(new LatencyCB<ArrayList<KeyValue>>(RPC_READ))
+      .addCallbacks(compactcb, handle_read_error);
+  }
+
+  private static final int RPC_READ = 0;
+  private static final int RPC_WRITE = 1;
+  private static final int RPC_DELETE = 2;
+
+  /**
+   * Callback to feed the latency of a compaction RPC to the pacer.  The
+   * result, or exception, is passed through unchanged.
+   */
+  private final class LatencyCB<T> implements Callback<T, T> {
+    private final int rpc;
+    private final long start = System.nanoTime();
+
+    public LatencyCB(final int rpc) {
+      this.rpc = rpc;
+    }
+
+    public T call(final T arg) {
+      final long latency = (System.nanoTime() - start) / 1000000;
+      switch (rpc) {
+        case RPC_READ: pacer.readLatency(latency); break;
+        case RPC_WRITE: pacer.writeLatency(latency); break;
+        case RPC_DELETE: pacer.deleteLatency(latency); break;
+        default: throw new AssertionError("Unknown RPC type: " + rpc);
+      }
+      return arg;
+    }
+
+    public String toString() {
+      return "record compaction latency";
+    }
+  }
+
   private final CompactCB compactcb = new CompactCB();
 
   /**
@@ -216,7 +360,18 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    */
   private final class CompactCB implements Callback<Object, ArrayList<KeyValue>> {
     public Object call(final ArrayList<KeyValue> row) {
-      return compact(row, null);
+      if (tsdb.rollups == null || row.size() != 1) {
+        return compact(row, null);
+      }
+      // Rows with a single cell don't need to be compacted, but their
+      // rollups still need to be written.
+      final KeyValue[] compacted = { null };
+      compact(row, compacted, null);
+      if (compacted[0] != null && !tooRecent(compacted[0])
+          && tsdb.config.enable_compactions()) {
+        return tsdb.rollups.write(compacted[0]);
+      }
+      return null;
     }
     public String toString() {
       return "compact";
@@ -262,6 +417,10 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         // no need to re-compact rows containing a single value.
         KeyValue kv = row.get(0);
         final byte[] qual = kv.qualifier();
+        if (CompressedCell.isCompressed(qual)) {
+          compacted[0] = CompressedCell.decode(kv);
+          return null;
+        }
         if (qual.length % 2 != 0 || qual.length == 0) {
           // This could be a row with only an annotation in it
           if ((qual[0] | Annotation.PREFIX()) == Annotation.PREFIX()) {
@@ -291,6 +450,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     // logic required to compact it is more complex.
     boolean write = true;  // Do we need to write a compacted cell?
     final KeyValue compact;
+    final KeyValue stored;  // What we write, maybe compressed.
     {
       boolean trivial = true;  // Are we doing a trivial compaction?
       boolean ms_in_row = false;
@@ -312,7 +472,16 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           // even number of bytes. If we find one with an odd number, or an
           // empty qualifier (which is possible), we need to remove it from the
           // compaction queue. 
-          if (len % 2 != 0 || len == 0) {
+          if (CompressedCell.isCompressed(qual)) {
+            // Decoded and merged with the rest by complexCompact().
+            trivial = false;
+            if ((CompressedCell.getMeta(kv.value()) & Const.MS_MIXED_COMPACT) 
+                == Const.MS_MIXED_COMPACT) {
+              ms_in_row = s_in_row = true;
+            }
+            qual_len += CompressedCell.numDataPoints(kv.value()) * 2;
+            continue;
+          } else if (len % 2 != 0 || len == 0) {
             // if the qualifier is 3 bytes and starts with the Annotation prefix,
             // parse it out.
             if ((qual[0] | Annotation.PREFIX()) == Annotation.PREFIX()) {
@@ -383,9 +552,11 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       } else if (trivial) {
         trivial_compactions.incrementAndGet();
         compact = trivialCompact(row, qual_len, val_len, (ms_in_row && s_in_row));
+        stored = compress(compact, compacted);
       } else {
         complex_compactions.incrementAndGet();
         compact = complexCompact(row, qual_len / 2, (ms_in_row && s_in_row));
+        stored = compress(compact, compacted);
         // Now it's vital that we check whether the compact KV has the same
         // qualifier as one of the qualifiers that were already in the row.
         // Otherwise we might do a `put' in this cell, followed by a delete.
@@ -395,7 +566,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         // Optimization: since we kept track of which KV had the longest
         // qualifier, we can opportunistically check here if it happens to
         // have the same qualifier as the one we just created.
-        final byte[] qual = compact.qualifier();
+        final byte[] qual = stored.qualifier();
         final byte[] longest_qual = longest.qualifier();
         if (qual.length <= longest_qual.length) {
           KeyValue dup = null;
@@ -422,7 +593,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
           if (dup != null) {
             // So we did find an existing KV with the same qualifier.
             // Let's check if, by chance, the value is the same too.
-            if (Bytes.equals(dup.value(), compact.value())) {
+            if (Bytes.equals(dup.value(), stored.value())) {
               // Since the values are the same, we don't need to write
               // anything.  There's already a properly compacted version of
               // this row in TSDB.
@@ -439,25 +610,26 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
     if (compacted != null) {  // Caller is interested in the compacted form.
       compacted[0] = compact;
-      final long base_time = Bytes.getUnsignedInt(compact.key(), metric_width);
-      final long cut_off = System.currentTimeMillis() / 1000
-        - Const.MAX_TIMESPAN - 1;
-      if (base_time > cut_off) {  // If row is too recent...
-        return null;              // ... Don't write back compacted.
+      if (tooRecent(compact)) {  // If row is too recent...
+        return null;             // ... Don't write back compacted.
       }
     }
     if (!tsdb.config.enable_compactions()) {
       return null;
     }
+    if (tsdb.rollups != null) {
+      tsdb.rollups.write(compact);
+    }
 
     final byte[] key = compact.key();
     //LOG.debug("Compacting row " + Arrays.toString(key));
     deleted_cells.addAndGet(row.size());  // We're going to delete this.
     if (write) {
-      final byte[] qual = compact.qualifier();
-      final byte[] value = compact.value();
+      final byte[] qual = stored.qualifier();
+      final byte[] value = stored.value();
       written_cells.incrementAndGet();
       return tsdb.put(key, qual, value)
+        .addBoth(new LatencyCB<Object>(RPC_WRITE))
         .addCallbacks(new DeleteCompactedCB(row), handle_write_error);
     } else {
       // We had nothing to write, because one of the cells is already the
@@ -468,6 +640,39 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
+  /**
+   * @param kv A cell of a row.
+   * @return Whether the row may still get data points and so shouldn't be
+   * written back compacted.
+   */
+  private boolean tooRecent(final KeyValue kv) {
+    final long base_time = Bytes.getUnsignedInt(kv.key(), timestamp_offset);
+    return base_time > System.currentTimeMillis() / 1000
+      - Const.MAX_TIMESPAN - 1;
+  }
+
+  /**
+   * Compresses a compacted cell if enabled and if it's going to be written.
+   * @param compact The compacted cell.
+   * @param compacted The argument given to {@link #compact}.
+   * @return The cell to write: {@code compact} itself or its compressed form.
+   */
+  private KeyValue compress(final KeyValue compact,
+                            final KeyValue[] compacted) {
+    if (!compress_cells || !tsdb.config.enable_compactions()) {
+      return compact;
+    }
+    if (compacted != null && tooRecent(compact)) {
+      return compact;  // Don't waste time compressing rows we're only reading.
+    }
+    final KeyValue encoded = CompressedCell.encode(compact);
+    if (encoded == null) {
+      return compact;
+    }
+    compressed_cells.incrementAndGet();
+    return encoded;
+  }
+
   /**
    * Performs a trivial compaction of a row.
    * <p>
@@ -669,7 +874,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
 
     public Object call(final Object arg) {
-      return tsdb.delete(key, qualifiers).addErrback(handle_delete_error);
+      return tsdb.delete(key, qualifiers)
+        .addBoth(new LatencyCB<Object>(RPC_DELETE))
+        .addErrback(handle_delete_error);
     }
 
     public String toString() {
@@ -701,6 +908,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
 
     public Object call(final Exception e) {
       if (e instanceof PleaseThrottleException) {  // HBase isn't keeping up.
+        pacer.throttle();
         final HBaseRpc rpc = ((PleaseThrottleException) e).getFailedRpc();
         if (rpc instanceof HBaseRpc.HasKey) {
           // We failed to compact this row.  Whether it's because of a failed
@@ -725,69 +933,50 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
-
-  /** Starts a compaction thread.  Only one such thread is needed.  */
-  private void startCompactionThread() {
-    final Thrd thread = new Thrd();
+  /**
+   * Starts a compaction worker thread.
+   * @param worker The index of the worker.
+   */
+  private void startCompactionThread(final int worker) {
+    final Thrd thread = new Thrd(worker);
     thread.setDaemon(true);
     thread.start();
   }
 
-  /** How frequently the compaction thread wakes up flush stuff.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_INTERVAL = 10;  // seconds
-
-  /** Minimum number of rows we'll attempt to compact at once.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MIN_FLUSH_THRESHOLD = 100;  // rows
-
-  /** Maximum number of rows we'll compact concurrently.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MAX_CONCURRENT_FLUSHES = 10000;  // rows
-
-  /** If this is X then we'll flush X times faster than we really need.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_SPEED = 2;  // multiplicative factor
-
   /**
    * Background thread to trigger periodic compactions.
+   * Each worker compacts its share of the rows that are old enough.
    */
   final class Thrd extends Thread {
-    public Thrd() {
-      super("CompactionThread");
+    /** The index of this worker.  */
+    private final int worker;
+
+    public Thrd(final int worker) {
+      super("CompactionThread-" + worker);
+      this.worker = worker;
     }
 
     public void run() {
       while (true) {
         try {
           final int size = size();
+          final long now = System.currentTimeMillis();
+          final long cut_off = now / 1000 - Const.MAX_TIMESPAN - 1;
+          // How much should we flush during this iteration?  The pacer starts
+          // from a rate that is proportional to the size of the queue, so we
+          // flush more aggressively if the queue is big, and speeds up or
+          // slows down from there depending on how fast HBase responds.
+          // Only the first worker updates the rate, once per cycle, and the
+          // workers share this load evenly.
+          if (worker == 0) {
+            pacer.nextCycle(size, backlog(cut_off));
+          }
           // Flush if  we have too many rows to recompact.
           // Note that in we might not be able to actually
           // flush anything if the rows aren't old enough.
-          if (size > MIN_FLUSH_THRESHOLD) {
-            // How much should we flush during this iteration?  This scheme is
-            // adaptive and flushes at a rate that is proportional to the size
-            // of the queue, so we flush more aggressively if the queue is big.
-            // Let's suppose MAX_TIMESPAN = 1h.  We have `size' rows to compact,
-            // and we better compact them all in less than 1h, otherwise we're
-            // going to "fall behind" when after a new hour starts (as we'll be
-            // inserting a ton of new rows then).  So slice MAX_TIMESPAN using
-            // FLUSH_INTERVAL to compute what fraction of `size' we need to
-            // flush at each iteration.  Note that `size' will usually account
-            // for many rows that can't be flushed yet (not old enough) so we're
-            // overshooting a bit (flushing more aggressively than necessary).
-            // This isn't a problem at all.  The only thing that matters is that
-            // the rate at which we flush stuff is proportional to how much work
-            // is sitting in the queue.  The multiplicative factor FLUSH_SPEED
-            // is added to make flush even faster than we need.  For example, if
-            // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
-            // for the previous hour, we'll take only 30m.  This is desirable so
-            // that we evict old entries from the queue a bit faster.
-            final int maxflushes = Math.max(MIN_FLUSH_THRESHOLD,
-              size * FLUSH_INTERVAL * FLUSH_SPEED / Const.MAX_TIMESPAN);
-            final long now = System.currentTimeMillis();
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+          if (size > pacer.minFlushes()) {
+            final int maxflushes = pacer.rate() / worker_flushes.length();
+            flush(cut_off, Math.max(1, maxflushes), worker);
             if (LOG.isDebugEnabled()) {
               final int newsize = size();
               LOG.debug("flush() took " + (System.currentTimeMillis() - now)
@@ -800,7 +989,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         } catch (OutOfMemoryError e) {
           // Let's free up some memory by throwing away the compaction queue.
           final int sz = size.get();
-          CompactionQueue.super.clear();
+          buckets.clear();
           size.set(0);
           LOG.error("Discarded the compaction queue, size=" + sz, e);
         } catch (Throwable e) {
@@ -819,11 +1008,11 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             LOG.error("Compaction thread interrupted in error handling", i);
             return;  // Don't flush, we're truly hopeless.
           }
-          startCompactionThread();
+          startCompactionThread(worker);
           return;
         }
         try {
-          Thread.sleep(FLUSH_INTERVAL * 1000);
+          Thread.sleep(pacer.flushInterval() * 1000);
         } catch (InterruptedException e) {
           LOG.error("Compaction thread interrupted, doing one last flush", e);
           flush();
@@ -834,24 +1023,41 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   }
 
   /**
-   * Helper to sort the byte arrays in the compaction queue.
-   * <p>
-   * This comparator sorts things by timestamp first, this way we can find
-   * all rows of the same age at once.
+   * The rows to compact that share the same base time.
    */
-  private static final class Cmp implements Comparator<byte[]> {
+  private static final class Bucket {
+    /** The row keys, used as a concurrent set.  */
+    final ConcurrentHashMap<Row, Boolean> rows =
+      new ConcurrentHashMap<Row, Boolean>();
 
-    /** On how many bytes do we encode metrics IDs.  */
-    private final short metric_width;
+    /**
+     * Set once the bucket is empty and removed from the queue, after which
+     * rows can't be added to it anymore.
+     */
+    volatile boolean retired;
+  }
+
+  /**
+   * Wrapper to use a row key in a hash set.
+   */
+  private static final class Row {
+    final byte[] key;
+    private final int hash;
+
+    Row(final byte[] key) {
+      this.key = key;
+      hash = Arrays.hashCode(key);
+    }
 
-    public Cmp(final TSDB tsdb) {
-      metric_width = tsdb.metrics.width();
+    @Override
+    public int hashCode() {
+      return hash;
     }
 
-    public int compare(final byte[] a, final byte[] b) {
-      final int c = Bytes.memcmp(a, b, metric_width, Const.TIMESTAMP_BYTES);
-      // If the timestamps are equal, sort according to the entire row key.
-      return c != 0 ? c : Bytes.memcmp(a, b);
+    @Override
+    public boolean equals(final Object other) {
+      return other instanceof Row && hash == ((Row) other).hash
+        && Arrays.equals(key, ((Row) other).key);
     }
   }
 
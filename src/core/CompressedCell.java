@@ -0,0 +1,473 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Compressed encoding of compacted cells.
+ * <p>
+ * A regular compacted cell concatenates the 2 or 4 byte qualifiers of its
+ * data points in its qualifier, and their 1 to 8 byte values in its value.
+ * A compressed cell holds the same data points in a bit stream, in the
+ * spirit of Facebook's Gorilla:
+ * <ul>
+ * <li>Timestamps are stored as the delta of their delta with the previous
+ * data point, which takes a single bit for regularly spaced points.</li>
+ * <li>Floating point values are XOR'ed with the previous floating point
+ * value, and only the meaningful bits of the result are stored.</li>
+ * <li>Integer values are stored as the difference with the previous integer
+ * value, on as few bits as possible.</li>
+ * <li>Value flags take a single bit when they didn't change.</li>
+ * </ul>
+ * The qualifier of a compressed cell is the single byte {@link #PREFIX}.
+ * Since it has an odd length, older TSDs simply skip such cells.  The value
+ * starts with a format version, the meta-data byte of the regular cell it
+ * replaces, the layout of the timestamps and the number of data points,
+ * followed by the bit stream.
+ * <p>
+ * Compressed cells are always decoded back to the regular compacted form,
+ * so the rest of the code never has to deal with them.
+ * @since 2.1
+ */
+final class CompressedCell {
+
+  /** Qualifier prefix of compressed cells.  */
+  static final byte PREFIX = 0x02;
+
+  /** Current version of the encoding.  */
+  static final byte VERSION = 1;
+
+  /** Version, meta-data, layout and number of data points.  */
+  private static final int HEADER_SIZE = 1 + 1 + 1 + 4;
+
+  /** All the timestamps are in seconds.  */
+  private static final byte LAYOUT_SECONDS = 0;
+  /** All the timestamps are in milliseconds.  */
+  private static final byte LAYOUT_MILLISECONDS = 1;
+  /** Mixed timestamps, a bit per data point tells which.  */
+  private static final byte LAYOUT_MIXED = 2;
+
+  /** Qualifier of every compressed cell.  */
+  private static final byte[] QUALIFIER = { PREFIX };
+
+  private CompressedCell() {
+    // Can't instantiate.
+  }
+
+  /** @return whether the given qualifier is the one of a compressed cell. */
+  static boolean isCompressed(final byte[] qualifier) {
+    return qualifier.length == 1 && qualifier[0] == PREFIX;
+  }
+
+  /**
+   * @param value The value of a compressed cell.
+   * @return The meta-data byte of the compacted cell it encodes.
+   * @throws IllegalDataException if the value is too short.
+   */
+  static byte getMeta(final byte[] value) {
+    if (value.length < HEADER_SIZE) {
+      throw new IllegalDataException("Compressed cell too short: "
+          + Arrays.toString(value));
+    }
+    return value[1];
+  }
+
+  /**
+   * @param value The value of a compressed cell.
+   * @return The number of data points it holds.
+   * @throws IllegalDataException if the value is too short.
+   */
+  static int numDataPoints(final byte[] value) {
+    if (value.length < HEADER_SIZE) {
+      throw new IllegalDataException("Compressed cell too short: "
+          + Arrays.toString(value));
+    }
+    return Bytes.getInt(value, 3);
+  }
+
+  /**
+   * Compresses a regular compacted cell.
+   * @param kv A compacted cell, with its trailing meta-data byte.
+   * @return The compressed cell, or null if the cell holds a single data
+   * point or contains something we can't compress exactly, in which case
+   * it should be stored as-is.
+   */
+  static KeyValue encode(final KeyValue kv) {
+    final byte[] qual = kv.qualifier();
+    final byte[] val = kv.value();
+    if (qual.length <= 4 || val.length < 2) {
+      return null;  // Can't tell a single data point from a compacted cell.
+    }
+
+    // First pass: count the data points and check the layout.
+    int count = 0;
+    boolean seconds = false;
+    boolean milliseconds = false;
+    for (int i = 0; i < qual.length; i += 2) {
+      if (Internal.inMilliseconds(qual[i])) {
+        milliseconds = true;
+        i += 2;
+      } else {
+        seconds = true;
+      }
+      count++;
+    }
+    final byte layout = !milliseconds ? LAYOUT_SECONDS
+      : !seconds ? LAYOUT_MILLISECONDS : LAYOUT_MIXED;
+
+    final BitWriter out = new BitWriter(HEADER_SIZE + val.length);
+    out.buf[0] = VERSION;
+    out.buf[1] = val[val.length - 1];
+    out.buf[2] = layout;
+    Bytes.setInt(out.buf, count, 3);
+    out.pos = HEADER_SIZE * 8;
+
+    final Codec encoder = new Codec();
+    int val_idx = 0;
+    for (int i = 0; i < qual.length; ) {
+      final boolean ms = Internal.inMilliseconds(qual[i]);
+      final short flags = Internal.getFlagsFromQualifier(qual, i);
+      final int vlen = (flags & Const.LENGTH_MASK) + 1;
+      if (val_idx + vlen > val.length - 1) {
+        return null;  // Corrupted cell, leave it alone.
+      }
+      long time = Internal.getOffsetFromQualifier(qual, i);
+      if (layout == LAYOUT_SECONDS) {
+        time /= 1000;
+      } else if (layout == LAYOUT_MIXED) {
+        out.writeBit(ms);
+      }
+      encoder.writeTimestamp(out, time);
+      encoder.writeFlags(out, flags);
+      if ((flags & Const.FLAG_FLOAT) != 0) {
+        if (vlen != 4 && vlen != 8) {
+          return null;
+        }
+        final long bits = vlen == 8 ? Bytes.getLong(val, val_idx)
+          : (Bytes.getInt(val, val_idx) & 0xFFFFFFFFL) << 32;
+        encoder.writeFloat(out, bits);
+      } else {
+        if (vlen != 1 && vlen != 2 && vlen != 4 && vlen != 8) {
+          return null;
+        }
+        encoder.writeInteger(out,
+            Internal.extractIntegerValue(val, val_idx, (byte) flags));
+      }
+      val_idx += vlen;
+      i += ms ? 4 : 2;
+    }
+    if (val_idx != val.length - 1) {
+      return null;  // Corrupted cell, leave it alone.
+    }
+
+    final KeyValue compressed = new KeyValue(kv.key(), kv.family(),
+        QUALIFIER, Arrays.copyOf(out.buf, (out.pos + 7) / 8));
+    // Make sure we'll get back exactly what we were given, for instance
+    // qualifiers with unused bits set or values not on their shortest
+    // encoding don't round trip.
+    final KeyValue decoded = decode(compressed);
+    if (!Bytes.equals(decoded.qualifier(), qual)
+        || !Bytes.equals(decoded.value(), val)) {
+      return null;
+    }
+    return compressed;
+  }
+
+  /**
+   * Decodes a compressed cell back to a regular compacted cell.
+   * @param kv A compressed cell.
+   * @return The equivalent compacted cell.
+   * @throws IllegalDataException if the cell is corrupted or uses a version
+   * of the encoding we don't know.
+   */
+  static KeyValue decode(final KeyValue kv) {
+    final byte[] val = kv.value();
+    if (val.length < HEADER_SIZE) {
+      throw new IllegalDataException("Compressed cell too short: " + kv);
+    } else if (val[0] != VERSION) {
+      throw new IllegalDataException("Unknown compressed cell version "
+          + val[0] + ": " + kv);
+    }
+    final byte meta = val[1];
+    final byte layout = val[2];
+    final int count = Bytes.getInt(val, 3);
+    // Each data point takes at least 3 bits.
+    if (count < 0 || count > (val.length - HEADER_SIZE) * 8 / 3
+        || layout < LAYOUT_SECONDS || layout > LAYOUT_MIXED) {
+      throw new IllegalDataException("Corrupted compressed cell: " + kv);
+    }
+
+    final BitReader in = new BitReader(val, HEADER_SIZE * 8);
+    final Codec decoder = new Codec();
+    // Allocate for the worst case and trim at the end.
+    final byte[] qualifier = new byte[count * 4];
+    final byte[] value = new byte[count * 8 + 1];
+    int qual_idx = 0;
+    int val_idx = 0;
+    try {
+      for (int n = 0; n < count; n++) {
+        final boolean ms = layout == LAYOUT_MILLISECONDS
+          || (layout == LAYOUT_MIXED && in.readBit());
+        long time = decoder.readTimestamp(in);
+        final short flags = decoder.readFlags(in);
+        if (layout == LAYOUT_SECONDS) {
+          time *= 1000;
+        }
+        if (ms) {
+          Bytes.setInt(qualifier, (int) (Const.MS_FLAG
+              | (time << Const.MS_FLAG_BITS) | flags), qual_idx);
+          qual_idx += 4;
+        } else {
+          Bytes.setShort(qualifier, (short) ((time / 1000) << Const.FLAG_BITS
+              | flags), qual_idx);
+          qual_idx += 2;
+        }
+        final int vlen = (flags & Const.LENGTH_MASK) + 1;
+        if ((flags & Const.FLAG_FLOAT) != 0) {
+          final long bits = decoder.readFloat(in);
+          if (vlen == 8) {
+            Bytes.setLong(value, bits, val_idx);
+          } else {
+            Bytes.setInt(value, (int) (bits >>> 32), val_idx);
+          }
+        } else {
+          final long v = decoder.readInteger(in);
+          switch (vlen) {
+            case 8: Bytes.setLong(value, v, val_idx); break;
+            case 4: Bytes.setInt(value, (int) v, val_idx); break;
+            case 2: Bytes.setShort(value, (short) v, val_idx); break;
+            case 1: value[val_idx] = (byte) v; break;
+            default:
+              throw new IllegalDataException("Integer value not on 8/4/2/1"
+                  + " bytes in compressed cell: " + kv);
+          }
+        }
+        val_idx += vlen;
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalDataException("Corrupted compressed cell: " + kv);
+    }
+    value[val_idx++] = meta;
+    return new KeyValue(kv.key(), kv.family(),
+                        Arrays.copyOf(qualifier, qual_idx),
+                        Arrays.copyOf(value, val_idx));
+  }
+
+  /**
+   * State shared by the encoder and the decoder: what we know about the
+   * previous data point.
+   */
+  private static final class Codec {
+    private long prev_time;
+    private long prev_delta;
+    private short prev_flags = -1;
+    private long prev_integer;
+    private long prev_float;
+    /** Leading zeros and length of the last meaningful XOR bits.  */
+    private int prev_leading = -1;
+    private int prev_length;
+
+    void writeTimestamp(final BitWriter out, final long time) {
+      final long delta = time - prev_time;
+      final long dod = delta - prev_delta;
+      prev_time = time;
+      prev_delta = delta;
+      if (dod == 0) {
+        out.writeBit(false);
+      } else if (dod >= -63 && dod <= 64) {
+        out.writeBits(0x2, 2);
+        out.writeBits(dod + 63, 7);
+      } else if (dod >= -255 && dod <= 256) {
+        out.writeBits(0x6, 3);
+        out.writeBits(dod + 255, 9);
+      } else if (dod >= -2047 && dod <= 2048) {
+        out.writeBits(0xE, 4);
+        out.writeBits(dod + 2047, 12);
+      } else {
+        out.writeBits(0xF, 4);
+        out.writeBits(dod, 32);
+      }
+    }
+
+    long readTimestamp(final BitReader in) {
+      final long dod;
+      if (!in.readBit()) {
+        dod = 0;
+      } else if (!in.readBit()) {
+        dod = in.readBits(7) - 63;
+      } else if (!in.readBit()) {
+        dod = in.readBits(9) - 255;
+      } else if (!in.readBit()) {
+        dod = in.readBits(12) - 2047;
+      } else {
+        dod = (int) in.readBits(32);
+      }
+      prev_delta += dod;
+      prev_time += prev_delta;
+      return prev_time;
+    }
+
+    void writeFlags(final BitWriter out, final short flags) {
+      if (flags == prev_flags) {
+        out.writeBit(false);
+      } else {
+        out.writeBit(true);
+        out.writeBits(flags, 4);
+        prev_flags = flags;
+      }
+    }
+
+    short readFlags(final BitReader in) {
+      if (in.readBit()) {
+        prev_flags = (short) in.readBits(4);
+      }
+      return prev_flags;
+    }
+
+    void writeInteger(final BitWriter out, final long value) {
+      final long delta = value - prev_integer;
+      prev_integer = value;
+      final long zigzag = (delta << 1) ^ (delta >> 63);
+      if (zigzag == 0) {
+        out.writeBit(false);
+      } else if ((zigzag >>> 7) == 0) {
+        out.writeBits(0x2, 2);
+        out.writeBits(zigzag, 7);
+      } else if ((zigzag >>> 16) == 0) {
+        out.writeBits(0x6, 3);
+        out.writeBits(zigzag, 16);
+      } else if ((zigzag >>> 32) == 0) {
+        out.writeBits(0xE, 4);
+        out.writeBits(zigzag, 32);
+      } else {
+        out.writeBits(0xF, 4);
+        out.writeBits(zigzag, 64);
+      }
+    }
+
+    long readInteger(final BitReader in) {
+      final long zigzag;
+      if (!in.readBit()) {
+        zigzag = 0;
+      } else if (!in.readBit()) {
+        zigzag = in.readBits(7);
+      } else if (!in.readBit()) {
+        zigzag = in.readBits(16);
+      } else if (!in.readBit()) {
+        zigzag = in.readBits(32);
+      } else {
+        zigzag = in.readBits(64);
+      }
+      prev_integer += (zigzag >>> 1) ^ -(zigzag & 1);
+      return prev_integer;
+    }
+
+    /** @param bits The value, left aligned for single precision.  */
+    void writeFloat(final BitWriter out, final long bits) {
+      final long xor = bits ^ prev_float;
+      prev_float = bits;
+      if (xor == 0) {
+        out.writeBit(false);
+        return;
+      }
+      out.writeBit(true);
+      // Leading zeros are stored on 5 bits, so cap them at 31.
+      final int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+      final int trailing = Long.numberOfTrailingZeros(xor);
+      if (prev_leading >= 0 && leading >= prev_leading
+          && trailing >= 64 - prev_leading - prev_length) {
+        // Fits in the same window as the previous value.
+        out.writeBit(false);
+        out.writeBits(xor >>> (64 - prev_leading - prev_length), prev_length);
+      } else {
+        final int length = 64 - leading - trailing;
+        out.writeBit(true);
+        out.writeBits(leading, 5);
+        out.writeBits(length - 1, 6);
+        out.writeBits(xor >>> trailing, length);
+        prev_leading = leading;
+        prev_length = length;
+      }
+    }
+
+    long readFloat(final BitReader in) {
+      if (in.readBit()) {
+        if (in.readBit()) {
+          prev_leading = (int) in.readBits(5);
+          prev_length = (int) in.readBits(6) + 1;
+        }
+        final long xor = in.readBits(prev_length);
+        prev_float ^= xor << (64 - prev_leading - prev_length);
+      }
+      return prev_float;
+    }
+  }
+
+  /** Writes bits most significant first, growing the buffer as needed.  */
+  private static final class BitWriter {
+    byte[] buf;
+    /** Number of bits written, including the header.  */
+    int pos;
+
+    BitWriter(final int size) {
+      buf = new byte[size];
+    }
+
+    void writeBit(final boolean bit) {
+      if ((pos >>> 3) >= buf.length) {
+        buf = Arrays.copyOf(buf, buf.length * 2);
+      }
+      if (bit) {
+        buf[pos >>> 3] |= 0x80 >>> (pos & 7);
+      }
+      pos++;
+    }
+
+    /** Writes the {@code n} low order bits of {@code bits}.  */
+    void writeBits(final long bits, final int n) {
+      for (int i = n - 1; i >= 0; i--) {
+        writeBit(((bits >>> i) & 1) != 0);
+      }
+    }
+  }
+
+  /** Reads bits written by a {@link BitWriter}.  */
+  private static final class BitReader {
+    private final byte[] buf;
+    private int pos;
+
+    BitReader(final byte[] buf, final int pos) {
+      this.buf = buf;
+      this.pos = pos;
+    }
+
+    boolean readBit() {
+      final boolean bit = (buf[pos >>> 3] & (0x80 >>> (pos & 7))) != 0;
+      pos++;
+      return bit;
+    }
+
+    long readBits(final int n) {
+      long bits = 0;
+      for (int i = 0; i < n; i++) {
+        bits = (bits << 1) | (readBit() ? 1 : 0);
+      }
+      return bits;
+    }
+  }
+
+}
@@ -74,4 +74,49 @@ public final class Const {
    * before losing precision.
    */
   public static final long MAX_INT_IN_DOUBLE = 0xFFE0000000000000L;
+
+  /** Maximum number of bytes of salt that can prefix a row key.  */
+  public static final short MAX_SALT_WIDTH = 3;
+
+  /**
+   * Number of bytes of salt at the beginning of each row key in the data
+   * table, 0 when salting is disabled.  Set once from the config by the
+   * {@link TSDB} constructor.
+   */
+  private static short salt_width = 0;
+
+  /** Number of salt buckets the series are spread over.  */
+  private static int salt_buckets = 1;
+
+  /** @return The number of bytes of salt prefixed to row keys.  */
+  public static short salt_width() {
+    return salt_width;
+  }
+
+  /** @return The number of salt buckets row keys are spread over.  */
+  public static int salt_buckets() {
+    return salt_buckets;
+  }
+
+  /**
+   * Sets the row key salting scheme.
+   * <b>Warning:</b> Changing this on an existing data table makes all the
+   * data already written unreachable.
+   * @param width The number of bytes of salt, 0 to disable salting.
+   * @param buckets The number of buckets, from 1 to 256^width.
+   * @throws IllegalArgumentException if either value is out of range.
+   * @since 2.1
+   */
+  static void setSalt(final int width, final int buckets) {
+    if (width < 0 || width > MAX_SALT_WIDTH) {
+      throw new IllegalArgumentException("Salt width must be between 0 and "
+          + MAX_SALT_WIDTH + ": " + width);
+    }
+    if (width > 0 && (buckets < 1 || buckets > 1 << (width * 8))) {
+      throw new IllegalArgumentException("Can't fit " + buckets
+          + " salt buckets in " + width + " bytes");
+    }
+    salt_width = (short) width;
+    salt_buckets = width == 0 ? 1 : buckets;
+  }
 }
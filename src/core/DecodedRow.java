@@ -0,0 +1,226 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * The data points of a compacted row, decoded into primitive arrays.
+ * <p>
+ * A {@link RowSeq} has to parse the flags and width of each qualifier again
+ * every time it accesses a data point.  Once decoded, a row gives access to
+ * any of its data points in O(1): timestamps are stored in milliseconds,
+ * values either as the integer or as the raw bits of the double, and a bit
+ * set tells which values are integers.
+ * <p>
+ * Instances are immutable, which allows sharing them between queries.
+ * @since 2.1
+ */
+final class DecodedRow {
+
+  /** Timestamps of the data points in milliseconds, in ascending order.  */
+  private final long[] timestamps;
+
+  /** Values of the data points: the integer or the bits of the double.  */
+  private final long[] values;
+
+  /** Bit set of the data points whose value is an integer.  */
+  private final long[] integers;
+
+  /**
+   * Constructor.
+   * @param timestamps The timestamps in milliseconds, in ascending order.
+   * @param values The values, integers or bits of doubles.
+   * @param integers The bit set of the integer values.
+   */
+  private DecodedRow(final long[] timestamps, final long[] values,
+                     final long[] integers) {
+    this.timestamps = timestamps;
+    this.values = values;
+    this.integers = integers;
+  }
+
+  /**
+   * Decodes a compacted row.
+   * @param row The compacted row, possibly compressed.
+   * @param base_time The base time of the row, in seconds.
+   * @return The decoded row.
+   * @throws IllegalDataException if the data is malformed.
+   */
+  static DecodedRow decode(KeyValue row, final long base_time) {
+    if (CompressedCell.isCompressed(row.qualifier())) {
+      row = CompressedCell.decode(row);
+    }
+    return decode(row.qualifier(), row.value(), base_time);
+  }
+
+  /**
+   * Decodes the qualifiers and values of a compacted row.
+   * @param qualifiers The qualifiers of the data points.
+   * @param values The values of the data points.
+   * @param base_time The base time of the row, in seconds.
+   * @return The decoded row.
+   * @throws IllegalDataException if the data is malformed.
+   */
+  static DecodedRow decode(final byte[] qualifiers, final byte[] values,
+                           final long base_time) {
+    int npoints = 0;
+    for (int i = 0; i < qualifiers.length; i += 2) {
+      if (Internal.inMilliseconds(qualifiers[i])) {
+        i += 2;
+      }
+      npoints++;
+    }
+    final long[] timestamps = new long[npoints];
+    final long[] decoded = new long[npoints];
+    final long[] integers = new long[(npoints + 63) >>> 6];
+    int qual_index = 0;
+    int value_index = 0;
+    for (int i = 0; i < npoints; i++) {
+      final int qualifier;
+      if (Internal.inMilliseconds(qualifiers[qual_index])) {
+        qualifier = Bytes.getInt(qualifiers, qual_index);
+        qual_index += 4;
+        timestamps[i] = base_time * 1000
+          + ((qualifier & 0x0FFFFFC0) >>> Const.MS_FLAG_BITS);
+      } else {
+        qualifier = Bytes.getUnsignedShort(qualifiers, qual_index);
+        qual_index += 2;
+        timestamps[i] =
+          (base_time + ((qualifier & 0xFFFF) >>> Const.FLAG_BITS)) * 1000;
+      }
+      final byte flags = (byte) qualifier;
+      if ((flags & Const.FLAG_FLOAT) == 0x0) {
+        decoded[i] = RowSeq.extractIntegerValue(values, value_index, flags);
+        integers[i >>> 6] |= 1L << i;
+      } else {
+        decoded[i] = Double.doubleToRawLongBits(
+            RowSeq.extractFloatingPointValue(values, value_index, flags));
+      }
+      value_index += (flags & Const.LENGTH_MASK) + 1;
+    }
+    return new DecodedRow(timestamps, decoded, integers);
+  }
+
+  /** @return The number of data points in this row.  */
+  int size() {
+    return timestamps.length;
+  }
+
+  /**
+   * @param i The index of a data point.
+   * @return Its timestamp in milliseconds.
+   */
+  long timestamp(final int i) {
+    return timestamps[i];
+  }
+
+  /**
+   * Binary search of a timestamp.
+   * @param timestamp A timestamp in milliseconds.
+   * @return The index of the first data point at or after this timestamp,
+   * {@link #size} if there's none.
+   */
+  int search(final long timestamp) {
+    int low = 0;
+    int high = timestamps.length;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (timestamps[mid] < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @param i The index of a data point.
+   * @return Whether its value is an integer.
+   */
+  boolean isInteger(final int i) {
+    return (integers[i >>> 6] & (1L << i)) != 0;
+  }
+
+  /**
+   * @param i The index of a data point.
+   * @return Its value, which must be an integer.
+   */
+  long longValue(final int i) {
+    return values[i];
+  }
+
+  /**
+   * @param i The index of a data point.
+   * @return Its value, which must be a floating point value.
+   */
+  double doubleValue(final int i) {
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  /**
+   * Merges the data points of another row into a new row.  When both rows
+   * have a data point with the same timestamp, the one of this row is kept.
+   * @param other The row to merge.
+   * @return A new row with the data points of both rows.
+   */
+  DecodedRow merge(final DecodedRow other) {
+    final int max = timestamps.length + other.timestamps.length;
+    final long[] merged_timestamps = new long[max];
+    final long[] merged_values = new long[max];
+    final long[] merged_integers = new long[(max + 63) >>> 6];
+    int local = 0;
+    int remote = 0;
+    int merged = 0;
+    while (local < timestamps.length || remote < other.timestamps.length) {
+      final DecodedRow from;
+      final int i;
+      if (remote >= other.timestamps.length
+          || (local < timestamps.length
+              && timestamps[local] <= other.timestamps[remote])) {
+        if (remote < other.timestamps.length
+            && timestamps[local] == other.timestamps[remote]) {
+          remote++;  // Duplicate, keep ours.
+        }
+        from = this;
+        i = local++;
+      } else {
+        from = other;
+        i = remote++;
+      }
+      merged_timestamps[merged] = from.timestamps[i];
+      merged_values[merged] = from.values[i];
+      if (from.isInteger(i)) {
+        merged_integers[merged >>> 6] |= 1L << merged;
+      }
+      merged++;
+    }
+    if (merged == max) {
+      return new DecodedRow(merged_timestamps, merged_values, merged_integers);
+    }
+    final long[] integers = new long[(merged + 63) >>> 6];
+    System.arraycopy(merged_integers, 0, integers, 0, integers.length);
+    final long[] timestamps = new long[merged];
+    System.arraycopy(merged_timestamps, 0, timestamps, 0, merged);
+    final long[] values = new long[merged];
+    System.arraycopy(merged_values, 0, values, 0, merged);
+    return new DecodedRow(timestamps, values, integers);
+  }
+
+  /** @return The approximate memory size of this row, in bytes.  */
+  int memorySize() {
+    return 48 + (timestamps.length + values.length + integers.length) * 8;
+  }
+}
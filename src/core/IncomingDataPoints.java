@@ -48,7 +48,8 @@ final class IncomingDataPoints implements WritableDataPoints {
 
   /**
    * The row key.
-   * 3 bytes for the metric name, 4 bytes for the base timestamp, 6 bytes per
+   * Optional salt bytes, 3 bytes for the metric name, 4 bytes for the base
+   * timestamp, 6 bytes per
    * tag (3 for the name, 3 for the value).
    */
   private byte[] row;
@@ -119,12 +120,12 @@ final class IncomingDataPoints implements WritableDataPoints {
     final short tag_value_width = tsdb.tag_values.width();
     final short num_tags = (short) tags.size();
 
-    int row_size = (metric_width + Const.TIMESTAMP_BYTES
+    int row_size = (Const.salt_width() + metric_width + Const.TIMESTAMP_BYTES
                     + tag_name_width * num_tags
                     + tag_value_width * num_tags);
     final byte[] row = new byte[row_size];
 
-    short pos = 0;
+    short pos = Const.salt_width();
 
     copyInRowKey(row, pos, (tsdb.config.auto_metric() ? 
         tsdb.metrics.getOrCreateId(metric) : tsdb.metrics.getId(metric)));
@@ -136,6 +137,7 @@ final class IncomingDataPoints implements WritableDataPoints {
       copyInRowKey(row, pos, tag);
       pos += tag.length;
     }
+    RowKey.prefixKeyWithSalt(row);
     return row;
   }
   
@@ -152,7 +154,7 @@ final class IncomingDataPoints implements WritableDataPoints {
     final short tag_value_width = tsdb.tag_values.width();
     final short num_tags = (short) tags.size();
 
-    int row_size = (metric_width + Const.TIMESTAMP_BYTES
+    int row_size = (Const.salt_width() + metric_width + Const.TIMESTAMP_BYTES
                     + tag_name_width * num_tags
                     + tag_value_width * num_tags);
     final byte[] row = new byte[row_size];
@@ -168,7 +170,8 @@ final class IncomingDataPoints implements WritableDataPoints {
     // Copy the metric ID at the beginning of the row key.
     class CopyMetricInRowKeyCB implements Callback<byte[], byte[]> {
       public byte[] call(final byte[] metricid) {
-        copyInRowKey(row, (short) 0, metricid);
+        copyInRowKey(row, Const.salt_width(), metricid);
+        RowKey.prefixKeyWithSalt(row);
         return row;
       }
     }
@@ -177,7 +180,7 @@ final class IncomingDataPoints implements WritableDataPoints {
     class CopyTagsInRowKeyCB
       implements Callback<Deferred<byte[]>, ArrayList<byte[]>> {
       public Deferred<byte[]> call(final ArrayList<byte[]> tags) {
-        short pos = metric_width;
+        short pos = (short) (Const.salt_width() + metric_width);
         pos += Const.TIMESTAMP_BYTES;
         for (final byte[] tag : tags) {
           copyInRowKey(row, pos, tag);
@@ -231,7 +234,8 @@ final class IncomingDataPoints implements WritableDataPoints {
     // because the HBase client may still hold a reference to it in its
     // internal datastructures.
     row = Arrays.copyOf(row, row.length);
-    Bytes.setInt(row, (int) base_time, tsdb.metrics.width());
+    Bytes.setInt(row, (int) base_time,
+                 Const.salt_width() + tsdb.metrics.width());
     tsdb.scheduleForCompaction(row, (int) base_time);
     return base_time;
   }
@@ -323,7 +327,8 @@ final class IncomingDataPoints implements WritableDataPoints {
 
   /** Extracts the base timestamp from the row key. */
   private long baseTime() {
-    return Bytes.getUnsignedInt(row, tsdb.metrics.width());
+    return Bytes.getUnsignedInt(row,
+                                Const.salt_width() + tsdb.metrics.width());
   }
 
   public Deferred<Object> addPoint(final long timestamp, final long value) {
@@ -394,8 +399,7 @@ final class IncomingDataPoints implements WritableDataPoints {
     if (row == null) {
       throw new IllegalStateException("setSeries never called before!");
     }
-    final byte[] id = Arrays.copyOfRange(row, 0, tsdb.metrics.width());
-    return tsdb.metrics.getNameAsync(id);
+    return RowKey.metricNameAsync(tsdb, row);
   }
 
   public Map<String, String> getTags() {
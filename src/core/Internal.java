@@ -80,14 +80,29 @@ public final class Internal {
     return ((TsdbQuery) query).getScanner();
   }
 
+  /** @see TsdbQuery#getScanners */
+  public static ArrayList<Scanner> getScanners(final Query query) {
+    return ((TsdbQuery) query).getScanners();
+  }
+
   /** @see RowKey#metricName */
   public static String metricName(final TSDB tsdb, final byte[] id) {
     return RowKey.metricName(tsdb, id);
   }
 
+  /** @see RowKey#prefixKeyWithSalt */
+  public static void prefixKeyWithSalt(final byte[] row_key) {
+    RowKey.prefixKeyWithSalt(row_key);
+  }
+
+  /** @see RowKey#setSaltBucket */
+  public static void setSaltBucket(final byte[] row_key, final int bucket) {
+    RowKey.setSaltBucket(row_key, bucket);
+  }
+
   /** Extracts the timestamp from a row key.  */
   public static long baseTime(final TSDB tsdb, final byte[] row) {
-    return Bytes.getUnsignedInt(row, tsdb.metrics.width());
+    return Bytes.getUnsignedInt(row, Const.salt_width() + tsdb.metrics.width());
   }
 
   /** @see Tags#getTags */
@@ -186,7 +201,10 @@ public final class Internal {
   public static ArrayList<Cell> extractDataPoints(final ArrayList<KeyValue> row,
       final int estimated_nvalues) {
     final ArrayList<Cell> cells = new ArrayList<Cell>(estimated_nvalues);
-    for (final KeyValue kv : row) {
+    for (KeyValue kv : row) {
+      if (CompressedCell.isCompressed(kv.qualifier())) {
+        kv = CompressedCell.decode(kv);
+      }
       final byte[] qual = kv.qualifier();
       final int len = qual.length;
       final byte[] val = kv.value();
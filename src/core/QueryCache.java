@@ -0,0 +1,337 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded cache of the rows read by queries, so that a query sent over and
+ * over again with a sliding time range only scans the most recent rows.
+ * <p>
+ * Rows are cached decoded (see {@link DecodedRow}) so that queries don't
+ * decode them again either.  A row is decoded only once for all the scans
+ * that read it: as long as it's cached, a scan reading the same row from
+ * the same table shares the decoded row rather than caching it again.
+ * <p>
+ * Rows are cached in buckets of one row's time span, keyed on what selects
+ * the rows of a scan: the table, the metric and the row key filter built from
+ * the tags, group bys or TSUIDs.  The aggregator, downsampling and rate
+ * options aren't part of the key as they're applied after the scan, so
+ * queries that only differ by those share the same buckets.
+ * <p>
+ * Only buckets old enough not to receive new data points are cached, that
+ * is buckets that ended at least {@code min_age} seconds ago.  A query reads
+ * the leading buckets of its time range from the cache until the first one
+ * that isn't cached and scans storage from there, then caches the buckets it
+ * scanned that are old enough, including empty ones.
+ * <p>
+ * The cache is bounded by the approximate size of the cached rows in bytes
+ * and evicts the least recently used buckets first.  A maximum size of 0
+ * disables the cache.
+ * @since 2.1
+ */
+final class QueryCache {
+
+  /** Rough memory overhead of a cached row, in bytes.  */
+  private static final int ROW_OVERHEAD = 64;
+
+  /** Rough memory size of a cached annotation, in bytes.  */
+  private static final int ANNOTATION_SIZE = 256;
+
+  /** Minimum number of seconds since the end of a bucket to cache it.  */
+  private final long min_age;
+
+  /** The actual cache.  */
+  private final Cache<BucketKey, List<CachedRow>> cache;
+
+  /** The decoded rows referenced by the cached buckets, by row key.  */
+  private final Cache<RowId, DecodedRow> decoded_rows;
+
+  /**
+   * Constructor.
+   * @param max_size The maximum size of the cached rows, in bytes.
+   * @param min_age The minimum number of seconds since the end of a bucket
+   * to cache it.
+   * @throws IllegalArgumentException if the maximum size isn't positive or
+   * the minimum age is negative.
+   */
+  QueryCache(final long max_size, final long min_age) {
+    if (max_size <= 0) {
+      throw new IllegalArgumentException("Invalid max size: " + max_size);
+    } else if (min_age < 0) {
+      throw new IllegalArgumentException("Invalid min age: " + min_age);
+    }
+    this.min_age = min_age;
+    cache = CacheBuilder.newBuilder()
+      .maximumWeight(max_size)
+      .weigher(new BucketWeigher())
+      .recordStats()
+      .build();
+    // Rows are only kept alive by the buckets referencing them.
+    decoded_rows = CacheBuilder.newBuilder()
+      .weakValues()
+      .build();
+  }
+
+  /**
+   * Returns the base time of the first bucket that's too recent to be
+   * cached.  All the buckets before it are immutable.
+   */
+  long immutableEnd() {
+    final long end = System.currentTimeMillis() / 1000 - min_age;
+    return end - (end % Const.MAX_TIMESPAN);
+  }
+
+  /**
+   * Reads the leading buckets of a time range from the cache.
+   * @param scan The key of the scan reading the rows.
+   * @param start_row The base time of the first bucket to read.
+   * @param end_row The base time at which to stop reading (exclusive).
+   * @param rows The list to add the cached rows to.
+   * @return The base time of the first bucket not found in the cache, or
+   * {@code end_row} if they were all cached.
+   */
+  long read(final String scan, final long start_row, final long end_row,
+            final List<CachedRow> rows) {
+    long base_time = start_row;
+    while (base_time < end_row) {
+      final List<CachedRow> bucket =
+        cache.getIfPresent(new BucketKey(scan, base_time));
+      if (bucket == null) {
+        break;
+      }
+      rows.addAll(bucket);
+      base_time += Const.MAX_TIMESPAN;
+    }
+    return base_time;
+  }
+
+  /**
+   * Returns a new fill collecting the rows of a time range as they're
+   * scanned, to cache them once the scan completed.
+   * @param scan The key of the scan reading the rows.
+   * @param source The table the rows are read from, with the downsampler
+   * if it's the table of a rollup tier.
+   * @param start_row The base time of the first bucket to cache.
+   * @param end_row The base time at which to stop caching (exclusive).
+   */
+  Fill newFill(final String scan, final String source, final long start_row,
+               final long end_row) {
+    return new Fill(scan, source, start_row, end_row);
+  }
+
+  /** Discards all the cached rows. */
+  void dropCaches() {
+    cache.invalidateAll();
+    decoded_rows.invalidateAll();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final CacheStats stats = cache.stats();
+    collector.record("query.cache-hit", stats.hitCount());
+    collector.record("query.cache-miss", stats.missCount());
+    collector.record("query.cache-evictions", stats.evictionCount());
+    collector.record("query.cache-size", cache.size());
+    collector.record("query.cache-rows", decoded_rows.size());
+  }
+
+  /**
+   * A row read from storage, as added to a {@link Span}: the decoded data
+   * points of the compacted row (or of the row read from a rollup tier) and
+   * the annotations found in it.
+   */
+  static final class CachedRow {
+    /** The row key, with its base time.  */
+    final byte[] key;
+    /** The decoded data points, null if the row only had annotations.  */
+    final DecodedRow row;
+    /** The annotations of the row, possibly empty.  */
+    final List<Annotation> annotations;
+
+    CachedRow(final byte[] key, final DecodedRow row,
+              final List<Annotation> annotations) {
+      this.key = key;
+      this.row = row;
+      this.annotations = annotations;
+    }
+
+    /** @return The approximate memory size of this row, in bytes.  */
+    int size() {
+      int size = ROW_OVERHEAD + key.length
+        + annotations.size() * ANNOTATION_SIZE;
+      if (row != null) {
+        size += row.memorySize();
+      }
+      return size;
+    }
+  }
+
+  /**
+   * Collects the rows of a time range from the scanners reading it, which
+   * may run concurrently, and caches them once the scan completed.
+   */
+  final class Fill {
+    private final String scan;
+    private final String source;
+    private final long start_row;
+    private final ArrayList<ArrayList<CachedRow>> buckets;
+
+    Fill(final String scan, final String source, final long start_row,
+         final long end_row) {
+      this.scan = scan;
+      this.source = source;
+      this.start_row = start_row;
+      final int nbuckets = end_row > start_row
+        ? (int) ((end_row - start_row) / Const.MAX_TIMESPAN) : 0;
+      buckets = new ArrayList<ArrayList<CachedRow>>(nbuckets);
+      for (int i = 0; i < nbuckets; i++) {
+        buckets.add(new ArrayList<CachedRow>());
+      }
+    }
+
+    /**
+     * Adds a row read from storage, ignored if it's outside of the time
+     * range of this fill.
+     * @param key The row key.
+     * @param row The compacted row, can be null.
+     * @param annotations The annotations of the row, copied.
+     * @return The decoded row, shared with the cache, or null if the row
+     * isn't cached or was null.
+     */
+    DecodedRow add(final byte[] key, final KeyValue row,
+                   final List<Annotation> annotations) {
+      final long base_time = Bytes.getUnsignedInt(key,
+          Const.salt_width() + TSDB.metrics_width());
+      final long i = (base_time - start_row) / Const.MAX_TIMESPAN;
+      if (base_time < start_row || i >= buckets.size()) {
+        return null;
+      }
+      DecodedRow decoded = null;
+      if (row != null) {
+        final RowId id = new RowId(source, key);
+        decoded = decoded_rows.getIfPresent(id);
+        if (decoded == null) {
+          decoded = DecodedRow.decode(row, base_time);
+          decoded_rows.put(id, decoded);
+        }
+      }
+      final CachedRow cached = new CachedRow(key, decoded, annotations.isEmpty()
+          ? Collections.<Annotation>emptyList()
+          : new ArrayList<Annotation>(annotations));
+      final ArrayList<CachedRow> bucket = buckets.get((int) i);
+      synchronized (bucket) {
+        bucket.add(cached);
+      }
+      return decoded;
+    }
+
+    /** Caches all the buckets of this fill, empty ones included.  */
+    void commit() {
+      long base_time = start_row;
+      for (final ArrayList<CachedRow> bucket : buckets) {
+        synchronized (bucket) {
+          bucket.trimToSize();
+          cache.put(new BucketKey(scan, base_time),
+                    Collections.<CachedRow>unmodifiableList(bucket));
+        }
+        base_time += Const.MAX_TIMESPAN;
+      }
+    }
+  }
+
+  /** Weighs the buckets by the size of their rows.  */
+  private static final class BucketWeigher
+    implements Weigher<BucketKey, List<CachedRow>> {
+    public int weigh(final BucketKey key, final List<CachedRow> bucket) {
+      int size = ROW_OVERHEAD + key.scan.length();
+      for (final CachedRow row : bucket) {
+        size += row.size();
+      }
+      return size;
+    }
+  }
+
+  /** Key of a decoded row: the table it's read from and its row key.  */
+  private static final class RowId {
+    private final String source;
+    private final byte[] key;
+
+    RowId(final String source, final byte[] key) {
+      this.source = source;
+      this.key = key;
+    }
+
+    @Override
+    public int hashCode() {
+      return source.hashCode() * 31 + Arrays.hashCode(key);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof RowId)) {
+        return false;
+      }
+      final RowId id = (RowId) other;
+      return Arrays.equals(key, id.key) && source.equals(id.source);
+    }
+  }
+
+  /** Key of a bucket in the cache: the scan and the base time.  */
+  private static final class BucketKey {
+    private final String scan;
+    private final long base_time;
+
+    BucketKey(final String scan, final long base_time) {
+      this.scan = scan;
+      this.base_time = base_time;
+    }
+
+    @Override
+    public int hashCode() {
+      return scan.hashCode() * 31 + (int) (base_time ^ (base_time >>> 32));
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof BucketKey)) {
+        return false;
+      }
+      final BucketKey key = (BucketKey) other;
+      return base_time == key.base_time && scan.equals(key.scan);
+    }
+  }
+}
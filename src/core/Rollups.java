@@ -0,0 +1,467 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Pre-aggregated copies of the data at coarser resolutions, used to answer
+ * downsampled queries over long time ranges without reading every data
+ * point.
+ * <p>
+ * Each tier, say {@code 1m} or {@code 1h}, has its own table, named after
+ * the {@code tsd.storage.hbase.rollup_table} prefix and the tier, e.g.
+ * {@code tsdb-rollup-1h}.  Rows have the same keys as in the data table,
+ * and each tier interval that has data points in a row gets one cell in
+ * each of the {@code sum}, {@code count}, {@code min} and {@code max}
+ * column families.  Cells use the regular data point qualifiers, with the
+ * timestamp of the start of the interval, so rows of a tier can be loaded
+ * in {@link Span}s like any other row.
+ * <p>
+ * Tiers are written by the {@link CompactionQueue} when it's done with a
+ * row, as by then the row holds all the data points of its hour.  Rows
+ * compacted again because of late data points overwrite the same cells.
+ * <p>
+ * When enabled, {@link TsdbQuery} reads the largest tier that can answer
+ * its downsampling for the part of the time range old enough to have been
+ * compacted, and the data table for the rest.
+ * @since 2.1
+ */
+final class Rollups {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Rollups.class);
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Column families of the tier tables.  */
+  static final byte[] SUM = "sum".getBytes(CHARSET);
+  static final byte[] COUNT = "count".getBytes(CHARSET);
+  static final byte[] MIN = "min".getBytes(CHARSET);
+  static final byte[] MAX = "max".getBytes(CHARSET);
+
+  /** Flags of the cells we write, all values are on 8 bytes.  */
+  private static final short LONG_FLAGS = 0x7;
+  private static final short DOUBLE_FLAGS = Const.FLAG_FLOAT | 0x7;
+
+  /** A rollup tier.  */
+  static final class Tier {
+    /** Name of the tier, e.g. {@code 1h}.  */
+    final String name;
+    /** Interval of the tier, in seconds.  */
+    final int interval;
+    /** Table of the tier.  */
+    final byte[] table;
+
+    Tier(final String name, final int interval, final byte[] table) {
+      this.name = name;
+      this.interval = interval;
+      this.table = table;
+    }
+
+    public String toString() {
+      return name;
+    }
+  }
+
+  private final TSDB tsdb;
+
+  /** The tiers, from the finest to the coarsest.  */
+  private final Tier[] tiers;
+
+  /** Whether queries may read the tiers.  */
+  private final boolean query_enabled;
+
+  /** How long it takes for a row to be compacted, in seconds.  */
+  private final int query_lag;
+
+  private final AtomicLong rows_written = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+  private final AtomicLong queries = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if a tier is invalid.
+   */
+  Rollups(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final Config config = tsdb.config;
+    final String prefix = config.getString("tsd.storage.hbase.rollup_table");
+    final String[] names = config.getString("tsd.rollups.tiers").split(",");
+    tiers = new Tier[names.length];
+    for (int i = 0; i < names.length; i++) {
+      final String name = names[i].trim().toLowerCase();
+      final long interval = DateTime.parseDuration(name);
+      if (interval % 1000 != 0 || interval > Const.MAX_TIMESPAN * 1000L
+          || (Const.MAX_TIMESPAN * 1000L) % interval != 0) {
+        throw new IllegalArgumentException("Invalid rollup tier: " + name
+            + ", its interval must be a whole number of seconds that divides "
+            + Const.MAX_TIMESPAN + " seconds");
+      }
+      tiers[i] = new Tier(name, (int) (interval / 1000),
+                          (prefix + '-' + name).getBytes(CHARSET));
+    }
+    Arrays.sort(tiers, new Comparator<Tier>() {
+      public int compare(final Tier a, final Tier b) {
+        return a.interval - b.interval;
+      }
+    });
+    for (int i = 1; i < tiers.length; i++) {
+      if (tiers[i].interval == tiers[i - 1].interval) {
+        throw new IllegalArgumentException("Duplicate rollup tiers: "
+            + tiers[i - 1] + " and " + tiers[i]);
+      }
+    }
+    query_enabled = config.getBoolean("tsd.rollups.query.enable");
+    query_lag = config.getInt("tsd.rollups.query.lag");
+  }
+
+  /** @return the names of the tables of the tiers.  */
+  String[] tables() {
+    final String[] tables = new String[tiers.length];
+    for (int i = 0; i < tiers.length; i++) {
+      tables[i] = new String(tiers[i].table, CHARSET);
+    }
+    return tables;
+  }
+
+  /**
+   * Writes the rollups of a compacted row in every tier.
+   * @param compacted A row of the data table compacted in a single cell.
+   * @return A deferred called back once all the tiers are written.
+   * @throws IllegalDataException if the row is corrupted.
+   */
+  Deferred<Object> write(final KeyValue compacted) {
+    final ArrayList<Cell> cells = Internal.extractDataPoints(compacted);
+    if (cells.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+    final ArrayList<Deferred<Object>> puts =
+      new ArrayList<Deferred<Object>>(tiers.length * 4);
+    for (final Tier tier : tiers) {
+      final Accumulator acc = new Accumulator(cells.size());
+      for (final Cell cell : cells) {
+        final int bucket = Internal.getOffsetFromQualifier(cell.qualifier)
+          / 1000 / tier.interval * tier.interval;
+        if (bucket != acc.bucket) {
+          acc.emit();
+          acc.bucket = bucket;
+        }
+        acc.add(cell);
+      }
+      acc.emit();
+      final byte[][] qualifiers = toArray(acc.qualifiers);
+      final byte[] key = compacted.key();
+      puts.add(put(tier, key, SUM, qualifiers, toArray(acc.sums)));
+      puts.add(put(tier, key, COUNT, toArray(acc.count_qualifiers),
+                   toArray(acc.counts)));
+      puts.add(put(tier, key, MIN, qualifiers, toArray(acc.mins)));
+      puts.add(put(tier, key, MAX, qualifiers, toArray(acc.maxs)));
+    }
+    rows_written.incrementAndGet();
+    return Deferred.group(puts).addCallback(new GroupCB());
+  }
+
+  private static byte[][] toArray(final ArrayList<byte[]> list) {
+    return list.toArray(new byte[list.size()][]);
+  }
+
+  /** Writes the cells of one family of a tier.  */
+  private Deferred<Object> put(final Tier tier, final byte[] key,
+      final byte[] family, final byte[][] qualifiers, final byte[][] values) {
+    final PutRequest put = new PutRequest(tier.table, key, family,
+                                          qualifiers, values);
+    return tsdb.client.put(put).addErrback(new WriteErrback(tier));
+  }
+
+  /** Turns the result of a group of puts into a single null.  */
+  private static final class GroupCB
+    implements Callback<Object, ArrayList<Object>> {
+    public Object call(final ArrayList<Object> ignored) {
+      return null;
+    }
+    public String toString() {
+      return "group rollup puts";
+    }
+  }
+
+  /** Logs and counts failed writes, they're fixed by the next compaction.  */
+  private final class WriteErrback implements Callback<Object, Exception> {
+    private final Tier tier;
+
+    WriteErrback(final Tier tier) {
+      this.tier = tier;
+    }
+
+    public Object call(final Exception e) {
+      write_errors.incrementAndGet();
+      LOG.error("Failed to write the " + tier + " rollup", e);
+      return null;
+    }
+
+    public String toString() {
+      return "rollup write errback";
+    }
+  }
+
+  /**
+   * Aggregates the data points of a row for each interval of a tier.
+   * Sums are integers when all the data points of the interval are.
+   */
+  private static final class Accumulator {
+    /** Offset of the current interval, in seconds.  */
+    int bucket = -1;
+    int count;
+    boolean integer;
+    long long_sum;
+    long long_min;
+    long long_max;
+    double double_sum;
+    double double_min;
+    double double_max;
+
+    /** Results, one entry per interval.  */
+    final ArrayList<byte[]> qualifiers;
+    final ArrayList<byte[]> count_qualifiers;
+    final ArrayList<byte[]> sums;
+    final ArrayList<byte[]> counts;
+    final ArrayList<byte[]> mins;
+    final ArrayList<byte[]> maxs;
+
+    Accumulator(final int max_buckets) {
+      qualifiers = new ArrayList<byte[]>(max_buckets);
+      count_qualifiers = new ArrayList<byte[]>(max_buckets);
+      sums = new ArrayList<byte[]>(max_buckets);
+      counts = new ArrayList<byte[]>(max_buckets);
+      mins = new ArrayList<byte[]>(max_buckets);
+      maxs = new ArrayList<byte[]>(max_buckets);
+    }
+
+    void add(final Cell cell) {
+      final boolean is_integer = cell.isInteger();
+      final long l = is_integer ? Internal.extractIntegerValue(cell.value, 0,
+          (byte) Internal.getFlagsFromQualifier(cell.qualifier)) : 0;
+      final double d = is_integer ? l : Internal.extractFloatingPointValue(
+          cell.value, 0, (byte) Internal.getFlagsFromQualifier(cell.qualifier));
+      if (count == 0) {
+        integer = is_integer;
+        long_sum = long_min = long_max = l;
+        double_sum = double_min = double_max = d;
+      } else {
+        integer &= is_integer;
+        long_sum += l;
+        long_min = Math.min(long_min, l);
+        long_max = Math.max(long_max, l);
+        double_sum += d;
+        double_min = Math.min(double_min, d);
+        double_max = Math.max(double_max, d);
+      }
+      count++;
+    }
+
+    /** Records the current interval, if it has data points.  */
+    void emit() {
+      if (count == 0) {
+        return;
+      }
+      final short flags = integer ? LONG_FLAGS : DOUBLE_FLAGS;
+      qualifiers.add(Bytes.fromShort(
+          (short) (bucket << Const.FLAG_BITS | flags)));
+      count_qualifiers.add(Bytes.fromShort(
+          (short) (bucket << Const.FLAG_BITS | LONG_FLAGS)));
+      counts.add(Bytes.fromLong(count));
+      if (integer) {
+        sums.add(Bytes.fromLong(long_sum));
+        mins.add(Bytes.fromLong(long_min));
+        maxs.add(Bytes.fromLong(long_max));
+      } else {
+        sums.add(Bytes.fromLong(Double.doubleToRawLongBits(double_sum)));
+        mins.add(Bytes.fromLong(Double.doubleToRawLongBits(double_min)));
+        maxs.add(Bytes.fromLong(Double.doubleToRawLongBits(double_max)));
+      }
+      count = 0;
+    }
+  }
+
+  /**
+   * Finds the tier a downsampled query can read from.
+   * @param interval The downsampling interval, in milliseconds.
+   * @param downsampler The downsampling function.
+   * @return The coarsest tier that gives the same results as the raw data,
+   * or null if there's none.  Sums, minimums and maximums can be computed
+   * from any tier whose interval divides the downsampling interval, averages
+   * only from a tier with the same interval.
+   */
+  Tier findTier(final long interval, final Aggregator downsampler) {
+    if (!query_enabled) {
+      return null;
+    }
+    final boolean avg = downsampler == Aggregators.AVG;
+    if (!avg && family(downsampler) == null) {
+      return null;
+    }
+    for (int i = tiers.length - 1; i >= 0; i--) {
+      final long tier_interval = tiers[i].interval * 1000L;
+      if (avg ? interval == tier_interval : interval % tier_interval == 0) {
+        queries.incrementAndGet();
+        return tiers[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The time before which rows should have been compacted, and so
+   * their rollups written, in seconds, aligned on a row boundary.
+   */
+  long cutoff() {
+    final long cutoff = System.currentTimeMillis() / 1000 - query_lag;
+    return cutoff - (cutoff % Const.MAX_TIMESPAN);
+  }
+
+  /**
+   * @param downsampler A downsampling function.
+   * @return The column family to read for it, or null if it's not one
+   * stored in the tiers, which includes averages.
+   */
+  static byte[] family(final Aggregator downsampler) {
+    if (downsampler == Aggregators.SUM || downsampler == Aggregators.ZIMSUM) {
+      return SUM;
+    } else if (downsampler == Aggregators.MIN
+               || downsampler == Aggregators.MIMMIN) {
+      return MIN;
+    } else if (downsampler == Aggregators.MAX
+               || downsampler == Aggregators.MIMMAX) {
+      return MAX;
+    }
+    return null;
+  }
+
+  /**
+   * Turns a row read from a tier into a compacted row with the values the
+   * downsampler needs.
+   * @param row The cells of a row of a tier, in one or more families.
+   * @param downsampler The downsampling function of the query.
+   * @return A compacted row, or null if the row had none of the values.
+   * @throws IllegalDataException if the row is corrupted.
+   */
+  static KeyValue read(final ArrayList<KeyValue> row,
+                       final Aggregator downsampler) {
+    if (downsampler != Aggregators.AVG) {
+      return compact(row, family(downsampler));
+    }
+    final KeyValue sums = compact(row, SUM);
+    final KeyValue counts = compact(row, COUNT);
+    if (sums == null || counts == null) {
+      return null;
+    }
+    final ArrayList<Cell> sum_cells = Internal.extractDataPoints(sums);
+    final ArrayList<Cell> count_cells = Internal.extractDataPoints(counts);
+    if (sum_cells.size() != count_cells.size()) {
+      throw new IllegalDataException("Sums and counts don't match in " + row);
+    }
+    final int n = sum_cells.size();
+    final byte[] qualifier = new byte[n * 2];
+    final byte[] value = new byte[n * 8 + 1];  // Last byte is the meta-data.
+    for (int i = 0; i < n; i++) {
+      final Cell sum = sum_cells.get(i);
+      final int offset = Internal.getOffsetFromQualifier(sum.qualifier) / 1000;
+      if (offset != Internal.getOffsetFromQualifier(
+            count_cells.get(i).qualifier) / 1000) {
+        throw new IllegalDataException("Sums and counts don't match in "
+                                       + row);
+      }
+      final double total = sum.isInteger() ? sum.parseValue().longValue()
+        : sum.parseValue().doubleValue();
+      final long count = count_cells.get(i).parseValue().longValue();
+      Bytes.setShort(qualifier,
+          (short) (offset << Const.FLAG_BITS | DOUBLE_FLAGS), i * 2);
+      Bytes.setLong(value, Double.doubleToRawLongBits(total / count), i * 8);
+    }
+    if (n == 1) {
+      return new KeyValue(sums.key(), sums.family(), qualifier,
+                          Arrays.copyOf(value, 8));
+    }
+    return new KeyValue(sums.key(), sums.family(), qualifier, value);
+  }
+
+  /**
+   * Compacts the cells of one family of a row, without writing anything.
+   * <p>
+   * An interval may have two cells if its sum went from integer to floating
+   * point when the row was compacted again, in which case the newest wins.
+   * @return A single cell, or null if there's no cell in the family.
+   */
+  private static KeyValue compact(final ArrayList<KeyValue> row,
+                                  final byte[] family) {
+    final ArrayList<KeyValue> cells = new ArrayList<KeyValue>(row.size());
+    for (final KeyValue kv : row) {
+      if (!Bytes.equals(family, kv.family())) {
+        continue;
+      } else if (kv.qualifier().length != 2 || kv.value().length != 8) {
+        throw new IllegalDataException("Unexpected cell in a rollup: " + kv);
+      }
+      final int last = cells.size() - 1;
+      if (last >= 0 && Internal.getOffsetFromQualifier(kv.qualifier())
+          == Internal.getOffsetFromQualifier(cells.get(last).qualifier())) {
+        if (kv.timestamp() > cells.get(last).timestamp()) {
+          cells.set(last, kv);
+        }
+        continue;
+      }
+      cells.add(kv);
+    }
+    if (cells.isEmpty()) {
+      return null;
+    } else if (cells.size() == 1) {
+      return cells.get(0);
+    }
+    final byte[] qualifier = new byte[cells.size() * 2];
+    final byte[] value = new byte[cells.size() * 8 + 1];
+    for (int i = 0; i < cells.size(); i++) {
+      System.arraycopy(cells.get(i).qualifier(), 0, qualifier, i * 2, 2);
+      System.arraycopy(cells.get(i).value(), 0, value, i * 8, 8);
+    }
+    final KeyValue first = cells.get(0);
+    return new KeyValue(first.key(), first.family(), qualifier, value);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rollup.rows", rows_written.get());
+    collector.record("rollup.errors", write_errors.get());
+    collector.record("rollup.queries", queries.get());
+  }
+
+}
@@ -0,0 +1,504 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * In-memory buffer of the rows currently being written to.
+ * <p>
+ * Without this buffer, every data point is written to HBase in its own cell
+ * and the {@link CompactionQueue} later reads the whole row back, writes a
+ * compacted cell and deletes the individual cells.  When the buffer is
+ * enabled, the data points of the current hour of each series are kept in
+ * memory instead, and once the hour is over (plus a grace period for slightly
+ * late data points), the row is written out once, already compacted.  Rows
+ * written this way never go through the compaction queue.
+ * <p>
+ * Data points that arrive for an hour that was already written out fall back
+ * to the regular path: they're written individually and the row is scheduled
+ * for compaction.
+ * <p>
+ * To bound the memory used, when more than {@code max_points} data points are
+ * buffered, the oldest rows are written out early.  Such rows are scheduled
+ * for compaction so the partial cells get merged once the hour is over.
+ * <p>
+ * <b>Note:</b> buffered data points are only held in memory until their row
+ * is written out, so they will be lost if the TSD dies abruptly.  They are
+ * written out by {@link TSDB#flush} and {@link TSDB#shutdown}.
+ * @since 2.1
+ */
+final class RowBuffer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RowBuffer.class);
+
+  /** How frequently the flush thread wakes up to write out old rows.  */
+  private static final int FLUSH_INTERVAL = 10;  // seconds
+
+  /** How many times we'll try to write a compacted row before giving up.  */
+  private static final int MAX_WRITE_ATTEMPTS = 3;
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** Offset of the base time in row keys, after the salt and metric ID.  */
+  private final short timestamp_offset;
+
+  /** Maximum number of data points to buffer before writing rows early.  */
+  private final long max_points;
+
+  /** How long to wait after the end of an hour before writing its rows.  */
+  private final int grace_period;
+
+  /** The rows being buffered, sorted by base time first.  */
+  private final ConcurrentSkipListMap<byte[], BufferedRow> rows;
+
+  /**
+   * Rows that were written out before their hour was over.  Their final
+   * flush also needs to go through the compaction queue.
+   */
+  private final ConcurrentSkipListSet<byte[]> partial_rows =
+    new ConcurrentSkipListSet<byte[]>(Bytes.MEMCMP);
+
+  /** Writes that failed and will be retried during the next flush.  */
+  private final ConcurrentLinkedQueue<RowWrite> retries =
+    new ConcurrentLinkedQueue<RowWrite>();
+
+  /** Number of data points currently buffered.  */
+  private final AtomicLong buffered_points = new AtomicLong();
+
+  private final AtomicLong added_points = new AtomicLong();
+  private final AtomicLong late_points = new AtomicLong();
+  private final AtomicLong written_rows = new AtomicLong();
+  private final AtomicLong early_rows = new AtomicLong();
+  private final AtomicLong write_errors = new AtomicLong();
+  private final AtomicLong dropped_rows = new AtomicLong();
+
+  /** Used by add() to wake up the flush thread under memory pressure.  */
+  private final Object flush_lock = new Object();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   */
+  RowBuffer(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    timestamp_offset = (short) (Const.salt_width() + tsdb.metrics.width());
+    max_points = tsdb.config.getLong("tsd.storage.row_buffer.max_points");
+    grace_period = tsdb.config.getInt("tsd.storage.row_buffer.grace_period");
+    rows = new ConcurrentSkipListMap<byte[], BufferedRow>(new Cmp(timestamp_offset));
+    startFlushThread();
+  }
+
+  /**
+   * Buffers a data point.
+   * @param row The row key, with the base time set.  Ownership of the array
+   * is transferred to the buffer, it must not be modified afterwards.
+   * @param base_time The base time of the row.
+   * @param qualifier The qualifier of the data point (2 or 4 bytes).
+   * @param value The value of the data point.
+   * @return {@code true} if the data point was buffered, {@code false} if
+   * its row was already written out and the caller must write it directly.
+   */
+  boolean add(final byte[] row, final long base_time, final byte[] qualifier,
+              final byte[] value) {
+    while (!isClosed(base_time, System.currentTimeMillis() / 1000)) {
+      BufferedRow buf = rows.get(row);
+      if (buf == null) {
+        buf = new BufferedRow(row);
+        final BufferedRow existing = rows.putIfAbsent(row, buf);
+        if (existing != null) {
+          buf = existing;
+        }
+      }
+      if (buf.add(qualifier, value)) {
+        added_points.incrementAndGet();
+        if (buffered_points.incrementAndGet() > max_points) {
+          synchronized (flush_lock) {
+            flush_lock.notify();
+          }
+        }
+        return true;
+      }
+      // Else the flush thread wrote this row out while we were trying to add
+      // to it.  Either its hour is over, or it was written early because of
+      // memory pressure, in which case we start buffering the row again.
+    }
+    late_points.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Writes out all the buffered rows, even the ones for the current hour.
+   * @return A deferred that will be called back once everything has been
+   * written (or something failed, in which case the deferred will carry the
+   * exception).  In case of success, the kind of object returned is
+   * unspecified.
+   */
+  Deferred<ArrayList<Object>> flush() {
+    if (!rows.isEmpty()) {
+      LOG.info("Flushing " + rows.size() + " buffered rows");
+    }
+    return flush(true, 0);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("rowbuffer.rows", rows.size());
+    collector.record("rowbuffer.points", buffered_points);
+    collector.record("rowbuffer.added", added_points);
+    collector.record("rowbuffer.late", late_points);
+    collector.record("rowbuffer.writes", written_rows, "type=final");
+    collector.record("rowbuffer.writes", early_rows, "type=early");
+    collector.record("rowbuffer.errors", write_errors);
+    collector.record("rowbuffer.dropped", dropped_rows);
+  }
+
+  /**
+   * Whether or not a row can't take new data points anymore.
+   * @param base_time The base time of the row.
+   * @param now The current time, in seconds.
+   */
+  private boolean isClosed(final long base_time, final long now) {
+    return base_time + Const.MAX_TIMESPAN + grace_period <= now;
+  }
+
+  /**
+   * Writes out the rows that are old enough, and the oldest rows beyond that
+   * as long as there are more than {@code low_watermark} buffered data points.
+   * @param all Whether or not to write out every row regardless.
+   * @param low_watermark Number of data points we want to keep at most.
+   * @return A deferred that will be called back once everything has been
+   * written.
+   */
+  private Deferred<ArrayList<Object>> flush(final boolean all,
+                                            final long low_watermark) {
+    final long now = System.currentTimeMillis() / 1000;
+    final ArrayList<Deferred<Object>> ds = new ArrayList<Deferred<Object>>();
+    RowWrite retry;
+    while ((retry = retries.poll()) != null) {
+      ds.add(write(retry));
+    }
+    final Iterator<Map.Entry<byte[], BufferedRow>> it =
+      rows.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<byte[], BufferedRow> entry = it.next();
+      final long base_time = Bytes.getUnsignedInt(entry.getKey(),
+                                                  timestamp_offset);
+      final boolean closed = isClosed(base_time, now);
+      if (!all && !closed && buffered_points.get() <= low_watermark) {
+        break;  // Rows are sorted by base time, the rest are more recent.
+      }
+      final BufferedRow buf = entry.getValue();
+      rows.remove(entry.getKey(), buf);
+      final RowWrite write = buf.close();
+      buffered_points.addAndGet(-buf.points());
+      if (write == null) {
+        continue;
+      }
+      if (closed) {
+        written_rows.incrementAndGet();
+        if (partial_rows.remove(write.key)) {
+          tsdb.scheduleForCompaction(write.key, (int) base_time);
+        }
+      } else {
+        early_rows.incrementAndGet();
+        partial_rows.add(write.key);
+        tsdb.scheduleForCompaction(write.key, (int) base_time);
+      }
+      ds.add(write(write));
+    }
+    return Deferred.group(ds);
+  }
+
+  /** Sends a compacted row to HBase.  */
+  private Deferred<Object> write(final RowWrite write) {
+    return tsdb.put(write.key, write.qualifier, write.value)
+      .addErrback(new WriteErrback(write));
+  }
+
+  /**
+   * Callback to handle a failed write: we retry a few times during the next
+   * flushes before giving up on the row.
+   */
+  private final class WriteErrback implements Callback<Object, Exception> {
+    private final RowWrite write;
+
+    public WriteErrback(final RowWrite write) {
+      this.write = write;
+    }
+
+    public Object call(final Exception e) {
+      write_errors.incrementAndGet();
+      if (++write.attempts < MAX_WRITE_ATTEMPTS) {
+        LOG.warn("Failed to write buffered row " + Arrays.toString(write.key)
+                 + ", will retry", e);
+        retries.add(write);
+        return null;
+      }
+      dropped_rows.incrementAndGet();
+      LOG.error("Giving up on buffered row " + Arrays.toString(write.key)
+                + " after " + write.attempts + " attempts", e);
+      return e;
+    }
+
+    public String toString() {
+      return "handle buffered row write error";
+    }
+  }
+
+  /** A compacted row ready to be written.  */
+  static final class RowWrite {
+    final byte[] key;
+    final byte[] qualifier;
+    final byte[] value;
+    int attempts;
+
+    RowWrite(final byte[] key, final byte[] qualifier, final byte[] value) {
+      this.key = key;
+      this.qualifier = qualifier;
+      this.value = value;
+    }
+  }
+
+  /**
+   * The data points buffered for a single row.
+   * Qualifiers and values are appended to growing byte arrays in the order
+   * in which they arrive, which is almost always the order of their
+   * timestamps, in which case they can be written out as-is.
+   */
+  static final class BufferedRow {
+    private final byte[] key;
+    private byte[] qualifiers = new byte[16];
+    private byte[] values = new byte[16];
+    private int qual_len;
+    private int val_len;
+    private int size;
+    private int points;
+    private int last_offset = -1;
+    private boolean sorted = true;
+    private boolean ms_in_row;
+    private boolean s_in_row;
+    private boolean closed;
+
+    BufferedRow(final byte[] key) {
+      this.key = key;
+    }
+
+    /** @return false if the row was already written out.  */
+    synchronized boolean add(final byte[] qualifier, final byte[] value) {
+      if (closed) {
+        return false;
+      }
+      if (qual_len + qualifier.length > qualifiers.length) {
+        qualifiers = Arrays.copyOf(qualifiers,
+            Math.max(qualifiers.length * 2, qual_len + qualifier.length));
+      }
+      if (val_len + value.length > values.length) {
+        values = Arrays.copyOf(values,
+            Math.max(values.length * 2, val_len + value.length));
+      }
+      System.arraycopy(qualifier, 0, qualifiers, qual_len, qualifier.length);
+      qual_len += qualifier.length;
+      System.arraycopy(value, 0, values, val_len, value.length);
+      val_len += value.length;
+      size++;
+      points++;
+
+      final int offset = Internal.getOffsetFromQualifier(qualifier);
+      if (offset <= last_offset) {
+        sorted = false;
+      } else {
+        last_offset = offset;
+      }
+      if (Internal.inMilliseconds(qualifier)) {
+        ms_in_row = true;
+      } else {
+        s_in_row = true;
+      }
+      return true;
+    }
+
+    /**
+     * @return the number of data points added to this row, including the ones
+     * overwritten by a later data point with the same timestamp.
+     */
+    synchronized int points() {
+      return points;
+    }
+
+    /**
+     * Prevents any further addition to this row and compacts it.
+     * @return The compacted row, or null if the row is empty.
+     */
+    synchronized RowWrite close() {
+      closed = true;
+      if (size == 0) {
+        return null;
+      } else if (size == 1) {
+        // A single data point is stored as-is, without the meta-data byte.
+        return new RowWrite(key, Arrays.copyOf(qualifiers, qual_len),
+                            Arrays.copyOf(values, val_len));
+      } else if (!sorted) {
+        sort();
+      }
+      final byte[] value = Arrays.copyOf(values, val_len + 1);
+      if (ms_in_row && s_in_row) {
+        value[val_len] |= Const.MS_MIXED_COMPACT;
+      }
+      return new RowWrite(key, Arrays.copyOf(qualifiers, qual_len), value);
+    }
+
+    /**
+     * Sorts the data points by timestamp.  When the same timestamp was
+     * written more than once, the last value written wins, as it would if
+     * the data points had been written to HBase individually.
+     */
+    private void sort() {
+      // Sort (offset, index) pairs packed in a long.  The offset in ms from
+      // the base time fits on 22 bits, so we can sort primitive longs.
+      final long[] order = new long[size];
+      final int[] qual_idx = new int[size];
+      final int[] val_idx = new int[size];
+      int q = 0;
+      int v = 0;
+      for (int i = 0; i < size; i++) {
+        qual_idx[i] = q;
+        val_idx[i] = v;
+        order[i] = ((long) Internal.getOffsetFromQualifier(qualifiers, q) << 32)
+          | i;
+        v += Internal.getValueLengthFromQualifier(qualifiers, q);
+        q += Internal.getQualifierLength(qualifiers, q);
+      }
+      Arrays.sort(order);
+
+      final byte[] new_quals = new byte[qual_len];
+      final byte[] new_values = new byte[val_len];
+      int new_size = 0;
+      q = 0;
+      v = 0;
+      for (int i = 0; i < size; i++) {
+        if (i + 1 < size && (order[i] >>> 32) == (order[i + 1] >>> 32)) {
+          continue;  // Overwritten by a more recent data point.
+        }
+        final int idx = (int) order[i];
+        final int qlen = Internal.getQualifierLength(qualifiers, qual_idx[idx]);
+        final int vlen =
+          Internal.getValueLengthFromQualifier(qualifiers, qual_idx[idx]);
+        System.arraycopy(qualifiers, qual_idx[idx], new_quals, q, qlen);
+        System.arraycopy(values, val_idx[idx], new_values, v, vlen);
+        q += qlen;
+        v += vlen;
+        new_size++;
+      }
+      qualifiers = new_quals;
+      values = new_values;
+      qual_len = q;
+      val_len = v;
+      size = new_size;
+      sorted = true;
+    }
+  }
+
+  /** Starts the thread that writes out old rows.  */
+  private void startFlushThread() {
+    final Thrd thread = new Thrd();
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Background thread to periodically write out rows whose hour is over, or
+   * the oldest rows when too many data points are buffered.
+   */
+  final class Thrd extends Thread {
+    public Thrd() {
+      super("RowBufferThread");
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          // Once we're under memory pressure, write out rows until we're
+          // back at half of the limit so we don't do this too often.
+          flush(false, buffered_points.get() > max_points
+                ? max_points / 2 : Long.MAX_VALUE);
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in row buffer thread", e);
+        } catch (Throwable e) {
+          LOG.error("Uncaught *Throwable* in row buffer thread", e);
+          // Same as in the compaction thread: start afresh with a new thread
+          // rather than letting the buffer grow unbounded.
+          try {
+            Thread.sleep(1000);  // Avoid busy looping creating new threads.
+          } catch (InterruptedException i) {
+            LOG.error("Row buffer thread interrupted in error handling", i);
+            return;
+          }
+          startFlushThread();
+          return;
+        }
+        try {
+          synchronized (flush_lock) {
+            flush_lock.wait(FLUSH_INTERVAL * 1000);
+          }
+        } catch (InterruptedException e) {
+          LOG.error("Row buffer thread interrupted, doing one last flush", e);
+          flush();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Helper to sort the buffered rows by timestamp first, this way the oldest
+   * rows are always at the beginning of the map.
+   */
+  static final class Cmp implements Comparator<byte[]> {
+
+    /** Offset of the base time in row keys.  */
+    private final short timestamp_offset;
+
+    public Cmp(final short timestamp_offset) {
+      this.timestamp_offset = timestamp_offset;
+    }
+
+    public int compare(final byte[] a, final byte[] b) {
+      final int c = Bytes.memcmp(a, b, timestamp_offset, Const.TIMESTAMP_BYTES);
+      // If the timestamps are equal, sort according to the entire row key.
+      return c != 0 ? c : Bytes.memcmp(a, b);
+    }
+  }
+}
@@ -47,7 +47,75 @@ final class RowKey {
    * @since 1.2
    */
   static Deferred<String> metricNameAsync(final TSDB tsdb, final byte[] row) {
-    final byte[] id = Arrays.copyOfRange(row, 0, tsdb.metrics.width());
+    final byte[] id = Arrays.copyOfRange(row, Const.salt_width(),
+        Const.salt_width() + tsdb.metrics.width());
     return tsdb.metrics.getNameAsync(id);
   }
+
+  /**
+   * Checks whether a row key is for the given metric, skipping its salt.
+   * @param row_key The row key to check.
+   * @param metric A metric ID.
+   * @return Whether the row key starts with the metric ID, after the salt.
+   * @since 2.1
+   */
+  static boolean hasMetric(final byte[] row_key, final byte[] metric) {
+    final int offset = Const.salt_width();
+    if (row_key.length < offset + metric.length) {
+      return false;
+    }
+    for (int i = 0; i < metric.length; i++) {
+      if (row_key[offset + i] != metric[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Computes the salt bucket of a row key.
+   * The bucket is a hash of the metric and tag IDs only, so that all the
+   * rows of a time series land in the same bucket, whatever their base time.
+   * @param row_key A row key with room for the salt at the beginning.
+   * @return A bucket between 0 (inclusive) and the number of buckets.
+   * @since 2.1
+   */
+  static int saltBucket(final byte[] row_key) {
+    final int metric_end = Const.salt_width() + TSDB.metrics_width();
+    int hash = 0;
+    for (int i = Const.salt_width(); i < metric_end; i++) {
+      hash = 31 * hash + row_key[i];
+    }
+    for (int i = metric_end + Const.TIMESTAMP_BYTES; i < row_key.length; i++) {
+      hash = 31 * hash + row_key[i];
+    }
+    return (hash & 0x7FFFFFFF) % Const.salt_buckets();
+  }
+
+  /**
+   * Writes the salt of a row key at its beginning.  Does nothing when
+   * salting is disabled.
+   * @param row_key A row key with room for the salt at the beginning and
+   * its metric and tag IDs already filled in.
+   * @since 2.1
+   */
+  static void prefixKeyWithSalt(final byte[] row_key) {
+    if (Const.salt_width() > 0) {
+      setSaltBucket(row_key, saltBucket(row_key));
+    }
+  }
+
+  /**
+   * Writes the given salt bucket at the beginning of a row key.
+   * @param row_key The row key to salt.
+   * @param bucket The salt bucket, big endian on {@link Const#salt_width}
+   * bytes.
+   * @since 2.1
+   */
+  static void setSaltBucket(final byte[] row_key, int bucket) {
+    for (int i = Const.salt_width() - 1; i >= 0; i--) {
+      row_key[i] = (byte) bucket;
+      bucket >>>= 8;
+    }
+  }
 }
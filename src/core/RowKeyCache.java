@@ -0,0 +1,202 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded cache of row key templates used on the write path.
+ * <p>
+ * Every data point written through {@link TSDB#addPoint} needs the row key
+ * of its series, which means validating the metric and tags, resolving each
+ * of them through {@link net.opentsdb.uid.UniqueId} and sorting the tag
+ * pairs.  Since the same series are written over and over again, we keep the
+ * result around, keyed on the metric name and the tags.  The tag map is
+ * compared with {@link Map#equals} so no sorting is required to lookup a
+ * series that is already in the cache.
+ * <p>
+ * The templates stored in the cache are never handed out directly, callers
+ * always get their own copy since they'll set the base time in it and pass it
+ * to the HBase client.
+ * <p>
+ * A maximum size of 0 disables the cache.
+ * @since 2.1
+ */
+final class RowKeyCache {
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** The actual cache, null if the cache is disabled. */
+  private final Cache<SeriesKey, byte[]> cache;
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @param max_size The maximum number of series to keep in the cache.
+   */
+  RowKeyCache(final TSDB tsdb, final int max_size) {
+    this.tsdb = tsdb;
+    if (max_size > 0) {
+      cache = CacheBuilder.newBuilder()
+        .maximumSize(max_size)
+        .recordStats()
+        .build();
+    } else {
+      cache = null;
+    }
+  }
+
+  /**
+   * Returns a partially initialized row key for this metric and these tags.
+   * The only thing left to fill in is the base timestamp.  On a cache miss
+   * the metric and tags are validated and resolved (and created if need be).
+   * @param metric A non-empty string.
+   * @param tags The tags on this series.
+   * @return A row key template owned by the caller.
+   * @throws IllegalArgumentException if the metric or tags aren't valid.
+   * @throws net.opentsdb.uid.NoSuchUniqueName if the metric doesn't exist
+   * and isn't auto-created.
+   */
+  byte[] getTemplate(final String metric, final Map<String, String> tags) {
+    if (cache != null) {
+      final byte[] cached = cache.getIfPresent(new SeriesKey(metric, tags));
+      if (cached != null) {
+        return Arrays.copyOf(cached, cached.length);
+      }
+    }
+    IncomingDataPoints.checkMetricAndTags(metric, tags);
+    final byte[] row = IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
+    cacheTemplate(metric, tags, row);
+    return row;
+  }
+
+  /**
+   * Returns a partially initialized row key for this metric and these tags
+   * without blocking.  On a cache miss, the metric and tags are validated
+   * synchronously and their UIDs are then resolved (and created if need be)
+   * asynchronously.
+   * @param metric A non-empty string.
+   * @param tags The tags on this series.
+   * @return A deferred row key template owned by the caller.
+   * @throws IllegalArgumentException if the metric or tags aren't valid.
+   * @since 2.1
+   */
+  Deferred<byte[]> getTemplateAsync(final String metric,
+                                    final Map<String, String> tags) {
+    if (cache != null) {
+      final byte[] cached = cache.getIfPresent(new SeriesKey(metric, tags));
+      if (cached != null) {
+        return Deferred.fromResult(Arrays.copyOf(cached, cached.length));
+      }
+    }
+    IncomingDataPoints.checkMetricAndTags(metric, tags);
+    // Copy the tags now as the caller may reuse its map before the UIDs are
+    // resolved.
+    final Map<String, String> tags_copy = new HashMap<String, String>(tags);
+
+    final class CacheTemplateCB implements Callback<byte[], byte[]> {
+      public byte[] call(final byte[] row) {
+        cacheTemplate(metric, tags_copy, row);
+        return row;
+      }
+      public String toString() {
+        return "cache row key template";
+      }
+    }
+
+    return IncomingDataPoints.rowKeyTemplateAsync(tsdb, metric, tags_copy)
+      .addCallback(new CacheTemplateCB());
+  }
+
+  /**
+   * Stores a copy of the template in the cache, if enabled.  The tags are
+   * copied as the caller may reuse its map.
+   * @param metric The metric name.
+   * @param tags The tags on this series.
+   * @param row The resolved row key template.
+   */
+  private void cacheTemplate(final String metric,
+      final Map<String, String> tags, final byte[] row) {
+    if (cache != null) {
+      cache.put(new SeriesKey(metric, new HashMap<String, String>(tags)),
+          Arrays.copyOf(row, row.length));
+    }
+  }
+
+  /** Discards all the cached templates. */
+  void dropCaches() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    if (cache == null) {
+      return;
+    }
+    final CacheStats stats = cache.stats();
+    collector.record("rowkey.cache-hit", stats.hitCount());
+    collector.record("rowkey.cache-miss", stats.missCount());
+    collector.record("rowkey.cache-evictions", stats.evictionCount());
+    collector.record("rowkey.cache-size", cache.size());
+  }
+
+  /**
+   * Key of a series in the cache: the metric name and its tags.
+   * The order in which tags were added to the map doesn't matter.
+   */
+  private static final class SeriesKey {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final int hash;
+
+    SeriesKey(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+      hash = metric.hashCode() * 31 + tags.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof SeriesKey)) {
+        return false;
+      }
+      final SeriesKey key = (SeriesKey) other;
+      return hash == key.hash && metric.equals(key.metric)
+          && tags.equals(key.tags);
+    }
+  }
+}
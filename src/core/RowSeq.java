@@ -56,6 +56,13 @@ final class RowSeq implements DataPoints {
   /** Values in the row.  */
   private byte[] values;
 
+  /**
+   * The data points of the row already decoded, when read from the query
+   * cache or when queries decode rows (see {@code tsd.query.decode_rows}).
+   * When set, {@link #qualifiers} and {@link #values} are null.
+   */
+  private DecodedRow decoded;
+
   /**
    * Constructor.
    * @param tsdb The TSDB we belong to.
@@ -69,16 +76,34 @@ final class RowSeq implements DataPoints {
    * @param row The compacted HBase row to set.
    * @throws IllegalStateException if this method was already called.
    */
-  void setRow(final KeyValue row) {
+  void setRow(KeyValue row) {
     if (this.key != null) {
       throw new IllegalStateException("setRow was already called on " + this);
     }
+    if (CompressedCell.isCompressed(row.qualifier())) {
+      row = CompressedCell.decode(row);
+    }
 
     this.key = row.key();
     this.qualifiers = row.qualifier();
     this.values = row.value();
   }
 
+  /**
+   * Sets the row this instance holds in RAM using a row already decoded.
+   * @param key The row key.
+   * @param row The decoded data points of the row, not copied.
+   * @throws IllegalStateException if a row was already set.
+   * @since 2.1
+   */
+  void setRow(final byte[] key, final DecodedRow row) {
+    if (this.key != null) {
+      throw new IllegalStateException("setRow was already called on " + this);
+    }
+    this.key = key;
+    this.decoded = row;
+  }
+
   /**
    * Merges data points for the same HBase row into the local object.
    * When executing multiple async queries simultaneously, they may call into 
@@ -89,16 +114,23 @@ final class RowSeq implements DataPoints {
    * @throws IllegalArgumentException if the data points in the argument
    * do not belong to the same row as this RowSeq
    */
-  void addRow(final KeyValue row) {
+  void addRow(KeyValue row) {
     if (this.key == null) {
       throw new IllegalStateException("setRow was never called on " + this);
     }
+    if (CompressedCell.isCompressed(row.qualifier())) {
+      row = CompressedCell.decode(row);
+    }
 
     final byte[] key = row.key();
     if (!Bytes.equals(this.key, key)) {
       throw new IllegalDataException("Attempt to add a different row="
           + row + ", this=" + this);
     }
+    if (decoded != null) {
+      decoded = decoded.merge(DecodedRow.decode(row, baseTime()));
+      return;
+    }
 
     final byte[] remote_qual = row.qualifier();
     final byte[] remote_val = row.value();
@@ -221,6 +253,25 @@ final class RowSeq implements DataPoints {
     values[values.length - 1] = meta;
   }
 
+  /**
+   * Merges data points already decoded for the same HBase row into the local
+   * object.  Data points with a timestamp we already have are ignored.
+   * @param row The decoded data points to merge.
+   * @throws IllegalStateException if {@link #setRow} wasn't called first.
+   * @since 2.1
+   */
+  void addRow(final DecodedRow row) {
+    if (this.key == null) {
+      throw new IllegalStateException("setRow was never called on " + this);
+    }
+    if (decoded == null) {
+      decoded = DecodedRow.decode(qualifiers, values, baseTime());
+      qualifiers = null;
+      values = null;
+    }
+    decoded = decoded.merge(row);
+  }
+
   /**
    * Extracts the value of a cell containing a data point.
    * @param value The contents of a cell in HBase.
@@ -320,6 +371,9 @@ final class RowSeq implements DataPoints {
    * Unfortunately we must walk the entire array as there may be a mix of
    * second and millisecond timestamps */
   public int size() {
+    if (decoded != null) {
+      return decoded.size();
+    }
     // if we don't have a mix of second and millisecond qualifiers we can run
     // this in O(1), otherwise we have to run O(n)
     if ((values[values.length - 1] & Const.MS_MIXED_COMPACT) == 
@@ -356,7 +410,7 @@ final class RowSeq implements DataPoints {
 
   /** Extracts the base timestamp from the row key. */
   long baseTime() {
-    return Bytes.getUnsignedInt(key, tsdb.metrics.width());
+    return Bytes.getUnsignedInt(key, Const.salt_width() + tsdb.metrics.width());
   }
 
   /** @throws IndexOutOfBoundsException if {@code i} is out of bounds. */
@@ -373,6 +427,9 @@ final class RowSeq implements DataPoints {
 
   public long timestamp(final int i) {
     checkIndex(i);
+    if (decoded != null) {
+      return decoded.timestamp(i);
+    }
     // if we don't have a mix of second and millisecond qualifiers we can run
     // this in O(1), otherwise we have to run O(n)
     // Important: Span.addRow assumes this method to work in O(1).
@@ -400,6 +457,9 @@ final class RowSeq implements DataPoints {
 
   public boolean isInteger(final int i) {
     checkIndex(i);
+    if (decoded != null) {
+      return decoded.isInteger(i);
+    }
     return (Internal.getFlagsFromQualifier(qualifiers, i) & 
         Const.FLAG_FLOAT) == 0x0;
   }
@@ -408,6 +468,9 @@ final class RowSeq implements DataPoints {
     if (!isInteger(i)) {
       throw new ClassCastException("value #" + i + " is not a long in " + this);
     }
+    if (decoded != null) {
+      return decoded.longValue(i);
+    }
     final Iterator it = new Iterator();
     while (i-- >= 0) {
       it.next();
@@ -419,6 +482,9 @@ final class RowSeq implements DataPoints {
     if (isInteger(i)) {
       throw new ClassCastException("value #" + i + " is not a float in " + this);
     }
+    if (decoded != null) {
+      return decoded.doubleValue(i);
+    }
     final Iterator it = new Iterator();
     while (i-- >= 0) {
       it.next();
@@ -508,7 +574,10 @@ final class RowSeq implements DataPoints {
     /** Current qualifier.  */
     private int qualifier;
 
-    /** Next index in {@link #qualifiers}.  */
+    /**
+     * Next index in {@link #qualifiers}, or index of the next data point when
+     * the row is decoded.
+     */
     private int qual_index;
 
     /** Next index in {@link #values}.  */
@@ -525,6 +594,9 @@ final class RowSeq implements DataPoints {
     // ------------------ //
 
     public boolean hasNext() {
+      if (decoded != null) {
+        return qual_index < decoded.size();
+      }
       return qual_index < qualifiers.length;
     }
 
@@ -532,6 +604,11 @@ final class RowSeq implements DataPoints {
       if (!hasNext()) {
         throw new NoSuchElementException("no more elements");
       }
+      if (decoded != null) {
+        // The index of the next data point, the current one is right before.
+        qual_index++;
+        return this;
+      }
       
       if (Internal.inMilliseconds(qualifiers[qual_index])) {
         qualifier = Bytes.getInt(qualifiers, qual_index);
@@ -560,6 +637,10 @@ final class RowSeq implements DataPoints {
       }
       qual_index = 0;
       value_index = 0;
+      if (decoded != null) {
+        qual_index = decoded.search(timestamp);
+        return;
+      }
       final int len = qualifiers.length;
       //LOG.debug("Peeking timestamp: " + (peekNextTimestamp() < timestamp));
       while (qual_index < len && peekNextTimestamp() < timestamp) {
@@ -583,6 +664,9 @@ final class RowSeq implements DataPoints {
 
     public long timestamp() {
       assert qual_index > 0: "not initialized: " + this;
+      if (decoded != null) {
+        return decoded.timestamp(qual_index - 1);
+      }
       if ((qualifier & Const.MS_FLAG) == Const.MS_FLAG) {
         final long ms = (qualifier & 0x0FFFFFC0) >>> (Const.MS_FLAG_BITS);
         return (base_time * 1000) + ms;            
@@ -594,6 +678,9 @@ final class RowSeq implements DataPoints {
 
     public boolean isInteger() {
       assert qual_index > 0: "not initialized: " + this;
+      if (decoded != null) {
+        return decoded.isInteger(qual_index - 1);
+      }
       return (qualifier & Const.FLAG_FLOAT) == 0x0;
     }
 
@@ -602,6 +689,9 @@ final class RowSeq implements DataPoints {
         throw new ClassCastException("value @"
           + qual_index + " is not a long in " + this);
       }
+      if (decoded != null) {
+        return decoded.longValue(qual_index - 1);
+      }
       final byte flags = (byte) qualifier;
       final byte vlen = (byte) ((flags & Const.LENGTH_MASK) + 1);
       return extractIntegerValue(values, value_index - vlen, flags);
@@ -612,6 +702,9 @@ final class RowSeq implements DataPoints {
         throw new ClassCastException("value @"
           + qual_index + " is not a float in " + this);
       }
+      if (decoded != null) {
+        return decoded.doubleValue(qual_index - 1);
+      }
       final byte flags = (byte) qualifier;
       final byte vlen = (byte) ((flags & Const.LENGTH_MASK) + 1);
       return extractFloatingPointValue(values, value_index - vlen, flags);
@@ -643,6 +736,9 @@ final class RowSeq implements DataPoints {
      * @throws IndexOutOfBoundsException if we reached the end already.
      */
     long peekNextTimestamp() {
+      if (decoded != null) {
+        return decoded.timestamp(qual_index);
+      }
       return Internal.getTimestampFromQualifier(qualifiers, base_time, qual_index);
     }
 
@@ -49,6 +49,13 @@ final class Span implements DataPoints {
    * first call to an iterator method
    */
   private boolean sorted;
+
+  /**
+   * Index of the first data point of each row once sorted, plus the total
+   * number of data points.  Computed on the first indexed access, null
+   * until then.
+   */
+  private int[] offsets;
   
   /**
    * Default constructor.
@@ -155,31 +162,7 @@ final class Span implements DataPoints {
    * two different time series.
    */
   void addRow(final KeyValue row) {
-    long last_ts = 0;
-    if (rows.size() != 0) {
-      // Verify that we have the same metric id and tags.
-      final byte[] key = row.key();
-      final RowSeq last = rows.get(rows.size() - 1);
-      final short metric_width = tsdb.metrics.width();
-      final short tags_offset = (short) (metric_width + Const.TIMESTAMP_BYTES);
-      final short tags_bytes = (short) (key.length - tags_offset);
-      String error = null;
-      if (key.length != last.key.length) {
-        error = "row key length mismatch";
-      } else if (Bytes.memcmp(key, last.key, 0, metric_width) != 0) {
-        error = "metric ID mismatch";
-      } else if (Bytes.memcmp(key, last.key, tags_offset, tags_bytes) != 0) {
-        error = "tags mismatch";
-      }
-      if (error != null) {
-        throw new IllegalArgumentException(error + ". "
-            + "This Span's last row key is " + Arrays.toString(last.key)
-            + " whereas the row key being added is " + Arrays.toString(key)
-            + " and metric_width=" + metric_width);
-      }
-      last_ts = last.timestamp(last.size() - 1);  // O(n)
-    }
-
+    final long last_ts = checkRowKey(row.key());
     final RowSeq rowseq = new RowSeq(tsdb);
     rowseq.setRow(row);
     sorted = false;
@@ -196,6 +179,79 @@ final class Span implements DataPoints {
     rows.add(rowseq);
   }
 
+  /**
+   * Adds a row already decoded to the span, merging with an existing RowSeq
+   * or creating a new one if necessary.
+   * @param key The row key.
+   * @param row The decoded data points of the row, must not be empty.
+   * @throws IllegalArgumentException if the row and this span are for
+   * two different time series.
+   * @since 2.1
+   */
+  void addRow(final byte[] key, final DecodedRow row) {
+    final long last_ts = checkRowKey(key);
+    sorted = false;
+    if (last_ts >= row.timestamp(0)) {
+      // scan to see if we need to merge into an existing row
+      for (final RowSeq rs : rows) {
+        if (Bytes.memcmp(rs.key, key) == 0) {
+          rs.addRow(row);
+          return;
+        }
+      }
+    }
+    final RowSeq rowseq = new RowSeq(tsdb);
+    rowseq.setRow(key, row);
+    rows.add(rowseq);
+  }
+
+  /**
+   * Verifies that a row key is for the same time series as the rows of this
+   * span.
+   * @param key The row key of a row to add.
+   * @return The timestamp of the last data point of this span, 0 if empty.
+   * @throws IllegalArgumentException if the row key is for another series.
+   */
+  private long checkRowKey(final byte[] key) {
+    if (rows.size() == 0) {
+      return 0;
+    }
+    // Verify that we have the same metric id and tags.
+    final RowSeq last = rows.get(rows.size() - 1);
+    final short metric_width = tsdb.metrics.width();
+    final short metric_end = (short) (Const.salt_width() + metric_width);
+    final short tags_offset = (short) (metric_end + Const.TIMESTAMP_BYTES);
+    final short tags_bytes = (short) (key.length - tags_offset);
+    String error = null;
+    if (key.length != last.key.length) {
+      error = "row key length mismatch";
+    } else if (Bytes.memcmp(key, last.key, 0, metric_end) != 0) {
+      error = "metric ID mismatch";
+    } else if (Bytes.memcmp(key, last.key, tags_offset, tags_bytes) != 0) {
+      error = "tags mismatch";
+    }
+    if (error != null) {
+      throw new IllegalArgumentException(error + ". "
+          + "This Span's last row key is " + Arrays.toString(last.key)
+          + " whereas the row key being added is " + Arrays.toString(key)
+          + " and metric_width=" + metric_width);
+    }
+    return last.timestamp(last.size() - 1);  // O(n)
+  }
+
+  /**
+   * Moves the rows and annotations of another span of the same time series
+   * into this one.  Used to merge the spans found by scanners reading
+   * different time ranges, so the rows of both spans must not overlap.
+   * @param other The span to merge, it must not be used afterwards.
+   * @since 2.1
+   */
+  void addSpan(final Span other) {
+    rows.addAll(other.rows);
+    annotations.addAll(other.annotations);
+    sorted = false;
+  }
+
   /**
    * Package private helper to access the last timestamp in an HBase row.
    * @param metric_width The number of bytes on which metric IDs are stored.
@@ -205,7 +261,8 @@ final class Span implements DataPoints {
    */
   static long lastTimestampInRow(final short metric_width,
                                  final KeyValue row) {
-    final long base_time = Bytes.getUnsignedInt(row.key(), metric_width);
+    final long base_time =
+      Bytes.getUnsignedInt(row.key(), Const.salt_width() + metric_width);
     final byte[] qual = row.qualifier();
     if (qual.length >= 4 && Internal.inMilliseconds(qual[qual.length - 4])) {
       return (base_time * 1000) + ((Bytes.getUnsignedInt(qual, qual.length - 4) & 
@@ -230,17 +287,24 @@ final class Span implements DataPoints {
    */
   private long getIdxOffsetFor(final int i) {
     checkRowOrder();
-    int idx = 0;
-    int offset = 0;
-    for (final RowSeq row : rows) {
-      final int sz = row.size();
-      if (offset + sz > i) {
-        break;
+    if (offsets == null) {
+      offsets = new int[rows.size() + 1];
+      for (int idx = 0; idx < rows.size(); idx++) {
+        offsets[idx + 1] = offsets[idx] + rows.get(idx).size();
+      }
+    }
+    // Binary search of the last row starting at or before i.
+    int low = 0;
+    int high = rows.size();
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (offsets[mid] <= i) {
+        low = mid;
+      } else {
+        high = mid - 1;
       }
-      offset += sz;
-      idx++;
     }
-    return ((long) idx << 32) | (i - offset);
+    return ((long) low << 32) | (i - offsets[low]);
   }
 
   /**
@@ -362,15 +426,13 @@ final class Span implements DataPoints {
     if (!sorted) {
       Collections.sort(rows, new RowSeq.RowSeqComparator());
       sorted = true;
+      offsets = null;  // Rows were added, merged or moved.
     }
   }
   
   /** Package private iterator method to access it as a Span.Iterator. */
   Span.Iterator spanIterator() {
-    if (!sorted) {
-      Collections.sort(rows, new RowSeq.RowSeqComparator());
-      sorted = true;
-    }
+    checkRowOrder();
     return new Span.Iterator();
   }
 
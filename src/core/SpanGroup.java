@@ -427,6 +427,9 @@ final class SpanGroup implements DataPoints {
    * iterator on each Span, and {@code 4*k} {@code long}s in memory, where
    * {@code k} is the number of Spans in the group.  When computing a rate,
    * we need an extra {@code 2*k} {@code long}s in memory (see below).
+   * When the aggregator is an {@link Aggregators.Batch}, the values of all
+   * the Spans at the current timestamp are gathered in an extra {@code k}
+   * {@code long}s or {@code double}s and aggregated in a single call.
    * <p>
    * In order to do linear interpolation, we need to know two data points:
    * the current one and the next one.  So for each Span in the group, we need
@@ -592,6 +595,22 @@ final class SpanGroup implements DataPoints {
     /** The index in {@link #values} of the current value being aggregated. */
     private int pos;
 
+    /**
+     * The aggregator as a batch aggregator, null if it isn't one, in which
+     * case values are aggregated one at a time through {@link #aggregator}.
+     */
+    private final Aggregators.Batch batch;
+
+    /**
+     * The values of all the Spans at the timestamp of the current data point,
+     * gathered to be aggregated by {@link #batch}.  Allocated once for the
+     * whole iteration.
+     */
+    private final long[] long_values;
+
+    /** Same as {@link #long_values} for floating point values.  */
+    private final double[] double_values;
+
     /** Creates a new iterator for this {@link SpanGroup}. */
     public SGIterator(final Interpolation method) {
       this.method = method;
@@ -599,6 +618,15 @@ final class SpanGroup implements DataPoints {
       iterators = new SeekableView[size];
       timestamps = new long[size * (rate ? 3 : 2)];
       values = new long[size * (rate ? 3 : 2)];
+      if (aggregator instanceof Aggregators.Batch) {
+        batch = (Aggregators.Batch) aggregator;
+        long_values = new long[size];
+        double_values = new double[size];
+      } else {
+        batch = null;
+        long_values = null;
+        double_values = null;
+      }
       // Initialize every Iterator, fetch their first values that fall
       // within our time range.
       for (int i = 0; i < size; i++) {
@@ -809,7 +837,17 @@ final class SpanGroup implements DataPoints {
     public long longValue() {
       if (isInteger()) {
         pos = -1;
-        return aggregator.runLong(this);
+        if (batch == null) {
+          return aggregator.runLong(this);
+        }
+        int count = 0;
+        while (hasNextValue(true)) {
+          long_values[count++] = interpolateLong();
+        }
+        if (count == 0) {
+          throw new NoSuchElementException("no more longs in " + this);
+        }
+        return batch.runLongs(long_values, count);
       }
       throw new ClassCastException("current value is a double: " + this);
     }
@@ -817,7 +855,19 @@ final class SpanGroup implements DataPoints {
     public double doubleValue() {
       if (!isInteger()) {
         pos = -1;
-        final double value = aggregator.runDouble(this);
+        final double value;
+        if (batch == null) {
+          value = aggregator.runDouble(this);
+        } else {
+          int count = 0;
+          while (hasNextValue(true)) {
+            double_values[count++] = interpolateDouble();
+          }
+          if (count == 0) {
+            throw new NoSuchElementException("no more doubles in " + this);
+          }
+          value = batch.runDoubles(double_values, count);
+        }
         //LOG.debug("aggregator returned " + value);
         if (value != value || Double.isInfinite(value)) {
           throw new IllegalStateException("Got NaN or Infinity: "
@@ -863,152 +913,38 @@ final class SpanGroup implements DataPoints {
 
     public long nextLongValue() {
       if (hasNextValue(true)) {
-        final long y0 = values[pos];
-        if (rate) {
-          throw new AssertionError("Should not be here, impossible! " + this);
-        }
-        if (current == pos) {
-          return y0;
-        }
-        final long x = timestamps[current] & TIME_MASK;
-        final long x0 = timestamps[pos] & TIME_MASK;
-        if (x == x0) {
-          return y0;
-        }
-        final long y1 = values[pos + iterators.length];
-        final long x1 = timestamps[pos + iterators.length] & TIME_MASK;
-        if (x == x1) {
-          return y1;
-        }
-        if ((x1 & Const.MILLISECOND_MASK) != 0) {
-          throw new AssertionError("x1=" + x1 + " in " + this);
-        }
-        final long r;
-        switch (method) {
-          case LERP: 
-            r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
-            //LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
-            //          + " -> " + y1 + " @ " + x1 + " => " + r);
-            break;
-          case ZIM:
-            r = 0;
-            break;
-          case MAX:
-            r = Long.MAX_VALUE;
-            break;
-          case MIN:
-            r = Long.MIN_VALUE;
-            break;
-          default:
-            throw new IllegalDataException("Invalid interploation somehow??");
-        }
-        return r;
+        return interpolateLong();
       }
       throw new NoSuchElementException("no more longs in " + this);
     }
 
-    // ---------------------------- //
-    // Aggregator.Doubles interface //
-    // ---------------------------- //
-
-    public double nextDoubleValue() {
-      if (hasNextValue(true)) {
-        final double y0 = ((timestamps[pos] & FLAG_FLOAT) == FLAG_FLOAT
-                           ? Double.longBitsToDouble(values[pos])
-                           : values[pos]);
-        if (rate) {
-          final long x0 = timestamps[pos] & TIME_MASK;
-          final int prev = pos + iterators.length * 2;
-          final double y1 = ((timestamps[prev] & FLAG_FLOAT) == FLAG_FLOAT
-                             ? Double.longBitsToDouble(values[prev])
-                             : values[prev]);
-          final long x1 = timestamps[prev] & TIME_MASK;
-          assert x0 > x1: ("Next timestamp (" + x0 + ") is supposed to be "
-            + " strictly greater than the previous one (" + x1 + "), but it's"
-            + " not.  this=" + this);
-          
-          // we need to account for LONGs that are being converted to a double
-          // to do so, we can see if it's greater than the most precise integer
-          // a double can store. Then we calc the diff on the Longs before
-          // casting to a double. 
-          // TODO(cl) If the diff between data points is > 2^53 we're still in 
-          // trouble though that's less likely than giant integer counters.
-          final boolean double_overflow = 
-              (timestamps[pos] & FLAG_FLOAT) != FLAG_FLOAT && 
-              (timestamps[prev] & FLAG_FLOAT) != FLAG_FLOAT &&
-              ((values[prev] & Const.MAX_INT_IN_DOUBLE) != 0 || 
-                  (values[pos] & Const.MAX_INT_IN_DOUBLE) != 0);
-          //LOG.debug("Double overflow detected");
-          
-          final double difference;
-          if (double_overflow) {
-            final long diff = values[pos] - values[prev];
-            difference = (double)(diff);
-          } else {
-            difference = y0 - y1;
-          }
-          //LOG.debug("Difference is: " + difference);
-          
-          // If we have a counter rate of change calculation, y0 and y1
-          // have values such that the rate would be < 0 then calculate the
-          // new rate value assuming a roll over
-          if (rate_options.isCounter() && difference < 0) {
-            final double r;
-            if (double_overflow) {
-              long diff = rate_options.getCounterMax() - values[prev];
-              diff += values[pos];
-              // TODO - for backwards compatibility we'll convert the ms to seconds
-              // but in the future we should add a ratems flag that will calculate
-              // the rate as is.
-              r = (double)diff / ((double)(x0 - x1) / (double)1000);
-            } else {
-              // TODO - for backwards compatibility we'll convert the ms to seconds
-              // but in the future we should add a ratems flag that will calculate
-              // the rate as is.
-              r = (rate_options.getCounterMax() - y1 + y0) / 
-                                        ((double)(x0 - x1) / (double)1000);
-            }
-            if (rate_options.getResetValue() > RateOptions.DEFAULT_RESET_VALUE
-                && r > rate_options.getResetValue()) {
-              return 0.0;
-            }
-            //LOG.debug("Rolled Rate for " + y1 + " @ " + x1
-            // + " -> " + y0 + " @ " + x0 + " => " + r);
-            return r;
-          }
-          
-          // TODO - for backwards compatibility we'll convert the ms to seconds
-          // but in the future we should add a ratems flag that will calculate
-          // the rate as is.
-          final double r = difference / ((double)(x0 - x1) / (double)1000);
-          //LOG.debug("Rate for " + y1 + " @ " + x1
-          //          + " -> " + y0 + " @ " + x0 + " => " + r);
-          return r;
-        }
-        if (current == pos) {
-          //LOG.debug("Exact match, no lerp needed");
-          return y0;
-        }
-        final long x = timestamps[current] & TIME_MASK;
-        final long x0 = timestamps[pos] & TIME_MASK;
-        if (x == x0) {
-          //LOG.debug("No lerp needed x == x0 (" + x + " == "+x0+") => " + y0);
-          return y0;
-        }
-        final int next = pos + iterators.length;
-        final double y1 = ((timestamps[next] & FLAG_FLOAT) == FLAG_FLOAT
-                           ? Double.longBitsToDouble(values[next])
-                           : values[next]);
-        final long x1 = timestamps[next] & TIME_MASK;
-        if (x == x1) {
-          //LOG.debug("No lerp needed x == x1 (" + x + " == "+x1+") => " + y1);
-          return y1;
-        }
-        if ((x1 & Const.MILLISECOND_MASK) != 0) {
-          throw new AssertionError("x1=" + x1 + " in " + this);
-        }
-        final double r;
-        switch (method) {
+    /**
+     * Returns the value of the series at {@link #pos}, interpolated at the
+     * timestamp of the current data point if needed.
+     */
+    private long interpolateLong() {
+      final long y0 = values[pos];
+      if (rate) {
+        throw new AssertionError("Should not be here, impossible! " + this);
+      }
+      if (current == pos) {
+        return y0;
+      }
+      final long x = timestamps[current] & TIME_MASK;
+      final long x0 = timestamps[pos] & TIME_MASK;
+      if (x == x0) {
+        return y0;
+      }
+      final long y1 = values[pos + iterators.length];
+      final long x1 = timestamps[pos + iterators.length] & TIME_MASK;
+      if (x == x1) {
+        return y1;
+      }
+      if ((x1 & Const.MILLISECOND_MASK) != 0) {
+        throw new AssertionError("x1=" + x1 + " in " + this);
+      }
+      final long r;
+      switch (method) {
         case LERP: 
           r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
           //LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
@@ -1018,19 +954,150 @@ final class SpanGroup implements DataPoints {
           r = 0;
           break;
         case MAX:
-          r = Double.MAX_VALUE;
+          r = Long.MAX_VALUE;
           break;
         case MIN:
-          r = Double.MIN_VALUE;
+          r = Long.MIN_VALUE;
           break;
         default:
           throw new IllegalDataException("Invalid interploation somehow??");
       }
-        return r;
+      return r;
+    }
+
+    // ---------------------------- //
+    // Aggregator.Doubles interface //
+    // ---------------------------- //
+
+    public double nextDoubleValue() {
+      if (hasNextValue(true)) {
+        return interpolateDouble();
       }
       throw new NoSuchElementException("no more doubles in " + this);
     }
 
+    /**
+     * Returns the value of the series at {@link #pos}, interpolated at the
+     * timestamp of the current data point if needed, or its rate of change
+     * when computing a rate.
+     */
+    private double interpolateDouble() {
+      final double y0 = ((timestamps[pos] & FLAG_FLOAT) == FLAG_FLOAT
+                         ? Double.longBitsToDouble(values[pos])
+                         : values[pos]);
+      if (rate) {
+        final long x0 = timestamps[pos] & TIME_MASK;
+        final int prev = pos + iterators.length * 2;
+        final double y1 = ((timestamps[prev] & FLAG_FLOAT) == FLAG_FLOAT
+                           ? Double.longBitsToDouble(values[prev])
+                           : values[prev]);
+        final long x1 = timestamps[prev] & TIME_MASK;
+        assert x0 > x1: ("Next timestamp (" + x0 + ") is supposed to be "
+          + " strictly greater than the previous one (" + x1 + "), but it's"
+          + " not.  this=" + this);
+        
+        // we need to account for LONGs that are being converted to a double
+        // to do so, we can see if it's greater than the most precise integer
+        // a double can store. Then we calc the diff on the Longs before
+        // casting to a double. 
+        // TODO(cl) If the diff between data points is > 2^53 we're still in 
+        // trouble though that's less likely than giant integer counters.
+        final boolean double_overflow = 
+            (timestamps[pos] & FLAG_FLOAT) != FLAG_FLOAT && 
+            (timestamps[prev] & FLAG_FLOAT) != FLAG_FLOAT &&
+            ((values[prev] & Const.MAX_INT_IN_DOUBLE) != 0 || 
+                (values[pos] & Const.MAX_INT_IN_DOUBLE) != 0);
+        //LOG.debug("Double overflow detected");
+        
+        final double difference;
+        if (double_overflow) {
+          final long diff = values[pos] - values[prev];
+          difference = (double)(diff);
+        } else {
+          difference = y0 - y1;
+        }
+        //LOG.debug("Difference is: " + difference);
+        
+        // If we have a counter rate of change calculation, y0 and y1
+        // have values such that the rate would be < 0 then calculate the
+        // new rate value assuming a roll over
+        if (rate_options.isCounter() && difference < 0) {
+          final double r;
+          if (double_overflow) {
+            long diff = rate_options.getCounterMax() - values[prev];
+            diff += values[pos];
+            // TODO - for backwards compatibility we'll convert the ms to seconds
+            // but in the future we should add a ratems flag that will calculate
+            // the rate as is.
+            r = (double)diff / ((double)(x0 - x1) / (double)1000);
+          } else {
+            // TODO - for backwards compatibility we'll convert the ms to seconds
+            // but in the future we should add a ratems flag that will calculate
+            // the rate as is.
+            r = (rate_options.getCounterMax() - y1 + y0) / 
+                                      ((double)(x0 - x1) / (double)1000);
+          }
+          if (rate_options.getResetValue() > RateOptions.DEFAULT_RESET_VALUE
+              && r > rate_options.getResetValue()) {
+            return 0.0;
+          }
+          //LOG.debug("Rolled Rate for " + y1 + " @ " + x1
+          // + " -> " + y0 + " @ " + x0 + " => " + r);
+          return r;
+        }
+        
+        // TODO - for backwards compatibility we'll convert the ms to seconds
+        // but in the future we should add a ratems flag that will calculate
+        // the rate as is.
+        final double r = difference / ((double)(x0 - x1) / (double)1000);
+        //LOG.debug("Rate for " + y1 + " @ " + x1
+        //          + " -> " + y0 + " @ " + x0 + " => " + r);
+        return r;
+      }
+      if (current == pos) {
+        //LOG.debug("Exact match, no lerp needed");
+        return y0;
+      }
+      final long x = timestamps[current] & TIME_MASK;
+      final long x0 = timestamps[pos] & TIME_MASK;
+      if (x == x0) {
+        //LOG.debug("No lerp needed x == x0 (" + x + " == "+x0+") => " + y0);
+        return y0;
+      }
+      final int next = pos + iterators.length;
+      final double y1 = ((timestamps[next] & FLAG_FLOAT) == FLAG_FLOAT
+                         ? Double.longBitsToDouble(values[next])
+                         : values[next]);
+      final long x1 = timestamps[next] & TIME_MASK;
+      if (x == x1) {
+        //LOG.debug("No lerp needed x == x1 (" + x + " == "+x1+") => " + y1);
+        return y1;
+      }
+      if ((x1 & Const.MILLISECOND_MASK) != 0) {
+        throw new AssertionError("x1=" + x1 + " in " + this);
+      }
+      final double r;
+      switch (method) {
+      case LERP: 
+        r = y0 + (x - x0) * (y1 - y0) / (x1 - x0);
+        //LOG.debug("Lerping to time " + x + ": " + y0 + " @ " + x0
+        //          + " -> " + y1 + " @ " + x1 + " => " + r);
+        break;
+      case ZIM:
+        r = 0;
+        break;
+      case MAX:
+        r = Double.MAX_VALUE;
+        break;
+      case MIN:
+        r = Double.MIN_VALUE;
+        break;
+      default:
+        throw new IllegalDataException("Invalid interploation somehow??");
+      }
+      return r;
+    }
+
     public String toString() {
       return "SpanGroup.Iterator(timestamps=" + Arrays.toString(timestamps)
         + ", values=" + Arrays.toString(values)
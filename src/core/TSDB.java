@@ -36,6 +36,7 @@ import org.hbase.async.PutRequest;
 
 import net.opentsdb.tree.TreeBuilder;
 import net.opentsdb.tsd.RTPublisher;
+import net.opentsdb.tsd.RTPublisherDispatcher;
 import net.opentsdb.tsd.RpcPlugin;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
@@ -93,6 +94,9 @@ public final class TSDB {
   /** Configuration object for all TSDB components */
   final Config config;
 
+  /** Rollup tiers, null unless configured. */
+  final Rollups rollups;
+
   /**
    * Row keys that need to be compacted.
    * Whenever we write a new data point to a row, we add the row key to this
@@ -101,12 +105,33 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /** Row key templates of the series recently written to. */
+  private final RowKeyCache row_key_cache;
+
+  /** Rows recently read by queries, null unless enabled in the config. */
+  final QueryCache query_cache;
+
+  /** Data points of the current hour, null unless enabled in the config. */
+  private final RowBuffer row_buffer;
+
+  /** Absorbs writes while HBase is in trouble, null unless enabled. */
+  private final WriteSpool spool;
+
+  /** Coalesces TSUID counter increments, null unless enabled. */
+  private final TSUIDCounters tsuid_counters;
+
+  /** TSUIDs recently tracked in the meta table, null unless enabled. */
+  private final TSUIDTrackingFilter tracking_filter;
+
   /** Search indexer to use if configure */
   private SearchPlugin search = null;
   
   /** Optional real time pulblisher plugin to use if configured */
   private RTPublisher rt_publisher = null;
   
+  /** Publishes data points off the write path, null unless configured */
+  private RTPublisherDispatcher rt_dispatcher = null;
+  
   /** List of activated RPC plugins */
   private List<RpcPlugin> rpc_plugins = null;
   
@@ -125,11 +150,38 @@ public final class TSDB {
     uidtable = config.getString("tsd.storage.hbase.uid_table").getBytes(CHARSET);
     treetable = config.getString("tsd.storage.hbase.tree_table").getBytes(CHARSET);
     meta_table = config.getString("tsd.storage.hbase.meta_table").getBytes(CHARSET);
+    Const.setSalt(config.getInt("tsd.storage.salt.width"),
+                  config.getInt("tsd.storage.salt.buckets"));
 
     metrics = new UniqueId(client, uidtable, METRICS_QUAL, METRICS_WIDTH);
     tag_names = new UniqueId(client, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH);
     tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH);
+    rollups = config.getString("tsd.rollups.tiers").isEmpty()
+      ? null : new Rollups(this);
     compactionq = new CompactionQueue(this);
+    row_key_cache = new RowKeyCache(this, 
+        config.getInt("tsd.core.row_key_cache.max_size"));
+    final long query_cache_size = config.getLong("tsd.query.cache.max_size");
+    query_cache = query_cache_size > 0
+      ? new QueryCache(query_cache_size,
+          config.getLong("tsd.query.cache.min_age"))
+      : null;
+    row_buffer = config.getBoolean("tsd.storage.row_buffer.enable")
+      ? new RowBuffer(this) : null;
+    spool = config.getBoolean("tsd.storage.spool.enable")
+      ? new WriteSpool(this) : null;
+    final int counter_flush_interval = 
+      config.getInt("tsd.core.meta.counter_flush_interval");
+    tsuid_counters = counter_flush_interval > 0
+      && (config.enable_tsuid_incrementing() || config.enable_realtime_ts())
+      ? new TSUIDCounters(this, counter_flush_interval) : null;
+    final int tracking_max_series = 
+      config.getInt("tsd.core.meta.tracking_filter.max_series");
+    tracking_filter = tracking_max_series > 0 
+      && config.enable_tsuid_tracking() && !config.enable_tsuid_incrementing()
+      ? new TSUIDTrackingFilter(tracking_max_series, 
+          config.getInt("tsd.core.meta.tracking_filter.interval"))
+      : null;
 
     if (config.hasProperty("tsd.core.timezone")) {
       DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
@@ -204,6 +256,9 @@ public final class TSDB {
       LOG.info("Successfully initialized real time publisher plugin [" + 
           rt_publisher.getClass().getCanonicalName() + "] version: " 
           + rt_publisher.version());
+      if (config.getInt("tsd.rtpublisher.dispatcher.queue_size") > 0) {
+        rt_dispatcher = new RTPublisherDispatcher(config, rt_publisher);
+      }
     } else {
       rt_publisher = null;
     }
@@ -327,6 +382,11 @@ public final class TSDB {
       checks.add(client.ensureTableExists(
           config.getString("tsd.storage.hbase.meta_table")));
     }
+    if (rollups != null) {
+      for (final String rollup_table : rollups.tables()) {
+        checks.add(client.ensureTableExists(rollup_table));
+      }
+    }
     return Deferred.group(checks);
   }
   
@@ -387,6 +447,26 @@ public final class TSDB {
       throw new RuntimeException("Shouldn't be here", e);
     }
 
+    row_key_cache.collectStats(collector);
+    if (query_cache != null) {
+      query_cache.collectStats(collector);
+    }
+    if (row_buffer != null) {
+      row_buffer.collectStats(collector);
+    }
+    if (spool != null) {
+      spool.collectStats(collector);
+    }
+    if (tsuid_counters != null) {
+      tsuid_counters.collectStats(collector);
+    }
+    if (tracking_filter != null) {
+      tracking_filter.collectStats(collector);
+    }
+    if (rollups != null) {
+      rollups.collectStats(collector);
+    }
+
     {
       final Runtime runtime = Runtime.getRuntime();
       collector.record("jvm.ramfree", runtime.freeMemory());
@@ -433,6 +513,9 @@ public final class TSDB {
       try {
 	collector.addExtraTag("plugin", "publish");
         rt_publisher.collectStats(collector);
+        if (rt_dispatcher != null) {
+          rt_dispatcher.collectStats(collector);
+        }
       } finally {
 	collector.clearExtraTag("plugin");
       }                        
@@ -535,16 +618,7 @@ public final class TSDB {
                                    final long timestamp,
                                    final long value,
                                    final Map<String, String> tags) {
-    final byte[] v;
-    if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
-      v = new byte[] { (byte) value };
-    } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
-      v = Bytes.fromShort((short) value);
-    } else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
-      v = Bytes.fromInt((int) value);
-    } else {
-      v = Bytes.fromLong(value);
-    }
+    final byte[] v = encodeLong(value);
     final short flags = (short) (v.length - 1);  // Just the length.
     return addPointInternal(metric, timestamp, v, tags, flags);
   }
@@ -622,12 +696,257 @@ public final class TSDB {
                             tags, flags);
   }
 
-  private Deferred<Object> addPointInternal(final String metric,
+  /**
+   * Adds a single integer value data point in the TSDB without ever blocking
+   * on UID resolution.
+   * <p>
+   * Unlike {@link #addPoint(String, long, long, Map)}, if the metric or one
+   * of the tags isn't in the UID cache, the lookup (and assignment, if need
+   * be) of its UID happens asynchronously and the data point is written once
+   * the row key has been resolved.  Only the validation of the arguments is
+   * done synchronously.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the timestamp, the metric name or
+   * the tags are invalid.
+   * @throws NoSuchUniqueName (deferred) if the metric doesn't exist and
+   * metrics aren't automatically created.
+   * @throws HBaseException (deferred) if there was a problem while resolving
+   * UIDs or persisting data.
+   * @since 2.1
+   */
+  public Deferred<Object> addPointAsync(final String metric,
+                                        final long timestamp,
+                                        final long value,
+                                        final Map<String, String> tags) {
+    final byte[] v = encodeLong(value);
+    final short flags = (short) (v.length - 1);  // Just the length.
+    return addPointInternalAsync(metric, timestamp, v, tags, flags);
+  }
+
+  /**
+   * Adds a double precision floating-point value data point in the TSDB
+   * without ever blocking on UID resolution.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the timestamp, the metric name or
+   * the tags are invalid, or if the value is NaN or infinite.
+   * @throws NoSuchUniqueName (deferred) if the metric doesn't exist and
+   * metrics aren't automatically created.
+   * @throws HBaseException (deferred) if there was a problem while resolving
+   * UIDs or persisting data.
+   * @see #addPointAsync(String, long, long, Map)
+   * @since 2.1
+   */
+  public Deferred<Object> addPointAsync(final String metric,
+                                        final long timestamp,
+                                        final double value,
+                                        final Map<String, String> tags) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException("value is NaN or Infinite: " + value
+                                         + " for metric=" + metric
+                                         + " timestamp=" + timestamp);
+    }
+    final short flags = Const.FLAG_FLOAT | 0x7;  // A float stored on 8 bytes.
+    return addPointInternalAsync(metric, timestamp,
+        Bytes.fromLong(Double.doubleToRawLongBits(value)), tags, flags);
+  }
+
+  /**
+   * Adds a single floating-point value data point in the TSDB without ever
+   * blocking on UID resolution.
+   * @param metric A non-empty string.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the timestamp, the metric name or
+   * the tags are invalid, or if the value is NaN or infinite.
+   * @throws NoSuchUniqueName (deferred) if the metric doesn't exist and
+   * metrics aren't automatically created.
+   * @throws HBaseException (deferred) if there was a problem while resolving
+   * UIDs or persisting data.
+   * @see #addPointAsync(String, long, long, Map)
+   * @since 2.1
+   */
+  public Deferred<Object> addPointAsync(final String metric,
+                                        final long timestamp,
+                                        final float value,
+                                        final Map<String, String> tags) {
+    if (Float.isNaN(value) || Float.isInfinite(value)) {
+      throw new IllegalArgumentException("value is NaN or Infinite: " + value
+                                         + " for metric=" + metric
+                                         + " timestamp=" + timestamp);
+    }
+    final short flags = Const.FLAG_FLOAT | 0x3;  // A float stored on 4 bytes.
+    return addPointInternalAsync(metric, timestamp,
+        Bytes.fromInt(Float.floatToRawIntBits(value)), tags, flags);
+  }
+
+  /**
+   * Resolves the row key of a series ahead of time, so that many data points
+   * can then be written to it without looking up its UIDs again.
+   * <p>
+   * The template returned is meant to be passed to one of the
+   * {@code addPointToSeries} methods, along with the same metric and tags.
+   * @param metric A non-empty string.
+   * @param tags The tags on this series.  This map must be non-empty.
+   * @return A deferred row key template with the base time left blank.
+   * @throws IllegalArgumentException if the metric name or the tags are
+   * invalid.
+   * @throws NoSuchUniqueName (deferred) if the metric doesn't exist and
+   * metrics aren't automatically created.
+   * @since 2.1
+   */
+  public Deferred<byte[]> resolveSeriesAsync(final String metric,
+                                             final Map<String, String> tags) {
+    return row_key_cache.getTemplateAsync(metric, tags);
+  }
+
+  /**
+   * Adds a single integer value data point to a series whose row key was
+   * resolved with {@link #resolveSeriesAsync}.
+   * @param row_template The row key template of the series.  It isn't
+   * modified, so it can be reused for other data points.
+   * @param metric The metric of the series.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags of the series.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the timestamp is invalid.
+   * @throws HBaseException (deferred) if there was a problem while persisting
+   * data.
+   * @since 2.1
+   */
+  public Deferred<Object> addPointToSeries(final byte[] row_template,
+                                           final String metric,
+                                           final long timestamp,
+                                           final long value,
+                                           final Map<String, String> tags) {
+    final byte[] v = encodeLong(value);
+    final short flags = (short) (v.length - 1);  // Just the length.
+    return addPointToSeries(row_template, metric, timestamp, v, tags, flags);
+  }
+
+  /**
+   * Adds a double precision floating-point value data point to a series
+   * whose row key was resolved with {@link #resolveSeriesAsync}.
+   * @param row_template The row key template of the series.
+   * @param metric The metric of the series.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags of the series.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the timestamp is invalid, or if the
+   * value is NaN or infinite.
+   * @throws HBaseException (deferred) if there was a problem while persisting
+   * data.
+   * @see #addPointToSeries(byte[], String, long, long, Map)
+   * @since 2.1
+   */
+  public Deferred<Object> addPointToSeries(final byte[] row_template,
+                                           final String metric,
+                                           final long timestamp,
+                                           final double value,
+                                           final Map<String, String> tags) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      throw new IllegalArgumentException("value is NaN or Infinite: " + value
+                                         + " for metric=" + metric
+                                         + " timestamp=" + timestamp);
+    }
+    final short flags = Const.FLAG_FLOAT | 0x7;  // A float stored on 8 bytes.
+    return addPointToSeries(row_template, metric, timestamp,
+        Bytes.fromLong(Double.doubleToRawLongBits(value)), tags, flags);
+  }
+
+  /**
+   * Adds a single floating-point value data point to a series whose row key
+   * was resolved with {@link #resolveSeriesAsync}.
+   * @param row_template The row key template of the series.
+   * @param metric The metric of the series.
+   * @param timestamp The timestamp associated with the value.
+   * @param value The value of the data point.
+   * @param tags The tags of the series.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if the timestamp is invalid, or if the
+   * value is NaN or infinite.
+   * @throws HBaseException (deferred) if there was a problem while persisting
+   * data.
+   * @see #addPointToSeries(byte[], String, long, long, Map)
+   * @since 2.1
+   */
+  public Deferred<Object> addPointToSeries(final byte[] row_template,
+                                           final String metric,
+                                           final long timestamp,
+                                           final float value,
+                                           final Map<String, String> tags) {
+    if (Float.isNaN(value) || Float.isInfinite(value)) {
+      throw new IllegalArgumentException("value is NaN or Infinite: " + value
+                                         + " for metric=" + metric
+                                         + " timestamp=" + timestamp);
+    }
+    final short flags = Const.FLAG_FLOAT | 0x3;  // A float stored on 4 bytes.
+    return addPointToSeries(row_template, metric, timestamp,
+        Bytes.fromInt(Float.floatToRawIntBits(value)), tags, flags);
+  }
+
+  private Deferred<Object> addPointToSeries(final byte[] row_template,
+                                            final String metric,
                                             final long timestamp,
                                             final byte[] value,
                                             final Map<String, String> tags,
                                             final short flags) {
-    // we only accept positive unix epoch timestamps in seconds or milliseconds
+    checkTimestamp(metric, timestamp, value, tags, flags);
+    // storePoint() sets the base time in the row key it's given.
+    return storePoint(metric, timestamp, value, tags, flags,
+        Arrays.copyOf(row_template, row_template.length));
+  }
+
+  /**
+   * Returns a new importer to write historical data points in bulk, one
+   * compacted cell per row.
+   * @param max_points Maximum number of data points the importer buffers
+   * before writing out its oldest rows.
+   * @return A new bulk importer writing to this TSDB.
+   * @throws IllegalArgumentException if {@code max_points} isn't positive.
+   * @since 2.1
+   */
+  public BulkImporter newBulkImporter(final long max_points) {
+    return new BulkImporter(this, max_points);
+  }
+
+  /**
+   * Encodes an integer value on the smallest number of bytes possible.
+   * @param value The value to encode.
+   * @return A byte array of 1, 2, 4 or 8 bytes.
+   */
+  static byte[] encodeLong(final long value) {
+    if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+      return new byte[] { (byte) value };
+    } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+      return Bytes.fromShort((short) value);
+    } else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+      return Bytes.fromInt((int) value);
+    }
+    return Bytes.fromLong(value);
+  }
+
+  /**
+   * Makes sure the timestamp is a positive unix epoch timestamp in seconds or
+   * milliseconds.
+   * @throws IllegalArgumentException if the timestamp is invalid.
+   */
+  private static void checkTimestamp(final String metric,
+                                     final long timestamp,
+                                     final byte[] value,
+                                     final Map<String, String> tags,
+                                     final short flags) {
     if (timestamp < 0 || ((timestamp & Const.SECOND_MASK) != 0 && 
         timestamp > 9999999999999L)) {
       throw new IllegalArgumentException((timestamp < 0 ? "negative " : "bad")
@@ -635,9 +954,50 @@ public final class TSDB {
           + " when trying to add value=" + Arrays.toString(value) + '/' + flags
           + " to metric=" + metric + ", tags=" + tags);
     }
+  }
+
+  private Deferred<Object> addPointInternal(final String metric,
+                                            final long timestamp,
+                                            final byte[] value,
+                                            final Map<String, String> tags,
+                                            final short flags) {
+    checkTimestamp(metric, timestamp, value, tags, flags);
+    final byte[] row = row_key_cache.getTemplate(metric, tags);
+    return storePoint(metric, timestamp, value, tags, flags, row);
+  }
+
+  private Deferred<Object> addPointInternalAsync(final String metric,
+                                                 final long timestamp,
+                                                 final byte[] value,
+                                                 final Map<String, String> tags,
+                                                 final short flags) {
+    checkTimestamp(metric, timestamp, value, tags, flags);
+
+    /** Writes the data point once the row key has been resolved. */
+    final class StorePointCB implements Callback<Deferred<Object>, byte[]> {
+      public Deferred<Object> call(final byte[] row) {
+        return storePoint(metric, timestamp, value, tags, flags, row);
+      }
+      public String toString() {
+        return "store data point in " + metric;
+      }
+    }
+
+    return row_key_cache.getTemplateAsync(metric, tags)
+      .addCallbackDeferring(new StorePointCB());
+  }
 
-    IncomingDataPoints.checkMetricAndTags(metric, tags);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+  /**
+   * Writes a data point to the given row and takes care of the meta data
+   * tracking and real time publishing, if enabled.
+   * @param row A row key template, the base time will be set in it.
+   */
+  private Deferred<Object> storePoint(final String metric,
+                                      final long timestamp,
+                                      final byte[] value,
+                                      final Map<String, String> tags,
+                                      final short flags,
+                                      final byte[] row) {
     final long base_time;
     final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
     
@@ -649,13 +1009,54 @@ public final class TSDB {
       base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
     }
     
-    Bytes.setInt(row, (int) base_time, metrics.width());
-    scheduleForCompaction(row, (int) base_time);
-    final PutRequest point = new PutRequest(table, row, FAMILY, qualifier, value);
-    
-    // TODO(tsuna): Add a callback to time the latency of HBase and store the
-    // timing in a moving Histogram (once we have a class for this).
-    Deferred<Object> result = client.put(point);
+    Bytes.setInt(row, (int) base_time, Const.salt_width() + metrics.width());
+    final Deferred<Object> result;
+    if (row_buffer != null && row_buffer.add(row, base_time, qualifier, value)) {
+      // The point will be written along with the rest of its row.
+      result = Deferred.fromResult(null);
+    } else if (spool != null && spool.isEngaged() 
+               && spool.append(row, qualifier, value)) {
+      // HBase is in trouble, the point will be replayed later.
+      result = Deferred.fromResult(null);
+    } else {
+      scheduleForCompaction(row, (int) base_time);
+      final PutRequest point = 
+        new PutRequest(table, row, FAMILY, qualifier, value);
+      final long start_put = System.nanoTime();
+      
+      // Time the latency of HBase, the compaction queue slows down when
+      // puts are getting slow.
+      final class PutLatencyCB implements Callback<Object, Object> {
+        public Object call(final Object arg) {
+          final int latency = (int) ((System.nanoTime() - start_put) / 1000000);
+          IncomingDataPoints.putlatency.add(latency);
+          if (config.enable_compactions()) {
+            compactionq.recordPutLatency(latency);
+          }
+          if (spool != null) {
+            spool.recordLatency(latency);
+          }
+          return arg;
+        }
+        public String toString() {
+          return "record put latency";
+        }
+      }
+
+      // Spool the point rather than failing it, if we can.
+      final class SpoolErrback implements Callback<Object, Exception> {
+        public Object call(final Exception e) {
+          spool.recordError();
+          return spool.append(row, qualifier, value) ? null : e;
+        }
+        public String toString() {
+          return "spool data point that failed";
+        }
+      }
+
+      final Deferred<Object> put = client.put(point).addBoth(new PutLatencyCB());
+      result = spool != null ? put.addErrback(new SpoolErrback()) : put;
+    }
     if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() && 
         !config.enable_tsuid_tracking() && rt_publisher == null) {
       return result;
@@ -668,14 +1069,20 @@ public final class TSDB {
     // counter field for a TSUID with the proper timestamp. If the user would
     // rather have TSUID incrementing enabled, that will trump the PUT
     if (config.enable_tsuid_tracking() && !config.enable_tsuid_incrementing()) {
-      final PutRequest tracking = new PutRequest(meta_table, tsuid, 
-          TSMeta.FAMILY(), TSMeta.COUNTER_QUALIFIER(), Bytes.fromLong(1));
-      client.put(tracking);
+      if (tracking_filter == null || tracking_filter.add(tsuid)) {
+        final PutRequest tracking = new PutRequest(meta_table, tsuid, 
+            TSMeta.FAMILY(), TSMeta.COUNTER_QUALIFIER(), Bytes.fromLong(1));
+        client.put(tracking);
+      }
+    } else if (tsuid_counters != null) {
+      tsuid_counters.increment(tsuid);
     } else if (config.enable_tsuid_incrementing() || config.enable_realtime_ts()) {
       TSMeta.incrementAndGetCounter(TSDB.this, tsuid);
     }
     
-    if (rt_publisher != null) {
+    if (rt_dispatcher != null) {
+      rt_dispatcher.sinkDataPoint(metric, timestamp, value, tags, tsuid, flags);
+    } else if (rt_publisher != null) {
       rt_publisher.sinkDataPoint(metric, timestamp, value, tags, tsuid, flags);
     }
     return result;
@@ -704,9 +1111,26 @@ public final class TSDB {
       }
     }
 
-    return config.enable_compactions() && compactionq != null
-      ? compactionq.flush().addCallback(new HClientFlush())
-      : client.flush();
+    final class CompactionFlush 
+      implements Callback<Deferred<Object>, ArrayList<Object>> {
+      public Deferred<Object> call(final ArrayList<Object> args) {
+        return config.enable_compactions() && compactionq != null
+          ? compactionq.flush().addCallback(new HClientFlush())
+          : client.flush();
+      }
+      public String toString() {
+        return "flush compaction queue";
+      }
+    }
+
+    if (row_buffer != null) {
+      // Write out the buffered rows first as some of them may need to be
+      // compacted, and don't wait for the client's flush interval.
+      final Deferred<ArrayList<Object>> buffered = row_buffer.flush();
+      client.flush();
+      return buffered.addCallbackDeferring(new CompactionFlush());
+    }
+    return new CompactionFlush().call(null);
   }
 
   /**
@@ -727,6 +1151,11 @@ public final class TSDB {
     final ArrayList<Deferred<Object>> deferreds = 
       new ArrayList<Deferred<Object>>();
     
+    if (spool != null) {
+      // Whatever is left in the spool is replayed on restart.
+      spool.shutdown();
+    }
+    
     final class HClientShutdown implements Callback<Object, ArrayList<Object>> {
       public Object call(final ArrayList<Object> args) {
         return client.shutdown();
@@ -762,15 +1191,40 @@ public final class TSDB {
       }
     }
     
-    if (config.enable_compactions()) {
+    final class RowBufferCB 
+      implements Callback<Deferred<Object>, ArrayList<Object>> {
+      public Deferred<Object> call(final ArrayList<Object> rows) {
+        if (config.enable_compactions()) {
+          LOG.info("Flushing compaction queue");
+          return compactionq.flush().addCallback(new CompactCB());
+        }
+        return Deferred.fromResult(null);
+      }
+      public String toString() {
+        return "flush compaction queue after the row buffer";
+      }
+    }
+    
+    if (row_buffer != null) {
+      LOG.info("Flushing row buffer");
+      deferreds.add(row_buffer.flush().addCallbackDeferring(new RowBufferCB()));
+    } else if (config.enable_compactions()) {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
     }
+    if (tsuid_counters != null) {
+      LOG.info("Flushing TSUID counters");
+      deferreds.add(tsuid_counters.shutdown());
+    }
     if (search != null) {
       LOG.info("Shutting down search plugin: " + 
           search.getClass().getCanonicalName());
       deferreds.add(search.shutdown());
     }
+    if (rt_dispatcher != null) {
+      LOG.info("Publishing queued data points");
+      rt_dispatcher.shutdown();
+    }
     if (rt_publisher != null) {
       LOG.info("Shutting down RT plugin: " + 
           rt_publisher.getClass().getCanonicalName());
@@ -857,6 +1311,10 @@ public final class TSDB {
     metrics.dropCaches();
     tag_names.dropCaches();
     tag_values.dropCaches();
+    row_key_cache.dropCaches();
+    if (query_cache != null) {
+      query_cache.dropCaches();
+    }
   }
 
   /**
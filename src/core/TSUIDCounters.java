@@ -0,0 +1,220 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+
+/**
+ * Coalesces the TSUID data point counter increments of the meta table.
+ * <p>
+ * Instead of sending an atomic increment to HBase for every data point, the
+ * data points written for each TSUID are counted in memory and a background
+ * thread sends a single increment per TSUID every {@code flush_interval}
+ * seconds.  The first data point seen for a TSUID is still incremented right
+ * away, so that the {@link TSMeta} of a new time series is created without
+ * waiting for the next flush.
+ * <p>
+ * TSUIDs that didn't get any data point during a whole interval are
+ * forgotten, so memory usage is bounded by the number of active series.
+ * Counts that haven't been flushed when the TSD dies are lost, which is
+ * fine since the counter is only an approximation anyway.
+ * @since 2.1
+ */
+final class TSUIDCounters {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TSUIDCounters.class);
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Set on a counter that's being removed from the map.  */
+  private static final long RETIRED = -1;
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** How often to flush the counters, in seconds.  */
+  private final int flush_interval;
+
+  /**
+   * Data points not yet counted in HBase, keyed by TSUID.  The bytes of the
+   * TSUID are stored in a string so they can be hashed.
+   */
+  private final ConcurrentHashMap<String, AtomicLong> counters =
+    new ConcurrentHashMap<String, AtomicLong>();
+
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong increments = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  /** The flush thread.  */
+  private final Thrd thread = new Thrd();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @param flush_interval How often to flush the counters, in seconds.
+   */
+  TSUIDCounters(final TSDB tsdb, final int flush_interval) {
+    this.tsdb = tsdb;
+    this.flush_interval = flush_interval;
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Counts a data point written for the given TSUID.
+   * @param tsuid The TSUID of the data point.
+   */
+  void increment(final byte[] tsuid) {
+    final String key = new String(tsuid, CHARSET);
+    while (true) {
+      final AtomicLong counter = counters.get(key);
+      if (counter == null) {
+        if (counters.putIfAbsent(key, new AtomicLong()) == null) {
+          // Either a new series or one that was idle: increment right away
+          // so a new TSMeta gets created without delay.
+          send(tsuid, 1);
+          return;
+        }
+        continue;  // Lost a race with another thread, try again.
+      }
+      final long count = counter.get();
+      if (count == RETIRED) {
+        counters.remove(key, counter);
+        continue;
+      }
+      if (counter.compareAndSet(count, count + 1)) {
+        coalesced.incrementAndGet();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sends one increment for each TSUID that got data points since the last
+   * flush, and forgets the TSUIDs that didn't.
+   * @return A deferred that completes once all the increments were sent.
+   */
+  synchronized Deferred<Object> flush() {
+    final ArrayList<Deferred<Long>> deferreds = new ArrayList<Deferred<Long>>();
+    for (final Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      final AtomicLong counter = entry.getValue();
+      if (counter.compareAndSet(0, RETIRED)) {
+        counters.remove(entry.getKey(), counter);
+        continue;
+      }
+      // Only this method retires counters, so this can't be negative.
+      final long count = counter.getAndSet(0);
+      if (count > 0) {
+        deferreds.add(send(entry.getKey().getBytes(CHARSET), count));
+      }
+    }
+    return Deferred.group(deferreds).addCallback(new FlushCB());
+  }
+
+  private Deferred<Long> send(final byte[] tsuid, final long amount) {
+    increments.incrementAndGet();
+    return TSMeta.incrementAndGetCounter(tsdb, tsuid, amount)
+      .addErrback(new IncrementErrback(tsuid, amount));
+  }
+
+  /** Swallows the results of a flush.  */
+  private static final class FlushCB
+    implements Callback<Object, ArrayList<Long>> {
+    public Object call(final ArrayList<Long> results) {
+      return null;
+    }
+    public String toString() {
+      return "flushed TSUID counters";
+    }
+  }
+
+  /** Logs and counts the increments that failed.  */
+  private final class IncrementErrback implements Callback<Long, Exception> {
+    private final byte[] tsuid;
+    private final long amount;
+
+    IncrementErrback(final byte[] tsuid, final long amount) {
+      this.tsuid = tsuid;
+      this.amount = amount;
+    }
+
+    public Long call(final Exception e) {
+      errors.incrementAndGet();
+      LOG.warn("Failed to add " + amount + " to the counter of TSUID "
+               + UniqueId.uidToString(tsuid), e);
+      return 0L;
+    }
+
+    public String toString() {
+      return "TSUID counter increment errback";
+    }
+  }
+
+  /**
+   * Stops the flush thread and flushes the counters.
+   * @return A deferred that completes once all the increments were sent.
+   */
+  Deferred<Object> shutdown() {
+    thread.interrupt();
+    return flush();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("meta.counters.tracked", counters.size());
+    collector.record("meta.counters.coalesced", coalesced.get());
+    collector.record("meta.counters.increments", increments.get());
+    collector.record("meta.counters.errors", errors.get());
+  }
+
+  /** Flushes the counters periodically.  */
+  final class Thrd extends Thread {
+    public Thrd() {
+      super("TSUIDCounterFlush");
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(flush_interval * 1000L);
+        } catch (InterruptedException e) {
+          return;  // We're shutting down, the last flush is done for us.
+        }
+        try {
+          flush();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in TSUID counter flush thread", e);
+        }
+      }
+    }
+  }
+
+}
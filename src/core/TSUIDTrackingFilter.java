@@ -0,0 +1,176 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Remembers which TSUIDs were recently tracked in the meta table, so that
+ * each TSUID is tracked at most once per interval.
+ * <p>
+ * This is a Bloom filter, so its memory usage is fixed no matter how many
+ * TSUIDs are written.  It's sized for {@code max_series} TSUIDs with a false
+ * positive rate of about 1%.  A false positive only delays the tracking of
+ * a TSUID until the next interval.
+ * <p>
+ * Two filters are used in turn: every {@code interval} seconds the other
+ * filter is cleared and becomes the active one.  The filter that's retired
+ * is only cleared at the next rotation, so threads that were still adding
+ * to it can't leave stale bits in the new active filter.  Every TSUID still
+ * written gets tracked again after a rotation, which keeps its "last
+ * received" time accurate to the interval.
+ * <p>
+ * This class is thread-safe.
+ * @since 2.1
+ */
+final class TSUIDTrackingFilter {
+
+  /** Number of bits per TSUID, for a false positive rate of about 1%.  */
+  private static final int BITS_PER_SERIES = 10;
+
+  /** Number of hash functions, optimal for {@link #BITS_PER_SERIES}.  */
+  private static final int NUM_HASHES = 7;
+
+  /** How long each filter stays active, in milliseconds.  */
+  private final long interval;
+
+  /** Number of bits in each filter.  */
+  private final long num_bits;
+
+  /** The two filters, used in turn.  */
+  private final AtomicLongArray[] filters = new AtomicLongArray[2];
+
+  /** Index of the active filter in {@link #filters}.  */
+  private volatile int active;
+
+  /** When to switch to the other filter, in milliseconds.  */
+  private volatile long next_rotation;
+
+  /** Number of bits set in the active filter.  */
+  private final AtomicLong bits_set = new AtomicLong();
+
+  private final AtomicLong tracked = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param max_series Number of distinct TSUIDs expected per interval.
+   * @param interval How often each TSUID is tracked again, in seconds.
+   * @throws IllegalArgumentException if an argument isn't strictly positive.
+   */
+  TSUIDTrackingFilter(final int max_series, final int interval) {
+    if (max_series <= 0) {
+      throw new IllegalArgumentException("max_series must be positive: "
+                                         + max_series);
+    } else if (interval <= 0) {
+      throw new IllegalArgumentException("interval must be positive: "
+                                         + interval);
+    }
+    this.interval = interval * 1000L;
+    final int words = (int) ((max_series * (long) BITS_PER_SERIES + 63) / 64);
+    num_bits = words * 64L;
+    filters[0] = new AtomicLongArray(words);
+    filters[1] = new AtomicLongArray(words);
+    next_rotation = System.currentTimeMillis() + this.interval;
+  }
+
+  /**
+   * Adds a TSUID to the filter.
+   * @param tsuid The TSUID of a data point being written.
+   * @return true if the TSUID must be tracked, false if it was already
+   * tracked during the current interval.
+   */
+  boolean add(final byte[] tsuid) {
+    final long now = System.currentTimeMillis();
+    if (now >= next_rotation) {
+      rotate(now);
+    }
+    final AtomicLongArray filter = filters[active];
+    // Double hashing: the k indexes are h1 + i * h2.
+    final long hash = hash(tsuid);
+    final long h1 = hash >>> 32;
+    final long h2 = hash & 0xFFFFFFFFL;
+    boolean added = false;
+    for (int i = 0; i < NUM_HASHES; i++) {
+      final long bit = (h1 + i * h2) % num_bits;
+      final int word = (int) (bit >>> 6);
+      final long mask = 1L << bit;
+      long value;
+      do {
+        value = filter.get(word);
+        if ((value & mask) != 0) {
+          break;
+        }
+      } while (!filter.compareAndSet(word, value, value | mask));
+      if ((value & mask) == 0) {
+        bits_set.incrementAndGet();
+        added = true;
+      }
+    }
+    if (added) {
+      tracked.incrementAndGet();
+    } else {
+      skipped.incrementAndGet();
+    }
+    return added;
+  }
+
+  /** Clears the other filter and switches to it.  */
+  private synchronized void rotate(final long now) {
+    if (now < next_rotation) {
+      return;  // Another thread beat us to it.
+    }
+    final int next = 1 - active;
+    final AtomicLongArray filter = filters[next];
+    for (int i = 0; i < filter.length(); i++) {
+      filter.set(i, 0);
+    }
+    bits_set.set(0);
+    active = next;
+    next_rotation = now + interval;
+  }
+
+  /** Hashes a TSUID with 64-bit FNV-1a and the finalizer of MurmurHash3.  */
+  private static long hash(final byte[] tsuid) {
+    long h = 0xCBF29CE484222325L;
+    for (final byte b : tsuid) {
+      h ^= b & 0xFF;
+      h *= 0x100000001B3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /** @return the percentage of bits set in the active filter.  */
+  int fillRatio() {
+    return (int) (bits_set.get() * 100 / num_bits);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("meta.tracking.filter-fill-ratio", fillRatio());
+    collector.record("meta.tracking.written", tracked.get());
+    collector.record("meta.tracking.skipped", skipped.get());
+  }
+
+}
@@ -21,6 +21,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,8 +34,10 @@ import org.hbase.async.Scanner;
 import com.google.common.annotations.VisibleForTesting;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import static org.hbase.async.Bytes.ByteMap;
+import net.opentsdb.meta.Annotation;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
@@ -336,13 +340,54 @@ final class TsdbQuery implements Query {
    * @throws IllegalArgumentException if bad data was retreived from HBase.
    */
   private Deferred<TreeMap<byte[], Span>> findSpans() throws HBaseException {
-    final short metric_width = tsdb.metrics.width();
-    final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
-      new TreeMap<byte[], Span>(new SpanCmp(metric_width));
-    final Scanner scanner = getScanner();
-    final Deferred<TreeMap<byte[], Span>> results =
-      new Deferred<TreeMap<byte[], Span>>();
-    
+    // The scan is split in up to this many time ranges, each read by its own
+    // scanners (one per salt bucket), all running concurrently.
+    final int partitions =
+      Math.max(1, tsdb.config.getInt("tsd.query.scan.partitions"));
+    // Scanners in time order: all the buckets of the first time range, then
+    // all the buckets of the next one, etc.
+    final ArrayList<Scanner> scanners = new ArrayList<Scanner>();
+    // For each scanner, what to cache of the rows it reads, if anything.
+    final ArrayList<QueryCache.Fill> fills = new ArrayList<QueryCache.Fill>();
+    // The rows read from the query cache instead of being scanned again.
+    final ArrayList<QueryCache.CachedRow> cached =
+      new ArrayList<QueryCache.CachedRow>();
+    // If a rollup tier can answer this query, read it for the rows that
+    // should have been compacted and the data table for the most recent ones.
+    final Rollups.Tier tier = findRollupTier();
+    final int rollup_scanners;  // How many of the first scanners read it.
+    if (tier == null) {
+      addCachedScanners(scanners, fills, cached, tsdb.table, false,
+                        getScanStartTimeSeconds(),
+                        end_time == UNSET
+                        ? -1  // Will scan until the end (0xFFF...).
+                        : getScanEndTimeSeconds(), partitions);
+      rollup_scanners = 0;
+    } else {
+      final boolean open_ended = end_time == UNSET;
+      final long cutoff = tsdb.rollups.cutoff();
+      final long scan_end = getScanEndTimeSeconds();
+      addCachedScanners(scanners, fills, cached, tier.table, true,
+                        getScanStartTimeSeconds(),
+                        Math.min(cutoff, scan_end), partitions);
+      if (downsampler != Aggregators.AVG) {
+        for (final Scanner scanner : scanners) {
+          scanner.setFamily(Rollups.family(downsampler));
+        }
+      }
+      rollup_scanners = scanners.size();
+      if (open_ended || scan_end > cutoff) {
+        addCachedScanners(scanners, fills, cached, tsdb.table, false, cutoff,
+                          open_ended ? -1 : scan_end, partitions);
+      }
+      LOG.debug(this + " reads the " + tier + " rollup up to " + cutoff);
+    }
+    final short prefix_width =
+      (short) (Const.salt_width() + tsdb.metrics.width());
+    // Whether to decode the rows once as they're read rather than every time
+    // a data point is accessed.
+    final boolean decode_rows = tsdb.config.getBoolean("tsd.query.decode_rows");
+
     /**
     * Scanner callback executed recursively each time we get a set of data
     * from storage. This is responsible for determining what columns are
@@ -353,9 +398,25 @@ final class TsdbQuery implements Query {
     final class ScannerCB implements Callback<Object,
       ArrayList<ArrayList<KeyValue>>> {
       
+      final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
+        new TreeMap<byte[], Span>(new SpanCmp(prefix_width));
+      final Deferred<TreeMap<byte[], Span>> results =
+        new Deferred<TreeMap<byte[], Span>>();
       int nrows = 0;
       int hbase_time = 0; // milliseconds.
       long starttime = System.nanoTime();
+      final Scanner scanner;
+      /** Whether we're reading a rollup tier.  */
+      final boolean rollup;
+      /** Collects the rows to cache, null if there's nothing to cache.  */
+      final QueryCache.Fill fill;
+
+      ScannerCB(final Scanner scanner, final boolean rollup,
+                final QueryCache.Fill fill) {
+        this.scanner = scanner;
+        this.rollup = rollup;
+        this.fill = fill;
+      }
       
       /**
       * Starts the scanner and is called recursively to fetch the next set of
@@ -379,10 +440,10 @@ final class TsdbQuery implements Query {
          hbase_time += (System.nanoTime() - starttime) / 1000000;
          try {
            if (rows == null) {
-             hbase_time += (System.nanoTime() - starttime) / 1000000;
              scanlatency.add(hbase_time);
-             LOG.info(TsdbQuery.this + " matched " + nrows + " rows in " +
-                 spans.size() + " spans in " + hbase_time + "ms");
+             LOG.debug(TsdbQuery.this + " matched " + nrows + " rows in " +
+                 spans.size() + " spans in " + hbase_time + "ms with "
+                 + scanner);
              if (nrows < 1) {
                results.callback(null);
              } else {
@@ -394,7 +455,7 @@ final class TsdbQuery implements Query {
            
            for (final ArrayList<KeyValue> row : rows) {
              final byte[] key = row.get(0).key();
-             if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
+             if (!RowKey.hasMetric(key, metric)) {
                scanner.close();
                throw new IllegalDataException(
                    "HBase returned a row that doesn't match"
@@ -406,10 +467,26 @@ final class TsdbQuery implements Query {
                datapoints = new Span(tsdb);
                spans.put(key, datapoints);
              }
-             final KeyValue compacted = 
-               tsdb.compact(row, datapoints.getAnnotations());
+             final List<Annotation> notes = datapoints.getAnnotations();
+             final int nnotes = notes.size();
+             final KeyValue compacted = rollup 
+               ? Rollups.read(row, downsampler)
+               : tsdb.compact(row, notes);
+             DecodedRow decoded = null;
+             if (fill != null) {
+               decoded = fill.add(key, compacted,
+                                  notes.subList(nnotes, notes.size()));
+             }
              if (compacted != null) { // Can be null if we ignored all KVs.
-               datapoints.addRow(compacted);
+               if (decoded == null && decode_rows) {
+                 decoded = DecodedRow.decode(compacted,
+                     Bytes.getUnsignedInt(key, prefix_width));
+               }
+               if (decoded == null) {
+                 datapoints.addRow(compacted);
+               } else {
+                 datapoints.addRow(key, decoded);
+               }
                nrows++;
              }
            }
@@ -423,8 +500,130 @@ final class TsdbQuery implements Query {
        }
      }
 
-     new ScannerCB().scan();
-     return results;
+    final long start_time = System.nanoTime();
+    final ArrayList<ScannerCB> cbs = new ArrayList<ScannerCB>(scanners.size());
+    final ArrayList<Deferred<TreeMap<byte[], Span>>> deferreds =
+      new ArrayList<Deferred<TreeMap<byte[], Span>>>(scanners.size());
+    for (int i = 0; i < scanners.size(); i++) {
+      final ScannerCB cb = new ScannerCB(scanners.get(i), i < rollup_scanners,
+                                         fills.get(i));
+      cbs.add(cb);
+      deferreds.add(cb.results);
+    }
+
+    // Only run so many scanners at a time, each one that completes starts
+    // the next one.  Once one failed, the query fails anyway so the
+    // remaining ones are skipped.
+    final AtomicInteger next_scanner = new AtomicInteger();
+    final AtomicBoolean failed = new AtomicBoolean();
+    final class StartNextCB implements
+      Callback<TreeMap<byte[], Span>, TreeMap<byte[], Span>> {
+      public TreeMap<byte[], Span> call(final TreeMap<byte[], Span> spans) {
+        final int i = next_scanner.getAndIncrement();
+        if (i < cbs.size()) {
+          if (failed.get()) {
+            cbs.get(i).results.callback(null);
+          } else {
+            cbs.get(i).scan();
+          }
+        }
+        return spans;
+      }
+      public String toString() {
+        return "start next scanner of " + TsdbQuery.this;
+      }
+    }
+    final StartNextCB start_next = new StartNextCB();
+    final class StartNextErrback implements Callback<Exception, Exception> {
+      public Exception call(final Exception e) {
+        failed.set(true);
+        start_next.call(null);
+        return e;
+      }
+      public String toString() {
+        return "failed scanner of " + TsdbQuery.this;
+      }
+    }
+    for (final ScannerCB cb : cbs) {
+      cb.results.addCallbacks(start_next, new StartNextErrback());
+    }
+    final int max_concurrent =
+      tsdb.config.getInt("tsd.query.scan.max_concurrent");
+    final int concurrent = max_concurrent > 0
+      ? Math.min(max_concurrent, cbs.size()) : cbs.size();
+    next_scanner.set(concurrent);
+    for (int i = 0; i < concurrent; i++) {
+      cbs.get(i).scan();
+    }
+
+    /**
+     * Merges the spans found by the different scanners.  The spans of a
+     * time series found in different time ranges are merged together.
+     */
+    final class MergeSpansCB implements
+      Callback<TreeMap<byte[], Span>, ArrayList<TreeMap<byte[], Span>>> {
+      public TreeMap<byte[], Span> call(
+          final ArrayList<TreeMap<byte[], Span>> results) {
+        // The scans all completed, what they read can be cached.
+        QueryCache.Fill last_fill = null;
+        for (final QueryCache.Fill fill : fills) {
+          if (fill != null && fill != last_fill) {
+            fill.commit();
+            last_fill = fill;
+          }
+        }
+        if (!cached.isEmpty()) {
+          results.add(cachedSpans(cached, prefix_width));
+        }
+        TreeMap<byte[], Span> spans = null;
+        for (final TreeMap<byte[], Span> result : results) {
+          if (result == null) {
+            continue;
+          } else if (spans == null) {
+            spans = result;
+            continue;
+          }
+          for (final Map.Entry<byte[], Span> entry : result.entrySet()) {
+            final Span span = spans.get(entry.getKey());
+            if (span == null) {
+              spans.put(entry.getKey(), entry.getValue());
+            } else {
+              span.addSpan(entry.getValue());
+            }
+          }
+        }
+        int nrows = 0;
+        for (final ScannerCB cb : cbs) {
+          nrows += cb.nrows;
+        }
+        LOG.info(TsdbQuery.this + " matched " + nrows + " rows in "
+            + (spans == null ? 0 : spans.size()) + " spans in "
+            + (System.nanoTime() - start_time) / 1000000 + "ms with "
+            + cbs.size() + " scanners and " + cached.size()
+            + " cached rows");
+        return spans;
+      }
+      public String toString() {
+        return "merge spans of " + TsdbQuery.this;
+      }
+    }
+
+    /** Hands the first error of the scanners to the caller.  */
+    final class ScanErrback implements Callback<Exception, Exception> {
+      public Exception call(final Exception e) {
+        Throwable ex = e;
+        while (ex instanceof DeferredGroupException && ex.getCause() != null) {
+          ex = ex.getCause();
+        }
+        return ex instanceof Exception ? (Exception) ex : e;
+      }
+      public String toString() {
+        return "scan errback of " + TsdbQuery.this;
+      }
+    }
+
+    return Deferred.group(deferreds)
+      .addCallbacks(new MergeSpansCB(), new ScanErrback());
   }
 
   /**
@@ -521,36 +720,236 @@ final class TsdbQuery implements Query {
    * filter. If one or more TSUIDs have been provided, it calls into
    * {@link #createAndSetTSUIDFilter} to setup a row key filter.
    * @return A scanner to use for fetching data points
+   * @throws IllegalStateException if row keys are salted, in which case
+   * {@link #getScanners} must be used instead.
    */
   protected Scanner getScanner() throws HBaseException {
+    if (Const.salt_width() > 0) {
+      throw new IllegalStateException("Row keys are salted, a query needs "
+          + Const.salt_buckets() + " scanners");
+    }
+    return getScanners().get(0);
+  }
+
+  /**
+   * Returns the scanners to run for this query, one per salt bucket, or a
+   * single one when row keys aren't salted.
+   * @return The scanners to use for fetching data points, in salt order.
+   * @see #getScanner()
+   * @since 2.1
+   */
+  ArrayList<Scanner> getScanners() throws HBaseException {
+    return getScanners(tsdb.table, getScanStartTimeSeconds(),
+                       end_time == UNSET
+                       ? -1  // Will scan until the end (0xFFF...).
+                       : getScanEndTimeSeconds());
+  }
+
+  /**
+   * Returns one scanner per salt bucket over a time range of a table.
+   * @param table The data table or the table of a rollup tier.
+   * @param start_seconds The base time of the first row to scan.
+   * @param end_seconds The base time at which to stop scanning (exclusive),
+   * or -1 to scan until the end.
+   * @return The scanners to use for fetching data points, in salt order.
+   */
+  private ArrayList<Scanner> getScanners(final byte[] table,
+                                         final long start_seconds,
+                                         final long end_seconds)
+    throws HBaseException {
+    final ArrayList<Scanner> scanners =
+      new ArrayList<Scanner>(Const.salt_buckets());
+    for (int i = 0; i < Const.salt_buckets(); i++) {
+      scanners.add(getScanner(table, start_seconds, end_seconds, i));
+    }
+    return scanners;
+  }
+
+  /**
+   * Adds the scanners covering a time range of a table to the given list, in
+   * time order.  The range is split in up to {@code partitions} ranges of
+   * whole rows, each read with one scanner per salt bucket.
+   * @param scanners The list to add the scanners to.
+   * @param table The data table or the table of a rollup tier.
+   * @param start_seconds The base time of the first row to scan.
+   * @param end_seconds The base time at which to stop scanning (exclusive),
+   * or -1 to scan until the end.
+   * @param partitions The maximum number of time ranges to split the scan in.
+   */
+  private void addScanners(final ArrayList<Scanner> scanners,
+                           final byte[] table,
+                           final long start_seconds,
+                           final long end_seconds,
+                           final int partitions) throws HBaseException {
+    if (partitions <= 1) {
+      scanners.addAll(getScanners(table, start_seconds, end_seconds));
+      return;
+    }
+    // Split on row boundaries so that no row is read by two scanners.  An
+    // open-ended scan is split up to the current time, the last range still
+    // reads until the end.
+    final long first_row = start_seconds - (start_seconds % Const.MAX_TIMESPAN);
+    final long end = end_seconds == -1
+      ? System.currentTimeMillis() / 1000 + Const.MAX_TIMESPAN : end_seconds;
+    final long nrows = Math.max(1,
+        (end - first_row + Const.MAX_TIMESPAN - 1) / Const.MAX_TIMESPAN);
+    final long step =
+      (nrows + partitions - 1) / partitions * Const.MAX_TIMESPAN;
+    long range_start = start_seconds;
+    long range_end = first_row + step;
+    while (range_end < end) {
+      scanners.addAll(getScanners(table, range_start, range_end));
+      range_start = range_end;
+      range_end += step;
+    }
+    scanners.addAll(getScanners(table, range_start, end_seconds));
+  }
+
+  /**
+   * Adds the scanners covering a time range of a table to the given list,
+   * like {@link #addScanners}, but first reads the leading rows of the range
+   * from the query cache, if enabled.  Only the rows that weren't cached are
+   * scanned, and those old enough to be cached will be once the scan
+   * completed.
+   * @param scanners The list to add the scanners to.
+   * @param fills The list to add what to cache of the rows read by each
+   * scanner to, one entry (possibly null) per scanner added.
+   * @param cached The list to add the rows read from the cache to.
+   * @param table The data table or the table of a rollup tier.
+   * @param rollup Whether the table is the one of a rollup tier.
+   * @param start_seconds The base time of the first row to scan.
+   * @param end_seconds The base time at which to stop scanning (exclusive),
+   * or -1 to scan until the end.
+   * @param partitions The maximum number of time ranges to split the scan in.
+   */
+  private void addCachedScanners(final ArrayList<Scanner> scanners,
+                                 final ArrayList<QueryCache.Fill> fills,
+                                 final List<QueryCache.CachedRow> cached,
+                                 final byte[] table,
+                                 final boolean rollup,
+                                 final long start_seconds,
+                                 final long end_seconds,
+                                 final int partitions) throws HBaseException {
+    long scan_start = start_seconds;
+    QueryCache.Fill fill = null;
+    if (tsdb.query_cache != null) {
+      final String source = getCacheSource(table, rollup);
+      final String key = getCacheKey(source);
+      final long first_row = (start_seconds + Const.MAX_TIMESPAN - 1)
+        / Const.MAX_TIMESPAN * Const.MAX_TIMESPAN;
+      final long immutable_end = end_seconds == -1
+        ? tsdb.query_cache.immutableEnd()
+        : Math.min(end_seconds, tsdb.query_cache.immutableEnd());
+      scan_start = Math.max(start_seconds,
+          tsdb.query_cache.read(key, first_row, immutable_end, cached));
+      if (end_seconds != -1 && scan_start >= end_seconds) {
+        return;  // Everything was cached.
+      }
+      if (scan_start < immutable_end) {
+        fill = tsdb.query_cache.newFill(key, source, scan_start,
+                                        immutable_end);
+      }
+    }
+    addScanners(scanners, table, scan_start, end_seconds, partitions);
+    while (fills.size() < scanners.size()) {
+      fills.add(fill);
+    }
+  }
+
+  /**
+   * Returns where rows are read from, for the query cache.
+   * @param table The data table or the table of a rollup tier.
+   * @param rollup Whether the table is the one of a rollup tier.
+   */
+  private String getCacheSource(final byte[] table, final boolean rollup) {
+    final String source = new String(table, CHARSET);
+    // What's read from a rollup tier depends on the downsampler.
+    return rollup ? source + '/' + downsampler : source;
+  }
+
+  /**
+   * Returns the key of the scans of this query in the query cache: what
+   * selects the rows read, regardless of what's done with them afterwards.
+   * @param source Where the rows are read from, see {@link #getCacheSource}.
+   */
+  private String getCacheKey(final String source) {
+    final StringBuilder buf = new StringBuilder(source);
+    if (tsuids != null && !tsuids.isEmpty()) {
+      buf.append(' ')
+         .append(tsuids.get(0).substring(0, TSDB.metrics_width() * 2))
+         .append(' ').append(getTSUIDFilterRegexp());
+    } else {
+      buf.append(' ').append(Arrays.toString(metric));
+      if (tags.size() > 0 || group_bys != null) {
+        buf.append(' ').append(getFilterRegexp());
+      }
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Rebuilds the spans of the rows read from the query cache.
+   * @param cached The rows read from the cache.
+   * @param prefix_width The width of the salt and metric in row keys.
+   * @return A map from row key to the {@link Span} of the series.
+   */
+  private TreeMap<byte[], Span> cachedSpans(
+      final List<QueryCache.CachedRow> cached, final short prefix_width) {
+    final TreeMap<byte[], Span> spans =
+      new TreeMap<byte[], Span>(new SpanCmp(prefix_width));
+    for (final QueryCache.CachedRow row : cached) {
+      Span datapoints = spans.get(row.key);
+      if (datapoints == null) {
+        datapoints = new Span(tsdb);
+        spans.put(row.key, datapoints);
+      }
+      if (row.row != null) {
+        datapoints.addRow(row.key, row.row);
+      }
+      datapoints.getAnnotations().addAll(row.annotations);
+    }
+    return spans;
+  }
+
+  /**
+   * Returns a scanner over a time range of a table.
+   * @param table The data table or the table of a rollup tier.
+   * @param start_seconds The base time of the first row to scan.
+   * @param end_seconds The base time at which to stop scanning (exclusive),
+   * or -1 to scan until the end.
+   * @param salt_bucket The salt bucket to scan, ignored if row keys aren't
+   * salted.
+   * @return A scanner to use for fetching data points
+   * @see #getScanner()
+   */
+  private Scanner getScanner(final byte[] table, final long start_seconds,
+                             final long end_seconds, final int salt_bucket)
+    throws HBaseException {
     final short metric_width = tsdb.metrics.width();
-    final byte[] start_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
-    final byte[] end_row = new byte[metric_width + Const.TIMESTAMP_BYTES];
+    final short metric_end = (short) (Const.salt_width() + metric_width);
+    final byte[] start_row = new byte[metric_end + Const.TIMESTAMP_BYTES];
+    final byte[] end_row = new byte[metric_end + Const.TIMESTAMP_BYTES];
     // We search at least one row before and one row after the start & end
     // time we've been given as it's quite likely that the exact timestamp
     // we're looking for is in the middle of a row.  Plus, a number of things
     // rely on having a few extra data points before & after the exact start
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
-    Bytes.setInt(start_row, (int) getScanStartTimeSeconds(), metric_width);
-    Bytes.setInt(end_row, (end_time == UNSET
-                           ? -1  // Will scan until the end (0xFFF...).
-                           : (int) getScanEndTimeSeconds()),
-                 metric_width);
+    Bytes.setInt(start_row, (int) start_seconds, metric_end);
+    Bytes.setInt(end_row, (int) end_seconds, metric_end);
     
     // set the metric UID based on the TSUIDs if given, or the metric UID
     if (tsuids != null && !tsuids.isEmpty()) {
       final String tsuid = tsuids.get(0);
       final String metric_uid = tsuid.substring(0, TSDB.metrics_width() * 2);
       metric = UniqueId.stringToUid(metric_uid);
-      System.arraycopy(metric, 0, start_row, 0, metric_width);
-      System.arraycopy(metric, 0, end_row, 0, metric_width); 
-    } else {
-      System.arraycopy(metric, 0, start_row, 0, metric_width);
-      System.arraycopy(metric, 0, end_row, 0, metric_width);
     }
+    System.arraycopy(metric, 0, start_row, Const.salt_width(), metric_width);
+    System.arraycopy(metric, 0, end_row, Const.salt_width(), metric_width);
+    RowKey.setSaltBucket(start_row, salt_bucket);
+    RowKey.setSaltBucket(end_row, salt_bucket);
 
-    final Scanner scanner = tsdb.client.newScanner(tsdb.table);
+    final Scanner scanner = tsdb.client.newScanner(table);
     scanner.setStartKey(start_row);
     scanner.setStopKey(end_row);
     if (tsuids != null && !tsuids.isEmpty()) {
@@ -562,6 +961,18 @@ final class TsdbQuery implements Query {
     return scanner;
   }
 
+  /**
+   * @return The rollup tier to read for the older part of the time range, or
+   * null to only read the data table.
+   */
+  private Rollups.Tier findRollupTier() {
+    if (tsdb.rollups == null || downsampler == null
+        || getScanStartTimeSeconds() >= tsdb.rollups.cutoff()) {
+      return null;
+    }
+    return tsdb.rollups.findTier(sample_interval_ms, downsampler);
+  }
+
   /** Returns the UNIX timestamp from which we must start scanning.  */
   private long getScanStartTimeSeconds() {
     // The reason we look before by `MAX_TIMESPAN * 2' seconds is because of
@@ -609,6 +1020,14 @@ final class TsdbQuery implements Query {
    * @param scanner The scanner on which to add the filter.
    */
   private void createAndSetFilter(final Scanner scanner) {
+    scanner.setKeyRegexp(getFilterRegexp(), CHARSET);
+  }
+
+  /**
+   * Returns the regular expression matching the row keys with the relevant
+   * tags.
+   */
+  private String getFilterRegexp() {
     if (group_bys != null) {
       Collections.sort(group_bys, Bytes.MEMCMP);
     }
@@ -627,8 +1046,9 @@ final class TsdbQuery implements Query {
     // Alright, let's build this regexp.  From the beginning...
     buf.append("(?s)"  // Ensure we use the DOTALL flag.
                + "^.{")
-       // ... start by skipping the metric ID and timestamp.
-       .append(tsdb.metrics.width() + Const.TIMESTAMP_BYTES)
+       // ... start by skipping the salt, metric ID and timestamp.
+       .append(Const.salt_width() + tsdb.metrics.width()
+               + Const.TIMESTAMP_BYTES)
        .append("}");
     final Iterator<byte[]> tags = this.tags.iterator();
     final Iterator<byte[]> group_bys = (this.group_bys == null
@@ -666,7 +1086,7 @@ final class TsdbQuery implements Query {
     } while (tag != group_by);  // Stop when they both become null.
     // Skip any number of tags before the end.
     buf.append("(?:.{").append(tagsize).append("})*$");
-    scanner.setKeyRegexp(buf.toString(), CHARSET);
+    return buf.toString();
    }
 
   /**
@@ -677,6 +1097,13 @@ final class TsdbQuery implements Query {
    * @since 2.0
    */
   private void createAndSetTSUIDFilter(final Scanner scanner) {
+    scanner.setKeyRegexp(getTSUIDFilterRegexp(), CHARSET);
+  }
+
+  /**
+   * Returns the regular expression matching the row keys of the TSUIDs.
+   */
+  private String getTSUIDFilterRegexp() {
     Collections.sort(tsuids);
     
     // first, convert the tags to byte arrays and count up the total length
@@ -703,8 +1130,9 @@ final class TsdbQuery implements Query {
     // Alright, let's build this regexp.  From the beginning...
     buf.append("(?s)"  // Ensure we use the DOTALL flag.
                + "^.{")
-       // ... start by skipping the metric ID and timestamp.
-       .append(tsdb.metrics.width() + Const.TIMESTAMP_BYTES)
+       // ... start by skipping the salt, metric ID and timestamp.
+       .append(Const.salt_width() + tsdb.metrics.width()
+               + Const.TIMESTAMP_BYTES)
        .append("}(");
     
     for (final byte[] tags : uids) {
@@ -717,7 +1145,7 @@ final class TsdbQuery implements Query {
     // Replace the pipe of the last iteration, close and set
     buf.setCharAt(buf.length() - 1, ')');
     buf.append("$");
-    scanner.setKeyRegexp(buf.toString(), CHARSET);
+    return buf.toString();
   }
   
   /**
@@ -829,6 +1257,7 @@ final class TsdbQuery implements Query {
    */
   private static final class SpanCmp implements Comparator<byte[]> {
 
+    /** Number of bytes of salt and metric ID before the timestamp.  */
     private final short metric_width;
 
     public SpanCmp(final short metric_width) {
@@ -0,0 +1,531 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+
+import org.hbase.async.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Append-only spool on local disk that absorbs data point writes while
+ * HBase is failing or slow, and replays them at a controlled rate.
+ * <p>
+ * As long as HBase is healthy, data points are written directly.  As soon
+ * as a put fails, or takes longer than the latency threshold, the spool is
+ * engaged: new data points are appended to the spool and acknowledged
+ * right away, and data points whose put failed are appended as well instead
+ * of being reported as errors.  A background thread replays the spooled
+ * data points, at most {@code replay_rate} per second, and disengages the
+ * spool once replayed puts are fast again.  This way a RegionServer
+ * failover doesn't stall ingestion, and the backlog doesn't hit the
+ * cluster all at once when it comes back.
+ * <p>
+ * The spool is made of fixed size segment files that are memory-mapped.
+ * Each record is the length of the record (4 bytes), the time it was
+ * spooled (4 bytes) and the row key, qualifier and value of the cell, each
+ * prefixed with its length on 2 bytes.  The length is written last so that
+ * a partially written record reads as the end of the segment.  A segment is
+ * deleted once all its records have been replayed.  Segments left over by
+ * a previous run are replayed on startup.  A replayed cell may be written
+ * twice if the TSD dies while replaying it, which is harmless.
+ * <p>
+ * Since segments are memory-mapped, records are durable as soon as the OS
+ * writes them out, even if the TSD itself dies.  They're forced to disk
+ * every second and on shutdown.
+ * @since 2.1
+ */
+final class WriteSpool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+  private static final String PREFIX = "spool-";
+  private static final String SUFFIX = ".dat";
+
+  /** Length and spool time of a record.  */
+  private static final int HEADER_SIZE = 4 + 4;
+
+  /** How long to stop replaying after a replayed put failed.  */
+  private static final int BACKOFF = 5;  // seconds
+
+  /** How long to stay engaged when there's nothing to replay.  */
+  private static final int COOLDOWN = 10;  // seconds
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** Where segment files are stored.  */
+  private final File directory;
+
+  /** Size of each segment file, in bytes.  */
+  private final int segment_size;
+
+  /** Maximum number of bytes spooled, after which we stop spooling.  */
+  private final long max_size;
+
+  /** Puts slower than this, in milliseconds, engage the spool.  */
+  private final int latency_threshold;
+
+  /** Maximum number of data points replayed per second.  */
+  private final int replay_rate;
+
+  /** Segments that still have records to replay, oldest first.  */
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+  /** Segment being appended to, null until the first append.  */
+  private Segment writer;
+
+  /** Sequence number of the next segment to create.  */
+  private long next_segment;
+
+  /** Whether new data points go to the spool rather than to HBase.  */
+  private volatile boolean engaged;
+
+  /** When the spool was last engaged, in seconds.  */
+  private volatile long engaged_since;
+
+  /** Don't replay anything until then, in seconds.  */
+  private volatile long backoff_until;
+
+  /** Set when a put failed or was slow since the last replay cycle.  */
+  private volatile boolean unhealthy;
+
+  /** Age of the last record replayed, in seconds.  */
+  private volatile long replay_lag;
+
+  /** Number of records sent during the last replay cycle.  */
+  private int replayed_this_cycle;
+
+  private final AtomicInteger replays_inflight = new AtomicInteger();
+  private final AtomicLong spooled_bytes = new AtomicLong();
+  private final AtomicLong spooled_records = new AtomicLong();
+  private final AtomicLong appended = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong replay_errors = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  /** The replay thread.  */
+  private final Thrd thread = new Thrd();
+
+  /**
+   * Constructor.  Opens the segments left over by a previous run, if any.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if the spool directory isn't set or
+   * can't be used.
+   */
+  WriteSpool(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final String dir = tsdb.config.getString("tsd.storage.spool.directory");
+    if (dir == null || dir.isEmpty()) {
+      throw new IllegalArgumentException(
+          "tsd.storage.spool.directory must be set to enable the spool");
+    }
+    directory = new File(dir);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Unable to create the spool"
+          + " directory " + directory);
+    }
+    segment_size = tsdb.config.getInt("tsd.storage.spool.segment_size");
+    max_size = tsdb.config.getLong("tsd.storage.spool.max_size");
+    latency_threshold =
+      tsdb.config.getInt("tsd.storage.spool.latency_threshold");
+    replay_rate = Math.max(1,
+        tsdb.config.getInt("tsd.storage.spool.replay_rate"));
+    openSegments();
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** @return whether new data points should be appended to the spool.  */
+  boolean isEngaged() {
+    return engaged;
+  }
+
+  /**
+   * Records the latency of a data point put.  A slow put engages the spool.
+   * @param latency_ms The latency of the put, in milliseconds.
+   */
+  void recordLatency(final long latency_ms) {
+    if (latency_ms > latency_threshold) {
+      engage();
+    }
+  }
+
+  /** Signals that a put failed, which engages the spool.  */
+  void recordError() {
+    engage();
+  }
+
+  private void engage() {
+    unhealthy = true;
+    if (!engaged) {
+      engaged_since = System.currentTimeMillis() / 1000;
+      engaged = true;
+      LOG.warn("HBase is failing or slow, spooling data points to "
+               + directory);
+    }
+  }
+
+  /**
+   * Appends a cell to the spool.
+   * @param row The row key.
+   * @param qualifier The qualifier of the cell.
+   * @param value The value of the cell.
+   * @return true if the cell was spooled, false if the spool is full or
+   * failed, in which case the caller must write the cell itself.
+   */
+  boolean append(final byte[] row, final byte[] qualifier,
+                 final byte[] value) {
+    final int size = HEADER_SIZE + 2 + row.length + 2 + qualifier.length
+      + 2 + value.length;
+    if (spooled_bytes.get() + size > max_size
+        || size + 4 > segment_size) {
+      rejected.incrementAndGet();
+      return false;
+    }
+    synchronized (this) {
+      // Leave room for the end marker.
+      if (writer == null || writer.write_pos + size + 4 > segment_size) {
+        if (!newSegment()) {
+          rejected.incrementAndGet();
+          return false;
+        }
+      }
+      final MappedByteBuffer buf = writer.buf;
+      int pos = writer.write_pos + 4;
+      buf.putInt(pos, (int) (System.currentTimeMillis() / 1000));
+      pos += 4;
+      pos = putBytes(buf, pos, row);
+      pos = putBytes(buf, pos, qualifier);
+      pos = putBytes(buf, pos, value);
+      buf.putInt(writer.write_pos, size);
+      writer.write_pos = pos;
+    }
+    spooled_bytes.addAndGet(size);
+    spooled_records.incrementAndGet();
+    appended.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Forces the segments to disk and stops the replay thread.  Records that
+   * weren't replayed yet will be replayed when the TSD restarts.
+   */
+  void shutdown() {
+    thread.interrupt();
+    synchronized (this) {
+      for (final Segment segment : segments) {
+        segment.buf.force();
+      }
+    }
+    if (spooled_records.get() > 0) {
+      LOG.info("Leaving " + spooled_records.get() + " data points in the"
+               + " spool, they'll be replayed on restart");
+    }
+  }
+
+  /**
+   * Replays up to {@code replay_rate} records, and disengages the spool if
+   * HBase looks healthy again.  Called once per second.
+   */
+  void replay() {
+    final long now = System.currentTimeMillis() / 1000;
+    synchronized (this) {
+      for (final Segment segment : segments) {
+        segment.buf.force();
+      }
+    }
+    if (now < backoff_until) {
+      return;
+    }
+    if (engaged && !unhealthy && replays_inflight.get() == 0
+        && (replayed_this_cycle > 0 || now - engaged_since >= COOLDOWN)) {
+      // Replayed puts went fine during the last cycle, or we've been
+      // waiting long enough without anything to test HBase with.
+      engaged = false;
+      LOG.info("HBase is healthy again, no longer spooling data points");
+    }
+    unhealthy = false;
+    replayed_this_cycle = 0;
+
+    // Keep at most a cycle's worth of puts in flight.
+    int budget = replay_rate - replays_inflight.get();
+    while (budget-- > 0) {
+      final Record record = next();
+      if (record == null) {
+        replay_lag = 0;
+        break;
+      }
+      replay_lag = Math.max(0, now - record.time);
+      replays_inflight.incrementAndGet();
+      replayed_this_cycle++;
+      tsdb.put(record.row, record.qualifier, record.value)
+        .addBoth(new ReplayCB(record));
+    }
+  }
+
+  /** @return the next record to replay, or null if there's none.  */
+  private synchronized Record next() {
+    while (!segments.isEmpty()) {
+      final Segment segment = segments.peekFirst();
+      final int pos = segment.read_pos;
+      final int size = pos + 4 <= segment_size ? segment.buf.getInt(pos) : 0;
+      if (size >= HEADER_SIZE + 6 && pos + size <= segment_size
+          && (segment != writer || pos < segment.write_pos)) {
+        segment.read_pos = pos + size;
+        final ByteBuffer buf = segment.buf.duplicate();
+        buf.position(pos + 4);
+        final int time = buf.getInt();
+        final byte[] row = getBytes(buf);
+        final byte[] qualifier = getBytes(buf);
+        final byte[] value = getBytes(buf);
+        return new Record(time, size, row, qualifier, value);
+      }
+      if (segment == writer) {
+        return null;  // Caught up with the appends.
+      }
+      segments.pollFirst();
+      if (!segment.file.delete()) {
+        LOG.warn("Unable to delete spool segment " + segment.file);
+      }
+    }
+    return null;
+  }
+
+  /** Accounts for a replayed record, and spools it again if it failed.  */
+  private final class ReplayCB implements Callback<Object, Object> {
+    private final Record record;
+    private final long start = System.nanoTime();
+
+    ReplayCB(final Record record) {
+      this.record = record;
+    }
+
+    public Object call(final Object arg) {
+      replays_inflight.decrementAndGet();
+      spooled_bytes.addAndGet(-record.size);
+      spooled_records.decrementAndGet();
+      if (arg instanceof Exception) {
+        replay_errors.incrementAndGet();
+        engage();
+        backoff_until = System.currentTimeMillis() / 1000 + BACKOFF;
+        if (!append(record.row, record.qualifier, record.value)) {
+          LOG.error("Unable to spool again a data point that failed to be"
+                    + " replayed, dropping it", (Exception) arg);
+        }
+        return null;
+      }
+      replayed.incrementAndGet();
+      recordLatency((System.nanoTime() - start) / 1000000);
+      tsdb.scheduleForCompaction(record.row,
+          Bytes.getInt(record.row, Const.salt_width() + tsdb.metrics.width()));
+      return null;
+    }
+
+    public String toString() {
+      return "account for replayed data point";
+    }
+  }
+
+  /**
+   * Opens the segments left over by a previous run and counts their
+   * records.  New records always go to a new segment.
+   */
+  private void openSegments() {
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(final File dir, final String name) {
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+    final long[] sequences = new long[files.length];
+    int n = 0;
+    for (final File file : files) {
+      final String name = file.getName();
+      try {
+        sequences[n++] = Long.parseLong(name.substring(PREFIX.length(),
+            name.length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        LOG.warn("Ignoring unexpected file in the spool directory: " + file);
+      }
+    }
+    Arrays.sort(sequences, 0, n);
+    for (int i = 0; i < n; i++) {
+      final File file = segmentFile(sequences[i]);
+      try {
+        final Segment segment = new Segment(file, map(file));
+        int pos = 0;
+        while (pos + 4 <= segment.buf.capacity()) {
+          final int size = segment.buf.getInt(pos);
+          if (size < HEADER_SIZE + 6 || pos + size > segment.buf.capacity()) {
+            break;
+          }
+          pos += size;
+          spooled_bytes.addAndGet(size);
+          spooled_records.incrementAndGet();
+        }
+        segments.addLast(segment);
+      } catch (IOException e) {
+        LOG.error("Unable to open spool segment " + file
+                  + ", its data points won't be replayed", e);
+      }
+      next_segment = sequences[i] + 1;
+    }
+    if (spooled_records.get() > 0) {
+      LOG.info("Replaying " + spooled_records.get() + " data points spooled"
+               + " by a previous run");
+    }
+  }
+
+  /** Starts a new segment to append to.  */
+  private boolean newSegment() {
+    final File file = segmentFile(next_segment++);
+    try {
+      final Segment segment = new Segment(file, map(file));
+      segment.write_pos = 0;
+      segments.addLast(segment);
+      if (writer != null) {
+        writer.buf.force();
+      }
+      writer = segment;
+      return true;
+    } catch (IOException e) {
+      LOG.error("Unable to create spool segment " + file, e);
+      return false;
+    }
+  }
+
+  private File segmentFile(final long sequence) {
+    return new File(directory, PREFIX + sequence + SUFFIX);
+  }
+
+  /** Maps a segment file, creating it if needed.  */
+  private MappedByteBuffer map(final File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      if (raf.length() < segment_size) {
+        raf.setLength(segment_size);
+      }
+      // The mapping remains valid once the file is closed.
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                  raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static int putBytes(final ByteBuffer buf, final int pos,
+                              final byte[] bytes) {
+    buf.putShort(pos, (short) bytes.length);
+    for (int i = 0; i < bytes.length; i++) {
+      buf.put(pos + 2 + i, bytes[i]);
+    }
+    return pos + 2 + bytes.length;
+  }
+
+  private static byte[] getBytes(final ByteBuffer buf) {
+    final byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+    buf.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("spool.engaged", engaged ? 1 : 0);
+    collector.record("spool.size", spooled_bytes.get());
+    collector.record("spool.datapoints", spooled_records.get());
+    collector.record("spool.replay-lag", replay_lag);
+    collector.record("spool.appended", appended.get());
+    collector.record("spool.replayed", replayed.get());
+    collector.record("spool.replay-errors", replay_errors.get());
+    collector.record("spool.rejected", rejected.get());
+  }
+
+  /** A segment file.  */
+  private static final class Segment {
+    final File file;
+    final MappedByteBuffer buf;
+    /** Where the next record will be appended.  */
+    int write_pos;
+    /** Where the next record to replay is.  */
+    int read_pos;
+
+    Segment(final File file, final MappedByteBuffer buf) {
+      this.file = file;
+      this.buf = buf;
+      // Segments we didn't create aren't appended to.
+      write_pos = buf.capacity();
+    }
+  }
+
+  /** A record read from the spool.  */
+  private static final class Record {
+    final int time;
+    final int size;
+    final byte[] row;
+    final byte[] qualifier;
+    final byte[] value;
+
+    Record(final int time, final int size, final byte[] row,
+           final byte[] qualifier, final byte[] value) {
+      this.time = time;
+      this.size = size;
+      this.row = row;
+      this.qualifier = qualifier;
+      this.value = value;
+    }
+  }
+
+  /** Replays spooled data points once per second.  */
+  final class Thrd extends Thread {
+    public Thrd() {
+      super("WriteSpoolReplay");
+    }
+
+    public void run() {
+      while (true) {
+        try {
+          replay();
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in spool replay thread", e);
+        }
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          return;  // We're shutting down.
+        }
+      }
+    }
+  }
+
+}
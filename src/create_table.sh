@@ -14,6 +14,12 @@ TSDB_TABLE=${TSDB_TABLE-'tsdb'}
 UID_TABLE=${UID_TABLE-'tsdb-uid'}
 TREE_TABLE=${TREE_TABLE-'tsdb-tree'}
 META_TABLE=${META_TABLE-'tsdb-meta'}
+ROLLUP_TABLE=${ROLLUP_TABLE-'tsdb-rollup'}
+# Space separated list of rollup tiers, e.g. '1m 1h', matching tsd.rollups.tiers.
+ROLLUP_TIERS=${ROLLUP_TIERS-''}
+# Number of salt buckets when tsd.storage.salt.width is 1, matching
+# tsd.storage.salt.buckets, to pre-split the data tables on bucket boundaries.
+SALT_BUCKETS=${SALT_BUCKETS-''}
 BLOOMFILTER=${BLOOMFILTER-'ROW'}
 # LZO requires lzo2 64bit to be installed + the hadoop-gpl-compression jar.
 COMPRESSION=${COMPRESSION-'LZO'}
@@ -32,17 +38,40 @@ esac
 # they expect can confuse them in some cases.  So rename the variable.
 hbh=$HBASE_HOME
 unset HBASE_HOME
+
+splits=
+if test -n "$SALT_BUCKETS"; then
+  i=1
+  while test $i -lt "$SALT_BUCKETS"; do
+    splits="$splits\"\\x`printf '%02x' $i`\", "
+    i=`expr $i + 1`
+  done
+  test -z "$splits" || splits=", SPLITS => [${splits%, }]"
+fi
+
+rollups=
+for tier in $ROLLUP_TIERS; do
+  rollups="$rollups
+create '$ROLLUP_TABLE-$tier',
+  {NAME => 'sum', VERSIONS => 1, COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'},
+  {NAME => 'count', VERSIONS => 1, COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'},
+  {NAME => 'min', VERSIONS => 1, COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'},
+  {NAME => 'max', VERSIONS => 1, COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'}$splits
+"
+done
+
 exec "$hbh/bin/hbase" shell <<EOF
 create '$UID_TABLE',
   {NAME => 'id', COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'},
   {NAME => 'name', COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'}
 
 create '$TSDB_TABLE',
-  {NAME => 't', VERSIONS => 1, COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'}
+  {NAME => 't', VERSIONS => 1, COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'}$splits
   
 create '$TREE_TABLE',
   {NAME => 't', VERSIONS => 1, COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'}
   
 create '$META_TABLE',
   {NAME => 'name', COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'}
+$rollups
 EOF
@@ -32,6 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.JSON;
@@ -322,18 +323,18 @@ public final class Annotation implements Comparable<Annotation> {
        * Initializes the scanner
        */
       public ScannerCB() {
-        final byte[] start = new byte[TSDB.metrics_width() + 
-                                      Const.TIMESTAMP_BYTES];
-        final byte[] end = new byte[TSDB.metrics_width() + 
-                                    Const.TIMESTAMP_BYTES];
+        final short metric_end = 
+          (short) (Const.salt_width() + TSDB.metrics_width());
+        final byte[] start = new byte[metric_end + Const.TIMESTAMP_BYTES];
+        final byte[] end = new byte[metric_end + Const.TIMESTAMP_BYTES];
         
         final long normalized_start = (start_time - 
             (start_time % Const.MAX_TIMESPAN));
         final long normalized_end = (end_time - 
             (end_time % Const.MAX_TIMESPAN));
         
-        Bytes.setInt(start, (int) normalized_start, TSDB.metrics_width());
-        Bytes.setInt(end, (int) normalized_end, TSDB.metrics_width());
+        Bytes.setInt(start, (int) normalized_start, metric_end);
+        Bytes.setInt(end, (int) normalized_end, metric_end);
 
         scanner = tsdb.getClient().newScanner(tsdb.dataTable());
         scanner.setStartKey(start);
@@ -494,7 +495,9 @@ public final class Annotation implements Comparable<Annotation> {
   /**
    * Calculates the row key based on the TSUID and the start time. If the TSUID 
    * is empty, the row key is a 0 filled byte array {@code TSDB.metrics_width()}
-   * wide plus the normalized start timestamp without any tag bytes.
+   * wide plus the normalized start timestamp without any tag bytes. Either
+   * way the row key starts with the salt if row keys are salted, always 0
+   * for global annotations.
    * @param start_time The start time as a Unix epoch timestamp
    * @param tsuid An optional TSUID if storing a local annotation
    * @return The row key as a byte array
@@ -515,18 +518,22 @@ public final class Annotation implements Comparable<Annotation> {
     
     // if the TSUID is empty, then we're a global annotation. The row key will 
     // just be an empty byte array of metric width plus the timestamp
+    final short metric_end = 
+      (short) (Const.salt_width() + TSDB.metrics_width());
     if (tsuid == null || tsuid.length < 1) {
-      final byte[] row = new byte[TSDB.metrics_width() + Const.TIMESTAMP_BYTES];
-      Bytes.setInt(row, (int) base_time, TSDB.metrics_width());
+      final byte[] row = new byte[metric_end + Const.TIMESTAMP_BYTES];
+      Bytes.setInt(row, (int) base_time, metric_end);
       return row;
     }
     
     // otherwise we need to build the row key from the TSUID and start time
-    final byte[] row = new byte[Const.TIMESTAMP_BYTES + tsuid.length];
-    System.arraycopy(tsuid, 0, row, 0, TSDB.metrics_width());
-    Bytes.setInt(row, (int) base_time, TSDB.metrics_width());
-    System.arraycopy(tsuid, TSDB.metrics_width(), row, TSDB.metrics_width() + 
+    final byte[] row = 
+      new byte[Const.salt_width() + Const.TIMESTAMP_BYTES + tsuid.length];
+    System.arraycopy(tsuid, 0, row, Const.salt_width(), TSDB.metrics_width());
+    Bytes.setInt(row, (int) base_time, metric_end);
+    System.arraycopy(tsuid, TSDB.metrics_width(), row, metric_end + 
         Const.TIMESTAMP_BYTES, (tsuid.length - TSDB.metrics_width()));
+    Internal.prefixKeyWithSalt(row);
     return row;
   }
   
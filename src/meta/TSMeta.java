@@ -513,24 +513,45 @@ public final class TSMeta {
    */
   public static Deferred<Long> incrementAndGetCounter(final TSDB tsdb, 
       final byte[] tsuid) {
+    return incrementAndGetCounter(tsdb, tsuid, 1);
+  }
+  
+  /**
+   * Increments the tsuid datapoint counter by the given amount or creates a
+   * new counter. Also creates a new meta data entry if the counter did not 
+   * exist.
+   * @param tsdb The TSDB to use for storage access
+   * @param tsuid The TSUID to increment or create
+   * @param amount The number of data points to add to the counter, must be
+   * greater than 0
+   * @return 0 if the put failed, a positive LONG if the put was successful
+   * @throws HBaseException if there was a storage issue
+   * @throws JSONException if the data was corrupted
+   * @throws NoSuchUniqueName if one of the UIDMeta objects does not exist
+   * @see #incrementAndGetCounter(TSDB, byte[])
+   * @since 2.1
+   */
+  public static Deferred<Long> incrementAndGetCounter(final TSDB tsdb, 
+      final byte[] tsuid, final long amount) {
     
     /**
-     * Callback that will create a new TSMeta if the increment result is 1 or
-     * will simply return the new value.
+     * Callback that will create a new TSMeta if the increment result is the
+     * amount added, i.e. the counter didn't exist, or will simply return the
+     * new value.
      */
     final class TSMetaCB implements Callback<Deferred<Long>, Long> {
 
       /**
        * Called after incrementing the counter and will create a new TSMeta if
-       * the returned value was 1 as well as pass the new meta through trees
-       * and the search indexer if configured.
+       * the returned value was the amount added as well as pass the new meta 
+       * through trees and the search indexer if configured.
        * @return 0 if the put failed, a positive LONG if the put was successful
        */
       @Override
       public Deferred<Long> call(final Long incremented_value) 
         throws Exception {
         
-        if (incremented_value > 1) {
+        if (incremented_value > amount) {
           // TODO - maybe update the search index every X number of increments?
           // Otherwise the search engine would only get last_updated/count 
           // whenever the user runs the full sync CLI
@@ -608,7 +629,7 @@ public final class TSMeta {
 
     // setup the increment request and execute
     final AtomicIncrementRequest inc = new AtomicIncrementRequest(
-        tsdb.metaTable(), tsuid, FAMILY, COUNTER_QUALIFIER);
+        tsdb.metaTable(), tsuid, FAMILY, COUNTER_QUALIFIER, amount);
     // if the user has disabled real time TSMeta tracking (due to OOM issues)
     // then we only want to increment the data point count.
     if (!tsdb.getConfig().enable_realtime_ts()) {
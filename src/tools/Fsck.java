@@ -138,7 +138,9 @@ final class Fsck {
     int errors = 0;
     int correctable = 0;
 
-    final short metric_width = Internal.metricWidth(tsdb);
+    // The base time follows the salt, if any, and the metric ID.
+    final short timestamp_offset =
+      (short) (Const.salt_width() + Internal.metricWidth(tsdb));
 
     final ArrayList<Query> queries = new ArrayList<Query>();
     CliQuery.parseCommandLineQuery(args, tsdb, queries, null, null);
@@ -150,212 +152,171 @@ final class Fsck {
       long kvcount = 0;
       long rowcount = 0;
       final Bytes.ByteMap<Seen> seen = new Bytes.ByteMap<Seen>();
-      final Scanner scanner = Internal.getScanner(query);
       ArrayList<ArrayList<KeyValue>> rows;
       
       // store every data point for the row in here 
       final TreeMap<Long, ArrayList<DP>> previous = 
         new TreeMap<Long, ArrayList<DP>>();
-      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
-        for (final ArrayList<KeyValue> row : rows) {
-          rowcount++;
-          previous.clear();
-          
-          // Take a copy of the row-key because we're going to zero-out the
-          // timestamp and use that as a key in our `seen' map.
-          final byte[] key = row.get(0).key().clone();
-          final long base_time = Bytes.getUnsignedInt(key, metric_width);
-          for (int i = metric_width; i < metric_width + Const.TIMESTAMP_BYTES; i++) {
-            key[i] = 0;
-          }
-          Seen prev = seen.get(key);
-          if (prev == null) {
-            prev = new Seen(base_time - 1, row.get(0));
-            seen.put(key, prev);
-          }
-          for (final KeyValue kv : row) {
-            kvcount++;
-            if (kvcount % 100000 == 0) {
-              final long now = System.nanoTime();
-              ping_start_time = (now - ping_start_time) / 1000000;
-              LOG.info("... " + kvcount + " KV analyzed in " + ping_start_time
-                       + "ms (" + (100000 * 1000 / ping_start_time) + " KVs/s)");
-              ping_start_time = now;
+      for (final Scanner scanner : Internal.getScanners(query)) {
+        while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+          for (final ArrayList<KeyValue> row : rows) {
+            rowcount++;
+            previous.clear();
+            
+            // Take a copy of the row-key because we're going to zero-out the
+            // timestamp and use that as a key in our `seen' map.
+            final byte[] key = row.get(0).key().clone();
+            final long base_time = Bytes.getUnsignedInt(key, timestamp_offset);
+            for (int i = timestamp_offset;
+                 i < timestamp_offset + Const.TIMESTAMP_BYTES; i++) {
+              key[i] = 0;
+            }
+            Seen prev = seen.get(key);
+            if (prev == null) {
+              prev = new Seen(base_time - 1, row.get(0));
+              seen.put(key, prev);
             }
-            byte[] value = kv.value();
-            final byte[] qual = kv.qualifier();
-            if (qual.length < 2) {
-              errors++;
-              LOG.error("Invalid qualifier, must be on 2 bytes or more.\n\t"
-                        + kv);
-              continue;
-            } else if (qual.length % 2 != 0) {
-              if (qual.length != 3 && qual.length != 5) {
+            for (final KeyValue kv : row) {
+              kvcount++;
+              if (kvcount % 100000 == 0) {
+                final long now = System.nanoTime();
+                ping_start_time = (now - ping_start_time) / 1000000;
+                LOG.info("... " + kvcount + " KV analyzed in " + ping_start_time
+                         + "ms (" + (100000 * 1000 / ping_start_time) + " KVs/s)");
+                ping_start_time = now;
+              }
+              byte[] value = kv.value();
+              final byte[] qual = kv.qualifier();
+              if (qual.length < 2) {
                 errors++;
-                LOG.error("Found unknown column in row.\n\t" + kv);
+                LOG.error("Invalid qualifier, must be on 2 bytes or more.\n\t"
+                          + kv);
                 continue;
-              }
-              
-              // check for known types using the prefix. If the type is unknown
-              // it could just be from a future version so don't flag it as an
-              // error. Log it via debugging.
-              if (qual[0] == Annotation.PREFIX()) {
+              } else if (qual.length % 2 != 0) {
+                if (qual.length != 3 && qual.length != 5) {
+                  errors++;
+                  LOG.error("Found unknown column in row.\n\t" + kv);
+                  continue;
+                }
+                
+                // check for known types using the prefix. If the type is unknown
+                // it could just be from a future version so don't flag it as an
+                // error. Log it via debugging.
+                if (qual[0] == Annotation.PREFIX()) {
+                  continue;
+                }
+                LOG.debug("Found an object from a future version of OpenTSDB\n\t" 
+                    + kv);
                 continue;
-              }
-              LOG.debug("Found an object from a future version of OpenTSDB\n\t" 
-                  + kv);
-              continue;
-            } else if (qual.length == 4 && !Internal.inMilliseconds(qual[0])
-                || qual.length > 4) {
-              // compacted row
-              if (value[value.length - 1] > Const.MS_MIXED_COMPACT) {
-                errors++;
-                LOG.error("The last byte of a compacted should be 0 or 1. Either"
-                          + " this value is corrupted or it was written by a"
-                          + " future version of OpenTSDB.\n\t" + kv);
+              } else if (qual.length == 4 && !Internal.inMilliseconds(qual[0])
+                  || qual.length > 4) {
+                // compacted row
+                if (value[value.length - 1] > Const.MS_MIXED_COMPACT) {
+                  errors++;
+                  LOG.error("The last byte of a compacted should be 0 or 1. Either"
+                            + " this value is corrupted or it was written by a"
+                            + " future version of OpenTSDB.\n\t" + kv);
+                  continue;
+                }
+                
+                // add every cell in the compacted column to the previously seen
+                // data point tree so that we can scan for duplicate timestamps
+                try {
+                  final ArrayList<Cell> cells = Internal.extractDataPoints(kv); 
+                  for (Cell cell : cells) {
+                    final long ts = cell.timestamp(base_time);
+                    ArrayList<DP> dps = previous.get(ts);
+                    if (dps == null) {
+                      dps = new ArrayList<DP>(1);
+                      previous.put(ts, dps);
+                    }
+                    dps.add(new DP(kv.timestamp(), kv.qualifier(), true));
+                  }
+                } catch (IllegalDataException e) {
+                  errors++;
+                  LOG.error(e.getMessage());
+                }
+                
+                // TODO - validate the compaction
                 continue;
+              } // else: qualifier is on 2 or 4 bytes, it's an individual value.
+
+              final long timestamp = 
+                Internal.getTimestampFromQualifier(qual, base_time);
+              ArrayList<DP> dps = previous.get(timestamp);
+              if (dps == null) {
+                dps = new ArrayList<DP>(1);
+                previous.put(timestamp, dps);
               }
+              dps.add(new DP(kv.timestamp(), kv.qualifier(), false));
               
-              // add every cell in the compacted column to the previously seen
-              // data point tree so that we can scan for duplicate timestamps
-              try {
-                final ArrayList<Cell> cells = Internal.extractDataPoints(kv); 
-                for (Cell cell : cells) {
-                  final long ts = cell.timestamp(base_time);
-                  ArrayList<DP> dps = previous.get(ts);
-                  if (dps == null) {
-                    dps = new ArrayList<DP>(1);
-                    previous.put(ts, dps);
-                  }
-                  dps.add(new DP(kv.timestamp(), kv.qualifier(), true));
-                }
-              } catch (IllegalDataException e) {
+              if (value.length > 8) {
                 errors++;
-                LOG.error(e.getMessage());
+                LOG.error("Value more than 8 byte long with a " 
+                          + kv.qualifier().length + "-byte qualifier.\n\t" + kv);
               }
-              
-              // TODO - validate the compaction
-              continue;
-            } // else: qualifier is on 2 or 4 bytes, it's an individual value.
-
-            final long timestamp = 
-              Internal.getTimestampFromQualifier(qual, base_time);
-            ArrayList<DP> dps = previous.get(timestamp);
-            if (dps == null) {
-              dps = new ArrayList<DP>(1);
-              previous.put(timestamp, dps);
-            }
-            dps.add(new DP(kv.timestamp(), kv.qualifier(), false));
-            
-            if (value.length > 8) {
-              errors++;
-              LOG.error("Value more than 8 byte long with a " 
-                        + kv.qualifier().length + "-byte qualifier.\n\t" + kv);
-            }
-            // TODO(tsuna): Don't hardcode 0x8 / 0x3 here.
-            if (qual.length == 2 && 
-                Internal.getFlagsFromQualifier(qual) == (0x8 | 0x3)) {  // float | 4 bytes
-              // The qualifier says the value is on 4 bytes, and the value is
-              // on 8 bytes, then the 4 MSBs must be 0s.  Old versions of the
-              // code were doing this.  It's kinda sad.  Some versions had a
-              // bug whereby the value would be sign-extended, so we can
-              // detect these values and fix them here.
-              if (value.length == 8) {
-                if (value[0] == -1 && value[1] == -1
-                    && value[2] == -1 && value[3] == -1) {
-                  errors++;
-                  correctable++;
-                  if (fix) {
-                    value = value.clone();  // We're going to change it.
-                    value[0] = value[1] = value[2] = value[3] = 0;
-                    client.put(new PutRequest(table, kv.key(), kv.family(),
-                                              qual, value));
-                  } else {
-                    LOG.error("Floating point value with 0xFF most significant"
-                              + " bytes, probably caused by sign extension bug"
-                              + " present in revisions [96908436..607256fc].\n"
-                              + "\t" + kv);
+              // TODO(tsuna): Don't hardcode 0x8 / 0x3 here.
+              if (qual.length == 2 && 
+                  Internal.getFlagsFromQualifier(qual) == (0x8 | 0x3)) {  // float | 4 bytes
+                // The qualifier says the value is on 4 bytes, and the value is
+                // on 8 bytes, then the 4 MSBs must be 0s.  Old versions of the
+                // code were doing this.  It's kinda sad.  Some versions had a
+                // bug whereby the value would be sign-extended, so we can
+                // detect these values and fix them here.
+                if (value.length == 8) {
+                  if (value[0] == -1 && value[1] == -1
+                      && value[2] == -1 && value[3] == -1) {
+                    errors++;
+                    correctable++;
+                    if (fix) {
+                      value = value.clone();  // We're going to change it.
+                      value[0] = value[1] = value[2] = value[3] = 0;
+                      client.put(new PutRequest(table, kv.key(), kv.family(),
+                                                qual, value));
+                    } else {
+                      LOG.error("Floating point value with 0xFF most significant"
+                                + " bytes, probably caused by sign extension bug"
+                                + " present in revisions [96908436..607256fc].\n"
+                                + "\t" + kv);
+                    }
+                  } else if (value[0] != 0 || value[1] != 0
+                             || value[2] != 0 || value[3] != 0) {
+                    errors++;
                   }
-                } else if (value[0] != 0 || value[1] != 0
-                           || value[2] != 0 || value[3] != 0) {
+                } else if (value.length != 4) {
                   errors++;
+                  LOG.error("This floating point value must be encoded either on"
+                            + " 4 or 8 bytes, but it's on " + value.length
+                            + " bytes.\n\t" + kv);
                 }
-              } else if (value.length != 4) {
-                errors++;
-                LOG.error("This floating point value must be encoded either on"
-                          + " 4 or 8 bytes, but it's on " + value.length
-                          + " bytes.\n\t" + kv);
               }
             }
-          }
 
-          // scan for dupes
-          for (Map.Entry<Long, ArrayList<DP>> time_map : previous.entrySet()) {
-            if (time_map.getValue().size() < 2) {
-              continue;
-            }
-            
-            // for now, delete the non-compacted dupes
-            int compacted = 0;
-            long earliest_value = Long.MAX_VALUE;
-            for (DP dp : time_map.getValue()) {
-              if (dp.compacted) {
-                compacted++;
-              }
-              if (dp.stored_timestamp < earliest_value) {
-                earliest_value = dp.stored_timestamp;
+            // scan for dupes
+            for (Map.Entry<Long, ArrayList<DP>> time_map : previous.entrySet()) {
+              if (time_map.getValue().size() < 2) {
+                continue;
               }
-            }
-            
-            // if there are more than one compacted columns with the same
-            // timestamp, something went pear shaped and we need more work to
-            // figure out what to do
-            if (compacted > 1) {
-              errors++;
-              buf.setLength(0);
-              buf.append("More than one compacted column had a value for the same timestamp: ")
-                 .append("timestamp: (")
-                 .append(time_map.getKey())
-                 .append(")\n");
+              
+              // for now, delete the non-compacted dupes
+              int compacted = 0;
+              long earliest_value = Long.MAX_VALUE;
               for (DP dp : time_map.getValue()) {
-                buf.append("    ")
-                   .append(Arrays.toString(dp.qualifier))
-                   .append("\n");
-              }
-              LOG.error(buf.toString());
-            } else {
-              errors++;
-              correctable++;
-              if (fix) {
-                if (compacted < 1) {
-                  // keep the earliest value
-                  boolean matched = false;
-                  for (DP dp : time_map.getValue()) {
-                    if (dp.stored_timestamp == earliest_value && !matched) {
-                      matched = true;
-                      continue;
-                    }
-                    final DeleteOutOfOrder delooo = 
-                      new DeleteOutOfOrder(row.get(0).key(), 
-                          "t".getBytes(), dp.qualifier);
-                    delooo.call(null);
-                  }
-                } else {
-                  // keep the compacted value
-                  for (DP dp : time_map.getValue()) {
-                    if (dp.compacted) {
-                      continue;
-                    }
-                    
-                    final DeleteOutOfOrder delooo = 
-                      new DeleteOutOfOrder(row.get(0).key(),
-                          "t".getBytes(), dp.qualifier);
-                    delooo.call(null);
-                  }
+                if (dp.compacted) {
+                  compacted++;
                 }
-              } else {
+                if (dp.stored_timestamp < earliest_value) {
+                  earliest_value = dp.stored_timestamp;
+                }
+              }
+              
+              // if there are more than one compacted columns with the same
+              // timestamp, something went pear shaped and we need more work to
+              // figure out what to do
+              if (compacted > 1) {
+                errors++;
                 buf.setLength(0);
-                buf.append("More than one column had a value for the same timestamp: ")
+                buf.append("More than one compacted column had a value for the same timestamp: ")
                    .append("timestamp: (")
                    .append(time_map.getKey())
                    .append(")\n");
@@ -365,6 +326,49 @@ final class Fsck {
                      .append("\n");
                 }
                 LOG.error(buf.toString());
+              } else {
+                errors++;
+                correctable++;
+                if (fix) {
+                  if (compacted < 1) {
+                    // keep the earliest value
+                    boolean matched = false;
+                    for (DP dp : time_map.getValue()) {
+                      if (dp.stored_timestamp == earliest_value && !matched) {
+                        matched = true;
+                        continue;
+                      }
+                      final DeleteOutOfOrder delooo = 
+                        new DeleteOutOfOrder(row.get(0).key(), 
+                            "t".getBytes(), dp.qualifier);
+                      delooo.call(null);
+                    }
+                  } else {
+                    // keep the compacted value
+                    for (DP dp : time_map.getValue()) {
+                      if (dp.compacted) {
+                        continue;
+                      }
+                      
+                      final DeleteOutOfOrder delooo = 
+                        new DeleteOutOfOrder(row.get(0).key(),
+                            "t".getBytes(), dp.qualifier);
+                      delooo.call(null);
+                    }
+                  }
+                } else {
+                  buf.setLength(0);
+                  buf.append("More than one column had a value for the same timestamp: ")
+                     .append("timestamp: (")
+                     .append(time_map.getKey())
+                     .append(")\n");
+                  for (DP dp : time_map.getValue()) {
+                    buf.append("    ")
+                       .append(Arrays.toString(dp.qualifier))
+                       .append("\n");
+                  }
+                  LOG.error(buf.toString());
+                }
               }
             }
           }
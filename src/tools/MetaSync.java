@@ -20,6 +20,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.TSMeta;
 import net.opentsdb.meta.UIDMeta;
@@ -303,7 +304,9 @@ final class MetaSync extends Thread {
     final class MetaScanner implements Callback<Object, 
       ArrayList<ArrayList<KeyValue>>> {
       
-      private final Scanner scanner;
+      private Scanner scanner;
+      /** The salt bucket being scanned, when row keys are salted */
+      private int salt_bucket = 0;
       private byte[] last_tsuid = null;
       private String tsuid_string = "";
       
@@ -311,7 +314,7 @@ final class MetaSync extends Thread {
        * Default constructor that initializes the data row scanner
        */
       public MetaScanner() {
-        scanner = getScanner();
+        scanner = getScanner(salt_bucket);
       }
       
       /**
@@ -328,6 +331,11 @@ final class MetaSync extends Thread {
       public Object call(ArrayList<ArrayList<KeyValue>> rows)
           throws Exception {
         if (rows == null) {
+          if (++salt_bucket < Const.salt_buckets()) {
+            // move on to the same range of metrics in the next bucket
+            scanner = getScanner(salt_bucket);
+            return scan();
+          }
           result.callback(null);
           return null;
         }
@@ -357,7 +365,7 @@ final class MetaSync extends Thread {
           // row for use as the "created" time. Depending on speed we could 
           // parse datapoints, but for now the hourly row time is enough
           final long timestamp = Bytes.getUnsignedInt(row.get(0).key(), 
-              TSDB.metrics_width());
+              Const.salt_width() + TSDB.metrics_width());
           
           LOG.debug("[" + thread_id + "] Processing TSUID: " + tsuid_string + 
               "  row timestamp: " + timestamp);
@@ -524,15 +532,22 @@ final class MetaSync extends Thread {
   
   /**
    * Returns a scanner set to scan the range configured for this thread
+   * @param salt_bucket The salt bucket to scan, ignored if row keys aren't
+   * salted
    * @return A scanner on the "t" CF configured for the specified range
    * @throws HBaseException if something goes boom
    */
-  private Scanner getScanner() throws HBaseException {
+  private Scanner getScanner(final int salt_bucket) throws HBaseException {
     final short metric_width = TSDB.metrics_width();
-    final byte[] start_row = 
-      Arrays.copyOfRange(Bytes.fromLong(start_id), 8 - metric_width, 8);
-    final byte[] end_row = 
-      Arrays.copyOfRange(Bytes.fromLong(end_id), 8 - metric_width, 8);
+    final short salt_width = Const.salt_width();
+    final byte[] start_row = new byte[salt_width + metric_width];
+    final byte[] end_row = new byte[salt_width + metric_width];
+    System.arraycopy(Bytes.fromLong(start_id), 8 - metric_width, 
+        start_row, salt_width, metric_width);
+    System.arraycopy(Bytes.fromLong(end_id), 8 - metric_width, 
+        end_row, salt_width, metric_width);
+    Internal.setSaltBucket(start_row, salt_bucket);
+    Internal.setSaltBucket(end_row, salt_bucket);
 
     LOG.debug("[" + thread_id + "] Start row: " + UniqueId.uidToString(start_row));
     LOG.debug("[" + thread_id + "] End row: " + UniqueId.uidToString(end_row));
@@ -17,7 +17,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 
 import com.stumbleupon.async.Callback;
@@ -31,6 +38,8 @@ import org.hbase.async.HBaseRpc;
 import org.hbase.async.PleaseThrottleException;
 import org.hbase.async.PutRequest;
 
+import net.opentsdb.core.BulkImporter;
+import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Tags;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.WritableDataPoints;
@@ -41,6 +50,9 @@ final class TextImporter {
 
   private static final Logger LOG = LoggerFactory.getLogger(TextImporter.class);
 
+  /** Number of lines read before resolving their series in one batch.  */
+  private static final int BULK_BATCH_SIZE = 10000;
+
   /** Prints usage and exits with the given retval.  */
   static void usage(final ArgP argp, final int retval) {
     System.err.println("Usage: import path [more paths]");
@@ -53,6 +65,12 @@ final class TextImporter {
     ArgP argp = new ArgP();
     CliOptions.addCommon(argp);
     CliOptions.addAutoMetricFlag(argp);
+    argp.addOption("--bulk", "Write each row once, already compacted, instead"
+                   + " of one data point at a time.  For backfills.");
+    argp.addOption("--threads", "NUM", "Number of files to import in parallel"
+                   + " with --bulk (default: 1).");
+    argp.addOption("--max-points", "NUM", "Maximum number of data points to"
+                   + " buffer with --bulk (default: 10000000).");
     args = CliOptions.parse(argp, args);
     if (args == null) {
       usage(argp, 1);
@@ -63,14 +81,25 @@ final class TextImporter {
     // get a config object
     Config config = CliOptions.getConfig(argp);
     
+    final boolean bulk = argp.has("--bulk");
+    final int threads = Integer.parseInt(argp.get("--threads", "1"));
+    final long max_points = Long.parseLong(argp.get("--max-points",
+                                                    "10000000"));
+    if (threads < 1) {
+      usage(argp, 2);
+    }
     final TSDB tsdb = new TSDB(config);
     tsdb.checkNecessaryTablesExist().joinUninterruptibly();
     argp = null;
     try {
-      int points = 0;
+      long points = 0;
       final long start_time = System.nanoTime();
-      for (final String path : args) {
-        points += importFile(tsdb.getClient(), tsdb, path);
+      if (bulk) {
+        points = bulkImport(tsdb, args, threads, max_points);
+      } else {
+        for (final String path : args) {
+          points += importFile(tsdb.getClient(), tsdb, path);
+        }
       }
       final double time_delta = (System.nanoTime() - start_time) / 1000000000.0;
       LOG.info(String.format("Total: imported %d data points in %.3fs"
@@ -127,26 +156,11 @@ final class TextImporter {
       };
       final Errback errback = new Errback();
       while ((line = in.readLine()) != null) {
-        final String[] words = Tags.splitString(line, ' ');
-        final String metric = words[0];
-        if (metric.length() <= 0) {
-          throw new RuntimeException("invalid metric: " + metric);
-        }
-        final long timestamp = Tags.parseLong(words[1]);
-        if (timestamp <= 0) {
-          throw new RuntimeException("invalid timestamp: " + timestamp);
-        }
-        final String value = words[2];
-        if (value.length() <= 0) {
-          throw new RuntimeException("invalid value: " + value);
-        }
-        final HashMap<String, String> tags = new HashMap<String, String>();
-        for (int i = 3; i < words.length; i++) {
-          if (!words[i].isEmpty()) {
-            Tags.parse(tags, words[i]);
-          }
-        }
-        final WritableDataPoints dp = getDataPoints(tsdb, metric, tags);
+        final IncomingDataPoint point = parseLine(line);
+        final WritableDataPoints dp = getDataPoints(tsdb, point.getMetric(),
+                                                    point.getTags());
+        final long timestamp = point.getTimestamp();
+        final String value = point.getValue();
         Deferred<Object> d;
         if (Tags.looksLikeInteger(value)) {
           d = dp.addPoint(timestamp, Tags.parseLong(value));
@@ -195,6 +209,177 @@ final class TextImporter {
     return points;
   }
 
+  /**
+   * Imports the given files in bulk: each row is written once, already
+   * compacted, instead of one data point at a time.
+   * @param tsdb The TSDB to import into.
+   * @param paths The files to import.
+   * @param threads How many files to read in parallel.
+   * @param max_points Maximum number of data points to buffer.
+   * @return The number of data points imported.
+   */
+  private static long bulkImport(final TSDB tsdb,
+                                 final String[] paths,
+                                 final int threads,
+                                 final long max_points) throws Exception {
+    final BulkImporter importer = tsdb.newBulkImporter(max_points);
+    final ConcurrentLinkedQueue<String> queue =
+      new ConcurrentLinkedQueue<String>(Arrays.asList(paths));
+    // Row key templates of the series seen so far, shared by all threads.
+    final ConcurrentHashMap<String, byte[]> series =
+      new ConcurrentHashMap<String, byte[]>();
+    final AtomicLong points = new AtomicLong();
+    final AtomicReference<Exception> failure =
+      new AtomicReference<Exception>();
+
+    /** Imports files from the queue until it's empty.  */
+    final class ImportThread extends Thread {
+      ImportThread(final int id) {
+        super("ImportThread-" + id);
+      }
+
+      public void run() {
+        String path;
+        while (failure.get() == null && (path = queue.poll()) != null) {
+          try {
+            points.addAndGet(bulkImportFile(tsdb, importer, series, path));
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      }
+    }
+
+    final ImportThread[] workers =
+      new ImportThread[Math.min(threads, paths.length)];
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new ImportThread(i);
+      workers[i].start();
+    }
+    for (final ImportThread worker : workers) {
+      worker.join();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    importer.flush().joinUninterruptibly();
+    importer.collectStats(new StatsCollector("tsd") {
+      @Override
+      public final void emit(final String line) {
+        System.err.print(line);
+      }
+    });
+    return points.get();
+  }
+
+  /**
+   * Reads a file and hands its data points to the bulk importer.  Lines are
+   * read in batches, the series first seen in a batch are resolved all at
+   * once, and then the data points of the batch are buffered.
+   * @param tsdb The TSDB to import into.
+   * @param importer The importer buffering the rows.
+   * @param series The row key templates of the series already resolved.
+   * @param path The file to import.
+   * @return The number of data points imported.
+   */
+  private static long bulkImportFile(final TSDB tsdb,
+      final BulkImporter importer,
+      final ConcurrentHashMap<String, byte[]> series,
+      final String path) throws Exception {
+    final long start_time = System.nanoTime();
+    final BufferedReader in = open(path);
+    final ArrayList<IncomingDataPoint> batch =
+      new ArrayList<IncomingDataPoint>(BULK_BATCH_SIZE);
+    final ArrayList<String> keys = new ArrayList<String>(BULK_BATCH_SIZE);
+    final HashMap<String, Deferred<byte[]>> unresolved =
+      new HashMap<String, Deferred<byte[]>>();
+    String line = null;
+    long points = 0;
+    try {
+      do {
+        line = in.readLine();
+        if (line != null) {
+          final IncomingDataPoint dp = parseLine(line);
+          final String key = dp.getMetric() + dp.getTags();
+          if (!series.containsKey(key) && !unresolved.containsKey(key)) {
+            unresolved.put(key, tsdb.resolveSeriesAsync(dp.getMetric(),
+                                                        dp.getTags()));
+          }
+          batch.add(dp);
+          keys.add(key);
+          if (batch.size() < BULK_BATCH_SIZE) {
+            continue;
+          }
+        }
+        // All the lookups are already in flight, wait for them.
+        for (final Map.Entry<String, Deferred<byte[]>> entry
+             : unresolved.entrySet()) {
+          series.put(entry.getKey(), entry.getValue().joinUninterruptibly());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+          final IncomingDataPoint dp = batch.get(i);
+          final byte[] row_template = series.get(keys.get(i));
+          final String value = dp.getValue();
+          if (Tags.looksLikeInteger(value)) {
+            importer.addPoint(row_template, dp.getTimestamp(),
+                              Tags.parseLong(value));
+          } else {  // floating point value
+            importer.addPoint(row_template, dp.getTimestamp(),
+                              Float.parseFloat(value));
+          }
+        }
+        points += batch.size();
+        batch.clear();
+        keys.clear();
+        unresolved.clear();
+        // Don't buffer more than we're allowed to, or get ahead of HBase.
+        importer.flushOldest().joinUninterruptibly();
+      } while (line != null);
+    } catch (RuntimeException e) {
+        LOG.error("Exception caught while processing file "
+                  + path + " line=" + line);
+        throw e;
+    } finally {
+      in.close();
+    }
+    final long time_delta = (System.nanoTime() - start_time) / 1000000;
+    LOG.info(String.format("Processed %s in %d ms, %d data points"
+                           + " (%.1f points/s)",
+                           path, time_delta, points,
+                           (points * 1000.0 / time_delta)));
+    return points;
+  }
+
+  /**
+   * Parses a line of the import format:
+   * {@code metric timestamp value tagk1=tagv1 [tagk2=tagv2 ...]}.
+   * @param line The line to parse.
+   * @return The data point found on the line.
+   * @throws RuntimeException if the line is invalid.
+   */
+  private static IncomingDataPoint parseLine(final String line) {
+    final String[] words = Tags.splitString(line, ' ');
+    final String metric = words[0];
+    if (metric.length() <= 0) {
+      throw new RuntimeException("invalid metric: " + metric);
+    }
+    final long timestamp = Tags.parseLong(words[1]);
+    if (timestamp <= 0) {
+      throw new RuntimeException("invalid timestamp: " + timestamp);
+    }
+    final String value = words[2];
+    if (value.length() <= 0) {
+      throw new RuntimeException("invalid value: " + value);
+    }
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    for (int i = 3; i < words.length; i++) {
+      if (!words[i].isEmpty()) {
+        Tags.parse(tags, words[i]);
+      }
+    }
+    return new IncomingDataPoint(metric, timestamp, value, tags);
+  }
+
   /**
    * Opens a file for reading, handling gzipped files.
    * @param path The file to open.
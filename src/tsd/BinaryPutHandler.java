@@ -0,0 +1,434 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.NoSuchUniqueName;
+
+/**
+ * Handles the binary ingest protocol, a compact alternative to the telnet
+ * style "put" command for clients sending lots of data points.
+ * <p>
+ * A connection using this protocol starts with the {@link #MAGIC} byte,
+ * followed by frames.  Every frame starts with its length on 4 bytes (not
+ * including the length itself) followed by a 1 byte frame type.  All
+ * numbers are big endian and strings are UTF-8 prefixed with their length
+ * on 2 bytes (unsigned).
+ * <ul>
+ * <li>{@link #TYPE_SERIES}: defines a series.  Series ID (4 bytes), metric
+ * (string), number of tags (2 bytes, unsigned), then each tag name and value
+ * (strings).  Defining an existing ID again replaces the series.</li>
+ * <li>{@link #TYPE_POINTS}: any number of data points, each made of a series
+ * ID (4 bytes), a timestamp in seconds or milliseconds (8 bytes), a value
+ * type (1 byte) and the value: 8 bytes for {@link #VALUE_LONG} and
+ * {@link #VALUE_DOUBLE}, 4 bytes for {@link #VALUE_FLOAT}.</li>
+ * </ul>
+ * Like with the telnet protocol, the TSD only replies when something goes
+ * wrong, with a {@link #TYPE_ERROR} frame made of the series ID the error
+ * relates to (4 bytes, -1 if none) and a message (string).
+ * <p>
+ * The series are kept per connection and their row key is resolved only
+ * once, when they're defined, so writing a data point doesn't involve any
+ * parsing, UID lookup or allocation of tag maps.  Data points received
+ * while their series is being resolved are held until it's done.
+ * @since 2.1
+ */
+final class BinaryPutHandler extends SimpleChannelUpstreamHandler {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(BinaryPutHandler.class);
+
+  /** First byte sent on a connection using the binary protocol. */
+  static final byte MAGIC = (byte) 0x81;
+
+  /** Frame type defining a series. */
+  static final byte TYPE_SERIES = 1;
+  /** Frame type carrying data points. */
+  static final byte TYPE_POINTS = 2;
+  /** Frame type sent back to the client to report an error. */
+  static final byte TYPE_ERROR = 3;
+
+  /** Integer value, on 8 bytes. */
+  static final byte VALUE_LONG = 0;
+  /** Single precision floating point value, on 4 bytes. */
+  static final byte VALUE_FLOAT = 1;
+  /** Double precision floating point value, on 8 bytes. */
+  static final byte VALUE_DOUBLE = 2;
+
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  private static final AtomicLong frames = new AtomicLong();
+  private static final AtomicLong series_defined = new AtomicLong();
+  private static final AtomicLong datapoints = new AtomicLong();
+  private static final AtomicLong errors = new AtomicLong();
+
+  /** The TSDB to write to. */
+  private final TSDB tsdb;
+
+  /** Maximum number of series a connection can define. */
+  private final int max_series;
+
+  /** The series defined on this connection, by ID. */
+  private final HashMap<Integer, Series> series = new HashMap<Integer, Series>();
+
+  /** Callback invoked once every data point is written, or failed. */
+  private PutDoneCB put_done;
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to write to.
+   * @param max_series Maximum number of series a connection can define.
+   */
+  public BinaryPutHandler(final TSDB tsdb, final int max_series) {
+    this.tsdb = tsdb;
+    this.max_series = max_series;
+  }
+
+  @Override
+  public void messageReceived(final ChannelHandlerContext ctx,
+                              final MessageEvent e) {
+    final Channel chan = ctx.getChannel();
+    final ChannelBuffer frame = (ChannelBuffer) e.getMessage();
+    if (!frame.readable()) {
+      return;
+    }
+    frames.incrementAndGet();
+    if (put_done == null) {
+      put_done = new PutDoneCB(chan);
+    }
+    final byte type = frame.readByte();
+    try {
+      switch (type) {
+        case TYPE_SERIES:
+          defineSeries(chan, frame);
+          break;
+        case TYPE_POINTS:
+          while (frame.readable()) {
+            readPoint(chan, frame);
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("unknown frame type " + type);
+      }
+    } catch (IndexOutOfBoundsException ex) {
+      errors.incrementAndGet();
+      sendError(chan, -1, "truncated frame");
+    } catch (IllegalArgumentException ex) {
+      // The rest of the frame can't be trusted.
+      errors.incrementAndGet();
+      sendError(chan, -1, ex.getMessage());
+    }
+  }
+
+  /** Reads the definition of a series and starts resolving its row key. */
+  private void defineSeries(final Channel chan, final ChannelBuffer frame) {
+    final int id = frame.readInt();
+    final String metric = readString(frame);
+    final int ntags = frame.readUnsignedShort();
+    final HashMap<String, String> tags = new HashMap<String, String>(ntags);
+    for (int i = 0; i < ntags; i++) {
+      tags.put(readString(frame), readString(frame));
+    }
+    if (series.size() >= max_series && !series.containsKey(id)) {
+      errors.incrementAndGet();
+      sendError(chan, id, "too many series on this connection, the maximum"
+                + " is " + max_series);
+      return;
+    }
+    series_defined.incrementAndGet();
+    final Series s = new Series(metric, tags);
+    series.put(id, s);
+    try {
+      tsdb.resolveSeriesAsync(metric, tags)
+        .addCallbacks(new ResolvedCB(chan, id, s),
+                      new ResolveErrback(chan, id, s));
+    } catch (IllegalArgumentException ex) {
+      synchronized (s) {
+        s.failed = true;
+      }
+      errors.incrementAndGet();
+      sendError(chan, id, "invalid series: " + ex.getMessage());
+    }
+  }
+
+  /** Reads a single data point and writes it, or holds on to it. */
+  private void readPoint(final Channel chan, final ChannelBuffer frame) {
+    final int id = frame.readInt();
+    final long timestamp = frame.readLong();
+    final byte value_type = frame.readByte();
+    final long value;
+    switch (value_type) {
+      case VALUE_LONG:
+      case VALUE_DOUBLE:
+        value = frame.readLong();
+        break;
+      case VALUE_FLOAT:
+        value = frame.readInt();
+        break;
+      default:
+        throw new IllegalArgumentException("unknown value type " + value_type
+                                           + " for series " + id);
+    }
+    datapoints.incrementAndGet();
+    final Series s = series.get(id);
+    if (s == null) {
+      errors.incrementAndGet();
+      sendError(chan, id, "undefined series");
+      return;
+    }
+    final byte[] row;
+    synchronized (s) {
+      if (s.failed) {
+        // The error was already reported when the series was defined.
+        errors.incrementAndGet();
+        return;
+      }
+      row = s.row;
+      if (row == null) {
+        s.hold(timestamp, value_type, value);
+        ConnectionManager.putStarted(chan);
+        return;
+      }
+    }
+    ConnectionManager.putStarted(chan);
+    writePoint(chan, id, s, row, timestamp, value_type, value);
+  }
+
+  /**
+   * Writes a data point whose series is resolved.  The caller must have
+   * called {@link ConnectionManager#putStarted} for it.
+   */
+  private void writePoint(final Channel chan, final int id, final Series s,
+                          final byte[] row, final long timestamp,
+                          final byte value_type, final long value) {
+    final Deferred<Object> d;
+    try {
+      switch (value_type) {
+        case VALUE_LONG:
+          d = tsdb.addPointToSeries(row, s.metric, timestamp, value, s.tags);
+          break;
+        case VALUE_FLOAT:
+          d = tsdb.addPointToSeries(row, s.metric, timestamp,
+              Float.intBitsToFloat((int) value), s.tags);
+          break;
+        default:
+          d = tsdb.addPointToSeries(row, s.metric, timestamp,
+              Double.longBitsToDouble(value), s.tags);
+          break;
+      }
+    } catch (IllegalArgumentException ex) {
+      ConnectionManager.putCompleted(chan);
+      errors.incrementAndGet();
+      sendError(chan, id, ex.getMessage());
+      return;
+    }
+    d.addBoth(put_done);
+  }
+
+  /**
+   * Sends an error frame to the client.
+   * @param chan The channel to write to.
+   * @param id The ID of the series the error relates to, or -1.
+   * @param message The error message.
+   */
+  private static void sendError(final Channel chan, final int id,
+                                final String message) {
+    if (!chan.isConnected()) {
+      return;
+    }
+    byte[] msg = String.valueOf(message).getBytes(CHARSET);
+    if (msg.length > 0xFFFF) {
+      final byte[] truncated = new byte[0xFFFF];
+      System.arraycopy(msg, 0, truncated, 0, truncated.length);
+      msg = truncated;
+    }
+    final ChannelBuffer buf = ChannelBuffers.buffer(4 + 1 + 4 + 2 + msg.length);
+    buf.writeInt(1 + 4 + 2 + msg.length);
+    buf.writeByte(TYPE_ERROR);
+    buf.writeInt(id);
+    buf.writeShort(msg.length);
+    buf.writeBytes(msg);
+    chan.write(buf);
+  }
+
+  private static String readString(final ChannelBuffer frame) {
+    final int length = frame.readUnsignedShort();
+    final String s = frame.toString(frame.readerIndex(), length, CHARSET);
+    frame.skipBytes(length);
+    return s;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.received", frames, "type=binary");
+    collector.record("binary.series", series_defined);
+    collector.record("binary.datapoints", datapoints);
+    collector.record("binary.errors", errors);
+  }
+
+  /** A series defined by the client. */
+  private static final class Series {
+    final String metric;
+    final HashMap<String, String> tags;
+    /** Row key template, null until resolved. */
+    byte[] row;
+    /** Set if the series couldn't be resolved. */
+    boolean failed;
+    /** Data points received before the series was resolved. */
+    ArrayList<long[]> held;
+
+    Series(final String metric, final HashMap<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+    /** Holds a data point until the series is resolved. */
+    void hold(final long timestamp, final byte value_type, final long value) {
+      if (held == null) {
+        held = new ArrayList<long[]>();
+      }
+      held.add(new long[] { timestamp, value_type, value });
+    }
+  }
+
+  /** Writes the data points held while the series was being resolved. */
+  private final class ResolvedCB implements Callback<Object, byte[]> {
+    private final Channel chan;
+    private final int id;
+    private final Series s;
+
+    ResolvedCB(final Channel chan, final int id, final Series s) {
+      this.chan = chan;
+      this.id = id;
+      this.s = s;
+    }
+
+    public Object call(final byte[] row) {
+      final ArrayList<long[]> held;
+      synchronized (s) {
+        s.row = row;
+        held = s.held;
+        s.held = null;
+      }
+      if (held != null) {
+        for (final long[] point : held) {
+          writePoint(chan, id, s, row, point[0], (byte) point[1], point[2]);
+        }
+      }
+      return null;
+    }
+
+    public String toString() {
+      return "write data points held for series " + id;
+    }
+  }
+
+  /** Reports a series that couldn't be resolved and drops its points. */
+  private final class ResolveErrback implements Callback<Object, Exception> {
+    private final Channel chan;
+    private final int id;
+    private final Series s;
+
+    ResolveErrback(final Channel chan, final int id, final Series s) {
+      this.chan = chan;
+      this.id = id;
+      this.s = s;
+    }
+
+    public Object call(final Exception e) {
+      final ArrayList<long[]> held;
+      synchronized (s) {
+        s.failed = true;
+        held = s.held;
+        s.held = null;
+      }
+      if (held != null) {
+        errors.addAndGet(held.size());
+        for (int i = 0; i < held.size(); i++) {
+          ConnectionManager.putCompleted(chan);
+        }
+      }
+      final Throwable cause = unwrap(e);
+      if (cause instanceof NoSuchUniqueName) {
+        sendError(chan, id, "unknown metric: " + cause.getMessage());
+      } else {
+        LOG.warn("Failed to resolve series " + id + " on " + chan, cause);
+        sendError(chan, id, "unable to resolve series: " + cause.getMessage());
+      }
+      return null;
+    }
+
+    public String toString() {
+      return "report unresolved series " + id;
+    }
+  }
+
+  /**
+   * Lets the connection manager know a put is done and reports failures.
+   * A single instance is shared by all the puts of a connection.
+   */
+  private static final class PutDoneCB implements Callback<Object, Object> {
+    private final Channel chan;
+
+    PutDoneCB(final Channel chan) {
+      this.chan = chan;
+    }
+
+    public Object call(final Object arg) {
+      ConnectionManager.putCompleted(chan);
+      if (arg instanceof Exception) {
+        errors.incrementAndGet();
+        sendError(chan, -1, "HBase error: "
+                  + unwrap((Exception) arg).getMessage());
+      }
+      return null;
+    }
+
+    public String toString() {
+      return "binary put completed";
+    }
+  }
+
+  /** @return the actual cause of a failed deferred. */
+  private static Throwable unwrap(final Exception e) {
+    Throwable cause = e;
+    while (cause instanceof DeferredGroupException
+        && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    return cause;
+  }
+
+}
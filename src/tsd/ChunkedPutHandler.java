@@ -0,0 +1,285 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.JSON;
+
+/**
+ * Handles chunked JSON uploads to {@code /api/put} incrementally.
+ * <p>
+ * This handler sits in front of the {@code HttpChunkAggregator}.  Chunked
+ * {@code POST}s to {@code /api/put} are intercepted and each data point is
+ * written as soon as its JSON object has been received, while later chunks
+ * are still arriving, so there's no limit on the size of such uploads and
+ * only the current data point needs to be held in memory.  Every other
+ * request goes through the aggregator as usual.
+ * <p>
+ * Requests carrying an {@code Origin} header, or that don't use the JSON
+ * serializer, are also left to the aggregator so that the CORS and
+ * serializer handling in {@link RpcHandler} apply to them.
+ * @since 2.1
+ */
+final class ChunkedPutHandler extends SimpleChannelUpstreamHandler {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(ChunkedPutHandler.class);
+
+  /** The TSDB to write to. */
+  private final TSDB tsdb;
+
+  /** The put in progress on this channel, null if none. */
+  private PutDataPointRpc.HttpPut put;
+
+  /** The query of the put in progress, used to reply. */
+  private HttpQuery query;
+
+  /** Splits the incoming bytes into data point objects. */
+  private JsonObjectSplitter splitter;
+
+  /** Set when the upload was rejected and its remaining chunks ignored. */
+  private boolean discarding;
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to write to.
+   */
+  public ChunkedPutHandler(final TSDB tsdb) {
+    this.tsdb = tsdb;
+  }
+
+  @Override
+  public void messageReceived(final ChannelHandlerContext ctx,
+      final MessageEvent e) throws Exception {
+    final Object msg = e.getMessage();
+    if (msg instanceof HttpRequest) {
+      final HttpRequest request = (HttpRequest) msg;
+      if (request.isChunked() && startPut(ctx, request)) {
+        return;
+      }
+    } else if (msg instanceof HttpChunk && (put != null || discarding)) {
+      final HttpChunk chunk = (HttpChunk) msg;
+      if (!discarding) {
+        try {
+          splitter.feed(chunk.getContent());
+          if (chunk.isLast()) {
+            splitter.finish();
+          }
+        } catch (BadRequestException ex) {
+          put.abort();
+          query.badRequest(ex);
+          discarding = true;
+        }
+      }
+      if (chunk.isLast()) {
+        if (!discarding) {
+          if (put.count() < 1) {
+            put.abort();
+            query.badRequest(
+                new BadRequestException("No datapoints found in content"));
+          } else {
+            put.finish();
+          }
+        }
+        put = null;
+        query = null;
+        splitter = null;
+        discarding = false;
+      }
+      return;
+    }
+    ctx.sendUpstream(e);
+  }
+
+  /**
+   * Starts streaming a chunked put request, if it's one we can handle.
+   * @return true if the request was taken over, false to pass it on.
+   */
+  private boolean startPut(final ChannelHandlerContext ctx,
+      final HttpRequest request) {
+    if (request.getMethod() != HttpMethod.POST
+        || request.headers().get("Origin") != null) {
+      return false;
+    }
+    final HttpQuery query = new HttpQuery(tsdb, request, ctx.getChannel());
+    try {
+      if (!"api/put".equals(query.getQueryBaseRoute())) {
+        return false;
+      }
+      query.setSerializer();
+    } catch (Exception ex) {
+      // Let the RpcHandler report the error.
+      return false;
+    }
+    if (!(query.serializer() instanceof HttpJsonSerializer)) {
+      return false;
+    }
+    if (HttpHeaders.is100ContinueExpected(request)) {
+      ctx.getChannel().write(new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+          HttpResponseStatus.CONTINUE));
+    }
+    LOG.debug("Streaming chunked put request " + request.getUri());
+    this.query = query;
+    put = PutDataPointRpc.startHttpPut(tsdb, query);
+    splitter = new JsonObjectSplitter(put);
+    return true;
+  }
+
+  /**
+   * Incrementally splits a JSON object, or an array of JSON objects, into
+   * the individual objects, which are parsed as data points and added to a
+   * put as soon as they're complete.
+   * <p>
+   * This only tracks the nesting of braces and brackets outside of strings,
+   * the actual parsing of each object is done by Jackson.
+   */
+  static final class JsonObjectSplitter {
+    /** The put to add data points to. */
+    private final PutDataPointRpc.HttpPut put;
+
+    /** Bytes of the object being received. */
+    private final ChannelBuffer current = ChannelBuffers.dynamicBuffer(512);
+
+    /** Whether we've seen the opening '[' or '{' yet. */
+    private boolean started;
+
+    /** Whether the content is an array of objects or a single object. */
+    private boolean array;
+
+    /** Whether we've seen the end of the content. */
+    private boolean ended;
+
+    /** Nesting depth within the current object, 0 outside of objects. */
+    private int depth;
+
+    private boolean in_string;
+    private boolean escaped;
+
+    /**
+     * Constructor.
+     * @param put The put to add data points to.
+     */
+    JsonObjectSplitter(final PutDataPointRpc.HttpPut put) {
+      this.put = put;
+    }
+
+    /**
+     * Consumes a piece of the content.
+     * @param buf The bytes received.
+     * @throws BadRequestException if the content isn't valid.
+     */
+    void feed(final ChannelBuffer buf) {
+      final int end = buf.writerIndex();
+      for (int i = buf.readerIndex(); i < end; i++) {
+        final byte b = buf.getByte(i);
+        if (depth > 0) {
+          current.writeByte(b);
+          if (in_string) {
+            if (escaped) {
+              escaped = false;
+            } else if (b == '\\') {
+              escaped = true;
+            } else if (b == '"') {
+              in_string = false;
+            }
+          } else if (b == '"') {
+            in_string = true;
+          } else if (b == '{' || b == '[') {
+            depth++;
+          } else if (b == '}' || b == ']') {
+            if (--depth == 0) {
+              parseObject();
+            }
+          }
+          continue;
+        }
+        if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+          continue;
+        }
+        if (ended) {
+          throw invalid("Unexpected content after the data points");
+        } else if (!started) {
+          started = true;
+          if (b == '[') {
+            array = true;
+          } else if (b == '{') {
+            current.writeByte(b);
+            depth = 1;
+          } else {
+            throw invalid("Expected an object or an array of objects");
+          }
+        } else if (!array) {
+          throw invalid("Unexpected content after the data point");
+        } else if (b == '{') {
+          current.writeByte(b);
+          depth = 1;
+        } else if (b == ',') {
+          continue;
+        } else if (b == ']') {
+          ended = true;
+        } else {
+          throw invalid("Expected a data point object");
+        }
+      }
+    }
+
+    /**
+     * Signals the end of the content.
+     * @throws BadRequestException if the content was truncated.
+     */
+    void finish() {
+      if (depth > 0 || (array && !ended)) {
+        throw invalid("Unexpected end of content");
+      }
+    }
+
+    /** Parses the object that was just completed and adds it to the put. */
+    private void parseObject() {
+      final byte[] json = new byte[current.readableBytes()];
+      current.readBytes(json);
+      current.clear();
+      if (!array) {
+        ended = true;
+      }
+      final IncomingDataPoint dp;
+      try {
+        dp = JSON.parseToObject(json, IncomingDataPoint.class);
+      } catch (IllegalArgumentException iae) {
+        throw new BadRequestException("Unable to parse the given JSON", iae);
+      }
+      put.add(dp);
+    }
+
+    private static BadRequestException invalid(final String details) {
+      return new BadRequestException(HttpResponseStatus.BAD_REQUEST,
+          "Unable to parse the given JSON", details);
+    }
+  }
+
+}
@@ -14,6 +14,7 @@ package net.opentsdb.tsd;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
@@ -22,15 +23,23 @@ import org.slf4j.LoggerFactory;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 
 import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
 
 /**
  * Keeps track of all existing connections.
+ * <p>
+ * This also applies backpressure on the connections sending data points:
+ * when too many of the puts they sent are still waiting for HBase, either on
+ * a single connection or across all connections, we stop reading from the
+ * sockets until enough of these puts have completed.  This way the clients
+ * buffer the data points instead of the TSD running out of memory.
  */
 final class ConnectionManager extends SimpleChannelHandler {
 
@@ -45,12 +54,162 @@ final class ConnectionManager extends SimpleChannelHandler {
   private static final DefaultChannelGroup channels =
     new DefaultChannelGroup("all-channels");
 
+  /** Puts sent to HBase that haven't completed yet, across all channels. */
+  private static final AtomicLong puts_inflight = new AtomicLong();
+  private static final AtomicLong throttled_channel = new AtomicLong();
+  private static final AtomicLong throttled_global = new AtomicLong();
+
+  /** Number of channels we're currently not reading from. */
+  private static final AtomicInteger suspended_channels = new AtomicInteger();
+
+  /** Per channel state for the backpressure. */
+  private static final ChannelLocal<PutState> put_states =
+    new ChannelLocal<PutState>();
+
+  /** Guards the global throttle. */
+  private static final Object global_lock = new Object();
+
+  /** Whether or not we stopped reading from every channel. */
+  private static volatile boolean global_throttle;
+
+  /** Watermarks on the in-flight puts, 0 to disable. */
+  private static volatile int channel_high_watermark;
+  private static volatile int channel_low_watermark;
+  private static volatile long global_high_watermark;
+  private static volatile long global_low_watermark;
+
   static void closeAllConnections() {
     channels.close().awaitUninterruptibly();
   }
 
-  /** Constructor. */
-  public ConnectionManager() {
+  /**
+   * Constructor.
+   * @param config The configuration to read the put watermarks from.
+   */
+  public ConnectionManager(final Config config) {
+    channel_high_watermark =
+      config.getInt("tsd.network.put.channel_high_watermark");
+    channel_low_watermark =
+      config.getInt("tsd.network.put.channel_low_watermark");
+    global_high_watermark =
+      config.getLong("tsd.network.put.global_high_watermark");
+    global_low_watermark =
+      config.getLong("tsd.network.put.global_low_watermark");
+  }
+
+  /**
+   * Must be called whenever a put is sent on behalf of a channel.  If the
+   * channel, or the TSD as a whole, has too many puts in flight, we stop
+   * reading from the channel.
+   * @param chan The channel the data point came from.
+   * @since 2.1
+   */
+  static void putStarted(final Channel chan) {
+    final long inflight = puts_inflight.incrementAndGet();
+    if (channel_high_watermark > 0) {
+      final PutState state = putState(chan);
+      synchronized (state) {
+        if (++state.inflight >= channel_high_watermark && !state.suspended) {
+          throttled_channel.incrementAndGet();
+          suspend(chan, state);
+        }
+      }
+    }
+    if (global_high_watermark > 0 && inflight >= global_high_watermark 
+        && !global_throttle) {
+      synchronized (global_lock) {
+        if (!global_throttle) {
+          global_throttle = true;
+          throttled_global.incrementAndGet();
+          LOG.warn("Too many puts in flight (" + inflight 
+              + "), no longer reading from clients");
+          for (final Channel channel : channels) {
+            final PutState state = put_states.get(channel);
+            if (state != null) {
+              synchronized (state) {
+                suspend(channel, state);
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Must be called whenever a put sent on behalf of a channel has completed,
+   * successfully or not.  Resumes reading from the channel, or all channels,
+   * once there are few enough puts in flight.
+   * @param chan The channel the data point came from.
+   * @since 2.1
+   */
+  static void putCompleted(final Channel chan) {
+    final long inflight = puts_inflight.decrementAndGet();
+    if (global_throttle && inflight <= global_low_watermark) {
+      synchronized (global_lock) {
+        if (global_throttle) {
+          global_throttle = false;
+          LOG.info("Puts in flight down to " + inflight 
+              + ", reading from clients again");
+          for (final Channel channel : channels) {
+            final PutState state = put_states.get(channel);
+            if (state != null) {
+              synchronized (state) {
+                if (channel_high_watermark <= 0 
+                    || state.inflight < channel_high_watermark) {
+                  resume(channel, state);
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+    if (channel_high_watermark > 0) {
+      final PutState state = putState(chan);
+      synchronized (state) {
+        if (--state.inflight <= channel_low_watermark && !global_throttle) {
+          resume(chan, state);
+        }
+      }
+    }
+  }
+
+  /** Returns the put state of a channel, creating it if needed. */
+  private static PutState putState(final Channel chan) {
+    PutState state = put_states.get(chan);
+    if (state == null) {
+      state = new PutState();
+      final PutState existing = put_states.setIfAbsent(chan, state);
+      if (existing != null) {
+        state = existing;
+      }
+    }
+    return state;
+  }
+
+  /** Stops reading from a channel.  Must be called with the state locked. */
+  private static void suspend(final Channel chan, final PutState state) {
+    if (!state.suspended) {
+      state.suspended = true;
+      suspended_channels.incrementAndGet();
+      chan.setReadable(false);
+    }
+  }
+
+  /** Resumes reading from a channel.  Must be called with the state locked. */
+  private static void resume(final Channel chan, final PutState state) {
+    if (state.suspended) {
+      state.suspended = false;
+      suspended_channels.decrementAndGet();
+      chan.setReadable(true);
+    }
+  }
+
+  /** Puts in flight for a single channel. */
+  private static final class PutState {
+    int inflight;
+    boolean suspended;
   }
 
   /**
@@ -69,6 +228,13 @@ final class ConnectionManager extends SimpleChannelHandler {
         "type=timeout");
     collector.record("connectionmgr.exceptions", exceptions_unknown, 
         "type=unknown");
+    collector.record("connectionmgr.puts_inflight", puts_inflight);
+    collector.record("connectionmgr.suspended", suspended_channels.get());
+    collector.record("connectionmgr.throttled", global_throttle ? 1 : 0);
+    collector.record("connectionmgr.throttle_events", throttled_channel, 
+        "type=channel");
+    collector.record("connectionmgr.throttle_events", throttled_global, 
+        "type=global");
   }
 
   @Override
@@ -78,6 +244,21 @@ final class ConnectionManager extends SimpleChannelHandler {
     connections_established.incrementAndGet();
   }
 
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) throws Exception {
+    final PutState state = put_states.remove(e.getChannel());
+    if (state != null) {
+      synchronized (state) {
+        if (state.suspended) {
+          state.suspended = false;
+          suspended_channels.decrementAndGet();
+        }
+      }
+    }
+    super.channelClosed(ctx, e);
+  }
+
   @Override
   public void handleUpstream(final ChannelHandlerContext ctx,
                              final ChannelEvent e) throws Exception {
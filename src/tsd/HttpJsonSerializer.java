@@ -17,7 +17,9 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -30,6 +32,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.stumbleupon.async.Deferred;
 
@@ -144,6 +148,112 @@ class HttpJsonSerializer extends HttpSerializer {
     }
   }
   
+  /**
+   * Parses one or more data points for storage, one at a time, straight from
+   * the request content.  Only one data point is held in memory at a time
+   * instead of the whole list.
+   * @return An iterator over the data points to process for storage
+   * @throws BadRequestException if the content was missing or parsing failed,
+   * possibly from the iterator itself
+   * @since 2.1
+   */
+  @Override
+  public Iterator<IncomingDataPoint> parsePutV1Stream() {
+    if (!query.hasContent()) {
+      throw new BadRequestException("Missing request content");
+    }
+    if (!"UTF-8".equals(query.getCharset().name())) {
+      // Jackson only auto-detects the UTF encodings on raw bytes.
+      return parsePutV1().iterator();
+    }
+    try {
+      return new PutIterator(JSON.parseToStream(query.getContentStream()));
+    } catch (IllegalArgumentException iae) {
+      throw new BadRequestException("Unable to parse the given JSON", iae);
+    } catch (IOException e) {
+      throw new BadRequestException("Unable to parse the given JSON", e);
+    }
+  }
+
+  /**
+   * Iterates over either a single data point object or an array of data
+   * point objects, parsing each object only when it's requested.
+   */
+  private static final class PutIterator implements Iterator<IncomingDataPoint> {
+    private final JsonParser parser;
+    private final boolean single;
+    private IncomingDataPoint next;
+    private boolean done;
+
+    PutIterator(final JsonParser parser) throws IOException {
+      this.parser = parser;
+      final JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_OBJECT) {
+        single = true;
+      } else if (token == JsonToken.START_ARRAY) {
+        single = false;
+      } else {
+        throw new BadRequestException(HttpResponseStatus.BAD_REQUEST, 
+            "Unable to parse the given JSON", 
+            "Expected an object or an array of objects");
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      if (done) {
+        return false;
+      }
+      try {
+        if (single) {
+          done = true;
+          next = parser.readValueAs(IncomingDataPoint.class);
+        } else {
+          final JsonToken token = parser.nextToken();
+          if (token == JsonToken.START_OBJECT) {
+            next = parser.readValueAs(IncomingDataPoint.class);
+          } else if (token == JsonToken.END_ARRAY) {
+            done = true;
+          } else {
+            done = true;
+            throw new BadRequestException(HttpResponseStatus.BAD_REQUEST, 
+                "Unable to parse the given JSON", 
+                "Expected a data point object but got " + token);
+          }
+        }
+      } catch (IOException e) {
+        done = true;
+        throw new BadRequestException("Unable to parse the given JSON", e);
+      }
+      if (done) {
+        try {
+          parser.close();
+        } catch (IOException e) {
+          LOG.debug("Failed to close the JSON parser", e);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public IncomingDataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final IncomingDataPoint dp = next;
+      next = null;
+      return dp;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+  
   /**
    * Parses a suggestion query
    * @return a hash map of key/value pairs
@@ -486,7 +596,7 @@ class HttpJsonSerializer extends HttpSerializer {
     final boolean as_arrays = this.query.hasQueryStringParam("arrays");
     final String jsonp = this.query.getQueryStringParam("jsonp");
     
-    // todo - this should be streamed at some point since it could be HUGE
+    // see formatQueryChunksV1() to stream large results instead
     final ChannelBuffer response = ChannelBuffers.dynamicBuffer();
     final OutputStream output = new ChannelBufferOutputStream(response);
     try {
@@ -497,105 +607,12 @@ class HttpJsonSerializer extends HttpSerializer {
       JsonGenerator json = JSON.getFactory().createGenerator(output);
       json.writeStartArray();
       
+      if (globals != null) {
+        Collections.sort(globals);
+      }
       for (DataPoints[] separate_dps : results) {
         for (DataPoints dps : separate_dps) {
-          json.writeStartObject();
-          
-          json.writeStringField("metric", dps.metricName());
-          
-          json.writeFieldName("tags");
-          json.writeStartObject();
-          if (dps.getTags() != null) {
-            for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
-              json.writeStringField(tag.getKey(), tag.getValue());
-            }
-          }
-          json.writeEndObject();
-          
-          json.writeFieldName("aggregateTags");
-          json.writeStartArray();
-          if (dps.getAggregatedTags() != null) {
-            for (String atag : dps.getAggregatedTags()) {
-              json.writeString(atag);
-            }
-          }
-          json.writeEndArray();
-          
-          if (data_query.getShowTSUIDs()) {
-            json.writeFieldName("tsuids");
-            json.writeStartArray();
-            final List<String> tsuids = dps.getTSUIDs();
-            Collections.sort(tsuids);
-            for (String tsuid : tsuids) {
-              json.writeString(tsuid);
-            }
-            json.writeEndArray();
-          }
-          
-          if (!data_query.getNoAnnotations()) {
-            final List<Annotation> annotations = dps.getAnnotations();
-            if (annotations != null) {
-              Collections.sort(annotations);
-              json.writeArrayFieldStart("annotations");
-              for (Annotation note : annotations) {
-                json.writeObject(note);
-              }
-              json.writeEndArray();
-            }
-            
-            if (globals != null && !globals.isEmpty()) {
-              Collections.sort(globals);
-              json.writeArrayFieldStart("globalAnnotations");
-              for (Annotation note : globals) {
-                json.writeObject(note);
-              }
-              json.writeEndArray();
-            }
-          }
-          
-          // now the fun stuff, dump the data
-          json.writeFieldName("dps");
-          
-          // default is to write a map, otherwise write arrays
-          if (as_arrays) {
-            json.writeStartArray();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < data_query.startTime() || 
-                  dp.timestamp() > data_query.endTime()) {
-                continue;
-              }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
-              json.writeStartArray();
-              json.writeNumber(timestamp);
-              if (dp.isInteger()) {
-                json.writeNumber(dp.longValue());
-              } else { 
-                json.writeNumber(dp.doubleValue());
-              }
-              json.writeEndArray();
-            }
-            json.writeEndArray();
-          } else {
-            json.writeStartObject();
-            for (final DataPoint dp : dps) {
-              if (dp.timestamp() < (data_query.startTime()) || 
-                  dp.timestamp() > (data_query.endTime())) {
-                continue;
-              }
-              final long timestamp = data_query.getMsResolution() ? 
-                  dp.timestamp() : dp.timestamp() / 1000;
-              if (dp.isInteger()) {
-                json.writeNumberField(Long.toString(timestamp), dp.longValue());
-              } else {
-                json.writeNumberField(Long.toString(timestamp), dp.doubleValue());
-              }
-            }
-            json.writeEndObject();
-          }
-
-          // close the results for this particular query
-          json.writeEndObject();
+          writeDataPoints(json, data_query, dps, globals, as_arrays);
         }
       }
     
@@ -612,6 +629,194 @@ class HttpJsonSerializer extends HttpSerializer {
       throw new RuntimeException(e);
     }
   }
+
+  /**
+   * Format the results from a timeseries data query in chunks, one time
+   * series at a time, so they can be streamed to the client.  A time series
+   * is only aggregated and serialized when its chunk is requested.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return An iterator over the chunks of the response
+   * @since 2.1
+   */
+  public Iterator<ChannelBuffer> formatQueryChunksV1(final TSQuery data_query,
+      final List<DataPoints[]> results, final List<Annotation> globals) {
+    
+    final boolean as_arrays = this.query.hasQueryStringParam("arrays");
+    final String jsonp = this.query.getQueryStringParam("jsonp");
+    if (globals != null) {
+      Collections.sort(globals);
+    }
+
+    /**
+     * Serializes the next time series each time it's called, the first
+     * chunk also opens the array and the last one closes it.
+     */
+    final class ChunkIterator implements Iterator<ChannelBuffer> {
+      private final Iterator<DataPoints[]> queries = results.iterator();
+      private DataPoints[] current = new DataPoints[0];
+      private int index = 0;
+      private boolean first = true;
+      private boolean done = false;
+
+      public boolean hasNext() {
+        return !done;
+      }
+
+      public ChannelBuffer next() {
+        if (done) {
+          throw new NoSuchElementException("no more chunks");
+        }
+        while (index >= current.length && queries.hasNext()) {
+          current = queries.next();
+          index = 0;
+        }
+        final ChannelBuffer chunk = ChannelBuffers.dynamicBuffer();
+        final OutputStream output = new ChannelBufferOutputStream(chunk);
+        try {
+          if (first && jsonp != null && !jsonp.isEmpty()) {
+            output.write((jsonp + "(").getBytes(query.getCharset()));
+          }
+          if (index < current.length) {
+            output.write(first ? '[' : ',');
+            final JsonGenerator json =
+              JSON.getFactory().createGenerator(output);
+            writeDataPoints(json, data_query, current[index++], globals,
+                            as_arrays);
+            json.close();
+          } else {
+            output.write((first ? "[]" : "]").getBytes());
+            if (jsonp != null && !jsonp.isEmpty()) {
+              output.write(")".getBytes());
+            }
+            done = true;
+          }
+          first = false;
+          return chunk;
+        } catch (IOException e) {
+          LOG.error("Unexpected exception", e);
+          throw new RuntimeException(e);
+        }
+      }
+
+      public void remove() {
+        throw new UnsupportedOperationException("Read-only iterator");
+      }
+    }
+    return new ChunkIterator();
+  }
+
+  /**
+   * Writes the results of a single time series or group of time series.
+   * @param json The generator to write to
+   * @param data_query The TSQuery object used to fetch the results
+   * @param dps The data points to write
+   * @param globals An optional, sorted list of global annotation objects
+   * @param as_arrays Whether to write data points as arrays or as a map
+   * @throws IOException if serialization failed
+   */
+  private static void writeDataPoints(final JsonGenerator json,
+      final TSQuery data_query, final DataPoints dps,
+      final List<Annotation> globals, final boolean as_arrays)
+      throws IOException {
+    json.writeStartObject();
+    
+    json.writeStringField("metric", dps.metricName());
+    
+    json.writeFieldName("tags");
+    json.writeStartObject();
+    if (dps.getTags() != null) {
+      for (Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+        json.writeStringField(tag.getKey(), tag.getValue());
+      }
+    }
+    json.writeEndObject();
+    
+    json.writeFieldName("aggregateTags");
+    json.writeStartArray();
+    if (dps.getAggregatedTags() != null) {
+      for (String atag : dps.getAggregatedTags()) {
+        json.writeString(atag);
+      }
+    }
+    json.writeEndArray();
+    
+    if (data_query.getShowTSUIDs()) {
+      json.writeFieldName("tsuids");
+      json.writeStartArray();
+      final List<String> tsuids = dps.getTSUIDs();
+      Collections.sort(tsuids);
+      for (String tsuid : tsuids) {
+        json.writeString(tsuid);
+      }
+      json.writeEndArray();
+    }
+    
+    if (!data_query.getNoAnnotations()) {
+      final List<Annotation> annotations = dps.getAnnotations();
+      if (annotations != null) {
+        Collections.sort(annotations);
+        json.writeArrayFieldStart("annotations");
+        for (Annotation note : annotations) {
+          json.writeObject(note);
+        }
+        json.writeEndArray();
+      }
+      
+      if (globals != null && !globals.isEmpty()) {
+        json.writeArrayFieldStart("globalAnnotations");
+        for (Annotation note : globals) {
+          json.writeObject(note);
+        }
+        json.writeEndArray();
+      }
+    }
+    
+    // now the fun stuff, dump the data
+    json.writeFieldName("dps");
+    
+    // default is to write a map, otherwise write arrays
+    if (as_arrays) {
+      json.writeStartArray();
+      for (final DataPoint dp : dps) {
+        if (dp.timestamp() < data_query.startTime() || 
+            dp.timestamp() > data_query.endTime()) {
+          continue;
+        }
+        final long timestamp = data_query.getMsResolution() ? 
+            dp.timestamp() : dp.timestamp() / 1000;
+        json.writeStartArray();
+        json.writeNumber(timestamp);
+        if (dp.isInteger()) {
+          json.writeNumber(dp.longValue());
+        } else { 
+          json.writeNumber(dp.doubleValue());
+        }
+        json.writeEndArray();
+      }
+      json.writeEndArray();
+    } else {
+      json.writeStartObject();
+      for (final DataPoint dp : dps) {
+        if (dp.timestamp() < (data_query.startTime()) || 
+            dp.timestamp() > (data_query.endTime())) {
+          continue;
+        }
+        final long timestamp = data_query.getMsResolution() ? 
+            dp.timestamp() : dp.timestamp() / 1000;
+        if (dp.isInteger()) {
+          json.writeNumberField(Long.toString(timestamp), dp.longValue());
+        } else {
+          json.writeNumberField(Long.toString(timestamp), dp.doubleValue());
+        }
+      }
+      json.writeEndObject();
+    }
+
+    // close the results for this particular query
+    json.writeEndObject();
+  }
   
   /**
    * Format a single UIDMeta object
@@ -15,6 +15,7 @@ package net.opentsdb.tsd;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -24,8 +25,11 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
@@ -36,12 +40,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -459,6 +466,19 @@ final class HttpQuery {
     return this.request.getContent().toString(this.getCharset());
   }
 
+  /**
+   * Returns a stream over the raw request content, without copying or
+   * decoding it.  Callers are responsible for handling the character set.
+   * @return A stream over the content, empty if the request did not include
+   * content
+   * @since 2.1
+   */
+  public InputStream getContentStream() {
+    final ChannelBuffer content = this.request.getContent();
+    return new ChannelBufferInputStream(
+        content == null ? ChannelBuffers.EMPTY_BUFFER : content);
+  }
+
   /**
    * Determines the requested HttpMethod via VERB and QS override.
    * If the request is a {@code GET} and the user provides a valid override
@@ -813,6 +833,126 @@ final class HttpQuery {
     sendBuffer(status, buf);
   }
 
+  /**
+   * Streams a reply to the client with chunked transfer encoding.  Chunks
+   * are pulled from the iterator one at a time and only while the channel
+   * is writable, so a slow client doesn't make us buffer the whole reply.
+   * If the client goes away, we stop pulling chunks.  HTTP/1.0 clients
+   * can't receive chunks and get the whole reply at once.
+   * @param status The status of the request (e.g. 200 OK).
+   * @param chunks The content of the reply, produced lazily.
+   * @since 2.1
+   */
+  public void sendChunkedReply(final HttpResponseStatus status,
+                               final Iterator<ChannelBuffer> chunks) {
+    sendChunkedReply(status, chunks, null);
+  }
+
+  /**
+   * Streams a reply to the client with chunked transfer encoding, pulling
+   * chunks from the given executor rather than from the I/O thread once the
+   * client is ready for more.
+   * @param status The status of the request (e.g. 200 OK).
+   * @param chunks The content of the reply, produced lazily.
+   * @param executor The executor to produce chunks from, or {@code null} to
+   * produce them from the I/O thread that found the channel writable again.
+   * @since 2.1
+   */
+  public void sendChunkedReply(final HttpResponseStatus status,
+                               final Iterator<ChannelBuffer> chunks,
+                               final Executor executor) {
+    if (request.getProtocolVersion().equals(HttpVersion.HTTP_1_0)) {
+      final ArrayList<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+      while (chunks.hasNext()) {
+        buffers.add(chunks.next());
+      }
+      sendBuffer(status, ChannelBuffers.wrappedBuffer(
+          buffers.toArray(new ChannelBuffer[buffers.size()])));
+      return;
+    }
+    if (!chan.isConnected()) {
+      done();
+      return;
+    }
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE,
+                           serializer.responseContentType());
+    response.setStatus(status);
+    HttpHeaders.setTransferEncodingChunked(response);
+    chan.write(response);
+    new ChunkWriter(chunks, executor).writeChunks();
+  }
+
+  /**
+   * Writes the chunks of a reply as long as the channel is writable, then
+   * waits for the last write to complete before resuming.
+   */
+  private final class ChunkWriter implements ChannelFutureListener, Runnable {
+    private final Iterator<ChannelBuffer> chunks;
+    private final Executor executor;
+
+    ChunkWriter(final Iterator<ChannelBuffer> chunks,
+                final Executor executor) {
+      this.chunks = chunks;
+      this.executor = executor;
+    }
+
+    public void run() {
+      writeChunks();
+    }
+
+    public void operationComplete(final ChannelFuture future) {
+      if (!future.isSuccess()) {
+        logWarn("Failed to stream reply: " + future.getCause());
+        chan.close();
+        done();
+        return;
+      }
+      if (executor == null) {
+        writeChunks();
+        return;
+      }
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        logError("Failed to resume streaming the reply", e);
+        chan.close();
+        done();
+      }
+    }
+
+    void writeChunks() {
+      try {
+        while (chunks.hasNext()) {
+          if (!chan.isConnected()) {
+            logWarn("Client went away, reply not completed");
+            done();
+            return;
+          }
+          final ChannelBuffer buf = chunks.next();
+          if (!buf.readable()) {
+            continue;  // An empty chunk would end the reply.
+          }
+          final ChannelFuture future = chan.write(new DefaultHttpChunk(buf));
+          if (!chan.isWritable()) {
+            future.addListener(this);
+            return;
+          }
+        }
+      } catch (RuntimeException e) {
+        // Too late to reply with an error, the status was already sent.
+        logError("Failed to serialize reply, closing the connection", e);
+        chan.close();
+        done();
+        return;
+      }
+      final ChannelFuture future = chan.write(HttpChunk.LAST_CHUNK);
+      if (!HttpHeaders.isKeepAlive(request)) {
+        future.addListener(ChannelFutureListener.CLOSE);
+      }
+      done();
+    }
+  }
+
   /**
    * Send just the status code without a body, used for 204 or 304
    * @param status The response code to reply with
@@ -12,7 +12,9 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -170,6 +172,22 @@ public abstract class HttpSerializer {
         this.getClass().getCanonicalName() + 
         " has not implemented parsePutV1");
   }
+
+  /**
+   * Parses one or more data points for storage, one at a time.
+   * <p>
+   * Serializers that can parse the content incrementally should override
+   * this method so that large requests don't have to be materialized at
+   * once.  The default implementation simply iterates over the list returned
+   * by {@link #parsePutV1}.
+   * @return An iterator over the data points to process for storage
+   * @throws BadRequestException if the content could not be parsed, possibly
+   * from the iterator itself once some data points were returned
+   * @since 2.1
+   */
+  public Iterator<IncomingDataPoint> parsePutV1Stream() {
+    return parsePutV1().iterator();
+  }
   
   /**
    * Parses a suggestion query
@@ -420,6 +438,24 @@ public abstract class HttpSerializer {
         " has not implemented formatQueryV1");
   }
   
+  /**
+   * Format the results from a timeseries data query in chunks that can be
+   * streamed to the client as they are produced. Serializers that can write
+   * a time series at a time should override this, the default implementation
+   * returns a single chunk built by {@link #formatQueryV1}.
+   * @param query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return An iterator over the chunks of the response
+   * @throws BadRequestException if the plugin has not implemented this method
+   * @since 2.1
+   */
+  public Iterator<ChannelBuffer> formatQueryChunksV1(final TSQuery query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) {
+    return Collections.singletonList(formatQueryV1(query, results, globals))
+      .iterator();
+  }
+  
   /**
    * Format a single UIDMeta object
    * @param meta The UIDMeta object to serialize
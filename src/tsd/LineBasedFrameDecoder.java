@@ -56,7 +56,9 @@ final class LineBasedFrameDecoder extends FrameDecoder {
         frame = null;
         buffer.skipBytes(length);
       } else {
-        frame = buffer.readBytes(length);
+        // The frame is handled before we're called again, so there's no
+        // need to copy it out of the cumulation buffer.
+        frame = buffer.readSlice(length);
       }
       final byte delim = buffer.readByte();
       if (delim == '\r') {
@@ -19,6 +19,7 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
 import org.jboss.netty.handler.codec.string.StringEncoder;
 import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
@@ -38,7 +39,7 @@ public final class PipelineFactory implements ChannelPipelineFactory {
 
   // Those are sharable but maintain some state, so a single instance per
   // PipelineFactory is needed.
-  private final ConnectionManager connmgr = new ConnectionManager();
+  private final ConnectionManager connmgr;
   private final DetectHttpOrRpc HTTP_OR_RPC = new DetectHttpOrRpc();
 
   /** Stateless handler for RPCs. */
@@ -47,6 +48,15 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   /** The TSDB to which we belong */ 
   private final TSDB tsdb;
 
+  /** Maximum size of a frame of the binary protocol, in bytes. */
+  private final int binary_max_frame_size;
+
+  /** Maximum number of series per connection using the binary protocol. */
+  private final int binary_max_series;
+
+  /** Number of series remembered per telnet connection to parse puts. */
+  private final int telnet_series_cache_size;
+
   /**
    * Constructor that initializes the RPC router and loads HTTP formatter 
    * plugins
@@ -57,7 +67,13 @@ public final class PipelineFactory implements ChannelPipelineFactory {
    */
   public PipelineFactory(final TSDB tsdb) {
     this.tsdb = tsdb;
+    this.connmgr = new ConnectionManager(tsdb.getConfig());
     this.rpchandler = new RpcHandler(tsdb);
+    binary_max_frame_size = 
+      tsdb.getConfig().getInt("tsd.network.binary.max_frame_size");
+    binary_max_series = tsdb.getConfig().getInt("tsd.network.binary.max_series");
+    telnet_series_cache_size = 
+      tsdb.getConfig().getInt("tsd.network.put.series_cache_size");
     try {
       HttpQuery.initializeSerializerMaps(tsdb);
     } catch (RuntimeException e) {
@@ -79,7 +95,9 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   /**
    * Dynamically changes the {@link ChannelPipeline} based on the request.
    * If a request uses HTTP, then this changes the pipeline to process HTTP.
-   * Otherwise, the pipeline is changed to processes an RPC.
+   * If it starts with {@link BinaryPutHandler#MAGIC}, the pipeline is changed
+   * to process the binary ingest protocol.  Otherwise, the pipeline is
+   * changed to processes an RPC.
    */
   final class DetectHttpOrRpc extends FrameDecoder {
 
@@ -96,9 +114,20 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       // None of the commands in the RPC protocol start with a capital ASCII
       // letter for the time being, and all HTTP commands do (GET, POST, etc.)
       // so use this as a cheap way to differentiate the two.
-      if ('A' <= firstbyte && firstbyte <= 'Z') {
+      if (firstbyte == (BinaryPutHandler.MAGIC & 0xFF)) {
+        buffer.skipBytes(1);
+        // Frames are prefixed with their length on 4 bytes.
+        pipeline.addLast("framer", new LengthFieldBasedFrameDecoder(
+            binary_max_frame_size, 0, 4, 0, 4));
+        pipeline.addLast("handler", 
+            new BinaryPutHandler(tsdb, binary_max_series));
+        pipeline.remove(this);
+        return buffer.readBytes(buffer.readableBytes());
+      } else if ('A' <= firstbyte && firstbyte <= 'Z') {
         pipeline.addLast("decoder", new HttpRequestDecoder());
         if (tsdb.getConfig().enable_chunked_requests()) {
+          // Chunked puts are streamed, everything else is aggregated.
+          pipeline.addLast("chunkedput", new ChunkedPutHandler(tsdb));
           pipeline.addLast("aggregator", new HttpChunkAggregator(
               tsdb.getConfig().max_chunked_requests()));
         }
@@ -106,6 +135,10 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
+        if (telnet_series_cache_size > 0) {
+          pipeline.addLast("putdecoder",
+              new TelnetPutDecoder(tsdb, telnet_series_cache_size));
+        }
         pipeline.addLast("decoder", DECODER);
       }
       pipeline.remove(this);
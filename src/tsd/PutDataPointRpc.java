@@ -15,11 +15,14 @@ package net.opentsdb.tsd;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.handler.codec.http.HttpMethod;
@@ -47,19 +50,10 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
     requests.incrementAndGet();
     String errmsg = null;
     try {
-      final class PutErrback implements Callback<Exception, Exception> {
-        public Exception call(final Exception arg) {
-          if (chan.isConnected()) {
-            chan.write("put: HBase error: " + arg.getMessage() + '\n');
-          }
-          hbase_errors.incrementAndGet();
-          return arg;
-        }
-        public String toString() {
-          return "report error to channel";
-        }
-      }
-      return importDataPoint(tsdb, cmd).addErrback(new PutErrback());
+      final Deferred<Object> result = importDataPoint(tsdb, cmd);
+      ConnectionManager.putStarted(chan);
+      return result.addErrback(new TelnetPutErrback(chan))
+        .addBoth(new TelnetPutCompletedCB(chan));
     } catch (NumberFormatException x) {
       errmsg = "put: invalid value: " + x.getMessage() + '\n';
       invalid_values.incrementAndGet();
@@ -76,6 +70,52 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
     return Deferred.fromResult(null);
   }
 
+  /**
+   * Handles a telnet put line already parsed by the {@link TelnetPutDecoder}.
+   * Once its series is resolved, the data point is written straight to its
+   * row, otherwise this works just like the regular telnet put.
+   * @param tsdb The TSDB to write to.
+   * @param chan The channel on which the put was received.
+   * @param put The parsed put, which isn't retained.
+   * @return A deferred object that indicates the completion of the request.
+   * @since 2.1
+   */
+  Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                           final TelnetPutDecoder.ParsedPut put) {
+    requests.incrementAndGet();
+    if (put.errback == null) {
+      put.errback = new TelnetPutErrback(chan);
+      put.completed = new TelnetPutCompletedCB(chan);
+    }
+    final TelnetPutDecoder.Series series = put.series;
+    final byte[] row = series.row;
+    final Deferred<Object> result;
+    try {
+      if (row == null) {
+        // The series is still being resolved, or couldn't be.
+        result = put.integer
+          ? tsdb.addPointAsync(series.metric, put.timestamp, put.long_value,
+                               series.tags)
+          : tsdb.addPointAsync(series.metric, put.timestamp, put.float_value,
+                               series.tags);
+      } else {
+        result = put.integer
+          ? tsdb.addPointToSeries(row, series.metric, put.timestamp,
+                                  put.long_value, series.tags)
+          : tsdb.addPointToSeries(row, series.metric, put.timestamp,
+                                  put.float_value, series.tags);
+      }
+    } catch (IllegalArgumentException x) {
+      illegal_arguments.incrementAndGet();
+      if (chan.isConnected()) {
+        chan.write("put: illegal argument: " + x.getMessage() + '\n');
+      }
+      return Deferred.fromResult(null);
+    }
+    ConnectionManager.putStarted(chan);
+    return result.addErrback(put.errback).addBoth(put.completed);
+  }
+
   /**
    * Handles HTTP RPC put requests
    * @param tsdb The TSDB to which we belong
@@ -96,105 +136,277 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           "] is not permitted for this endpoint");
     }
     
-    final List<IncomingDataPoint> dps = query.serializer().parsePutV1();
-    if (dps.size() < 1) {
+    // Data points are parsed and handed to the TSDB one at a time so we
+    // never hold the whole request as objects in memory.
+    final Iterator<IncomingDataPoint> dps = 
+      query.serializer().parsePutV1Stream();
+    if (!dps.hasNext()) {
       throw new BadRequestException("No datapoints found in content");
     }
     
-    final boolean show_details = query.hasQueryStringParam("details");
-    final boolean show_summary = query.hasQueryStringParam("summary");
-    final ArrayList<HashMap<String, Object>> details = show_details
-      ? new ArrayList<HashMap<String, Object>>() : null;
-    long success = 0;
-    long total = 0;
-    
-    for (IncomingDataPoint dp : dps) {
-      total++;
+    final HttpPut put = new HttpPut(tsdb, query);
+    try {
+      while (dps.hasNext()) {
+        put.add(dps.next());
+      }
+    } catch (BadRequestException e) {
+      put.abort();
+      throw e;
+    }
+    put.finish();
+  }
+
+  /**
+   * Starts a put request whose data points will be added as they arrive
+   * instead of being parsed from the query content.
+   * @param tsdb The TSDB to write to.
+   * @param query The HTTP query to respond to.
+   * @return The put to add the data points to.
+   * @since 2.1
+   */
+  static HttpPut startHttpPut(final TSDB tsdb, final HttpQuery query) {
+    requests.incrementAndGet();
+    return new HttpPut(tsdb, query);
+  }
+
+  /**
+   * Writes the data points of a single HTTP put request as they're parsed
+   * and sends the response once they've all been processed.
+   * <p>
+   * Data points are handed to the TSDB one at a time so we never need to
+   * hold the whole request as objects in memory.  Callers must call
+   * {@link #finish} once they've added all the data points, or
+   * {@link #abort} if the rest of the request couldn't be parsed.
+   * @since 2.1
+   */
+  static final class HttpPut {
+    private final TSDB tsdb;
+    private final HttpQuery query;
+    private final boolean show_details;
+    private final boolean show_summary;
+    private final ArrayList<HashMap<String, Object>> details;
+    private final AtomicLong success = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    /** One for each data point being written, plus one until finish(). */
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicBoolean aborted = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     * @param tsdb The TSDB to write to.
+     * @param query The HTTP query to respond to.
+     */
+    HttpPut(final TSDB tsdb, final HttpQuery query) {
+      this.tsdb = tsdb;
+      this.query = query;
+      show_details = query.hasQueryStringParam("details");
+      show_summary = query.hasQueryStringParam("summary");
+      details = show_details ? new ArrayList<HashMap<String, Object>>() : null;
+    }
+
+    /** @return the number of data points added so far. */
+    long count() {
+      return total.get();
+    }
+
+    /**
+     * Validates a data point and hands it to the TSDB.  Invalid data points
+     * are reported in the response.
+     * @param dp The data point to write.
+     */
+    void add(final IncomingDataPoint dp) {
+      total.incrementAndGet();
       try {
         if (dp.getMetric() == null || dp.getMetric().isEmpty()) {
-          if (show_details) {
-            details.add(this.getHttpDetails("Metric name was empty", dp));
-          }
+          addHttpDetails(details, "Metric name was empty", dp);
           LOG.warn("Metric name was empty: " + dp);
-          continue;
+          return;
         }
         if (dp.getTimestamp() <= 0) {
-          if (show_details) {
-            details.add(this.getHttpDetails("Invalid timestamp", dp));
-          }
+          addHttpDetails(details, "Invalid timestamp", dp);
           LOG.warn("Invalid timestamp: " + dp);
-          continue;
+          return;
         }
         if (dp.getValue() == null || dp.getValue().isEmpty()) {
-          if (show_details) {
-            details.add(this.getHttpDetails("Empty value", dp));
-          }
+          addHttpDetails(details, "Empty value", dp);
           LOG.warn("Empty value: " + dp);
-          continue;
+          return;
         }
         if (dp.getTags() == null || dp.getTags().size() < 1) {
-          if (show_details) {
-            details.add(this.getHttpDetails("Missing tags", dp));
-          }
+          addHttpDetails(details, "Missing tags", dp);
           LOG.warn("Missing tags: " + dp);
-          continue;
+          return;
         }
+        final Deferred<Object> deferred;
         if (Tags.looksLikeInteger(dp.getValue())) {
-          tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
+          deferred = tsdb.addPointAsync(dp.getMetric(), dp.getTimestamp(), 
               Tags.parseLong(dp.getValue()), dp.getTags());
         } else {
-          tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
+          deferred = tsdb.addPointAsync(dp.getMetric(), dp.getTimestamp(), 
               Float.parseFloat(dp.getValue()), dp.getTags());
         }
-        success++;
+        pending.incrementAndGet();
+        deferred.addCallbacks(new SuccessCB(), new PutErrback(dp));
       } catch (NumberFormatException x) {
-        if (show_details) {
-          details.add(this.getHttpDetails("Unable to parse value to a number", 
-              dp));
-        }
+        addHttpDetails(details, "Unable to parse value to a number", dp);
         LOG.warn("Unable to parse value to a number: " + dp);
         invalid_values.incrementAndGet();
       } catch (IllegalArgumentException iae) {
-        if (show_details) {
-          details.add(this.getHttpDetails(iae.getMessage(), dp));
-        }
+        addHttpDetails(details, iae.getMessage(), dp);
         LOG.warn(iae.getMessage() + ": " + dp);
         illegal_arguments.incrementAndGet();
       } catch (NoSuchUniqueName nsu) {
-        if (show_details) {
-          details.add(this.getHttpDetails("Unknown metric", dp));
-        }
+        addHttpDetails(details, "Unknown metric", dp);
         LOG.warn("Unknown metric: " + dp);
         unknown_metrics.incrementAndGet();
       }
     }
-    
-    final long failures = total - success;
-    if (!show_summary && !show_details) {
-      if (failures > 0) {
-        throw new BadRequestException(HttpResponseStatus.BAD_REQUEST,
-            "One or more data points had errors", 
-            "Please see the TSD logs or append \"details\" to the put request");
-      } else {
-        query.sendReply(HttpResponseStatus.NO_CONTENT, "".getBytes());
+
+    /**
+     * Signals that all the data points were added.  The response is sent
+     * once they've all been written.
+     */
+    void finish() {
+      done();
+    }
+
+    /**
+     * Signals that the rest of the request was malformed.  The data points
+     * we already handed to the TSDB will still be written, but the caller is
+     * responsible for sending an error instead of the summary.
+     */
+    void abort() {
+      aborted.set(true);
+      done();
+    }
+
+    /** Sends the response once every data point has been processed. */
+    private void done() {
+      if (pending.decrementAndGet() != 0 || aborted.get()) {
+        return;
       }
-    } else {
-      final HashMap<String, Object> summary = new HashMap<String, Object>();
-      summary.put("success", success);
-      summary.put("failed", failures);
-      if (show_details) {
-        summary.put("errors", details);
+      try {
+        sendReply();
+      } catch (RuntimeException e) {
+        LOG.error("Unexpected exception while handling " + query, e);
+        query.internalError(e);
       }
-      
-      if (failures > 0) {
-        query.sendReply(HttpResponseStatus.BAD_REQUEST, 
-            query.serializer().formatPutV1(summary));
+    }
+
+    private void sendReply() {
+      final long failures = total.get() - success.get();
+      if (!show_summary && !show_details) {
+        if (failures > 0) {
+          query.badRequest(new BadRequestException(
+              HttpResponseStatus.BAD_REQUEST,
+              "One or more data points had errors", 
+              "Please see the TSD logs or append \"details\" to the put request"));
+        } else {
+          query.sendReply(HttpResponseStatus.NO_CONTENT, "".getBytes());
+        }
       } else {
-        query.sendReply(query.serializer().formatPutV1(summary));
+        final HashMap<String, Object> summary = new HashMap<String, Object>();
+        summary.put("success", success.get());
+        summary.put("failed", failures);
+        if (show_details) {
+          summary.put("errors", details);
+        }
+        
+        if (failures > 0) {
+          query.sendReply(HttpResponseStatus.BAD_REQUEST, 
+              query.serializer().formatPutV1(summary));
+        } else {
+          query.sendReply(query.serializer().formatPutV1(summary));
+        }
+      }
+    }
+
+    /** Counts a data point once it has been written. */
+    private final class SuccessCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        success.incrementAndGet();
+        done();
+        return null;
+      }
+      public String toString() {
+        return "count successful put";
+      }
+    }
+
+    /**
+     * Records a data point that failed after it was handed to the TSDB,
+     * either because one of its UIDs couldn't be resolved or because HBase
+     * failed to store it.
+     */
+    private final class PutErrback implements Callback<Object, Exception> {
+      private final IncomingDataPoint dp;
+      public PutErrback(final IncomingDataPoint dp) {
+        this.dp = dp;
+      }
+      public Object call(final Exception e) {
+        final Throwable cause = unwrap(e);
+        if (cause instanceof NoSuchUniqueName) {
+          addHttpDetails(details, "Unknown metric", dp);
+          LOG.warn("Unknown metric: " + dp);
+          unknown_metrics.incrementAndGet();
+        } else {
+          addHttpDetails(details, "Storage exception: " + cause.getMessage(), 
+              dp);
+          LOG.warn("Failed to store data point: " + dp, cause);
+          hbase_errors.incrementAndGet();
+        }
+        done();
+        return null;
+      }
+      public String toString() {
+        return "report put error for " + dp;
       }
     }
   }
   
+  /** Reports a telnet put that failed to the channel it came from. */
+  private static final class TelnetPutErrback
+    implements Callback<Exception, Exception> {
+    private final Channel chan;
+    TelnetPutErrback(final Channel chan) {
+      this.chan = chan;
+    }
+    public Exception call(final Exception arg) {
+      final Throwable cause = unwrap(arg);
+      if (cause instanceof NoSuchUniqueName) {
+        if (chan.isConnected()) {
+          chan.write("put: unknown metric: " + cause.getMessage() + '\n');
+        }
+        unknown_metrics.incrementAndGet();
+        return arg;
+      }
+      if (chan.isConnected()) {
+        chan.write("put: HBase error: " + cause.getMessage() + '\n');
+      }
+      hbase_errors.incrementAndGet();
+      return arg;
+    }
+    public String toString() {
+      return "report error to channel";
+    }
+  }
+
+  /** Lets the connection manager know a telnet put is done. */
+  private static final class TelnetPutCompletedCB
+    implements Callback<Object, Object> {
+    private final Channel chan;
+    TelnetPutCompletedCB(final Channel chan) {
+      this.chan = chan;
+    }
+    public Object call(final Object arg) {
+      ConnectionManager.putCompleted(chan);
+      return arg;
+    }
+    public String toString() {
+      return "put completed";
+    }
+  }
+
   /**
    * Collects the stats and metrics tracked by this instance.
    * @param collector The collector to use.
@@ -215,7 +427,7 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
    * @return A deferred object that indicates the completion of the request.
    * @throws NumberFormatException if the timestamp or value is invalid.
    * @throws IllegalArgumentException if any other argument is invalid.
-   * @throws NoSuchUniqueName if the metric isn't registered.
+   * @throws NoSuchUniqueName (deferred) if the metric isn't registered.
    */
   private Deferred<Object> importDataPoint(final TSDB tsdb, final String[] words) {
     words[0] = null; // Ditch the "put".
@@ -248,10 +460,44 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
       }
     }
     if (Tags.looksLikeInteger(value)) {
-      return tsdb.addPoint(metric, timestamp, Tags.parseLong(value), tags);
+      return tsdb.addPointAsync(metric, timestamp, Tags.parseLong(value), tags);
     } else {  // floating point value
-      return tsdb.addPoint(metric, timestamp, Float.parseFloat(value), tags);
+      return tsdb.addPointAsync(metric, timestamp, Float.parseFloat(value), 
+          tags);
+    }
+  }
+
+  /**
+   * Appends an error to the details list, if the user asked for details.
+   * The list is shared with callbacks that may run in other threads.
+   * @param details The list to append to, may be null.
+   * @param message The message to return to the user
+   * @param dp The datapoint that caused the error
+   */
+  private static void addHttpDetails(
+      final ArrayList<HashMap<String, Object>> details,
+      final String message, final IncomingDataPoint dp) {
+    if (details == null) {
+      return;
+    }
+    synchronized (details) {
+      details.add(getHttpDetails(message, dp));
+    }
+  }
+
+  /**
+   * Returns the actual exception that caused a put to fail, looking through
+   * the group exceptions thrown when one of several UIDs couldn't be resolved.
+   * @param e The exception the deferred was called back with.
+   * @return The underlying exception.
+   */
+  private static Throwable unwrap(final Exception e) {
+    Throwable cause = e;
+    while (cause instanceof DeferredGroupException 
+        && cause.getCause() != null) {
+      cause = cause.getCause();
     }
+    return cause;
   }
 
   /**
@@ -261,7 +507,7 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
    * @return A hashmap with information
    * @since 2.0
    */
-  final private HashMap<String, Object> getHttpDetails(final String message, 
+  private static HashMap<String, Object> getHttpDetails(final String message, 
       final IncomingDataPoint dp) {
     final HashMap<String, Object> map = new HashMap<String, Object>();
     map.put("error", message);
@@ -13,10 +13,17 @@
 package net.opentsdb.tsd;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -25,6 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
@@ -34,6 +42,9 @@ import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
 import net.opentsdb.core.Tags;
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
 
 /**
  * Handles queries for timeseries datapoints. Each request is parsed into a
@@ -48,6 +59,53 @@ import net.opentsdb.meta.Annotation;
  */
 final class QueryRpc implements HttpRpc {
   private static final Logger LOG = LoggerFactory.getLogger(QueryRpc.class);
+
+  /** Number of queries admitted and not done replying yet.  */
+  private static final AtomicInteger running_queries = new AtomicInteger();
+
+  /** Number of queries waiting for a running one to complete.  */
+  private static final AtomicInteger queued_queries = new AtomicInteger();
+
+  /** Number of queries rejected because the queue was full.  */
+  private static final AtomicLong rejected_queries = new AtomicLong();
+
+  /** How long (in ms) queries waited in the queue before running.  */
+  private static final Histogram queue_wait =
+    new Histogram(16000, (short) 2, 100);
+
+  /** Executor aggregating and serializing the results of queries.  */
+  private final ThreadPoolExecutor executor;
+
+  /** Maximum number of queries running at once, 0 for no limit.  */
+  private final int max_running;
+
+  /** Maximum number of queries waiting to run.  */
+  private final int max_queued;
+
+  /** Queries waiting to run, in arrival order.  */
+  private final ArrayDeque<QueryRunner> pending = new ArrayDeque<QueryRunner>();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to get the configuration from
+   * @since 2.1
+   */
+  public QueryRpc(final TSDB tsdb) {
+    final Config config = tsdb.getConfig();
+    final String threads = config.getString("tsd.query.executor.threads");
+    final int nthreads = threads == null || threads.isEmpty()
+      ? Runtime.getRuntime().availableProcessors()
+      : Integer.parseInt(threads);
+    // The queue isn't bounded, but with tsd.query.max_running set, at most
+    // that many queries can be serialized at once.
+    executor = new ThreadPoolExecutor(
+      nthreads, nthreads,  // Thread pool of a fixed size.
+      /* 5m = */ 300000, TimeUnit.MILLISECONDS,  // Idle threads keepalive.
+      new LinkedBlockingQueue<Runnable>(),
+      new QueryThdFactory());
+    max_running = config.getInt("tsd.query.max_running");
+    max_queued = config.getInt("tsd.query.max_queued");
+  }
   
   /**
    * Implements the /api/query endpoint to fetch data from OpenTSDB.
@@ -90,61 +148,230 @@ final class QueryRpc implements HttpRpc {
           e.getMessage(), data_query.toString(), e);
     }
     
-    Query[] tsdbqueries = data_query.buildQueries(tsdb);
-    final int nqueries = tsdbqueries.length;
-    final ArrayList<DataPoints[]> results = 
-      new ArrayList<DataPoints[]>(nqueries);
-    final ArrayList<Deferred<DataPoints[]>> deferreds =
-      new ArrayList<Deferred<DataPoints[]>>(nqueries);
-    
-    for (int i = 0; i < nqueries; i++) {
-      deferreds.add(tsdbqueries[i].runAsync());
+    final Query[] tsdbqueries = data_query.buildQueries(tsdb);
+    admit(new QueryRunner(tsdb, query, data_query, tsdbqueries));
+  }
+
+  /** Shuts down the thread pool used to serialize query results.  */
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  public static void collectStats(final StatsCollector collector) {
+    collector.record("http.query.running", running_queries.get());
+    collector.record("http.query.queued", queued_queries.get());
+    collector.record("http.query.rejected", rejected_queries);
+    collector.record("http.latency", queue_wait, "type=query_queue");
+  }
+
+  /**
+   * Runs the query right away if fewer than {@code max_running} queries are
+   * running, otherwise queues it, or rejects it if the queue is full.
+   * @param runner The query to run
+   * @throws BadRequestException with a 503 status if the query was rejected
+   */
+  private void admit(final QueryRunner runner) {
+    if (max_running > 0) {
+      synchronized (pending) {
+        if (running_queries.get() >= max_running) {
+          if (pending.size() >= max_queued) {
+            rejected_queries.incrementAndGet();
+            throw new BadRequestException(
+                HttpResponseStatus.SERVICE_UNAVAILABLE,
+                "Too many queries pending, please try again later");
+          }
+          pending.add(runner);
+          queued_queries.incrementAndGet();
+          return;
+        }
+        running_queries.incrementAndGet();
+      }
+    } else {
+      running_queries.incrementAndGet();
     }
+    runner.start();
+  }
 
-    /**
-    * After all of the queries have run, we get the results in the order given
-    * and add dump the results in an array
-    */
-    class QueriesCB implements Callback<Object, ArrayList<DataPoints[]>> {
-      public Object call(final ArrayList<DataPoints[]> query_results) 
-        throws Exception {
-        results.addAll(query_results);
-        return null;
+  /**
+   * Called once a query has replied, hands its slot to the next query in
+   * the queue, if any.
+   */
+  private void release() {
+    final QueryRunner next;
+    synchronized (pending) {
+      next = pending.poll();
+      if (next == null) {
+        running_queries.decrementAndGet();
+        return;
       }
+      queued_queries.decrementAndGet();
     }
-    
-    // if the user wants global annotations, we need to scan and fetch
-    // TODO(cl) need to async this at some point. It's not super straight
-    // forward as we can't just add it to the "deferreds" queue since the types
-    // are different.
-    List<Annotation> globals = null;
-    if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
+    next.start();
+  }
+
+  /**
+   * Runs the storage queries of an admitted request without blocking, then
+   * serializes and sends the results from the query executor.  The slot of
+   * the query is released once the reply has been sent, whatever happens.
+   */
+  private final class QueryRunner {
+    private final TSDB tsdb;
+    private final HttpQuery query;
+    private final TSQuery data_query;
+    private final Query[] tsdbqueries;
+    private final long created = System.nanoTime();
+
+    QueryRunner(final TSDB tsdb, final HttpQuery query,
+                final TSQuery data_query, final Query[] tsdbqueries) {
+      this.tsdb = tsdb;
+      this.query = query;
+      this.data_query = data_query;
+      this.tsdbqueries = tsdbqueries;
+    }
+
+    /** Starts the storage queries.  */
+    void start() {
+      queue_wait.add((int) ((System.nanoTime() - created) / 1000000));
+
+      final class ReleaseCB implements Callback<Object, Object> {
+        public Object call(final Object arg) {
+          release();
+          return arg;
+        }
+        public String toString() {
+          return "release query slot";
+        }
+      }
+      query.getDeferred().addBoth(new ReleaseCB());
+
+      if (!query.channel().isConnected()) {
+        // The client gave up while we were queued, this only completes the
+        // request without sending anything.
+        query.sendStatusOnly(HttpResponseStatus.SERVICE_UNAVAILABLE);
+        return;
+      }
+
       try {
-        globals = Annotation.getGlobalAnnotations(tsdb, 
-            data_query.startTime() / 1000, data_query.endTime() / 1000)
-            .joinUninterruptibly();
-      } catch (Exception e) {
-        throw new RuntimeException("Shouldn't be here", e);
+        final ArrayList<Deferred<DataPoints[]>> deferreds =
+          new ArrayList<Deferred<DataPoints[]>>(tsdbqueries.length);
+        for (final Query tsdbquery : tsdbqueries) {
+          deferreds.add(tsdbquery.runAsync());
+        }
+        // if the user wants global annotations, we need to scan and fetch
+        final Deferred<List<Annotation>> globals =
+          !data_query.getNoAnnotations() && data_query.getGlobalAnnotations()
+          ? Annotation.getGlobalAnnotations(tsdb,
+              data_query.startTime() / 1000, data_query.endTime() / 1000)
+          : Deferred.<List<Annotation>>fromResult(null);
+
+        /** Serializes the results once everything was fetched. */
+        final class GlobalsCB implements Callback<Object, List<Annotation>> {
+          private final ArrayList<DataPoints[]> results;
+          GlobalsCB(final ArrayList<DataPoints[]> results) {
+            this.results = results;
+          }
+          public Object call(final List<Annotation> globals) {
+            executor.execute(new SendResults(results, globals));
+            return null;
+          }
+          public String toString() {
+            return "serialize query results";
+          }
+        }
+
+        /**
+        * After all of the queries have run, we get the results in the order
+        * given and wait for the global annotations, if any.
+        */
+        final class QueriesCB implements
+          Callback<Deferred<Object>, ArrayList<DataPoints[]>> {
+          public Deferred<Object> call(final ArrayList<DataPoints[]> results) {
+            return globals.addCallback(new GlobalsCB(results));
+          }
+          public String toString() {
+            return "wait for global annotations";
+          }
+        }
+
+        /** Replies with the first error, the query can't succeed anymore. */
+        final class ErrorCB implements Callback<Object, Exception> {
+          public Object call(final Exception e) {
+            Throwable ex = e;
+            while (ex instanceof DeferredGroupException
+                   && ex.getCause() != null) {
+              ex = ex.getCause();
+            }
+            if (ex instanceof BadRequestException) {
+              query.badRequest((BadRequestException) ex);
+            } else {
+              query.internalError(
+                  ex instanceof Exception ? (Exception) ex : e);
+            }
+            return null;
+          }
+          public String toString() {
+            return "query error callback";
+          }
+        }
+
+        Deferred.groupInOrder(deferreds)
+          .addCallbackDeferring(new QueriesCB())
+          .addErrback(new ErrorCB());
+      } catch (RuntimeException e) {
+        query.internalError(e);
       }
     }
-    
-    try {
-      Deferred.groupInOrder(deferreds).addCallback(new QueriesCB())
-        .joinUninterruptibly();
-    } catch (Exception e) {
-      throw new RuntimeException("Shouldn't be here", e);
+
+    /** Aggregates and serializes the results on the query executor.  */
+    final class SendResults implements Runnable {
+      private final ArrayList<DataPoints[]> results;
+      private final List<Annotation> globals;
+
+      SendResults(final ArrayList<DataPoints[]> results,
+                  final List<Annotation> globals) {
+        this.results = results;
+        this.globals = globals;
+      }
+
+      public void run() {
+        try {
+          switch (query.apiVersion()) {
+          case 0:
+          case 1:
+            if (tsdb.getConfig().getBoolean("tsd.http.query.enable_chunked")) {
+              // Each time series is only serialized once the client is ready
+              // for it.
+              query.sendChunkedReply(HttpResponseStatus.OK, query.serializer()
+                  .formatQueryChunksV1(data_query, results, globals), executor);
+            } else {
+              query.sendReply(query.serializer().formatQueryV1(data_query,
+                  results, globals));
+            }
+            break;
+          default: 
+            throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
+                "Requested API version not implemented", "Version " + 
+                query.apiVersion() + " is not implemented");
+          }
+        } catch (BadRequestException e) {
+          query.badRequest(e);
+        } catch (RuntimeException e) {
+          query.internalError(e);
+        }
+      }
     }
-    
-    switch (query.apiVersion()) {
-    case 0:
-    case 1:
-      query.sendReply(query.serializer().formatQueryV1(data_query, results, 
-          globals));
-      break;
-    default: 
-      throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
-          "Requested API version not implemented", "Version " + 
-          query.apiVersion() + " is not implemented");
+  }
+
+  /** Names the threads of the query executor.  */
+  private static final class QueryThdFactory implements ThreadFactory {
+    private final AtomicInteger id = new AtomicInteger(0);
+
+    public Thread newThread(final Runnable r) {
+      return new Thread(r, "Query #" + id.incrementAndGet());
     }
   }
 
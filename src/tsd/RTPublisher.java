@@ -12,6 +12,8 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import net.opentsdb.core.Const;
@@ -20,6 +22,7 @@ import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.stats.StatsCollector;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 /**
@@ -34,6 +37,11 @@ import com.stumbleupon.async.Deferred;
  * <p>
  * <b>Warning:</b> All processing should be performed asynchronously and return
  * a Deferred as quickly as possible.
+ * <p>
+ * When {@code tsd.rtpublisher.dispatcher.queue_size} is set, data points are
+ * queued and handed to the plugin by dedicated threads, in batches, through
+ * {@link #publishDataPoints}.  Plugins that can publish a whole batch at once
+ * should override it.
  * @since 2.0
  */
 public abstract class RTPublisher {
@@ -137,6 +145,38 @@ public abstract class RTPublisher {
       final long timestamp, final double value, final Map<String, String> tags, 
       final byte[] tsuid);
   
+  /**
+   * Called by the publisher threads with a batch of data points, when the
+   * dispatcher is enabled. The default implementation calls
+   * {@link #publishDataPoint} for each data point, plugins that can do better
+   * should override it.
+   * @param points The data points to publish, oldest first. The list must
+   * not be retained once the method returns.
+   * @return A deferred without special meaning to wait on if necessary. The 
+   * value may be null but a Deferred must be returned.
+   * @since 2.1
+   */
+  public Deferred<Object> publishDataPoints(final List<Point> points) {
+    final ArrayList<Deferred<Object>> deferreds = 
+      new ArrayList<Deferred<Object>>(points.size());
+    for (final Point point : points) {
+      deferreds.add(sinkDataPoint(point.metric, point.timestamp, point.value, 
+          point.tags, point.tsuid, point.flags));
+    }
+    return Deferred.group(deferreds).addCallback(new GroupCB());
+  }
+  
+  /** Swallows the results of a batch. */
+  private static final class GroupCB 
+    implements Callback<Object, ArrayList<Object>> {
+    public Object call(final ArrayList<Object> results) {
+      return null;
+    }
+    public String toString() {
+      return "published data points";
+    }
+  }
+  
   /**
    * Called any time a new annotation is published
    * @param annotation The published annotation
@@ -145,4 +185,76 @@ public abstract class RTPublisher {
    */
   public abstract Deferred<Object> publishAnnotation(Annotation annotation);
   
+  /**
+   * A raw data point queued for publication.
+   * @since 2.1
+   */
+  public static final class Point {
+    final String metric;
+    final long timestamp;
+    final byte[] value;
+    final Map<String, String> tags;
+    final byte[] tsuid;
+    final short flags;
+    /** When the point was queued, in nanoseconds. */
+    final long queued;
+    
+    Point(final String metric, final long timestamp, final byte[] value, 
+        final Map<String, String> tags, final byte[] tsuid, final short flags,
+        final long queued) {
+      this.metric = metric;
+      this.timestamp = timestamp;
+      this.value = value;
+      this.tags = tags;
+      this.tsuid = tsuid;
+      this.flags = flags;
+      this.queued = queued;
+    }
+    
+    /** @return The name of the metric */
+    public String getMetric() {
+      return metric;
+    }
+    
+    /** @return Timestamp as a Unix epoch in seconds or milliseconds */
+    public long getTimestamp() {
+      return timestamp;
+    }
+    
+    /** @return The value as stored, see {@link #getFlags} */
+    public byte[] getValue() {
+      return value;
+    }
+    
+    /** @return Tagk/v pairs */
+    public Map<String, String> getTags() {
+      return tags;
+    }
+    
+    /** @return Time series UID for the value */
+    public byte[] getTSUID() {
+      return tsuid;
+    }
+    
+    /** @return The qualifier flags of the value */
+    public short getFlags() {
+      return flags;
+    }
+    
+    /** @return Whether or not the value is an integer */
+    public boolean isInteger() {
+      return (flags & Const.FLAG_FLOAT) == 0x0;
+    }
+    
+    /** @return The value, if it's an integer */
+    public long longValue() {
+      return Internal.extractIntegerValue(value, 0, (byte) flags);
+    }
+    
+    /** @return The value, if it's a floating point value */
+    public double doubleValue() {
+      return Internal.extractFloatingPointValue(value, 0, (byte) flags);
+    }
+  }
+  
 }
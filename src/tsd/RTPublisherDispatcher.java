@@ -0,0 +1,321 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.stumbleupon.async.Callback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Hands data points to a {@link RTPublisher} from dedicated threads, so that
+ * a slow plugin doesn't slow down the ingest path.
+ * <p>
+ * Data points are queued in a bounded, lock-free ring buffer.  Publisher
+ * threads take them out in batches and pass them to
+ * {@link RTPublisher#publishDataPoints}.  When the queue is full, the
+ * configured policy applies:
+ * <ul>
+ * <li>{@code block}: the writer waits until there's room.</li>
+ * <li>{@code drop_newest}: the new data point is dropped.</li>
+ * <li>{@code drop_oldest}: the oldest queued data point is dropped to make
+ * room for the new one.</li>
+ * </ul>
+ * @since 2.1
+ */
+public final class RTPublisherDispatcher {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(RTPublisherDispatcher.class);
+
+  /** What to do with a data point when the queue is full.  */
+  enum FullPolicy { BLOCK, DROP_NEWEST, DROP_OLDEST }
+
+  /** How long to wait when there's nothing to publish, or no room.  */
+  private static final long IDLE_WAIT = 1000000;  // ns
+
+  /** The plugin to publish to.  */
+  private final RTPublisher publisher;
+
+  /** Data points waiting to be published.  */
+  private final RingBuffer queue;
+
+  /** Maximum number of data points to publish at once.  */
+  private final int batch_size;
+
+  private final FullPolicy policy;
+
+  private final Thrd[] threads;
+
+  /** Cleared on shutdown, threads exit once the queue is empty.  */
+  private volatile boolean running = true;
+
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  /** How long data points wait in the queue, in milliseconds.  */
+  private final Histogram latency = new Histogram(16000, (short) 2, 100);
+
+  /**
+   * Constructor, starts the publisher threads.
+   * @param config The TSD configuration.
+   * @param publisher The plugin to publish to.
+   * @throws IllegalArgumentException if the configuration is invalid.
+   */
+  public RTPublisherDispatcher(final Config config,
+                               final RTPublisher publisher) {
+    this.publisher = publisher;
+    final int queue_size =
+      config.getInt("tsd.rtpublisher.dispatcher.queue_size");
+    if (queue_size <= 0) {
+      throw new IllegalArgumentException("Invalid queue size: " + queue_size);
+    }
+    queue = new RingBuffer(queue_size);
+    batch_size = Math.max(1,
+        config.getInt("tsd.rtpublisher.dispatcher.batch_size"));
+    final String full_policy =
+      config.getString("tsd.rtpublisher.dispatcher.full_policy");
+    try {
+      policy = FullPolicy.valueOf(full_policy.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid value for "
+          + "tsd.rtpublisher.dispatcher.full_policy: " + full_policy
+          + ", must be block, drop_newest or drop_oldest");
+    }
+    threads = new Thrd[Math.max(1,
+        config.getInt("tsd.rtpublisher.dispatcher.threads"))];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thrd();
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+  }
+
+  /**
+   * Queues a data point for publication.
+   * @see RTPublisher#sinkDataPoint
+   */
+  public void sinkDataPoint(final String metric, final long timestamp,
+      final byte[] value, final Map<String, String> tags, final byte[] tsuid,
+      final short flags) {
+    final RTPublisher.Point point = new RTPublisher.Point(metric, timestamp,
+        value, tags, tsuid, flags, System.nanoTime());
+    while (!queue.offer(point)) {
+      switch (policy) {
+        case DROP_NEWEST:
+          dropped.incrementAndGet();
+          return;
+        case DROP_OLDEST:
+          if (queue.poll() != null) {
+            dropped.incrementAndGet();
+          }
+          break;
+        case BLOCK:
+          if (!running) {
+            dropped.incrementAndGet();
+            return;
+          }
+          LockSupport.parkNanos(IDLE_WAIT);
+          break;
+      }
+    }
+  }
+
+  /**
+   * Publishes the data points left in the queue and stops the threads.
+   * Must be called before the plugin is shut down.
+   */
+  public void shutdown() {
+    running = false;
+    for (final Thrd thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Publishes one batch of data points.
+   * @param batch A list to use for the batch, cleared when we're done.
+   * @return false if the queue was empty.
+   */
+  boolean publishBatch(final ArrayList<RTPublisher.Point> batch) {
+    RTPublisher.Point point;
+    while (batch.size() < batch_size && (point = queue.poll()) != null) {
+      batch.add(point);
+    }
+    if (batch.isEmpty()) {
+      return false;
+    }
+    final long now = System.nanoTime();
+    for (final RTPublisher.Point p : batch) {
+      latency.add((int) ((now - p.queued) / 1000000));
+    }
+    try {
+      publisher.publishDataPoints(batch).addErrback(new PublishErrback());
+      published.addAndGet(batch.size());
+    } catch (Exception e) {
+      errors.incrementAndGet();
+      LOG.error("Failed to publish " + batch.size() + " data points", e);
+    } finally {
+      batch.clear();
+    }
+    return true;
+  }
+
+  /** Counts the batches that failed to be published.  */
+  private final class PublishErrback implements Callback<Object, Exception> {
+    public Object call(final Exception e) {
+      errors.incrementAndGet();
+      LOG.error("Failed to publish data points", e);
+      return null;
+    }
+    public String toString() {
+      return "RT publisher errback";
+    }
+  }
+
+  /** @return the number of data points waiting to be published.  */
+  int depth() {
+    return queue.size();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("rtpublisher.dispatcher.depth", depth());
+    collector.record("rtpublisher.dispatcher.published", published.get());
+    collector.record("rtpublisher.dispatcher.dropped", dropped.get());
+    collector.record("rtpublisher.dispatcher.errors", errors.get());
+    collector.record("rtpublisher.dispatcher.latency", latency, null);
+  }
+
+  /**
+   * Bounded multi-producer multi-consumer queue.  Each slot has a sequence
+   * number that tells whether it's ready to be written to or read from at a
+   * given position, so producers and consumers only contend on a CAS of the
+   * head or tail position.
+   */
+  static final class RingBuffer {
+    private final AtomicReferenceArray<RTPublisher.Point> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    /** Position of the next write.  */
+    private final AtomicLong head = new AtomicLong();
+    /** Position of the next read.  */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param capacity Minimum capacity, rounded up to a power of 2.
+     */
+    RingBuffer(final int capacity) {
+      int size = 1;
+      while (size < capacity && size < (1 << 30)) {
+        size <<= 1;
+      }
+      slots = new AtomicReferenceArray<RTPublisher.Point>(size);
+      sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+        sequences.set(i, i);
+      }
+      mask = size - 1;
+    }
+
+    /** @return false if the queue is full.  */
+    boolean offer(final RTPublisher.Point point) {
+      long pos = head.get();
+      while (true) {
+        final int slot = (int) (pos & mask);
+        final long diff = sequences.get(slot) - pos;
+        if (diff == 0) {
+          if (head.compareAndSet(pos, pos + 1)) {
+            slots.set(slot, point);
+            sequences.set(slot, pos + 1);
+            return true;
+          }
+        } else if (diff < 0) {
+          return false;  // The consumers haven't freed this slot yet.
+        }
+        pos = head.get();
+      }
+    }
+
+    /** @return the oldest data point, or null if the queue is empty.  */
+    RTPublisher.Point poll() {
+      long pos = tail.get();
+      while (true) {
+        final int slot = (int) (pos & mask);
+        final long diff = sequences.get(slot) - (pos + 1);
+        if (diff == 0) {
+          if (tail.compareAndSet(pos, pos + 1)) {
+            final RTPublisher.Point point = slots.get(slot);
+            slots.set(slot, null);
+            sequences.set(slot, pos + mask + 1);
+            return point;
+          }
+        } else if (diff < 0) {
+          return null;  // The producer hasn't filled this slot yet.
+        }
+        pos = tail.get();
+      }
+    }
+
+    /** @return the approximate number of queued data points.  */
+    int size() {
+      return (int) Math.max(0, head.get() - tail.get());
+    }
+  }
+
+  /** Publishes queued data points.  */
+  final class Thrd extends Thread {
+    public Thrd() {
+      super("RTPublisherDispatcher");
+    }
+
+    public void run() {
+      final ArrayList<RTPublisher.Point> batch =
+        new ArrayList<RTPublisher.Point>(batch_size);
+      while (true) {
+        try {
+          if (!publishBatch(batch)) {
+            if (!running) {
+              return;  // We're shutting down and the queue is drained.
+            }
+            LockSupport.parkNanos(IDLE_WAIT);
+          }
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in RT publisher thread", e);
+        }
+      }
+    }
+  }
+
+}
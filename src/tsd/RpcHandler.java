@@ -54,6 +54,8 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
   private final HashMap<String, TelnetRpc> telnet_commands;
   /** RPC executed when there's an unknown telnet-style command. */
   private final TelnetRpc unknown_cmd = new Unknown();
+  /** Handles the puts parsed by the {@link TelnetPutDecoder}. */
+  private final PutDataPointRpc put_rpc;
   /** Commands we serve on the HTTP interface. */
   private final HashMap<String, HttpRpc> http_commands;
   /** List of domains to allow access to HTTP. By default this will be empty and
@@ -124,11 +126,9 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     telnet_commands.put("exit", new Exit());
     telnet_commands.put("help", new Help());
-    {
-      final PutDataPointRpc put = new PutDataPointRpc();
-      telnet_commands.put("put", put);
-      http_commands.put("api/put", put);
-    }
+    put_rpc = new PutDataPointRpc();
+    telnet_commands.put("put", put_rpc);
+    http_commands.put("api/put", put_rpc);
 
     http_commands.put("", new HomePage());
     {
@@ -145,7 +145,7 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     }
     http_commands.put("api/serializers", new Serializers());
     http_commands.put("api/uid", new UniqueIdRpc());
-    http_commands.put("api/query", new QueryRpc());
+    http_commands.put("api/query", new QueryRpc(tsdb));
     http_commands.put("api/tree", new TreeRpc());
     http_commands.put("api/annotation", new AnnotationRpc());
     http_commands.put("api/search", new SearchRpc());
@@ -157,7 +157,11 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
                               final MessageEvent msgevent) {
     try {
       final Object message = msgevent.getMessage();
-      if (message instanceof String[]) {
+      if (message instanceof TelnetPutDecoder.ParsedPut) {
+        telnet_rpcs_received.incrementAndGet();
+        put_rpc.execute(tsdb, msgevent.getChannel(),
+                        (TelnetPutDecoder.ParsedPut) message);
+      } else if (message instanceof String[]) {
         handleTelnetRpc(msgevent.getChannel(), (String[]) message);
       } else if (message instanceof HttpRequest) {
         handleHttpQuery(tsdb, msgevent.getChannel(), (HttpRequest) message);
@@ -275,7 +279,9 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     collector.record("rpc.exceptions", exceptions_caught);
     HttpQuery.collectStats(collector);
     GraphHandler.collectStats(collector);
+    QueryRpc.collectStats(collector);
     PutDataPointRpc.collectStats(collector);
+    BinaryPutHandler.collectStats(collector);
   }
 
   // ---------------------------- //
@@ -300,6 +306,7 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     private Deferred<Object> doShutdown(final TSDB tsdb, final Channel chan) {
       ((GraphHandler) http_commands.get("q")).shutdown();
+      ((QueryRpc) http_commands.get("api/query")).shutdown();
       ConnectionManager.closeAllConnections();
       // Netty gets stuck in an infinite loop if we shut it down from within a
       // NIO thread.  So do this from a newly created thread.
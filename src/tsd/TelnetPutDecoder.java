@@ -0,0 +1,314 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import com.stumbleupon.async.Callback;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+
+/**
+ * Parses telnet-style "put" lines straight out of the frame, without
+ * creating any intermediate {@code String}.
+ * <p>
+ * The metric and tags of a line are looked up, as raw bytes, in a small
+ * per-connection dictionary of the series recently written on the
+ * connection.  Each entry holds the metric and tags already parsed and,
+ * once it's been resolved, the row key of the series.  The timestamp and
+ * value are parsed in place, and the result is stored in a
+ * {@link ParsedPut} that's reused for every line of the connection, so
+ * parsing a put for a known series doesn't allocate anything.
+ * <p>
+ * Lines that aren't simple puts, or that this fast path doesn't handle
+ * (malformed lines, exponents, very long numbers...), are passed through
+ * unchanged to the {@link WordSplitter}, so they're handled and reported
+ * exactly like before.
+ * <p>
+ * This decoder is stateful and is thus <strong>NOT</strong> shareable.
+ * @since 2.1
+ */
+final class TelnetPutDecoder extends OneToOneDecoder {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Powers of 10 that are exact in single precision.  */
+  private static final float[] POW10 = {
+    1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+  };
+
+  /** Largest mantissa exactly representable in single precision.  */
+  private static final long MAX_FLOAT_MANTISSA = 1L << 24;
+
+  /** The TSDB to resolve series with. */
+  private final TSDB tsdb;
+
+  /** Series recently written on this connection, direct-mapped. */
+  private final Series[] series;
+
+  /** The put handed to the next handler, reused for every line. */
+  private final ParsedPut put = new ParsedPut();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to resolve series with.
+   * @param max_series Number of series to remember, rounded up to a power
+   * of 2.
+   */
+  public TelnetPutDecoder(final TSDB tsdb, final int max_series) {
+    this.tsdb = tsdb;
+    int size = 1;
+    while (size < max_series && size < (1 << 30)) {
+      size <<= 1;
+    }
+    series = new Series[size];
+  }
+
+  @Override
+  protected Object decode(final ChannelHandlerContext ctx,
+                          final Channel channel,
+                          final Object msg) {
+    if (!(msg instanceof ChannelBuffer)) {
+      return msg;
+    }
+    final ChannelBuffer buf = (ChannelBuffer) msg;
+    return parsePut(buf) ? put : buf;
+  }
+
+  /**
+   * Tries to parse a put line.
+   * @param buf The line, which isn't modified.
+   * @return true if {@link #put} was filled, false if the line needs to go
+   * through the regular path.
+   */
+  private boolean parsePut(final ChannelBuffer buf) {
+    final int end = buf.writerIndex();
+    int i = buf.readerIndex();
+    if (end - i < 4 || buf.getByte(i) != 'p' || buf.getByte(i + 1) != 'u'
+        || buf.getByte(i + 2) != 't' || buf.getByte(i + 3) != ' ') {
+      return false;
+    }
+    i += 4;
+
+    // Metric.
+    final int metric_start = i;
+    i = buf.indexOf(i, end, (byte) ' ');
+    if (i <= metric_start) {
+      return false;
+    }
+    final int metric_end = i++;
+
+    // Timestamp: digits, with dots removed like in the regular path.
+    long timestamp = 0;
+    int digits = 0;
+    for (; i < end; i++) {
+      final byte b = buf.getByte(i);
+      if (b == ' ') {
+        break;
+      } else if (b >= '0' && b <= '9') {
+        timestamp = timestamp * 10 + (b - '0');
+        digits++;
+      } else if (b != '.') {
+        return false;
+      }
+    }
+    if (digits == 0 || digits > 18 || timestamp <= 0 || i == end) {
+      return false;
+    }
+    i++;
+
+    // Value: [+-]digits[.digits]
+    final int value_start = i;
+    boolean negative = false;
+    if (i < end && (buf.getByte(i) == '-' || buf.getByte(i) == '+')) {
+      negative = buf.getByte(i) == '-';
+      i++;
+    }
+    long mantissa = 0;
+    digits = 0;
+    int decimals = -1;  // -1 until we see the dot.
+    for (; i < end; i++) {
+      final byte b = buf.getByte(i);
+      if (b == ' ') {
+        break;
+      } else if (b >= '0' && b <= '9') {
+        mantissa = mantissa * 10 + (b - '0');
+        if (mantissa != 0) {
+          digits++;
+        }
+        if (decimals >= 0) {
+          decimals++;
+        }
+      } else if (b == '.' && decimals < 0) {
+        decimals = 0;
+      } else {
+        return false;
+      }
+    }
+    if (i - value_start - (negative ? 1 : 0) - (decimals >= 0 ? 1 : 0) < 1
+        || digits > 18 || i == end) {
+      return false;
+    }
+    if (decimals >= 0) {
+      if (mantissa > MAX_FLOAT_MANTISSA || decimals >= POW10.length) {
+        return false;  // Let Float.parseFloat() deal with it.
+      }
+      put.integer = false;
+      put.float_value = toFloat(mantissa, decimals, negative);
+    } else {
+      put.integer = true;
+      put.long_value = negative ? -mantissa : mantissa;
+    }
+    i++;
+
+    // Tags: everything else.
+    final int tags_start = i;
+    if (tags_start >= end) {
+      return false;
+    }
+    final Series s = lookup(buf, metric_start, metric_end, tags_start, end);
+    if (s == null) {
+      return false;
+    }
+    put.series = s;
+    put.timestamp = timestamp;
+    return true;
+  }
+
+  /** @return the float closest to the given decimal number. */
+  private static strictfp float toFloat(final long mantissa,
+                                        final int decimals,
+                                        final boolean negative) {
+    // Both operands are exact so the division is correctly rounded, just
+    // like Float.parseFloat() would.
+    final float value = ((float) mantissa) / POW10[decimals];
+    return negative ? -value : value;
+  }
+
+  /**
+   * Finds the series of a line in the dictionary, or adds it.
+   * @return The series, or null if its tags can't be parsed.
+   */
+  private Series lookup(final ChannelBuffer buf,
+                        final int metric_start, final int metric_end,
+                        final int tags_start, final int tags_end) {
+    int hash = 1;
+    for (int i = metric_start; i < metric_end; i++) {
+      hash = 31 * hash + buf.getByte(i);
+    }
+    hash = 31 * hash + ' ';
+    for (int i = tags_start; i < tags_end; i++) {
+      hash = 31 * hash + buf.getByte(i);
+    }
+    final int slot = (hash ^ (hash >>> 16)) & (series.length - 1);
+    final int metric_length = metric_end - metric_start;
+    final int tags_length = tags_end - tags_start;
+    final Series cached = series[slot];
+    if (cached != null && cached.hash == hash
+        && cached.key.length == metric_length + 1 + tags_length
+        && matches(buf, metric_start, cached.key, 0, metric_length)
+        && matches(buf, tags_start, cached.key, metric_length + 1,
+                   tags_length)) {
+      return cached;
+    }
+
+    final String metric = buf.toString(metric_start, metric_length, CHARSET);
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    try {
+      for (final String tag : Tags.splitString(
+          buf.toString(tags_start, tags_length, CHARSET), ' ')) {
+        if (!tag.isEmpty()) {
+          Tags.parse(tags, tag);
+        }
+      }
+      final byte[] key = new byte[metric_length + 1 + tags_length];
+      buf.getBytes(metric_start, key, 0, metric_length);
+      key[metric_length] = ' ';
+      buf.getBytes(tags_start, key, metric_length + 1, tags_length);
+      final Series s = new Series(key, hash, metric, tags);
+      tsdb.resolveSeriesAsync(metric, tags).addCallback(s);
+      series[slot] = s;
+      return s;
+    } catch (IllegalArgumentException e) {
+      return null;  // The regular path will report the error.
+    }
+  }
+
+  private static boolean matches(final ChannelBuffer buf, final int offset,
+                                 final byte[] key, final int key_offset,
+                                 final int length) {
+    for (int i = 0; i < length; i++) {
+      if (buf.getByte(offset + i) != key[key_offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A series written on the connection.  Its metric and tags are parsed
+   * once and never modified, so they can be handed to the TSDB.  The row
+   * key is filled in once the series has been resolved.
+   */
+  static final class Series implements Callback<Object, byte[]> {
+    /** The metric and tags, as found in the line. */
+    private final byte[] key;
+    private final int hash;
+    final String metric;
+    final HashMap<String, String> tags;
+    /** Row key template, null until the series is resolved. */
+    volatile byte[] row;
+
+    Series(final byte[] key, final int hash, final String metric,
+           final HashMap<String, String> tags) {
+      this.key = key;
+      this.hash = hash;
+      this.metric = metric;
+      this.tags = tags;
+    }
+
+    public Object call(final byte[] row) {
+      this.row = row;
+      return null;
+    }
+
+    public String toString() {
+      return "resolved series " + metric + tags;
+    }
+  }
+
+  /**
+   * A put line parsed by this decoder.  The same instance is reused for
+   * every line of the connection, so it must not be retained once the
+   * line has been handled.
+   */
+  static final class ParsedPut {
+    Series series;
+    long timestamp;
+    /** Whether the value is an integer or a float. */
+    boolean integer;
+    long long_value;
+    float float_value;
+    /** Callbacks of the connection, reused for every put. */
+    Callback<Exception, Exception> errback;
+    Callback<Object, Object> completed;
+  }
+
+}
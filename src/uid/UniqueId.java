@@ -25,6 +25,7 @@ import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import javax.xml.bind.DatatypeConverter;
 
+import net.opentsdb.core.Const;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.UIDMeta;
 
@@ -1042,6 +1043,7 @@ public final class UniqueId implements UniqueIdInterface {
 
   /**
    * Extracts the TSUID from a storage row key that includes the timestamp.
+   * The salt at the beginning of the row key, if any, is skipped.
    * @param row_key The row key to process
    * @param metric_width The width of the metric
    * @param timestamp_width The width of the timestamp
@@ -1050,14 +1052,12 @@ public final class UniqueId implements UniqueIdInterface {
    */
   public static byte[] getTSUIDFromKey(final byte[] row_key, 
       final short metric_width, final short timestamp_width) {
-    int idx = 0;
-    final byte[] tsuid = new byte[row_key.length - timestamp_width];
-    for (int i = 0; i < row_key.length; i++) {
-      if (i < metric_width || i >= (metric_width + timestamp_width)) {
-        tsuid[idx] = row_key[i];
-        idx++;
-      }
-    }
+    final int salt_width = Const.salt_width();
+    final byte[] tsuid = 
+      new byte[row_key.length - salt_width - timestamp_width];
+    System.arraycopy(row_key, salt_width, tsuid, 0, metric_width);
+    System.arraycopy(row_key, salt_width + metric_width + timestamp_width, 
+        tsuid, metric_width, tsuid.length - metric_width);
     return tsuid;
   }
   
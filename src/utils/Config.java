@@ -383,15 +383,41 @@ public class Config {
     default_map.put("tsd.network.tcp_no_delay", "true");
     default_map.put("tsd.network.keep_alive", "true");
     default_map.put("tsd.network.reuse_address", "true");
+    default_map.put("tsd.network.put.channel_high_watermark", "10000");
+    default_map.put("tsd.network.put.channel_low_watermark", "5000");
+    default_map.put("tsd.network.put.global_high_watermark", "100000");
+    default_map.put("tsd.network.put.global_low_watermark", "50000");
+    default_map.put("tsd.network.put.series_cache_size", "4096");
+    default_map.put("tsd.network.binary.max_frame_size", "1048576");
+    default_map.put("tsd.network.binary.max_series", "1000000");
     default_map.put("tsd.core.auto_create_metrics", "false");
     default_map.put("tsd.core.meta.enable_realtime_ts", "false");
     default_map.put("tsd.core.meta.enable_realtime_uid", "false");
     default_map.put("tsd.core.meta.enable_tsuid_incrementing", "false");
     default_map.put("tsd.core.meta.enable_tsuid_tracking", "false");
+    default_map.put("tsd.core.meta.counter_flush_interval", "10");
+    default_map.put("tsd.core.meta.tracking_filter.max_series", "1000000");
+    default_map.put("tsd.core.meta.tracking_filter.interval", "600");
     default_map.put("tsd.core.plugin_path", "");
+    default_map.put("tsd.core.row_key_cache.max_size", "100000");
     default_map.put("tsd.core.tree.enable_processing", "false");
+    default_map.put("tsd.query.scan.partitions", "1");
+    default_map.put("tsd.query.scan.max_concurrent", "0");
+    default_map.put("tsd.query.executor.threads", "");
+    default_map.put("tsd.query.max_running", "0");
+    default_map.put("tsd.query.max_queued", "100");
+    default_map.put("tsd.query.cache.max_size", "0");
+    default_map.put("tsd.query.cache.min_age", "600");
+    default_map.put("tsd.query.decode_rows", "false");
+    default_map.put("tsd.rollups.tiers", "");
+    default_map.put("tsd.rollups.query.enable", "false");
+    default_map.put("tsd.rollups.query.lag", "7200");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
+    default_map.put("tsd.rtpublisher.dispatcher.queue_size", "0");
+    default_map.put("tsd.rtpublisher.dispatcher.threads", "1");
+    default_map.put("tsd.rtpublisher.dispatcher.batch_size", "256");
+    default_map.put("tsd.rtpublisher.dispatcher.full_policy", "drop_newest");
     default_map.put("tsd.search.enable", "false");
     default_map.put("tsd.search.plugin", "");
     default_map.put("tsd.stats.canonical", "false");
@@ -400,10 +426,31 @@ public class Config {
     default_map.put("tsd.storage.hbase.uid_table", "tsdb-uid");
     default_map.put("tsd.storage.hbase.tree_table", "tsdb-tree");
     default_map.put("tsd.storage.hbase.meta_table", "tsdb-meta");
+    default_map.put("tsd.storage.hbase.rollup_table", "tsdb-rollup");
     default_map.put("tsd.storage.hbase.zk_quorum", "localhost");
     default_map.put("tsd.storage.hbase.zk_basedir", "/hbase");
     default_map.put("tsd.storage.enable_compaction", "true");
+    default_map.put("tsd.storage.compaction.workers", "2");
+    default_map.put("tsd.storage.compaction.flush_interval", "10");
+    default_map.put("tsd.storage.compaction.min_flush_threshold", "100");
+    default_map.put("tsd.storage.compaction.max_concurrent_flushes", "10000");
+    default_map.put("tsd.storage.compaction.flush_speed", "2");
+    default_map.put("tsd.storage.compaction.target_latency", "200");
+    default_map.put("tsd.storage.compaction.target_put_latency", "100");
+    default_map.put("tsd.storage.compaction.compress", "false");
+    default_map.put("tsd.storage.salt.width", "0");
+    default_map.put("tsd.storage.salt.buckets", "20");
+    default_map.put("tsd.storage.row_buffer.enable", "false");
+    default_map.put("tsd.storage.row_buffer.max_points", "10000000");
+    default_map.put("tsd.storage.row_buffer.grace_period", "60");
+    default_map.put("tsd.storage.spool.enable", "false");
+    default_map.put("tsd.storage.spool.directory", "");
+    default_map.put("tsd.storage.spool.segment_size", "67108864");
+    default_map.put("tsd.storage.spool.max_size", "1073741824");
+    default_map.put("tsd.storage.spool.latency_threshold", "1000");
+    default_map.put("tsd.storage.spool.replay_rate", "10000");
     default_map.put("tsd.http.show_stack_trace", "true");
+    default_map.put("tsd.http.query.enable_chunked", "false");
     default_map.put("tsd.http.request.enable_chunked", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
     default_map.put("tsd.http.request.cors_domains", "");
@@ -108,6 +108,35 @@ public final class TestAggregators {
     checkSimilarStdDev(values, expected, 0);
   }
 
+  @Test
+  public void testBatchMatchesIterator() {
+    final long[] values = new long[100];
+    final double[] doubles = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt();
+      doubles[i] = values[i];
+    }
+    final Numbers numbers = new Numbers(values);
+    for (final String name : Aggregators.set()) {
+      final Aggregator agg = Aggregators.get(name);
+      final Aggregators.Batch batch = (Aggregators.Batch) agg;
+      numbers.reset();
+      Assert.assertEquals(name, agg.runLong(numbers),
+                          batch.runLongs(values, values.length));
+      numbers.reset();
+      Assert.assertEquals(name, agg.runDouble(numbers),
+                          batch.runDoubles(doubles, values.length), 0);
+    }
+  }
+
+  @Test
+  public void testBatchSingleValue() {
+    Assert.assertEquals(42, ((Aggregators.Batch) Aggregators.SUM)
+                        .runLongs(new long[] { 42, 1 }, 1));
+    Assert.assertEquals(0, ((Aggregators.Batch) Aggregators.DEV)
+                        .runDoubles(new double[] { 42, 1 }, 1), 0);
+  }
+
   private static void checkSimilarStdDev(final long[] values,
                                          final double expected,
                                          final double epsilon) {
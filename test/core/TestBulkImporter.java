@@ -0,0 +1,179 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import org.hbase.async.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class })
+public final class TestBulkImporter {
+  private static final byte[] ZERO = { 0 };
+  /** A row key template with a 3 byte metric and a single tag pair.  */
+  private static final byte[] TEMPLATE =
+    { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 2 };
+  private static final long BASE_TIME = 1356998400L;
+  private TSDB tsdb = mock(TSDB.class);
+  private UniqueId metrics = mock(UniqueId.class);
+
+  @Before
+  public void before() throws Exception {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    when(metrics.width()).thenReturn((short) 3);
+    when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
+      .thenAnswer(newDeferred());
+  }
+
+  @Test
+  public void pointsGroupedByRow() throws Exception {
+    final BulkImporter importer = new BulkImporter(tsdb, 100);
+    importer.addPoint(TEMPLATE, BASE_TIME + 3600, 7L);
+    importer.addPoint(TEMPLATE, BASE_TIME + 60, 5L);
+    importer.addPoint(TEMPLATE, BASE_TIME, 4L);
+    assertEquals(3, importer.bufferedPoints());
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+
+    importer.flush().joinUninterruptibly();
+    assertEquals(0, importer.bufferedPoints());
+    // The data points were sorted within their row.
+    verify(tsdb, times(1)).put(makeKey(BASE_TIME),
+        new byte[] { 0x00, 0x00, 0x03, (byte) 0xC0 },
+        new byte[] { 4, 5, 0 });
+    // A single data point is written as-is.
+    verify(tsdb, times(1)).put(makeKey(BASE_TIME + 3600),
+        new byte[] { 0x00, 0x00 }, new byte[] { 7 });
+    verify(tsdb, never()).scheduleForCompaction(anyBytes(), anyInt());
+  }
+
+  @Test
+  public void floatPoint() throws Exception {
+    final BulkImporter importer = new BulkImporter(tsdb, 100);
+    importer.addPoint(TEMPLATE, BASE_TIME, 42.5F);
+    importer.addPoint(TEMPLATE, BASE_TIME + 1, 1L);
+    importer.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).put(makeKey(BASE_TIME),
+        new byte[] { 0x00, 0x0B, 0x00, 0x10 },
+        MockBase.concatByteArrays(Bytes.fromInt(Float.floatToRawIntBits(42.5F)),
+                                  new byte[] { 1 }, ZERO));
+  }
+
+  @Test
+  public void flushOldestWritesOldestRows() throws Exception {
+    final BulkImporter importer = new BulkImporter(tsdb, 4);
+    importer.addPoint(TEMPLATE, BASE_TIME + 3600, 1L);
+    importer.addPoint(TEMPLATE, BASE_TIME + 3601, 2L);
+    importer.addPoint(TEMPLATE, BASE_TIME, 1L);
+    importer.addPoint(TEMPLATE, BASE_TIME + 1, 2L);
+    importer.flushOldest().joinUninterruptibly();
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+
+    importer.addPoint(TEMPLATE, BASE_TIME + 2, 3L);
+    importer.flushOldest().joinUninterruptibly();
+    // Only the oldest row had to go to get back to half of the limit.
+    assertEquals(2, importer.bufferedPoints());
+    verify(tsdb, times(1)).put(any(byte[].class), anyBytes(), anyBytes());
+    verify(tsdb, times(1)).put(makeKey(BASE_TIME),
+        new byte[] { 0x00, 0x00, 0x00, 0x10, 0x00, 0x20 },
+        new byte[] { 1, 2, 3, 0 });
+  }
+
+  @Test
+  public void rewrittenRowSchedulesCompaction() throws Exception {
+    final BulkImporter importer = new BulkImporter(tsdb, 100);
+    importer.addPoint(TEMPLATE, BASE_TIME, 1L);
+    importer.flush().joinUninterruptibly();
+    verify(tsdb, never()).scheduleForCompaction(anyBytes(), anyInt());
+
+    importer.addPoint(TEMPLATE, BASE_TIME + 1, 2L);
+    importer.flush().joinUninterruptibly();
+    verify(tsdb, times(2)).put(any(byte[].class), anyBytes(), anyBytes());
+    verify(tsdb, times(1)).scheduleForCompaction(makeKey(BASE_TIME),
+                                                 (int) BASE_TIME);
+  }
+
+  @Test
+  public void writeFailureRetried() throws Exception {
+    when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
+      .thenReturn(Deferred.<Object>fromError(new RuntimeException("Boom")))
+      .thenAnswer(newDeferred());
+    final BulkImporter importer = new BulkImporter(tsdb, 100);
+    importer.addPoint(TEMPLATE, BASE_TIME, 42L);
+    importer.flush().joinUninterruptibly();
+    verify(tsdb, times(2)).put(makeKey(BASE_TIME), new byte[] { 0x00, 0x00 },
+                               new byte[] { 42 });
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeTimestamp() throws Exception {
+    new BulkImporter(tsdb, 100).addPoint(TEMPLATE, -1, 42L);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void nanValue() throws Exception {
+    new BulkImporter(tsdb, 100).addPoint(TEMPLATE, BASE_TIME, Float.NaN);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noMaxPoints() throws Exception {
+    new BulkImporter(tsdb, 0);
+  }
+
+  // ----------------- //
+  // Helper functions. //
+  // ----------------- //
+
+  private static byte[] makeKey(final long base_time) {
+    final byte[] key = TEMPLATE.clone();
+    Bytes.setInt(key, (int) base_time, 3);
+    return key;
+  }
+
+  private static byte[] anyBytes() {
+    return any(byte[].class);
+  }
+
+  /** Creates a new Deferred that's already called back.  */
+  private static <T> Answer<Deferred<T>> newDeferred() {
+    return new Answer<Deferred<T>>() {
+      public Deferred<T> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(null);
+      }
+    };
+  }
+
+}
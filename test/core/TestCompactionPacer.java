@@ -0,0 +1,87 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+
+import net.opentsdb.utils.Config;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestCompactionPacer {
+  private CompactionPacer pacer;
+
+  @Before
+  public void before() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.storage.compaction.min_flush_threshold", "100");
+    config.overrideConfig("tsd.storage.compaction.target_latency", "200");
+    config.overrideConfig("tsd.storage.compaction.target_put_latency", "100");
+    pacer = new CompactionPacer(config);
+  }
+
+  @Test
+  public void startsAtMinimum() throws Exception {
+    assertEquals(100, pacer.rate());
+  }
+
+  @Test
+  public void rampsUpWhileHealthy() throws Exception {
+    assertEquals(200, pacer.nextCycle(1000, 1000));
+    assertEquals(400, pacer.nextCycle(1000, 1000));
+    assertEquals(800, pacer.nextCycle(1000, 1000));
+    // Never more than the backlog.
+    assertEquals(1000, pacer.nextCycle(1000, 1000));
+    assertEquals(1000, pacer.nextCycle(1000, 1000));
+  }
+
+  @Test
+  public void neverBelowRequiredRate() throws Exception {
+    // 3.6M rows flushed twice as fast as needed every 10s: 20,000 per cycle.
+    assertEquals(20000, pacer.nextCycle(3600000, 0));
+  }
+
+  @Test
+  public void slowsDownOnSlowReads() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      pacer.nextCycle(10000, 10000);
+    }
+    assertEquals(1600, pacer.rate());
+    for (int i = 0; i < 100; i++) {
+      pacer.readLatency(1000);
+    }
+    assertEquals(800, pacer.nextCycle(10000, 10000));
+    assertEquals(400, pacer.nextCycle(10000, 10000));
+  }
+
+  @Test
+  public void slowsDownOnSlowPuts() throws Exception {
+    pacer.nextCycle(10000, 10000);
+    pacer.nextCycle(10000, 10000);
+    for (int i = 0; i < 100; i++) {
+      pacer.putLatency(500);
+    }
+    assertEquals(200, pacer.nextCycle(10000, 10000));
+  }
+
+  @Test
+  public void slowsDownWhenThrottled() throws Exception {
+    pacer.nextCycle(10000, 10000);
+    pacer.throttle();
+    assertEquals(100, pacer.nextCycle(10000, 10000));
+    // The throttle only applies to one cycle.
+    assertEquals(200, pacer.nextCycle(10000, 10000));
+  }
+
+}
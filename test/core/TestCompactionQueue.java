@@ -13,6 +13,7 @@
 package net.opentsdb.core;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 import java.util.ArrayList;
 
@@ -66,14 +67,18 @@ final class TestCompactionQueue {
   @Before
   public void before() throws Exception {
     // Inject the attributes we need into the "tsdb" object.
-    Whitebox.setInternalState(tsdb, "metrics", mock(UniqueId.class));
+    final UniqueId metrics = mock(UniqueId.class);
+    when(metrics.width()).thenReturn((short) 3);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
     Whitebox.setInternalState(tsdb, "table", TABLE);
     Whitebox.setInternalState(config, "enable_compactions", true);
     Whitebox.setInternalState(tsdb, "config", config);
     // Stub out the compaction thread, so it doesn't even start.
-    PowerMockito.whenNew(CompactionQueue.Thrd.class).withNoArguments()
+    PowerMockito.whenNew(CompactionQueue.Thrd.class).withAnyArguments()
       .thenReturn(mock(CompactionQueue.Thrd.class));
     PowerMockito.when(config.enable_compactions()).thenReturn(true);
+    PowerMockito.when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(10000);
     compactionq = new CompactionQueue(tsdb);
 
     when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
@@ -82,6 +87,37 @@ final class TestCompactionQueue {
       .thenAnswer(newDeferred());
   }
 
+  @Test
+  public void addSameRowTwice() throws Exception {
+    compactionq.add(KEY);
+    compactionq.add(KEY.clone());
+    assertEquals(1, compactionq.size());
+  }
+
+  @Test
+  public void flushOnlyOldRows() throws Exception {
+    final long now = System.currentTimeMillis() / 1000;
+    final byte[] old_key = KEY.clone();
+    Bytes.setInt(old_key, (int) (now - now % Const.MAX_TIMESPAN
+        - 2 * Const.MAX_TIMESPAN), 3);
+    final byte[] new_key = KEY.clone();
+    Bytes.setInt(new_key, (int) (now - now % Const.MAX_TIMESPAN), 3);
+    when(tsdb.get(anyBytes()))
+      .thenReturn(Deferred.fromResult(new ArrayList<KeyValue>(0)));
+
+    compactionq.add(old_key);
+    compactionq.add(new_key);
+    assertEquals(2, compactionq.size());
+    compactionq.flush().joinUninterruptibly();
+
+    verify(tsdb, times(1)).get(old_key);
+    verify(tsdb, never()).get(new_key);
+    assertEquals(1, compactionq.size());
+    // The old bucket was retired, but the row can still be scheduled again.
+    compactionq.add(old_key);
+    assertEquals(2, compactionq.size());
+  }
+
   @Test
   public void emptyRow() throws Exception {
     ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(0);
@@ -771,6 +807,68 @@ final class TestCompactionQueue {
     verify(tsdb, times(1)).delete(KEY, new byte[][] { qual12, qual34, qual56 });
   }
   
+  @Test
+  public void compressedRow() throws Exception {
+    Whitebox.setInternalState(compactionq, "compress_cells", true);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(3);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    kvs.add(makekv(qual1, val1));
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(qual2, val2));
+    final byte[] qual3 = { 0x00, 0x27 };
+    final byte[] val3 = Bytes.fromLong(6L);
+    kvs.add(makekv(qual3, val3));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    // Callers still get the regular compacted cell.
+    final byte[] qual123 = MockBase.concatByteArrays(qual1, qual2, qual3);
+    final byte[] val123 = MockBase.concatByteArrays(val1, val2, val3, ZERO);
+    assertArrayEquals(qual123, kv.qualifier());
+    assertArrayEquals(val123, kv.value());
+
+    final KeyValue compressed =
+      CompressedCell.encode(makekv(qual123, val123));
+    verify(tsdb, times(1)).put(KEY, compressed.qualifier(),
+                               compressed.value());
+    verify(tsdb, times(1)).delete(KEY, new byte[][] { qual1, qual2, qual3 });
+  }
+
+  @Test
+  public void secondCompactCompressed() throws Exception {
+    // The row was compressed, and another data point came late.
+    Whitebox.setInternalState(compactionq, "compress_cells", true);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual4 = { 0x00, 0x37 };
+    final byte[] val4 = Bytes.fromLong(7L);
+    final KeyValue compressed = CompressedCell.encode(makekv(
+        MockBase.concatByteArrays(qual1, qual2, qual4),
+        MockBase.concatByteArrays(val1, val2, val4, ZERO)));
+    kvs.add(compressed);
+    final byte[] qual3 = { 0x00, 0x27 };
+    final byte[] val3 = Bytes.fromLong(6L);
+    kvs.add(makekv(qual3, val3));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    final byte[] qual1234 = MockBase.concatByteArrays(qual1, qual2, qual3, qual4);
+    final byte[] val1234 = 
+      MockBase.concatByteArrays(val1, val2, val3, val4, ZERO);
+    assertArrayEquals(qual1234, kv.qualifier());
+    assertArrayEquals(val1234, kv.value());
+
+    // The compressed cell is overwritten, only the late one is deleted.
+    final KeyValue merged = CompressedCell.encode(makekv(qual1234, val1234));
+    verify(tsdb, times(1)).put(KEY, merged.qualifier(), merged.value());
+    verify(tsdb, times(1)).delete(KEY, new byte[][] { qual3 });
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
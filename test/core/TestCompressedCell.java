@@ -0,0 +1,227 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestCompressedCell {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 2 };
+  private static final byte[] FAMILY = { 't' };
+
+  private ByteArrayOutputStream qualifier;
+  private ByteArrayOutputStream value;
+
+  @Before
+  public void before() {
+    qualifier = new ByteArrayOutputStream();
+    value = new ByteArrayOutputStream();
+  }
+
+  @Test
+  public void isCompressed() throws Exception {
+    assertTrue(CompressedCell.isCompressed(new byte[] { 2 }));
+    assertFalse(CompressedCell.isCompressed(new byte[] { 1, 0, 0 }));
+    assertFalse(CompressedCell.isCompressed(new byte[] { 2, 0 }));
+  }
+
+  @Test
+  public void roundTripSeconds() throws Exception {
+    for (int i = 0; i < 60; i++) {
+      addSeconds(i * 60, i % 7);
+    }
+    final KeyValue compacted = compacted((byte) 0);
+    final KeyValue compressed = CompressedCell.encode(compacted);
+    assertNotNull(compressed);
+    assertArrayEquals(new byte[] { CompressedCell.PREFIX },
+        compressed.qualifier());
+    assertArrayEquals(KEY, compressed.key());
+    assertEquals(60, CompressedCell.numDataPoints(compressed.value()));
+    assertRoundTrip(compacted, compressed);
+  }
+
+  @Test
+  public void roundTripMilliseconds() throws Exception {
+    for (int i = 0; i < 60; i++) {
+      addMilliseconds(i * 250 + (i % 3), -i);
+    }
+    final KeyValue compacted = compacted((byte) 0);
+    assertRoundTrip(compacted, CompressedCell.encode(compacted));
+  }
+
+  @Test
+  public void roundTripMixed() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      if (i % 2 == 0) {
+        addSeconds(i * 10, i);
+      } else {
+        addMilliseconds(i * 10000 + 500, i);
+      }
+    }
+    final KeyValue compacted = compacted(Const.MS_MIXED_COMPACT);
+    final KeyValue compressed = CompressedCell.encode(compacted);
+    assertEquals(Const.MS_MIXED_COMPACT,
+        CompressedCell.getMeta(compressed.value()));
+    assertRoundTrip(compacted, compressed);
+  }
+
+  @Test
+  public void roundTripValueTypes() throws Exception {
+    addSeconds(0, 42);
+    addSeconds(1, (short) 4242, 2);
+    addSeconds(2, 424242, 4);
+    addSeconds(3, Long.MAX_VALUE, 8);
+    addSeconds(4, Long.MIN_VALUE, 8);
+    addFloat(5, 42.5F);
+    addDouble(6, Math.PI);
+    addFloat(3598, -0.0F);
+    addDouble(3599, Double.NaN);
+    final KeyValue compacted = compacted((byte) 0);
+    assertRoundTrip(compacted, CompressedCell.encode(compacted));
+  }
+
+  @Test
+  public void smallerThanCompacted() throws Exception {
+    long v = 1000000;
+    for (int i = 0; i < 360; i++) {
+      v += i % 5;
+      addSeconds(i * 10, v, 8);
+    }
+    final KeyValue compacted = compacted((byte) 0);
+    final KeyValue compressed = CompressedCell.encode(compacted);
+    final int before = compacted.qualifier().length + compacted.value().length;
+    final int after = compressed.qualifier().length + compressed.value().length;
+    assertTrue("compressed " + before + " bytes into " + after,
+        after * 5 < before);
+  }
+
+  @Test
+  public void encodeSingleDataPoint() throws Exception {
+    addSeconds(0, 42);
+    assertNull(CompressedCell.encode(compacted((byte) 0)));
+  }
+
+  @Test
+  public void encodeCorrupted() throws Exception {
+    addSeconds(0, 42);
+    addSeconds(1, 42);
+    addSeconds(2, 42);
+    value.write(42);  // One value byte too many.
+    assertNull(CompressedCell.encode(compacted((byte) 0)));
+  }
+
+  @Test
+  public void extractDataPoints() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      addSeconds(i, i);
+    }
+    final KeyValue compressed = CompressedCell.encode(compacted((byte) 0));
+    final ArrayList<Cell> cells = Internal.extractDataPoints(compressed);
+    assertEquals(10, cells.size());
+    assertEquals(9, cells.get(9).parseValue().longValue());
+    assertEquals(1356998409000L, cells.get(9).timestamp(1356998400));
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeUnknownVersion() throws Exception {
+    addSeconds(0, 42);
+    addSeconds(1, 42);
+    addSeconds(2, 42);
+    final KeyValue compressed = CompressedCell.encode(compacted((byte) 0));
+    compressed.value()[0] = 42;
+    CompressedCell.decode(compressed);
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeTruncated() throws Exception {
+    for (int i = 0; i < 60; i++) {
+      addSeconds(i * 60, i);
+    }
+    final KeyValue compressed = CompressedCell.encode(compacted((byte) 0));
+    CompressedCell.decode(new KeyValue(KEY, FAMILY, compressed.qualifier(),
+        Arrays.copyOf(compressed.value(), 8)));
+  }
+
+  private static void assertRoundTrip(final KeyValue compacted,
+                                      final KeyValue compressed) {
+    assertNotNull(compressed);
+    final KeyValue decoded = CompressedCell.decode(compressed);
+    assertArrayEquals(compacted.key(), decoded.key());
+    assertArrayEquals(compacted.qualifier(), decoded.qualifier());
+    assertArrayEquals(compacted.value(), decoded.value());
+  }
+
+  private KeyValue compacted(final byte meta) {
+    value.write(meta);
+    return new KeyValue(KEY, FAMILY, qualifier.toByteArray(),
+                        value.toByteArray());
+  }
+
+  private void addSeconds(final int offset, final int v) {
+    addSeconds(offset, v, 1);
+  }
+
+  private void addSeconds(final int offset, final long v, final int width) {
+    final byte[] qual = new byte[2];
+    Bytes.setShort(qual, (short) (offset << Const.FLAG_BITS | (width - 1)));
+    qualifier.write(qual, 0, 2);
+    writeInteger(v, width);
+  }
+
+  private void addMilliseconds(final int offset, final int v) {
+    final byte[] qual = new byte[4];
+    Bytes.setInt(qual, Const.MS_FLAG | offset << Const.MS_FLAG_BITS);
+    qualifier.write(qual, 0, 4);
+    writeInteger(v, 1);
+  }
+
+  private void addFloat(final int offset, final float v) {
+    final byte[] qual = new byte[2];
+    Bytes.setShort(qual, (short) (offset << Const.FLAG_BITS
+        | Const.FLAG_FLOAT | 3));
+    qualifier.write(qual, 0, 2);
+    value.write(Bytes.fromInt(Float.floatToRawIntBits(v)), 0, 4);
+  }
+
+  private void addDouble(final int offset, final double v) {
+    final byte[] qual = new byte[2];
+    Bytes.setShort(qual, (short) (offset << Const.FLAG_BITS
+        | Const.FLAG_FLOAT | 7));
+    qualifier.write(qual, 0, 2);
+    value.write(Bytes.fromLong(Double.doubleToRawLongBits(v)), 0, 8);
+  }
+
+  private void writeInteger(final long v, final int width) {
+    switch (width) {
+      case 1: value.write((byte) v); break;
+      case 2: value.write(Bytes.fromShort((short) v), 0, 2); break;
+      case 4: value.write(Bytes.fromInt((int) v), 0, 4); break;
+      default: value.write(Bytes.fromLong(v), 0, 8);
+    }
+  }
+
+}
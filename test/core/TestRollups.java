@@ -0,0 +1,265 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, HBaseClient.class, Rollups.class })
+public final class TestRollups {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+  private TSDB tsdb = mock(TSDB.class);
+  private HBaseClient client = mock(HBaseClient.class);
+  private Config config;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+    config.overrideConfig("tsd.rollups.tiers", "1h, 1m");
+    config.overrideConfig("tsd.rollups.query.enable", "true");
+    Whitebox.setInternalState(tsdb, "config", config);
+    Whitebox.setInternalState(tsdb, "client", client);
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromResult(null));
+  }
+
+  @Test
+  public void tables() throws Exception {
+    assertArrayEquals(new String[] { "tsdb-rollup-1m", "tsdb-rollup-1h" },
+                      new Rollups(tsdb).tables());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void tierNotDividingAnHour() throws Exception {
+    config.overrideConfig("tsd.rollups.tiers", "7m");
+    new Rollups(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void tierLongerThanAnHour() throws Exception {
+    config.overrideConfig("tsd.rollups.tiers", "1d");
+    new Rollups(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void tierInMilliseconds() throws Exception {
+    config.overrideConfig("tsd.rollups.tiers", "1500ms");
+    new Rollups(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void duplicateTiers() throws Exception {
+    config.overrideConfig("tsd.rollups.tiers", "1h,60m");
+    new Rollups(tsdb);
+  }
+
+  @Test
+  public void write() throws Exception {
+    final byte[] qualifiers = MockBase.concatByteArrays(
+        qualifier(0, 0), qualifier(30, 0),
+        new byte[] { 0x03, (byte) 0xCB },  // 60s, float on 4 bytes.
+        qualifier(3599, 0));
+    final byte[] values = MockBase.concatByteArrays(new byte[] { 1, 3 },
+        Bytes.fromInt(Float.floatToRawIntBits(2.5F)), new byte[] { 7, 0 });
+    new Rollups(tsdb).write(new KeyValue(KEY, FAMILY, qualifiers, values))
+      .joinUninterruptibly();
+
+    final ArgumentCaptor<PutRequest> puts =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client, times(8)).put(puts.capture());
+    final List<PutRequest> all = puts.getAllValues();
+
+    // 1m tier: [0s, 60s) has integers, [60s, 120s) a float.
+    assertPut(all.get(0), "tsdb-rollup-1m", Rollups.SUM,
+        new byte[][] { qualifier(0, 7), qualifier(60, 0xF),
+                       qualifier(3540, 7) },
+        new long[] { 4, Double.doubleToRawLongBits(2.5), 7 });
+    assertPut(all.get(1), "tsdb-rollup-1m", Rollups.COUNT,
+        new byte[][] { qualifier(0, 7), qualifier(60, 7),
+                       qualifier(3540, 7) },
+        new long[] { 2, 1, 1 });
+    assertPut(all.get(2), "tsdb-rollup-1m", Rollups.MIN,
+        new byte[][] { qualifier(0, 7), qualifier(60, 0xF),
+                       qualifier(3540, 7) },
+        new long[] { 1, Double.doubleToRawLongBits(2.5), 7 });
+    assertPut(all.get(3), "tsdb-rollup-1m", Rollups.MAX,
+        new byte[][] { qualifier(0, 7), qualifier(60, 0xF),
+                       qualifier(3540, 7) },
+        new long[] { 3, Double.doubleToRawLongBits(2.5), 7 });
+
+    // 1h tier: a single interval, with a float.
+    assertPut(all.get(4), "tsdb-rollup-1h", Rollups.SUM,
+        new byte[][] { qualifier(0, 0xF) },
+        new long[] { Double.doubleToRawLongBits(13.5) });
+    assertPut(all.get(5), "tsdb-rollup-1h", Rollups.COUNT,
+        new byte[][] { qualifier(0, 7) }, new long[] { 4 });
+    assertPut(all.get(6), "tsdb-rollup-1h", Rollups.MIN,
+        new byte[][] { qualifier(0, 0xF) },
+        new long[] { Double.doubleToRawLongBits(1) });
+    assertPut(all.get(7), "tsdb-rollup-1h", Rollups.MAX,
+        new byte[][] { qualifier(0, 0xF) },
+        new long[] { Double.doubleToRawLongBits(7) });
+  }
+
+  @Test
+  public void writeOnlyAnnotation() throws Exception {
+    new Rollups(tsdb).write(new KeyValue(KEY, FAMILY, new byte[] { 1, 0, 0 },
+        new byte[] { '{', '}' })).joinUninterruptibly();
+    verify(client, times(0)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void findTier() throws Exception {
+    final Rollups rollups = new Rollups(tsdb);
+    assertEquals("1h", rollups.findTier(3600000, Aggregators.SUM).name);
+    assertEquals("1h", rollups.findTier(86400000, Aggregators.MAX).name);
+    assertEquals("1m", rollups.findTier(1800000, Aggregators.MIMMIN).name);
+    assertNull(rollups.findTier(90000, Aggregators.SUM));
+    assertNull(rollups.findTier(10000, Aggregators.SUM));
+    assertNull(rollups.findTier(3600000, Aggregators.DEV));
+  }
+
+  @Test
+  public void findTierAverage() throws Exception {
+    final Rollups rollups = new Rollups(tsdb);
+    assertEquals("1m", rollups.findTier(60000, Aggregators.AVG).name);
+    assertEquals("1h", rollups.findTier(3600000, Aggregators.AVG).name);
+    // An average of averages isn't the average.
+    assertNull(rollups.findTier(7200000, Aggregators.AVG));
+  }
+
+  @Test
+  public void findTierQueriesDisabled() throws Exception {
+    config.overrideConfig("tsd.rollups.query.enable", "false");
+    assertNull(new Rollups(tsdb).findTier(3600000, Aggregators.SUM));
+  }
+
+  @Test
+  public void cutoff() throws Exception {
+    PowerMockito.mockStatic(System.class);
+    when(System.currentTimeMillis()).thenReturn(1357007400000L);  // 02:30
+    assertEquals(1356998400L, new Rollups(tsdb).cutoff());  // 00:00
+  }
+
+  @Test
+  public void readSingleInterval() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    final KeyValue sum = rollup(Rollups.SUM, 0, 7, 42, 1);
+    row.add(sum);
+    assertSame(sum, Rollups.read(row, Aggregators.SUM));
+    assertNull(Rollups.read(row, Aggregators.MAX));
+  }
+
+  @Test
+  public void readCompacts() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(rollup(Rollups.MAX, 0, 7, 42, 1));
+    row.add(rollup(Rollups.MAX, 60, 7, 24, 1));
+    // The sum of the second interval turned into a float and the older
+    // integer cell is still around.
+    row.add(rollup(Rollups.SUM, 60, 7, 1, 1));
+    row.add(rollup(Rollups.SUM, 60, 0xF, Double.doubleToRawLongBits(1.5), 2));
+    final KeyValue kv = Rollups.read(row, Aggregators.MAX);
+    assertArrayEquals(MockBase.concatByteArrays(qualifier(0, 7),
+        qualifier(60, 7)), kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(Bytes.fromLong(42),
+        Bytes.fromLong(24), new byte[] { 0 }), kv.value());
+    final KeyValue sum = Rollups.read(row, Aggregators.SUM);
+    assertArrayEquals(qualifier(60, 0xF), sum.qualifier());
+    assertArrayEquals(Bytes.fromLong(Double.doubleToRawLongBits(1.5)),
+                      sum.value());
+  }
+
+  @Test
+  public void readAverage() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(rollup(Rollups.COUNT, 0, 7, 2, 1));
+    row.add(rollup(Rollups.COUNT, 60, 7, 4, 1));
+    row.add(rollup(Rollups.MAX, 0, 7, 3, 1));
+    row.add(rollup(Rollups.SUM, 0, 7, 3, 1));
+    row.add(rollup(Rollups.SUM, 60, 0xF, Double.doubleToRawLongBits(5), 1));
+    final KeyValue kv = Rollups.read(row, Aggregators.AVG);
+    assertArrayEquals(MockBase.concatByteArrays(qualifier(0, 0xF),
+        qualifier(60, 0xF)), kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(
+        Bytes.fromLong(Double.doubleToRawLongBits(1.5)),
+        Bytes.fromLong(Double.doubleToRawLongBits(1.25)),
+        new byte[] { 0 }), kv.value());
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void readAverageMismatch() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(rollup(Rollups.COUNT, 0, 7, 2, 1));
+    row.add(rollup(Rollups.SUM, 60, 7, 3, 1));
+    Rollups.read(row, Aggregators.AVG);
+  }
+
+  private static byte[] qualifier(final int offset, final int flags) {
+    return Bytes.fromShort((short) (offset << Const.FLAG_BITS | flags));
+  }
+
+  private static KeyValue rollup(final byte[] family, final int offset,
+      final int flags, final long value, final long timestamp) {
+    return new KeyValue(KEY, family, qualifier(offset, flags), timestamp,
+                        Bytes.fromLong(value));
+  }
+
+  private static void assertPut(final PutRequest put, final String table,
+      final byte[] family, final byte[][] qualifiers, final long[] values) {
+    assertArrayEquals(table.getBytes(), put.table());
+    assertArrayEquals(KEY, put.key());
+    assertArrayEquals(family, put.family());
+    assertEquals(qualifiers.length, put.qualifiers().length);
+    for (int i = 0; i < qualifiers.length; i++) {
+      assertArrayEquals(qualifiers[i], put.qualifiers()[i]);
+      assertArrayEquals(Bytes.fromLong(values[i]), put.values()[i]);
+    }
+  }
+
+}
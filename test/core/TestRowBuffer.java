@@ -0,0 +1,202 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import org.hbase.async.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ RowBuffer.class, RowBuffer.Thrd.class,
+                  TSDB.class, UniqueId.class, Config.class })
+public final class TestRowBuffer {
+  private static final byte[] ZERO = { 0 };
+  private TSDB tsdb = mock(TSDB.class);
+  private Config config = mock(Config.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private long base_time;
+  private byte[] key;
+  private RowBuffer buffer;
+
+  @Before
+  public void before() throws Exception {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "config", config);
+    when(metrics.width()).thenReturn((short) 3);
+    when(config.getLong("tsd.storage.row_buffer.max_points")).thenReturn(100L);
+    when(config.getInt("tsd.storage.row_buffer.grace_period")).thenReturn(60);
+    // Stub out the flush thread, so it doesn't even start.
+    PowerMockito.whenNew(RowBuffer.Thrd.class).withNoArguments()
+      .thenReturn(mock(RowBuffer.Thrd.class));
+    when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
+      .thenAnswer(newDeferred());
+    buffer = new RowBuffer(tsdb);
+
+    final long now = System.currentTimeMillis() / 1000;
+    base_time = now - (now % Const.MAX_TIMESPAN);
+    key = makeKey(base_time);
+  }
+
+  @Test
+  public void singlePoint() throws Exception {
+    final byte[] qual = { 0x00, 0x07 };
+    final byte[] val = Bytes.fromLong(42L);
+    assertTrue(buffer.add(key, base_time, qual, val));
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+
+    buffer.flush().joinUninterruptibly();
+    // A single data point is written as-is.
+    verify(tsdb, times(1)).put(key, qual, val);
+  }
+
+  @Test
+  public void sortedPoints() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual3 = { 0x00, 0x33 };
+    final byte[] val3 = Bytes.fromInt(6);
+    buffer.add(key, base_time, qual1, val1);
+    buffer.add(key, base_time, qual2, val2);
+    buffer.add(key, base_time, qual3, val3);
+
+    buffer.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).put(key,
+        MockBase.concatByteArrays(qual1, qual2, qual3),
+        MockBase.concatByteArrays(val1, val2, val3, ZERO));
+  }
+
+  @Test
+  public void unsortedPointsWithDuplicate() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual2b = { 0x00, 0x23 };
+    final byte[] val2b = Bytes.fromInt(7);
+    buffer.add(key, base_time, qual2, val2);
+    buffer.add(key, base_time, qual1, val1);
+    buffer.add(key, base_time, qual2b, val2b);
+
+    buffer.flush().joinUninterruptibly();
+    // The last value written for a timestamp wins.
+    verify(tsdb, times(1)).put(key,
+        MockBase.concatByteArrays(qual1, qual2b),
+        MockBase.concatByteArrays(val1, val2b, ZERO));
+  }
+
+  @Test
+  public void mixedSecondsAndMilliseconds() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { (byte) 0xF0, 0x00, 0x02, 0x07 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    buffer.add(key, base_time, qual1, val1);
+    buffer.add(key, base_time, qual2, val2);
+
+    buffer.flush().joinUninterruptibly();
+    verify(tsdb, times(1)).put(key,
+        MockBase.concatByteArrays(qual1, qual2),
+        MockBase.concatByteArrays(val1, val2, new byte[] { 1 }));
+  }
+
+  @Test
+  public void latePoint() throws Exception {
+    final long old_base_time = base_time - (2 * Const.MAX_TIMESPAN);
+    assertFalse(buffer.add(makeKey(old_base_time), old_base_time,
+        new byte[] { 0x00, 0x07 }, Bytes.fromLong(42L)));
+    buffer.flush().joinUninterruptibly();
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+  }
+
+  @Test
+  public void flushOpenRowSchedulesCompaction() throws Exception {
+    buffer.add(key, base_time, new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L));
+    buffer.flush().joinUninterruptibly();
+    // The hour isn't over, so what comes next will need to be compacted.
+    verify(tsdb, times(1)).scheduleForCompaction(key, (int) base_time);
+
+    // New data points for the same hour are buffered again.
+    assertTrue(buffer.add(key, base_time, new byte[] { 0x00, 0x17 },
+        Bytes.fromLong(5L)));
+    buffer.flush().joinUninterruptibly();
+    verify(tsdb, times(2)).put(any(byte[].class), anyBytes(), anyBytes());
+    verify(tsdb, times(2)).scheduleForCompaction(key, (int) base_time);
+  }
+
+  @Test
+  public void writeFailureRetried() throws Exception {
+    when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
+      .thenReturn(Deferred.<Object>fromError(new RuntimeException("Boom")))
+      .thenAnswer(newDeferred());
+    final byte[] qual = { 0x00, 0x07 };
+    final byte[] val = Bytes.fromLong(42L);
+    buffer.add(key, base_time, qual, val);
+
+    buffer.flush().joinUninterruptibly();
+    buffer.flush().joinUninterruptibly();
+    verify(tsdb, times(2)).put(key, qual, val);
+  }
+
+  // ----------------- //
+  // Helper functions. //
+  // ----------------- //
+
+  /** Builds a row key with a 3 byte metric and a single tag pair.  */
+  private static byte[] makeKey(final long base_time) {
+    final byte[] key = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 2 };
+    Bytes.setInt(key, (int) base_time, 3);
+    return key;
+  }
+
+  private static byte[] anyBytes() {
+    return any(byte[].class);
+  }
+
+  /** Creates a new Deferred that's already called back.  */
+  private static <T> Answer<Deferred<T>> newDeferred() {
+    return new Answer<Deferred<T>>() {
+      public Deferred<T> answer(final InvocationOnMock invocation) {
+        return Deferred.fromResult(null);
+      }
+    };
+  }
+
+}
@@ -619,6 +619,87 @@ public final class TestRowSeq {
     it.next();
   }
   
+  @Test
+  public void setRowDecoded() throws Exception {
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(KEY, DecodedRow.decode(getMs(), 1356998400L));
+    
+    assertEquals(3, rs.size());
+    assertEquals(1356998400008L, rs.timestamp(1));
+    assertEquals(5, rs.longValue(1));
+    final SeekableView it = rs.iterator();
+    long value = 4;
+    long timestamp = 1356998400000L;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      assertTrue(dp.isInteger());
+      assertEquals(timestamp, dp.timestamp());
+      assertEquals(value++, dp.longValue());
+      timestamp += 8;
+    }
+    assertEquals(7, value);
+  }
+  
+  @Test
+  public void setRowDecodedFloat() throws Exception {
+    final byte[] qual1 = { 0x00, 0x0B };
+    final byte[] val1 = Bytes.fromInt(Float.floatToRawIntBits(1.5F));
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(KEY, DecodedRow.decode(makekv(
+        MockBase.concatByteArrays(qual1, qual2),
+        MockBase.concatByteArrays(val1, val2, ZERO)), 1356998400L));
+    
+    assertEquals(2, rs.size());
+    assertFalse(rs.isInteger(0));
+    assertEquals(1.5, rs.doubleValue(0), 0.0001);
+    assertTrue(rs.isInteger(1));
+    assertEquals(1356998402000L, rs.timestamp(1));
+    assertEquals(5, rs.longValue(1));
+  }
+  
+  @Test
+  public void seekDecoded() throws Exception {
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(KEY, DecodedRow.decode(getMs(), 1356998400L));
+
+    final SeekableView it = rs.iterator();
+    it.seek(1356998400005L);
+    DataPoint dp = it.next();
+    assertEquals(1356998400008L, dp.timestamp());
+    assertEquals(5, dp.longValue());
+    
+    assertTrue(it.hasNext());
+  }
+  
+  @Test
+  public void addRowMergeDecoded() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(makekv(MockBase.concatByteArrays(qual1, qual2), 
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    
+    // The duplicate at offset 2 is ignored.
+    final byte[] qual3 = { 0x00, 0x17 };
+    final byte[] val3 = Bytes.fromLong(6L);
+    final byte[] val4 = Bytes.fromLong(7L);
+    rs.addRow(DecodedRow.decode(makekv(
+        MockBase.concatByteArrays(qual3, qual2), 
+        MockBase.concatByteArrays(val3, val4, ZERO)), 1356998400L));
+    
+    assertEquals(3, rs.size());
+    assertEquals(1356998400000L, rs.timestamp(0));
+    assertEquals(4, rs.longValue(0));
+    assertEquals(1356998401000L, rs.timestamp(1));
+    assertEquals(6, rs.longValue(1));
+    assertEquals(1356998402000L, rs.timestamp(2));
+    assertEquals(5, rs.longValue(2));
+  }
+  
   /** Shorthand to create a {@link KeyValue}.  */
   private static KeyValue makekv(final byte[] qualifier, final byte[] value) {
     return new KeyValue(KEY, FAMILY, qualifier, value);
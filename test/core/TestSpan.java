@@ -228,6 +228,34 @@ public final class TestSpan {
     assertEquals(3600 * 3, span.size());
   }
   
+  @Test
+  public void timestampDecoded() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    final byte[] values = MockBase.concatByteArrays(val1, val2, ZERO);
+    
+    final Span span = new Span(tsdb);
+    span.addRow(HOUR1, DecodedRow.decode(qual12, values, 1356998400L));
+    span.addRow(HOUR3, DecodedRow.decode(qual12, values, 1357005600L));
+    
+    assertEquals(4, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(1357005602000L, span.timestamp(3));
+    
+    // Adding a row after an indexed access must shift the later points.
+    span.addRow(HOUR2, DecodedRow.decode(qual12, values, 1357002000L));
+    assertEquals(6, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(1356998402000L, span.timestamp(1));
+    assertEquals(1357002000000L, span.timestamp(2));
+    assertEquals(1357002002000L, span.timestamp(3));
+    assertEquals(1357005600000L, span.timestamp(4));
+    assertEquals(5, span.longValue(5));
+  }
+  
   @Test
   public void timestampMS() throws Exception {
     final byte[] qual1 = { (byte) 0xF0, 0x00, 0x00, 0x07 };
@@ -15,6 +15,7 @@ package net.opentsdb.core;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.mockito.Matchers.any;
@@ -521,6 +522,87 @@ public final class TestTSDB {
     assertEquals(24, value[0]);
   }
   
+  @SuppressWarnings("unchecked")
+  @Test
+  public void addPointRowKeyCached() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.addPoint("sys.cpu.user", 1356998460, 24, tags).joinUninterruptibly();
+    final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    assertEquals(42, storage.getColumn(row, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(row, new byte[] { 3, (byte) 0xC0 })[0]);
+    PowerMockito.verifyStatic(times(1));
+    IncomingDataPoints.rowKeyTemplate((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test
+  public void addPointRowKeyCacheDropped() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPoint("sys.cpu.user", 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.dropCaches();
+    tsdb.addPoint("sys.cpu.user", 1356998460, 24, tags).joinUninterruptibly();
+    PowerMockito.verifyStatic(times(2));
+    IncomingDataPoints.rowKeyTemplate((TSDB)any(), anyString(), 
+        (Map<String, String>)any());
+  }
+  
+  @Test
+  public void addPointAsyncLong() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPointAsync("sys.cpu.user", 1356998400, 42, tags)
+      .joinUninterruptibly();
+    final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    final byte[] value = storage.getColumn(row, new byte[] { 0, 0 });
+    assertNotNull(value);
+    assertEquals(42, value[0]);
+  }
+  
+  @Test
+  public void addPointAsyncFloat() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPointAsync("sys.cpu.user", 1356998400, 42.5F, tags)
+      .joinUninterruptibly();
+    final byte[] row = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+        0, 0, 1, 0, 0, 1};
+    final byte[] value = storage.getColumn(row, new byte[] { 0, 11 });
+    assertNotNull(value);
+    assertEquals(42.5F, Float.intBitsToFloat(Bytes.getInt(value)), 0.0000001);
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test (expected = NoSuchUniqueName.class)
+  public void addPointAsyncNoAutoMetric() throws Exception {
+    setupAddPointStorage();
+    when(IncomingDataPoints.rowKeyTemplateAsync((TSDB)any(), anyString(), 
+        (Map<String, String>)any()))
+      .thenReturn(Deferred.<byte[]>fromError(
+          new NoSuchUniqueName("sys.cpu.user", "metric")));
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPointAsync("sys.cpu.user", 1356998400, 42, tags)
+      .joinUninterruptibly();
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void addPointAsyncNegativeTimestamp() throws Exception {
+    setupAddPointStorage();
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    tsdb.addPointAsync("sys.cpu.user", -1, 42, tags);
+  }
+  
   @SuppressWarnings("unchecked")
   @Test (expected = NoSuchUniqueName.class)
   public void addPointNoAutoMetric() throws Exception {
@@ -862,6 +944,15 @@ public final class TestTSDB {
         }
     ).when(IncomingDataPoints.class, "rowKeyTemplate", (TSDB)any(), anyString(), 
         (Map<String, String>)any());
+    PowerMockito.doAnswer(
+        new Answer<Deferred<byte[]>>() {
+          public Deferred<byte[]> answer(final InvocationOnMock unused) 
+            throws Exception {
+            return Deferred.fromResult(row);
+          }
+        }
+    ).when(IncomingDataPoints.class, "rowKeyTemplateAsync", (TSDB)any(), 
+        anyString(), (Map<String, String>)any());
         
     when(metrics.width()).thenReturn((short)3);
     when(tag_names.width()).thenReturn((short)3);
@@ -0,0 +1,119 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.TSMeta;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSUIDCounters.class, TSUIDCounters.Thrd.class,
+                  TSDB.class, TSMeta.class })
+public final class TestTSUIDCounters {
+  private static final byte[] TSUID1 = { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID2 = { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+  private TSDB tsdb = mock(TSDB.class);
+  private TSUIDCounters counters;
+
+  @Before
+  public void before() throws Exception {
+    // Stub out the flush thread, the tests call flush() themselves.
+    PowerMockito.whenNew(TSUIDCounters.Thrd.class).withNoArguments()
+      .thenReturn(mock(TSUIDCounters.Thrd.class));
+    PowerMockito.mockStatic(TSMeta.class);
+    when(TSMeta.incrementAndGetCounter(eq(tsdb), any(byte[].class),
+        anyLong())).thenReturn(Deferred.fromResult(1L));
+    counters = new TSUIDCounters(tsdb, 10);
+  }
+
+  @Test
+  public void firstPointSentRightAway() throws Exception {
+    counters.increment(TSUID1);
+    verifyIncrement(TSUID1, 1, 1);
+  }
+
+  @Test
+  public void coalesced() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      counters.increment(TSUID1);
+    }
+    counters.increment(TSUID2);
+    counters.increment(TSUID2);
+    verifyIncrement(TSUID1, 1, 1);
+    verifyIncrement(TSUID2, 1, 1);
+    counters.flush().joinUninterruptibly();
+    verifyIncrement(TSUID1, 4, 1);
+    verifyIncrement(TSUID2, 1, 2);
+  }
+
+  @Test
+  public void nothingToFlush() throws Exception {
+    counters.increment(TSUID1);
+    counters.flush().joinUninterruptibly();
+    // The only point was already sent.
+    verifyIncrement(TSUID1, 1, 1);
+  }
+
+  @Test
+  public void idleSeriesForgotten() throws Exception {
+    counters.increment(TSUID1);
+    counters.flush().joinUninterruptibly();
+    counters.increment(TSUID1);
+    verifyIncrement(TSUID1, 1, 2);
+  }
+
+  @Test
+  public void shutdownFlushes() throws Exception {
+    counters.increment(TSUID1);
+    counters.increment(TSUID1);
+    counters.increment(TSUID1);
+    counters.shutdown().joinUninterruptibly();
+    verifyIncrement(TSUID1, 2, 1);
+  }
+
+  @Test
+  public void failedIncrement() throws Exception {
+    when(TSMeta.incrementAndGetCounter(eq(tsdb), any(byte[].class),
+        anyLong())).thenReturn(Deferred.<Long>fromError(
+            new RuntimeException("Boom")));
+    counters.increment(TSUID1);
+    counters.increment(TSUID1);
+    counters.flush().joinUninterruptibly();
+    verifyIncrement(TSUID1, 1, 2);
+  }
+
+  private void verifyIncrement(final byte[] tsuid, final long amount,
+                               final int times) {
+    PowerMockito.verifyStatic(times(times));
+    TSMeta.incrementAndGetCounter(tsdb, tsuid, amount);
+  }
+
+}
@@ -0,0 +1,112 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import org.hbase.async.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSUIDTrackingFilter.class })
+public final class TestTSUIDTrackingFilter {
+  private static final byte[] TSUID1 = { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID2 = { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+  private TSUIDTrackingFilter filter;
+
+  @Before
+  public void before() throws Exception {
+    PowerMockito.mockStatic(System.class);
+    when(System.currentTimeMillis()).thenReturn(1356998400000L);
+    filter = new TSUIDTrackingFilter(1000, 600);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoSeries() throws Exception {
+    new TSUIDTrackingFilter(0, 600);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoInterval() throws Exception {
+    new TSUIDTrackingFilter(1000, 0);
+  }
+
+  @Test
+  public void trackedOncePerInterval() throws Exception {
+    assertTrue(filter.add(TSUID1));
+    assertFalse(filter.add(TSUID1));
+    assertTrue(filter.add(TSUID2));
+    assertFalse(filter.add(TSUID2));
+    assertFalse(filter.add(TSUID1));
+  }
+
+  @Test
+  public void trackedAgainAfterRotation() throws Exception {
+    assertTrue(filter.add(TSUID1));
+    when(System.currentTimeMillis()).thenReturn(1356998999999L);
+    assertFalse(filter.add(TSUID1));
+    when(System.currentTimeMillis()).thenReturn(1356999000000L);
+    assertTrue(filter.add(TSUID1));
+    assertFalse(filter.add(TSUID1));
+    // The filter used before the rotation is cleared before being reused.
+    when(System.currentTimeMillis()).thenReturn(1356999600000L);
+    assertTrue(filter.add(TSUID1));
+  }
+
+  @Test
+  public void fillRatio() throws Exception {
+    assertEquals(0, filter.fillRatio());
+    final byte[] tsuid = new byte[9];
+    for (int i = 0; i < 1000; i++) {
+      Bytes.setInt(tsuid, i, 5);
+      filter.add(tsuid);
+    }
+    // 7 bits for each of the 1000 TSUIDs, minus collisions, out of 10048.
+    assertTrue(filter.fillRatio() > 40);
+    assertTrue(filter.fillRatio() <= 70);
+    when(System.currentTimeMillis()).thenReturn(1356999000000L);
+    filter.add(TSUID1);
+    assertEquals(0, filter.fillRatio());
+  }
+
+  @Test
+  public void fewFalsePositives() throws Exception {
+    final byte[] tsuid = new byte[9];
+    for (int i = 0; i < 1000; i++) {
+      Bytes.setInt(tsuid, i, 5);
+      filter.add(tsuid);
+    }
+    int false_positives = 0;
+    for (int i = 1000; i < 1100; i++) {
+      Bytes.setInt(tsuid, i, 5);
+      if (!filter.add(tsuid)) {
+        false_positives++;
+      }
+    }
+    // About 1% is expected.
+    assertTrue("false positives: " + false_positives, false_positives < 10);
+  }
+
+}
@@ -309,7 +309,86 @@ public final class TestTsdbQuery {
     }
     assertEquals(300, dps[0].aggregatedSize());
   }
-  
+
+  @Test
+  public void runLongSingleTSPartitioned() throws Exception {
+    // Rows get split over 2 of the 4 time ranges and must be merged back.
+    config.overrideConfig("tsd.query.scan.partitions", "4");
+    config.overrideConfig("tsd.query.scan.max_concurrent", "2");
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+
+    assertNotNull(dps);
+    assertEquals(1, dps.length);
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void runLongSingleTSDecoded() throws Exception {
+    config.overrideConfig("tsd.query.decode_rows", "true");
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+
+    assertNotNull(dps);
+    assertEquals(1, dps.length);
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
+  @Test
+  public void runLongSingleTSCached() throws Exception {
+    final Field cache = tsdb.getClass().getDeclaredField("query_cache");
+    cache.setAccessible(true);
+    cache.set(tsdb, new QueryCache(1024 * 1024, 600));
+    storeLongTimeSeriesSeconds(true, false);
+    HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+    assertEquals(300, query.run()[0].aggregatedSize());
+
+    // The rows are old enough to have been cached, the same query doesn't
+    // need storage anymore.
+    storage.flushStorage();
+    query = new TsdbQuery(tsdb);
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries("sys.cpu.user", tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+
+    assertNotNull(dps);
+    assertEquals(1, dps.length);
+    int value = 1;
+    for (DataPoint dp : dps[0]) {
+      assertEquals(value, dp.longValue());
+      value++;
+    }
+    assertEquals(300, dps[0].aggregatedSize());
+  }
+
   @Test
   public void runLongSingleTSMs() throws Exception {
     storeLongTimeSeriesMs();
@@ -367,6 +446,35 @@ public final class TestTsdbQuery {
     assertEquals(300, dps[0].size());
   }
   
+  @Test
+  public void runLongTwoAggSumSalted() throws Exception {
+    Const.setSalt(1, 4);
+    try {
+      setQueryStorage();
+      final byte[] web01 = { 0, 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+          0, 0, 1, 0, 0, 1 };
+      final byte[] web02 = { 0, 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 
+          0, 0, 1, 0, 0, 2 };
+      RowKey.prefixKeyWithSalt(web01);
+      RowKey.prefixKeyWithSalt(web02);
+      assertTrue(web01[0] != web02[0]);
+      storage.addColumn(web01, new byte[] { 0, 0 }, new byte[] { 42 });
+      storage.addColumn(web02, new byte[] { 0, 0 }, new byte[] { 24 });
+
+      query.setStartTime(1356998400L);
+      query.setEndTime(1357041600L);
+      query.setTimeSeries("sys.cpu.user", new HashMap<String, String>(), 
+          Aggregators.SUM, false);
+      final DataPoints[] dps = query.run();
+      assertEquals(1, dps.length);
+      assertEquals("host", dps[0].getAggregatedTags().get(0));
+      assertEquals(1, dps[0].size());
+      assertEquals(66, dps[0].longValue(0));
+    } finally {
+      Const.setSalt(0, 1);
+    }
+  }
+  
   @Test
   public void runLongTwoAggSumMs() throws Exception {
     storeLongTimeSeriesMs();
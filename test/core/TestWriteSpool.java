@@ -0,0 +1,178 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+
+import org.hbase.async.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ WriteSpool.class, WriteSpool.Thrd.class,
+                  TSDB.class, UniqueId.class, Config.class })
+public final class TestWriteSpool {
+  private static final byte[] QUAL = { 0x00, 0x07 };
+  private static final byte[] VAL = { 42 };
+  private TSDB tsdb = mock(TSDB.class);
+  private Config config = mock(Config.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private File directory;
+  private byte[] key;
+
+  @Before
+  public void before() throws Exception {
+    directory = File.createTempFile("spool", "");
+    directory.delete();
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "config", config);
+    when(metrics.width()).thenReturn((short) 3);
+    when(config.getString("tsd.storage.spool.directory"))
+      .thenReturn(directory.getPath());
+    when(config.getInt("tsd.storage.spool.segment_size")).thenReturn(64);
+    when(config.getLong("tsd.storage.spool.max_size")).thenReturn(1024L);
+    when(config.getInt("tsd.storage.spool.latency_threshold"))
+      .thenReturn(1000);
+    when(config.getInt("tsd.storage.spool.replay_rate")).thenReturn(10);
+    // Stub out the replay thread, the tests call replay() themselves.
+    PowerMockito.whenNew(WriteSpool.Thrd.class).withNoArguments()
+      .thenReturn(mock(WriteSpool.Thrd.class));
+    when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
+      .thenReturn(Deferred.fromResult(null));
+    key = new byte[] { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 2 };
+    Bytes.setInt(key, 1356998400, 3);
+  }
+
+  @After
+  public void after() throws Exception {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void engagedBySlowPuts() throws Exception {
+    final WriteSpool spool = new WriteSpool(tsdb);
+    assertFalse(spool.isEngaged());
+    spool.recordLatency(999);
+    assertFalse(spool.isEngaged());
+    spool.recordLatency(1001);
+    assertTrue(spool.isEngaged());
+  }
+
+  @Test
+  public void appendAndReplay() throws Exception {
+    final WriteSpool spool = new WriteSpool(tsdb);
+    spool.recordError();
+    // Each record takes 30 bytes so this needs more than one segment.
+    for (int i = 0; i < 3; i++) {
+      assertTrue(spool.append(key, QUAL, VAL));
+    }
+    assertEquals(2, directory.listFiles().length);
+    spool.replay();
+    verify(tsdb, times(3)).put(key, QUAL, VAL);
+    verify(tsdb, times(3)).scheduleForCompaction(key, 1356998400);
+    // The first segment was fully replayed.
+    spool.replay();
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  @Test
+  public void disengagedOnceHealthy() throws Exception {
+    final WriteSpool spool = new WriteSpool(tsdb);
+    spool.recordError();
+    spool.append(key, QUAL, VAL);
+    spool.replay();
+    assertTrue(spool.isEngaged());
+    spool.replay();
+    assertFalse(spool.isEngaged());
+  }
+
+  @Test
+  public void failedReplaySpooledAgain() throws Exception {
+    when(tsdb.put(anyBytes(), anyBytes(), anyBytes()))
+      .thenReturn(Deferred.<Object>fromError(new RuntimeException("Boom")))
+      .thenReturn(Deferred.fromResult(null));
+    final WriteSpool spool = new WriteSpool(tsdb);
+    spool.recordError();
+    spool.append(key, QUAL, VAL);
+    spool.replay();
+    verify(tsdb, times(1)).put(key, QUAL, VAL);
+    verify(tsdb, never()).scheduleForCompaction(any(byte[].class), anyInt());
+    // We back off for a while.
+    spool.replay();
+    verify(tsdb, times(1)).put(key, QUAL, VAL);
+    assertTrue(spool.isEngaged());
+  }
+
+  @Test
+  public void full() throws Exception {
+    when(config.getLong("tsd.storage.spool.max_size")).thenReturn(60L);
+    final WriteSpool spool = new WriteSpool(tsdb);
+    assertTrue(spool.append(key, QUAL, VAL));
+    assertTrue(spool.append(key, QUAL, VAL));
+    assertFalse(spool.append(key, QUAL, VAL));
+  }
+
+  @Test
+  public void replayedAfterRestart() throws Exception {
+    final WriteSpool spool = new WriteSpool(tsdb);
+    spool.append(key, QUAL, VAL);
+    spool.append(key, QUAL, VAL);
+    spool.shutdown();
+
+    final WriteSpool restarted = new WriteSpool(tsdb);
+    restarted.replay();
+    verify(tsdb, times(2)).put(key, QUAL, VAL);
+    // New records go to a new segment.
+    restarted.append(key, QUAL, VAL);
+    restarted.replay();
+    verify(tsdb, times(3)).put(key, QUAL, VAL);
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  private static byte[] anyBytes() {
+    return any(byte[].class);
+  }
+
+}
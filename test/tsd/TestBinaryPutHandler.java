@@ -0,0 +1,222 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, Config.class })
+public final class TestBinaryPutHandler {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final byte[] ROW = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+  private TSDB tsdb;
+  private Channel chan;
+  private ChannelHandlerContext ctx;
+  private HashMap<String, String> tags;
+  private BinaryPutHandler handler;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = NettyMocks.getMockedHTTPTSDB();
+    chan = NettyMocks.fakeChannel();
+    ctx = mock(ChannelHandlerContext.class);
+    when(ctx.getChannel()).thenReturn(chan);
+    tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    when(tsdb.resolveSeriesAsync("sys.cpu.nice", tags))
+      .thenReturn(Deferred.fromResult(ROW));
+    when(tsdb.addPointToSeries(any(byte[].class), anyString(), anyLong(),
+        anyLong(), anyMapOf(String.class, String.class)))
+      .thenReturn(Deferred.fromResult(new Object()));
+    when(tsdb.addPointToSeries(any(byte[].class), anyString(), anyLong(),
+        anyFloat(), anyMapOf(String.class, String.class)))
+      .thenReturn(Deferred.fromResult(new Object()));
+    when(tsdb.addPointToSeries(any(byte[].class), anyString(), anyLong(),
+        anyDouble(), anyMapOf(String.class, String.class)))
+      .thenReturn(Deferred.fromResult(new Object()));
+    new ConnectionManager(new Config(false));
+    handler = new BinaryPutHandler(tsdb, 2);
+  }
+
+  @Test
+  public void writePoints() throws Exception {
+    receive(series(7, "sys.cpu.nice", "host", "web01"));
+    final ChannelBuffer points = frame(BinaryPutHandler.TYPE_POINTS);
+    point(points, 7, 1365465600L, BinaryPutHandler.VALUE_LONG, 42);
+    point(points, 7, 1365465601L, BinaryPutHandler.VALUE_DOUBLE,
+        Double.doubleToRawLongBits(42.5));
+    points.writeInt(7);
+    points.writeLong(1365465602L);
+    points.writeByte(BinaryPutHandler.VALUE_FLOAT);
+    points.writeInt(Float.floatToRawIntBits(4.2f));
+    receive(points);
+
+    verify(tsdb, times(1)).resolveSeriesAsync("sys.cpu.nice", tags);
+    verify(tsdb).addPointToSeries(ROW, "sys.cpu.nice", 1365465600L, 42L, tags);
+    verify(tsdb).addPointToSeries(ROW, "sys.cpu.nice", 1365465601L, 42.5,
+        tags);
+    verify(tsdb).addPointToSeries(ROW, "sys.cpu.nice", 1365465602L, 4.2f,
+        tags);
+    verify(chan, never()).write(any());
+  }
+
+  @Test
+  public void pointsHeldUntilResolved() throws Exception {
+    final Deferred<byte[]> resolved = new Deferred<byte[]>();
+    when(tsdb.resolveSeriesAsync("sys.cpu.nice", tags)).thenReturn(resolved);
+    receive(series(7, "sys.cpu.nice", "host", "web01"));
+    final ChannelBuffer points = frame(BinaryPutHandler.TYPE_POINTS);
+    point(points, 7, 1365465600L, BinaryPutHandler.VALUE_LONG, 42);
+    receive(points);
+    verify(tsdb, never()).addPointToSeries(any(byte[].class), anyString(),
+        anyLong(), anyLong(), anyMapOf(String.class, String.class));
+
+    resolved.callback(ROW);
+    verify(tsdb).addPointToSeries(ROW, "sys.cpu.nice", 1365465600L, 42L, tags);
+  }
+
+  @Test
+  public void undefinedSeries() throws Exception {
+    final ChannelBuffer points = frame(BinaryPutHandler.TYPE_POINTS);
+    point(points, 3, 1365465600L, BinaryPutHandler.VALUE_LONG, 42);
+    receive(points);
+    assertEquals(3, error().readInt());
+  }
+
+  @Test
+  public void unknownMetric() throws Exception {
+    tags.put("host", "web02");
+    when(tsdb.resolveSeriesAsync("doesnotexist", tags))
+      .thenReturn(Deferred.<byte[]>fromError(
+          new NoSuchUniqueName("metric", "doesnotexist")));
+    receive(series(1, "doesnotexist", "host", "web02"));
+    assertEquals(1, error().readInt());
+
+    final ChannelBuffer points = frame(BinaryPutHandler.TYPE_POINTS);
+    point(points, 1, 1365465600L, BinaryPutHandler.VALUE_LONG, 42);
+    receive(points);
+    verify(tsdb, never()).addPointToSeries(any(byte[].class), anyString(),
+        anyLong(), anyLong(), anyMapOf(String.class, String.class));
+    // Only reported once.
+    verify(chan, times(1)).write(any());
+  }
+
+  @Test
+  public void tooManySeries() throws Exception {
+    receive(series(1, "sys.cpu.nice", "host", "web01"));
+    receive(series(2, "sys.cpu.nice", "host", "web01"));
+    // Redefining an existing series is fine.
+    receive(series(2, "sys.cpu.nice", "host", "web01"));
+    verify(chan, never()).write(any());
+    receive(series(3, "sys.cpu.nice", "host", "web01"));
+    assertEquals(3, error().readInt());
+  }
+
+  @Test
+  public void badValueType() throws Exception {
+    receive(series(7, "sys.cpu.nice", "host", "web01"));
+    final ChannelBuffer points = frame(BinaryPutHandler.TYPE_POINTS);
+    point(points, 7, 1365465600L, (byte) 42, 42);
+    receive(points);
+    assertEquals(-1, error().readInt());
+  }
+
+  // ----------------- //
+  // Helper functions. //
+  // ----------------- //
+
+  private void receive(final ChannelBuffer frame) throws Exception {
+    final MessageEvent event = mock(MessageEvent.class);
+    when(event.getMessage()).thenReturn(frame);
+    handler.messageReceived(ctx, event);
+  }
+
+  /** @return the single error frame written, positioned on the series ID. */
+  private ChannelBuffer error() {
+    final ArgumentCaptor<Object> written = ArgumentCaptor.forClass(Object.class);
+    verify(chan, times(1)).write(written.capture());
+    final ChannelBuffer buf = (ChannelBuffer) written.getValue();
+    assertEquals(buf.readableBytes() - 4, buf.readInt());
+    assertEquals(BinaryPutHandler.TYPE_ERROR, buf.readByte());
+    return buf;
+  }
+
+  /** Frames as seen by the handler, i.e. without their length. */
+  private static ChannelBuffer frame(final byte type) {
+    final ChannelBuffer buf = ChannelBuffers.dynamicBuffer();
+    buf.writeByte(type);
+    return buf;
+  }
+
+  private static ChannelBuffer series(final int id, final String metric,
+                                      final String tagk, final String tagv) {
+    final ChannelBuffer buf = frame(BinaryPutHandler.TYPE_SERIES);
+    buf.writeInt(id);
+    writeString(buf, metric);
+    buf.writeShort(1);
+    writeString(buf, tagk);
+    writeString(buf, tagv);
+    return buf;
+  }
+
+  private static void point(final ChannelBuffer buf, final int id,
+      final long timestamp, final byte type, final long value) {
+    buf.writeInt(id);
+    buf.writeLong(timestamp);
+    buf.writeByte(type);
+    buf.writeLong(value);
+  }
+
+  private static void writeString(final ChannelBuffer buf, final String s) {
+    final byte[] b = s.getBytes(UTF8);
+    buf.writeShort(b.length);
+    buf.writeBytes(b);
+  }
+
+}
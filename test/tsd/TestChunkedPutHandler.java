@@ -0,0 +1,130 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+import net.opentsdb.core.IncomingDataPoint;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ PutDataPointRpc.HttpPut.class })
+public final class TestChunkedPutHandler {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final String DP1 = "{\"metric\":\"sys.cpu.nice\","
+    + "\"timestamp\":1365465600,\"value\":\"42\",\"tags\":{\"host\":\"web01\"}}";
+  private static final String DP2 = "{\"metric\":\"sys.cpu.nice\","
+    + "\"timestamp\":1365465601,\"value\":\"24\",\"tags\":{\"host\":\"web\\\"}\"}}";
+  private PutDataPointRpc.HttpPut put;
+  private ChunkedPutHandler.JsonObjectSplitter splitter;
+
+  @Before
+  public void before() throws Exception {
+    put = mock(PutDataPointRpc.HttpPut.class);
+    splitter = new ChunkedPutHandler.JsonObjectSplitter(put);
+  }
+
+  @Test
+  public void singleObject() throws Exception {
+    feed(DP1);
+    splitter.finish();
+    final List<IncomingDataPoint> dps = captured(1);
+    assertEquals("sys.cpu.nice", dps.get(0).getMetric());
+    assertEquals(1365465600L, dps.get(0).getTimestamp());
+  }
+
+  @Test
+  public void arrayAcrossChunks() throws Exception {
+    final String body = "[" + DP1 + ",\n " + DP2 + "]";
+    // Split in the middle of each object and of the escaped string.
+    for (int i = 0; i < body.length(); i += 7) {
+      feed(body.substring(i, Math.min(body.length(), i + 7)));
+    }
+    splitter.finish();
+    final List<IncomingDataPoint> dps = captured(2);
+    assertEquals("42", dps.get(0).getValue());
+    assertEquals("web\"}", dps.get(1).getTags().get("host"));
+  }
+
+  @Test
+  public void pointsAddedBeforeTheEnd() throws Exception {
+    feed("[" + DP1 + ",");
+    captured(1);
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void truncatedArray() throws Exception {
+    feed("[" + DP1);
+    splitter.finish();
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void truncatedObject() throws Exception {
+    feed("[" + DP1.substring(0, 20));
+    splitter.finish();
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void notAnObject() throws Exception {
+    feed("\"sys.cpu.nice\"");
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void garbageAfterObject() throws Exception {
+    feed(DP1 + DP2);
+  }
+
+  @Test (expected = BadRequestException.class)
+  public void badObject() throws Exception {
+    try {
+      feed("[{\"metric\":\"sys.cpu.nice\",\"nosuchfield\":1}]");
+    } finally {
+      verify(put, never()).add(any(IncomingDataPoint.class));
+    }
+  }
+
+  // ----------------- //
+  // Helper functions. //
+  // ----------------- //
+
+  private void feed(final String content) {
+    splitter.feed(ChannelBuffers.copiedBuffer(content, UTF8));
+  }
+
+  private List<IncomingDataPoint> captured(final int count) {
+    final ArgumentCaptor<IncomingDataPoint> dps =
+      ArgumentCaptor.forClass(IncomingDataPoint.class);
+    verify(put, times(count)).add(dps.capture());
+    return dps.getAllValues();
+  }
+
+}
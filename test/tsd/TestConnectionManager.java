@@ -0,0 +1,83 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.channel.Channel;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+public final class TestConnectionManager {
+  private Channel chan;
+
+  @Before
+  public void before() throws Exception {
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.network.put.channel_high_watermark", "4");
+    config.overrideConfig("tsd.network.put.channel_low_watermark", "2");
+    config.overrideConfig("tsd.network.put.global_high_watermark", "0");
+    config.overrideConfig("tsd.network.put.global_low_watermark", "0");
+    new ConnectionManager(config);
+    chan = mock(Channel.class);
+  }
+
+  @Test
+  public void underHighWatermark() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      ConnectionManager.putStarted(chan);
+    }
+    verify(chan, never()).setReadable(false);
+  }
+
+  @Test
+  public void suspendAndResume() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      ConnectionManager.putStarted(chan);
+    }
+    verify(chan, times(1)).setReadable(false);
+
+    ConnectionManager.putCompleted(chan);
+    ConnectionManager.putCompleted(chan);
+    verify(chan, never()).setReadable(true);
+    ConnectionManager.putCompleted(chan);
+    verify(chan, times(1)).setReadable(true);
+    ConnectionManager.putCompleted(chan);
+    ConnectionManager.putCompleted(chan);
+    verify(chan, times(1)).setReadable(true);
+  }
+
+  @Test
+  public void channelsAreIndependent() throws Exception {
+    final Channel other = mock(Channel.class);
+    for (int i = 0; i < 4; i++) {
+      ConnectionManager.putStarted(chan);
+    }
+    ConnectionManager.putStarted(other);
+    verify(chan, times(1)).setReadable(false);
+    verify(other, never()).setReadable(false);
+  }
+
+}
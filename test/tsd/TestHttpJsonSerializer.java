@@ -13,14 +13,23 @@
 package net.opentsdb.tsd;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.SeekableView;
 import net.opentsdb.core.TSDB;
+import net.opentsdb.core.TSQuery;
 import net.opentsdb.utils.Config;
 
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -36,7 +45,7 @@ import org.powermock.modules.junit4.PowerMockRunner;
  * class
  */
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({TSDB.class, Config.class, HttpQuery.class})
+@PrepareForTest({TSDB.class, Config.class, HttpQuery.class, TSQuery.class})
 public final class TestHttpJsonSerializer {
   private TSDB tsdb = null;
 
@@ -93,6 +102,55 @@ public final class TestHttpJsonSerializer {
     assertEquals("metrics", map.get("type"));
   }
   
+  @Test
+  public void parsePutV1StreamSingle() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", 
+        "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,"
+        + "\"value\":42,\"tags\":{\"host\":\"web01\"}}", "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    Iterator<IncomingDataPoint> dps = serdes.parsePutV1Stream();
+    assertTrue(dps.hasNext());
+    IncomingDataPoint dp = dps.next();
+    assertEquals("sys.cpu.nice", dp.getMetric());
+    assertEquals("42", dp.getValue());
+    assertEquals("web01", dp.getTags().get("host"));
+    assertFalse(dps.hasNext());
+  }
+  
+  @Test
+  public void parsePutV1StreamArray() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", 
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,"
+        + "\"value\":42,\"tags\":{\"host\":\"web01\"}},"
+        + "{\"metric\":\"sys.cpu.system\",\"timestamp\":1365465600,"
+        + "\"value\":24.5,\"tags\":{\"host\":\"web02\"}}]", "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    Iterator<IncomingDataPoint> dps = serdes.parsePutV1Stream();
+    assertEquals("sys.cpu.nice", dps.next().getMetric());
+    IncomingDataPoint dp = dps.next();
+    assertEquals("sys.cpu.system", dp.getMetric());
+    assertEquals("24.5", dp.getValue());
+    assertFalse(dps.hasNext());
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1StreamBadElement() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", 
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,"
+        + "\"value\":42,\"tags\":{\"host\":\"web01\"}},42]", "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    Iterator<IncomingDataPoint> dps = serdes.parsePutV1Stream();
+    assertEquals("sys.cpu.nice", dps.next().getMetric());
+    dps.hasNext();
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1StreamNotJSON() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "", "Hello World", "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    serdes.parsePutV1Stream();
+  }
+  
   @Test (expected = BadRequestException.class)
   public void parseSuggestV1NoContent() throws Exception {
     HttpQuery query = NettyMocks.postQuery(tsdb, "", 
@@ -157,4 +215,67 @@ public final class TestHttpJsonSerializer {
         serdes.formatSerializersV1().toString(Charset.forName("UTF-8"))
         .substring(0, 15));
   }
+
+  @Test
+  public void formatQueryChunksV1() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    results.add(new DataPoints[] { mockDataPoints("sys.cpu.user") });
+    results.add(new DataPoints[0]);
+    results.add(new DataPoints[] { mockDataPoints("sys.cpu.nice") });
+    final Iterator<ChannelBuffer> chunks =
+      serdes.formatQueryChunksV1(mockQuery(), results, null);
+    assertEquals("[{\"metric\":\"sys.cpu.user\",\"tags\":{},"
+        + "\"aggregateTags\":[],\"dps\":{}}", nextChunk(chunks));
+    assertEquals(",{\"metric\":\"sys.cpu.nice\",\"tags\":{},"
+        + "\"aggregateTags\":[],\"dps\":{}}", nextChunk(chunks));
+    assertEquals("]", nextChunk(chunks));
+    assertFalse(chunks.hasNext());
+  }
+
+  @Test
+  public void formatQueryChunksV1SameAsFormatQueryV1() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "?jsonp=func");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    results.add(new DataPoints[] { mockDataPoints("sys.cpu.user"),
+        mockDataPoints("sys.cpu.nice") });
+    final TSQuery data_query = mockQuery();
+    final StringBuilder buf = new StringBuilder();
+    final Iterator<ChannelBuffer> chunks =
+      serdes.formatQueryChunksV1(data_query, results, null);
+    while (chunks.hasNext()) {
+      buf.append(nextChunk(chunks));
+    }
+    assertEquals(serdes.formatQueryV1(data_query, results, null)
+        .toString(Charset.forName("UTF-8")), buf.toString());
+  }
+
+  @Test
+  public void formatQueryChunksV1Empty() throws Exception {
+    HttpQuery query = NettyMocks.getQuery(tsdb, "?jsonp=func");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final Iterator<ChannelBuffer> chunks = serdes.formatQueryChunksV1(
+        mockQuery(), new ArrayList<DataPoints[]>(), null);
+    assertEquals("func([])", nextChunk(chunks));
+    assertFalse(chunks.hasNext());
+  }
+
+  private static TSQuery mockQuery() {
+    final TSQuery data_query = mock(TSQuery.class);
+    when(data_query.getNoAnnotations()).thenReturn(true);
+    return data_query;
+  }
+
+  private static DataPoints mockDataPoints(final String metric) {
+    final DataPoints dps = mock(DataPoints.class);
+    when(dps.metricName()).thenReturn(metric);
+    when(dps.iterator()).thenReturn(mock(SeekableView.class));
+    return dps;
+  }
+
+  private static String nextChunk(final Iterator<ChannelBuffer> chunks) {
+    return chunks.next().toString(Charset.forName("UTF-8"));
+  }
 }
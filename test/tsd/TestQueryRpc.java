@@ -15,6 +15,7 @@ package net.opentsdb.tsd;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
@@ -22,6 +23,7 @@ import static org.powermock.api.mockito.PowerMockito.mock;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
@@ -36,6 +38,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 import com.stumbleupon.async.Deferred;
 
@@ -50,7 +53,7 @@ import com.stumbleupon.async.Deferred;
   Deferred.class, TSQuery.class})
 public final class TestQueryRpc {
   private TSDB tsdb = null;
-  final private QueryRpc rpc = new QueryRpc();
+  private QueryRpc rpc = null;
   final private Query empty_query = mock(Query.class);
   
   private static final Method parseQuery;
@@ -69,6 +72,7 @@ public final class TestQueryRpc {
     tsdb = NettyMocks.getMockedHTTPTSDB();
     when(tsdb.newQuery()).thenReturn(empty_query);
     when(empty_query.run()).thenReturn(new DataPoints[0]);
+    rpc = new QueryRpc(tsdb);
   }
   
   @Test
@@ -272,6 +276,25 @@ public final class TestQueryRpc {
     parseQuery.invoke(rpc, tsdb, query);
   }
   
+  @Test
+  public void executeRejectedWhenQueueFull() throws Exception {
+    when(tsdb.getConfig().getInt("tsd.query.max_running")).thenReturn(1);
+    rpc = new QueryRpc(tsdb);
+    final AtomicInteger running = 
+      Whitebox.getInternalState(QueryRpc.class, "running_queries");
+    running.set(1);
+    try {
+      rpc.execute(tsdb, NettyMocks.getQuery(tsdb, 
+        "/api/query?start=1h-ago&m=sum:sys.cpu.0"));
+      fail("Expected a BadRequestException");
+    } catch (BadRequestException e) {
+      assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, e.getStatus());
+    } finally {
+      running.set(0);
+      rpc.shutdown();
+    }
+  }
+  
   //TODO(cl) fix this up and add unit tests for the rate options parsing
 //  @SuppressWarnings({ "unchecked", "rawtypes" })
 //  @Test
@@ -14,6 +14,7 @@ package net.opentsdb.tsd;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
@@ -105,6 +106,15 @@ public final class TestRTPublisher {
         null, null, (short)0x7));
   }
   
+  @Test
+  public void publishDataPoints() throws Exception {
+    final RTPublisher.Point point = new RTPublisher.Point("sys.cpu.user", 
+        System.currentTimeMillis(), new byte[] { 0, 0, 0, 0, 0, 0, 0, 1 }, 
+        null, null, (short)0x7, System.nanoTime());
+    assertNull(rt_publisher.publishDataPoints(
+        Collections.singletonList(point)).joinUninterruptibly());
+  }
+  
   @Test
   public void publishAnnotation() throws Exception {
 	  Annotation ann = new Annotation();
@@ -0,0 +1,216 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ RTPublisherDispatcher.class,
+  RTPublisherDispatcher.Thrd.class, Config.class })
+public final class TestRTPublisherDispatcher {
+  private static final byte[] VALUE = { 42 };
+  private Config config = mock(Config.class);
+  private BatchPublisher publisher = new BatchPublisher();
+  private ArrayList<RTPublisher.Point> batch =
+    new ArrayList<RTPublisher.Point>();
+
+  @Before
+  public void before() throws Exception {
+    when(config.getInt("tsd.rtpublisher.dispatcher.queue_size")).thenReturn(4);
+    when(config.getInt("tsd.rtpublisher.dispatcher.batch_size")).thenReturn(3);
+    when(config.getInt("tsd.rtpublisher.dispatcher.threads")).thenReturn(1);
+    when(config.getString("tsd.rtpublisher.dispatcher.full_policy"))
+      .thenReturn("drop_newest");
+    // Stub out the threads, the tests publish batches themselves.
+    PowerMockito.whenNew(RTPublisherDispatcher.Thrd.class).withNoArguments()
+      .thenReturn(mock(RTPublisherDispatcher.Thrd.class));
+  }
+
+  @Test
+  public void publishInBatches() throws Exception {
+    final RTPublisherDispatcher dispatcher =
+      new RTPublisherDispatcher(config, publisher);
+    for (int i = 0; i < 4; i++) {
+      sink(dispatcher, 1356998400 + i);
+    }
+    assertEquals(4, dispatcher.depth());
+    assertTrue(dispatcher.publishBatch(batch));
+    assertTrue(dispatcher.publishBatch(batch));
+    assertFalse(dispatcher.publishBatch(batch));
+    assertEquals(2, publisher.batches.size());
+    assertEquals(3, publisher.batches.get(0).size());
+    assertEquals(1, publisher.batches.get(1).size());
+    assertEquals(1356998400, publisher.batches.get(0).get(0).getTimestamp());
+    assertEquals(1356998403, publisher.batches.get(1).get(0).getTimestamp());
+    assertEquals(0, dispatcher.depth());
+    assertTrue(batch.isEmpty());
+  }
+
+  @Test
+  public void point() throws Exception {
+    final RTPublisherDispatcher dispatcher =
+      new RTPublisherDispatcher(config, publisher);
+    dispatcher.sinkDataPoint("sys.cpu.user", 1356998400, VALUE, null,
+        new byte[] { 0, 0, 1 }, (short) 0);
+    dispatcher.publishBatch(batch);
+    final RTPublisher.Point point = publisher.batches.get(0).get(0);
+    assertEquals("sys.cpu.user", point.getMetric());
+    assertTrue(point.isInteger());
+    assertEquals(42, point.longValue());
+  }
+
+  @Test
+  public void dropNewest() throws Exception {
+    final RTPublisherDispatcher dispatcher =
+      new RTPublisherDispatcher(config, publisher);
+    for (int i = 0; i < 6; i++) {
+      sink(dispatcher, 1356998400 + i);
+    }
+    assertEquals(4, dispatcher.depth());
+    dispatcher.publishBatch(batch);
+    assertEquals(1356998400, publisher.batches.get(0).get(0).getTimestamp());
+  }
+
+  @Test
+  public void dropOldest() throws Exception {
+    when(config.getString("tsd.rtpublisher.dispatcher.full_policy"))
+      .thenReturn("drop_oldest");
+    final RTPublisherDispatcher dispatcher =
+      new RTPublisherDispatcher(config, publisher);
+    for (int i = 0; i < 6; i++) {
+      sink(dispatcher, 1356998400 + i);
+    }
+    assertEquals(4, dispatcher.depth());
+    dispatcher.publishBatch(batch);
+    assertEquals(1356998402, publisher.batches.get(0).get(0).getTimestamp());
+  }
+
+  @Test
+  public void queueSizeRoundedUp() throws Exception {
+    when(config.getInt("tsd.rtpublisher.dispatcher.queue_size")).thenReturn(3);
+    final RTPublisherDispatcher dispatcher =
+      new RTPublisherDispatcher(config, publisher);
+    for (int i = 0; i < 5; i++) {
+      sink(dispatcher, 1356998400 + i);
+    }
+    assertEquals(4, dispatcher.depth());
+  }
+
+  @Test
+  public void failedBatch() throws Exception {
+    publisher.fail = true;
+    final RTPublisherDispatcher dispatcher =
+      new RTPublisherDispatcher(config, publisher);
+    sink(dispatcher, 1356998400);
+    assertTrue(dispatcher.publishBatch(batch));
+    assertFalse(dispatcher.publishBatch(batch));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void badPolicy() throws Exception {
+    when(config.getString("tsd.rtpublisher.dispatcher.full_policy"))
+      .thenReturn("drop_everything");
+    new RTPublisherDispatcher(config, publisher);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void noQueue() throws Exception {
+    when(config.getInt("tsd.rtpublisher.dispatcher.queue_size")).thenReturn(0);
+    new RTPublisherDispatcher(config, publisher);
+  }
+
+  private static void sink(final RTPublisherDispatcher dispatcher,
+      final long timestamp) {
+    dispatcher.sinkDataPoint("sys.cpu.user", timestamp, VALUE, null, null,
+        (short) 0);
+  }
+
+  /** Remembers the batches it's given. */
+  private static final class BatchPublisher extends RTPublisher {
+    final List<List<Point>> batches = new ArrayList<List<Point>>();
+    boolean fail;
+
+    @Override
+    public Deferred<Object> publishDataPoints(final List<Point> points) {
+      batches.add(new ArrayList<Point>(points));
+      if (fail) {
+        return Deferred.fromError(new RuntimeException("Boom"));
+      }
+      return Deferred.fromResult(null);
+    }
+
+    @Override
+    public void initialize(final TSDB tsdb) {
+    }
+
+    @Override
+    public Deferred<Object> shutdown() {
+      return Deferred.fromResult(null);
+    }
+
+    @Override
+    public String version() {
+      return "2.1.0";
+    }
+
+    @Override
+    public void collectStats(final StatsCollector collector) {
+    }
+
+    @Override
+    public Deferred<Object> publishDataPoint(final String metric,
+        final long timestamp, final long value,
+        final Map<String, String> tags, final byte[] tsuid) {
+      return Deferred.fromResult(null);
+    }
+
+    @Override
+    public Deferred<Object> publishDataPoint(final String metric,
+        final long timestamp, final double value,
+        final Map<String, String> tags, final byte[] tsuid) {
+      return Deferred.fromResult(null);
+    }
+
+    @Override
+    public Deferred<Object> publishAnnotation(final Annotation annotation) {
+      return Deferred.fromResult(null);
+    }
+  }
+
+}
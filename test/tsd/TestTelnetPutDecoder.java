@@ -0,0 +1,184 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2014  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, Config.class })
+public final class TestTelnetPutDecoder {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+  private static final byte[] ROW = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+  private TSDB tsdb;
+  private TelnetPutDecoder decoder;
+
+  @Before
+  public void before() throws Exception {
+    tsdb = NettyMocks.getMockedHTTPTSDB();
+    when(tsdb.resolveSeriesAsync(anyString(),
+        anyMapOf(String.class, String.class)))
+      .thenReturn(Deferred.fromResult(ROW));
+    decoder = new TelnetPutDecoder(tsdb, 16);
+  }
+
+  @Test
+  public void integerPut() throws Exception {
+    final TelnetPutDecoder.ParsedPut put =
+      parse("put sys.cpu.user 1365465600 42 host=web01 cpu=0");
+    assertTrue(put.integer);
+    assertEquals(42, put.long_value);
+    assertEquals(1365465600L, put.timestamp);
+    assertEquals("sys.cpu.user", put.series.metric);
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    tags.put("cpu", "0");
+    assertEquals(tags, put.series.tags);
+    assertArrayEquals(ROW, put.series.row);
+  }
+
+  @Test
+  public void negativeInteger() throws Exception {
+    final TelnetPutDecoder.ParsedPut put =
+      parse("put sys.cpu.user 1365465600 -42 host=web01");
+    assertTrue(put.integer);
+    assertEquals(-42, put.long_value);
+  }
+
+  @Test
+  public void floatPut() throws Exception {
+    final TelnetPutDecoder.ParsedPut put =
+      parse("put sys.cpu.user 1365465600 42.5 host=web01");
+    assertFalse(put.integer);
+    assertEquals(42.5f, put.float_value, 0.0f);
+  }
+
+  @Test
+  public void floatsMatchParseFloat() throws Exception {
+    final String[] values = { "0.1", "-0.0042", "4220.0", ".5", "5.",
+      "0.0000000001", "3.141592", "1677721.5", "-0.0" };
+    for (final String value : values) {
+      final TelnetPutDecoder.ParsedPut put =
+        parse("put sys.cpu.user 1365465600 " + value + " host=web01");
+      assertEquals(value, Float.floatToIntBits(Float.parseFloat(value)),
+          Float.floatToIntBits(put.float_value));
+    }
+  }
+
+  @Test
+  public void millisecondTimestamp() throws Exception {
+    final TelnetPutDecoder.ParsedPut put =
+      parse("put sys.cpu.user 1365465600.123 42 host=web01");
+    assertEquals(1365465600123L, put.timestamp);
+  }
+
+  @Test
+  public void seriesRemembered() throws Exception {
+    final TelnetPutDecoder.Series series =
+      parse("put sys.cpu.user 1365465600 42 host=web01").series;
+    assertSame(series,
+        parse("put sys.cpu.user 1365465601 24 host=web01").series);
+    verify(tsdb, times(1)).resolveSeriesAsync(anyString(),
+        anyMapOf(String.class, String.class));
+  }
+
+  @Test
+  public void otherSeries() throws Exception {
+    final TelnetPutDecoder.Series series =
+      parse("put sys.cpu.user 1365465600 42 host=web01").series;
+    final TelnetPutDecoder.Series other =
+      parse("put sys.cpu.user 1365465600 42 host=web02").series;
+    assertFalse(series == other);
+    assertEquals("web02", other.tags.get("host"));
+  }
+
+  @Test
+  public void unresolvedSeries() throws Exception {
+    when(tsdb.resolveSeriesAsync(anyString(),
+        anyMapOf(String.class, String.class)))
+      .thenReturn(new Deferred<byte[]>());
+    assertNull(parse("put sys.cpu.user 1365465600 42 host=web01").series.row);
+  }
+
+  @Test
+  public void notAPut() throws Exception {
+    assertNotParsed("version");
+    assertNotParsed("putter");
+  }
+
+  @Test
+  public void fallbackToRegularPath() throws Exception {
+    assertNotParsed("put sys.cpu.user 1365465600 4.2e1 host=web01");
+    assertNotParsed("put sys.cpu.user 1365465600 NaN host=web01");
+    assertNotParsed("put  sys.cpu.user 1365465600 42 host=web01");
+    assertNotParsed("put sys.cpu.user -1365465600 42 host=web01");
+    assertNotParsed("put sys.cpu.user 1365465600 42");
+    assertNotParsed("put sys.cpu.user 1365465600 42 ");
+    assertNotParsed("put sys.cpu.user 1365465600 - host=web01");
+    assertNotParsed("put sys.cpu.user 1365465600 42 host");
+    assertNotParsed("put sys.cpu.user 1365465600 42 host=web01 host=web02");
+    assertNotParsed("put sys.cpu.user 1365465600 0.12345678901 host=web01");
+    assertNotParsed("put sys.cpu.user 1365465600 12345678901234567890 "
+                    + "host=web01");
+  }
+
+  // ----------------- //
+  // Helper functions. //
+  // ----------------- //
+
+  private Object decode(final String line) throws Exception {
+    return decoder.decode(null, null,
+        ChannelBuffers.copiedBuffer(line, CHARSET));
+  }
+
+  private TelnetPutDecoder.ParsedPut parse(final String line)
+    throws Exception {
+    return (TelnetPutDecoder.ParsedPut) decode(line);
+  }
+
+  private void assertNotParsed(final String line) throws Exception {
+    final Object decoded = decode(line);
+    assertTrue(line, decoded instanceof ChannelBuffer);
+    assertEquals(line, ((ChannelBuffer) decoded).toString(CHARSET));
+  }
+
+}
@@ -20,6 +20,7 @@ import java.util.Map;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
+import net.opentsdb.core.Const;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.utils.Config;
 
@@ -58,6 +59,7 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 import static org.powermock.api.mockito.PowerMockito.mock;
 
 @RunWith(PowerMockRunner.class)
@@ -633,6 +635,19 @@ public final class TestUniqueId {
         tsuid);
   }
   
+  @Test
+  public void getTSUIDFromKeySalted() {
+    Whitebox.setInternalState(Const.class, "salt_width", (short)1);
+    try {
+      final byte[] tsuid = UniqueId.getTSUIDFromKey(new byte[] 
+        { 9, 0, 0, 1, 1, 1, 1, 1, 0, 0, 2, 0, 0, 3 }, (short)3, (short)4);
+      assertArrayEquals(new byte[] { 0, 0, 1, 0, 0, 2, 0, 0, 3 }, 
+          tsuid);
+    } finally {
+      Whitebox.setInternalState(Const.class, "salt_width", (short)0);
+    }
+  }
+  
   @Test
   public void getTSUIDFromKeyMissingTags() {
     final byte[] tsuid = UniqueId.getTSUIDFromKey(new byte[] 